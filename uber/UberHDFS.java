@@ -1,533 +1,10122 @@
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 public class UberHDFS {
     
     static class HDFSBlock {
+        private static final String[] NO_REPLICAS = new String[0];
+        
         private final String blockId;
-        private final byte[] data;
+        // Held only while the block is being written; the NameNode keeps metadata only
+        private volatile byte[] data;
         private final int size;
-        private final List<String> replicas;
+        // Copy-on-write, like the list it replaces, without the list and lock objects
+        private volatile String[] replicas = NO_REPLICAS;
+        
+        // Erasure-coded blocks have no replicas; cell i of the stripe lives on
+        // cellLocations[i] (null once that cell is lost)
+        private volatile ErasureCodingPolicy ecPolicy;
+        private String[] cellLocations;
         
         public HDFSBlock(String blockId, byte[] data) {
             this.blockId = blockId;
             this.data = data.clone();
             this.size = data.length;
-            this.replicas = new ArrayList<>();
+        }
+        
+        // Metadata-only block, as restored by the NameNode from its checkpoint and edit log
+        public HDFSBlock(String blockId, int size) {
+            this.blockId = blockId;
+            this.data = null;
+            this.size = size;
         }
         
         public String getBlockId() { return blockId; }
-        public byte[] getData() { return data.clone(); }
+        public byte[] getData() { 
+            byte[] bytes = data;
+            return bytes != null ? bytes.clone() : null;
+        }
+        public ByteBuffer getDataBuffer() { 
+            byte[] bytes = data;
+            return bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : null;
+        }
+        public void releaseData() { data = null; }
         public int getSize() { return size; }
-        public List<String> getReplicas() { return new ArrayList<>(replicas); }
-        public void addReplica(String dataNodeId) { replicas.add(dataNodeId); }
+        public List<String> getReplicas() { return new ArrayList<>(Arrays.asList(replicas)); }
+        
+        public synchronized void addReplica(String dataNodeId) {
+            if (indexOf(replicas, dataNodeId) >= 0) return;
+            String[] grown = Arrays.copyOf(replicas, replicas.length + 1);
+            grown[replicas.length] = dataNodeId;
+            replicas = canonical(grown);
+        }
+        
+        public synchronized void removeReplica(String dataNodeId) {
+            int index = indexOf(replicas, dataNodeId);
+            if (index < 0) return;
+            String[] shrunk = new String[replicas.length - 1];
+            System.arraycopy(replicas, 0, shrunk, 0, index);
+            System.arraycopy(replicas, index + 1, shrunk, index, shrunk.length - index);
+            replicas = shrunk.length == 0 ? NO_REPLICAS : canonical(shrunk);
+        }
+        
+        // Replica arrays are never mutated, so blocks placed on the same nodes share
+        // one; the table is capped for clusters with too many distinct placements
+        private static final int MAX_REPLICA_SETS = 1 << 16;
+        private static final Map<String, String[]> REPLICA_SETS = new ConcurrentHashMap<>();
+        
+        private static String[] canonical(String[] nodes) {
+            String key = String.join(",", nodes);
+            String[] shared = REPLICA_SETS.get(key);
+            if (shared != null) return shared;
+            if (REPLICA_SETS.size() >= MAX_REPLICA_SETS) return nodes;
+            shared = REPLICA_SETS.putIfAbsent(key, nodes);
+            return shared != null ? shared : nodes;
+        }
+        
+        private static int indexOf(String[] nodes, String dataNodeId) {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i].equals(dataNodeId)) return i;
+            }
+            return -1;
+        }
+        
+        public boolean isErasureCoded() { return ecPolicy != null; }
+        public ErasureCodingPolicy getEcPolicy() { return ecPolicy; }
+        
+        public synchronized void setStriped(ErasureCodingPolicy policy, String[] locations) {
+            this.cellLocations = locations.clone();
+            this.ecPolicy = policy;
+            replicas = NO_REPLICAS;
+        }
+        
+        public synchronized String[] getCellLocations() {
+            return cellLocations != null ? cellLocations.clone() : new String[0];
+        }
+        
+        public synchronized void setCellLocation(int index, String dataNodeId) {
+            cellLocations[index] = dataNodeId;
+        }
+        
+        // Replaces the location only if it still is expected (a lost cell may
+        // have been rebuilt elsewhere meanwhile)
+        public synchronized boolean clearCellLocation(int index, String expected) {
+            if (!Objects.equals(cellLocations[index], expected)) return false;
+            cellLocations[index] = null;
+            return true;
+        }
+        
+        public boolean isStoredOn(String dataNodeId) {
+            return isErasureCoded() ? Arrays.asList(getCellLocations()).contains(dataNodeId) : indexOf(replicas, dataNodeId) >= 0;
+        }
     }
     
     static class FileMetadata {
+        private static final String[] NO_BLOCKS = new String[0];
+        
         private final String fileName;
-        private final long fileSize;
-        private final List<String> blockIds;
+        private volatile long fileSize;
+        // Copy-on-write array; most files have one or two blocks
+        private volatile String[] blockIds = NO_BLOCKS;
         private final long timestamp;
         private final String owner;
+        // Codec every block of the file is encoded with, or null for raw blocks
+        private volatile CompressionCodec codec;
+        // Bumped by every append or overwrite, each of which swaps in a new
+        // FileMetadata; a reader that raced one sees a different generation
+        private volatile int generation;
         
         public FileMetadata(String fileName, long fileSize, String owner) {
+            this(fileName, fileSize, owner, System.currentTimeMillis());
+        }
+        
+        public FileMetadata(String fileName, long fileSize, String owner, long timestamp) {
             this.fileName = fileName;
             this.fileSize = fileSize;
             this.owner = owner;
-            this.blockIds = new ArrayList<>();
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
         }
         
         public String getFileName() { return fileName; }
         public long getFileSize() { return fileSize; }
-        public List<String> getBlockIds() { return new ArrayList<>(blockIds); }
+        public List<String> getBlockIds() { return new ArrayList<>(Arrays.asList(blockIds)); }
+        public int getBlockCount() { return blockIds.length; }
         public long getTimestamp() { return timestamp; }
         public String getOwner() { return owner; }
-        public void addBlock(String blockId) { blockIds.add(blockId); }
+        public CompressionCodec getCodec() { return codec; }
+        public void setCodec(CompressionCodec codec) { this.codec = codec; }
+        public int getGeneration() { return generation; }
+        void setGeneration(int generation) { this.generation = generation; }
+        public synchronized void addBlock(String blockId) {
+            String[] grown = Arrays.copyOf(blockIds, blockIds.length + 1);
+            grown[blockIds.length] = blockId;
+            blockIds = grown;
+        }
+        
+        // Used by append-only files (GPS segments) whose size grows block by block
+        public synchronized void appendBlock(String blockId, int length) {
+            addBlock(blockId);
+            fileSize += length;
+        }
+        
+        // Undoes appendBlock for a block that could not be journaled
+        synchronized void removeLastBlock(String blockId, int length) {
+            if (blockIds.length == 0 || !blockIds[blockIds.length - 1].equals(blockId)) return;
+            blockIds = Arrays.copyOf(blockIds, blockIds.length - 1);
+            fileSize -= length;
+        }
+        
+        // Small-file containers grow inside their partial last block
+        public synchronized void extendTo(long length) {
+            if (length > fileSize) fileSize = length;
+        }
     }
     
-    static class DataNode {
-        private final String nodeId;
-        private final String address;
-        private final int port;
-        private final File storageDir;
-        private final Map<String, HDFSBlock> blocks;
-        private final long capacity;
-        private long usedSpace;
-        private boolean isActive;
-
-        public DataNode(String nodeId, String address, int port, long capacity, File storageDir) {
-            this.nodeId = nodeId;
-            this.address = address;
-            this.port = port;
-            this.capacity = capacity;
-            this.blocks = new ConcurrentHashMap<>();
-            this.usedSpace = 0;
-            this.isActive = true;
-            this.storageDir = storageDir;
-
-            // Ensure storage directories exist
-            File blocksDir = new File(storageDir, "blocks");
-            if (!blocksDir.exists()) blocksDir.mkdirs();
-        }
+    // How many replica writes must succeed before a block write is acknowledged.
+    // QUORUM is a majority of the replication factor: with the default factor of
+    // 2 that is both replicas, the same as ALL; it only acknowledges earlier from
+    // 3 replicas up.
+    enum WriteAckPolicy { ALL, QUORUM }
+    
+    // ==================== GPS SEGMENT LOG ====================
+    // One append-only file per driver and hour instead of one file per GPS point,
+    // under /uber/gps/<partition>/<driverId>/ where the partition is the UTC hour
+    // of the points' own timestamps (yyyy-MM-dd-HH). Points are buffered into a
+    // block-sized tail; every full block is shipped to the DataNodes immediately,
+    // and the segment is sealed once it grows past maxBytes or stays open longer
+    // than maxAgeMillis.
+    static class GPSSegment {
+        static final long PARTITION_MILLIS = 60 * 60 * 1000;
+        // Names sort in time order only for four-digit years; range bounds are clamped to them
+        static final long LAST_PARTITION_MILLIS = 253_402_297_200_000L; // 9999-12-31 23:00 UTC
+        private static final DateTimeFormatter PARTITION_FORMAT = 
+            DateTimeFormatter.ofPattern("yyyy-MM-dd-HH").withZone(ZoneOffset.UTC);
         
-        public boolean storeBlock(HDFSBlock block) {
-            if (usedSpace + block.getSize() > capacity) {
-                return false;
+        // Almost every point lands in the current hour, whose name is formatted once
+        private static final class NamedHour {
+            final long hour;
+            final String name;
+            
+            NamedHour(long hour, String name) {
+                this.hour = hour;
+                this.name = name;
             }
-
+        }
+        private static volatile NamedHour lastPartition = new NamedHour(Long.MIN_VALUE, "");
+        
+        private final String driverId;
+        private final String partition;
+        private final FileMetadata metadata;
+        private final ByteArrayOutputStream tail;
+        private final long createdAt;
+        private int blockIndex;
+        private long lastAppend;
+        private boolean sealed;
+        
+        public GPSSegment(String driverId, String partition, FileMetadata metadata, int blockSize) {
+            this.driverId = driverId;
+            this.partition = partition;
+            this.metadata = metadata;
+            this.tail = new ByteArrayOutputStream(blockSize);
+            this.createdAt = System.currentTimeMillis();
+            this.lastAppend = createdAt;
+        }
+        
+        public String getDriverId() { return driverId; }
+        public String getPartition() { return partition; }
+        public String getFileName() { return metadata.getFileName(); }
+        public FileMetadata getMetadata() { return metadata; }
+        public long getCreatedAt() { return createdAt; }
+        public long getLastAppend() { return lastAppend; }
+        public boolean isSealed() { return sealed; }
+        
+        public long getTotalBytes() { return metadata.getFileSize() + tail.size(); }
+        
+        public synchronized byte[] getTailSnapshot() { return tail.toByteArray(); }
+        
+        // Partition names sort in time order
+        public static String partitionOf(long timestamp) {
+            timestamp = Math.max(0, Math.min(timestamp, LAST_PARTITION_MILLIS));
+            long hour = timestamp - Math.floorMod(timestamp, PARTITION_MILLIS);
+            NamedHour last = lastPartition;
+            if (last.hour == hour) return last.name;
+            String name = PARTITION_FORMAT.format(Instant.ofEpochMilli(hour));
+            lastPartition = new NamedHour(hour, name);
+            return name;
+        }
+        
+        // Timestamp of the record data[start, end): the digits after its last '|', or -1
+        static long timestampOf(byte[] data, int start, int end) {
+            if (end > start && data[end - 1] == '\n') end--;
+            long timestamp = 0;
+            int i = end;
+            while (i > start && data[i - 1] >= '0' && data[i - 1] <= '9') i--;
+            if (i == end || i == start || data[i - 1] != '|' || end - i > 18) return -1;
+            for (; i < end; i++) timestamp = timestamp * 10 + (data[i] - '0');
+            return timestamp;
+        }
+    }
+    
+    // Sparse GPS index entry: one per shipped segment block, with the first and
+    // last point timestamps in it, so range queries skip blocks without reading them
+    static class GPSIndexEntry {
+        final String segment;
+        final String blockId;
+        final long minTimestamp;
+        final long maxTimestamp;
+        
+        GPSIndexEntry(String segment, String blockId, long minTimestamp, long maxTimestamp) {
+            this.segment = segment;
+            this.blockId = blockId;
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+        }
+        
+        boolean overlaps(long fromMillis, long toMillis) {
+            return minTimestamp <= toMillis && maxTimestamp >= fromMillis;
+        }
+    }
+    
+    // ==================== SMALL-FILE CONTAINERS ====================
+    // Rides, driver profiles and backup pointers are tens of bytes each. Rather
+    // than a file (namespace entry plus a .blk and .crc per replica) per record,
+    // they are appended to one open container per directory, stored under the
+    // mirrored path /.pack/<dir>/, and found through an index of
+    // key -> (container, offset, length). The partial last block is rewritten
+    // in place on its replicas at every append (hflush), so a record is on the
+    // DataNodes before the write is acknowledged.
+    static class PackedRecord {
+        final String container;
+        final long offset;
+        final int length;
+        
+        PackedRecord(String container, long offset, int length) {
+            this.container = container;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+    
+    static class SmallFileContainer {
+        private final String directory;
+        private final FileMetadata metadata;
+        private final ByteArrayOutputStream tail; // bytes of the partial last block
+        private int flushed; // tail bytes already on the block's replicas
+        private int blockIndex;
+        private boolean sealed;
+        
+        public SmallFileContainer(String directory, FileMetadata metadata, int blockSize) {
+            this.directory = directory;
+            this.metadata = metadata;
+            this.tail = new ByteArrayOutputStream(blockSize);
+        }
+        
+        public String getDirectory() { return directory; }
+        public String getFileName() { return metadata.getFileName(); }
+        public FileMetadata getMetadata() { return metadata; }
+        public boolean isSealed() { return sealed; }
+        
+        public static String blockId(String container, int index) {
+            return container + "_block_" + index;
+        }
+    }
+    
+    // ==================== NAMENODE EDIT LOG ====================
+    // Append-only binary journal of namespace mutations, split into segments
+    // (edits_<firstTxId>.log). Writers append to an in-memory buffer and then call
+    // logSync(); whichever thread syncs first flushes everything buffered so far
+    // with a single fsync, so concurrent writers share one disk flush (group commit).
+    // Record layout: txId(long) | op(byte) | length(int) | payload | crc32(int)
+    static class EditLog {
+        static final byte OP_ADD_FILE = 1;
+        static final byte OP_DELETE_FILE = 2;
+        static final byte OP_ADD_BLOCK = 3;
+        static final byte OP_CONVERT_BLOCK = 4; // block striped, or its cell locations changed
+        static final byte OP_PACK_RECORD = 5;   // record appended to a small-file container
+        static final byte OP_PACK_BATCH = 6;    // several records appended to one container at once
+        static final byte OP_REPLACE_FILE = 7;  // file overwritten by a new generation
+        static final byte OP_APPEND_FILE = 8;   // blocks appended, the partial last block replaced
+        static final byte OP_GPS_BLOCK = 9;     // block shipped to a GPS segment, with its timestamp range
+        static final byte OP_DELETE_BLOCKS = 10; // retired blocks deleted after their grace period
+        
+        interface EditHandler {
+            void apply(byte op, DataInputStream payload) throws IOException;
+        }
+        
+        private final File dir;
+        private FileOutputStream segmentOut;
+        private long segmentStartTxId;
+        private ByteArrayOutputStream currentBuffer = new ByteArrayOutputStream(64 * 1024);
+        private ByteArrayOutputStream syncBuffer = new ByteArrayOutputStream(64 * 1024);
+        private long lastTxId;
+        private long syncedTxId;
+        private boolean syncInProgress;
+        private long syncCount;
+        private boolean aborted;
+        // Set by a failed flush, which may have left a torn record in the segment:
+        // replay would stop there, so nothing written after it could be recovered
+        private IOException failure;
+        
+        public EditLog(File dir, long lastTxId) throws IOException {
+            this.dir = dir;
+            this.lastTxId = lastTxId;
+            this.syncedTxId = lastTxId;
+            openSegment(lastTxId + 1);
+        }
+        
+        private void openSegment(long startTxId) throws IOException {
+            this.segmentStartTxId = startTxId;
+            this.segmentOut = new FileOutputStream(new File(dir, "edits_" + startTxId + ".log"), true);
+        }
+        
+        public synchronized long logEdit(byte op, byte[] payload) throws IOException {
+            if (aborted) throw new IllegalStateException("Edit log has been fenced");
+            if (failure != null) throw new IOException("Edit log failed earlier - " + failure.getMessage());
+            long txId = ++lastTxId;
+            CRC32 crc = new CRC32();
+            crc.update(op);
+            crc.update(payload);
+            
+            DataOutputStream out = new DataOutputStream(currentBuffer);
             try {
-                File blocksDir = new File(storageDir, "blocks");
-                if (!blocksDir.exists()) blocksDir.mkdirs();
-
-                File blockFile = new File(blocksDir, block.getBlockId() + ".blk");
-                // ensure parent dirs exist (blockId may contain path-like segments)
-                File parent = blockFile.getParentFile();
-                if (parent != null && !parent.exists()) parent.mkdirs();
-                try (FileOutputStream fos = new FileOutputStream(blockFile)) {
-                    fos.write(block.getData());
+                out.writeLong(txId);
+                out.writeByte(op);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeInt((int) crc.getValue());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // ByteArrayOutputStream never throws
+            }
+            return txId;
+        }
+        
+        public void logSync(long txId) throws IOException {
+            ByteArrayOutputStream toFlush;
+            long flushUpTo;
+            synchronized (this) {
+                while (txId > syncedTxId && syncInProgress) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for edit log sync");
+                    }
                 }
-
-                // Keep in-memory reference for quick reads
-                blocks.put(block.getBlockId(), block);
-                usedSpace += block.getSize();
-                block.addReplica(nodeId);
-
-                System.out.println("DataNode " + nodeId + ": Stored block " + block.getBlockId() + 
-                                 " (" + block.getSize() + " bytes) -> " + blockFile.getAbsolutePath());
-                return true;
+                if (txId <= syncedTxId) return; // another writer's flush covered us
+                if (aborted) throw new IOException("Edit log has been fenced");
+                if (failure != null) throw new IOException("Edit log failed earlier - " + failure.getMessage());
+                
+                syncInProgress = true;
+                toFlush = currentBuffer;
+                currentBuffer = syncBuffer;
+                syncBuffer = toFlush;
+                flushUpTo = lastTxId;
+            }
+            
+            IOException error = null;
+            try {
+                toFlush.writeTo(segmentOut);
+                segmentOut.getChannel().force(false);
             } catch (IOException e) {
-                System.err.println("DataNode " + nodeId + ": Failed to store block " + block.getBlockId() + " - " + e.getMessage());
-                return false;
+                error = e;
+                throw e;
+            } finally {
+                synchronized (this) {
+                    toFlush.reset();
+                    if (error == null) {
+                        syncedTxId = flushUpTo;
+                        syncCount++;
+                    } else {
+                        failure = error;
+                        currentBuffer.reset(); // their writers wake up to the failure
+                    }
+                    syncInProgress = false;
+                    notifyAll();
+                }
             }
         }
         
-        public HDFSBlock getBlock(String blockId) {
-            HDFSBlock block = blocks.get(blockId);
-            if (block != null) return block;
-
-            // Try to load from disk
-            File blockFile = new File(new File(storageDir, "blocks"), blockId + ".blk");
-            if (blockFile.exists()) {
+        // Closes the current segment and starts a new one; returns the last txId of the old one
+        public synchronized long rollSegment() throws IOException {
+            while (syncInProgress) {
                 try {
-                    byte[] data = Files.readAllBytes(blockFile.toPath());
-                    HDFSBlock loaded = new HDFSBlock(blockId, data);
-                    blocks.put(blockId, loaded);
-                    return loaded;
-                } catch (IOException e) {
-                    System.err.println("DataNode " + nodeId + ": Failed to read block file " + blockFile.getAbsolutePath());
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting to roll edit log");
                 }
             }
-
-            return null;
+            if (failure != null) throw new IOException("Edit log failed earlier - " + failure.getMessage());
+            currentBuffer.writeTo(segmentOut);
+            currentBuffer.reset();
+            segmentOut.getChannel().force(false);
+            segmentOut.close();
+            syncedTxId = lastTxId;
+            
+            openSegment(lastTxId + 1);
+            return lastTxId;
         }
         
-        public boolean deleteBlock(String blockId) {
-            HDFSBlock block = blocks.remove(blockId);
-            if (block != null) {
-                usedSpace -= block.getSize();
-            }
-
-            File blockFile = new File(new File(storageDir, "blocks"), blockId + ".blk");
-            if (blockFile.exists()) {
-                if (blockFile.delete()) {
-                    System.out.println("DataNode " + nodeId + ": Deleted block file " + blockFile.getAbsolutePath());
-                } else {
-                    System.err.println("DataNode " + nodeId + ": Failed to delete block file " + blockFile.getAbsolutePath());
+        public synchronized void close() throws IOException {
+            rollSegment();
+            segmentOut.close();
+            new File(dir, "edits_" + segmentStartTxId + ".log").delete(); // empty segment opened by the roll
+        }
+        
+        // Fencing: drops the edits that were never synced (none of them was
+        // acknowledged) and closes the segment without opening another one
+        public synchronized void abort() throws IOException {
+            aborted = true;
+            currentBuffer.reset();
+            segmentOut.close();
+        }
+        
+        public synchronized long getLastTxId() { return lastTxId; }
+        public synchronized long getSyncCount() { return syncCount; }
+        public synchronized boolean hasFailed() { return failure != null; }
+        
+        // Deletes segments whose edits are all covered by a checkpoint at checkpointTxId
+        public void purgeSegmentsBefore(long checkpointTxId) {
+            List<Long> starts = listSegments(dir);
+            for (int i = 0; i < starts.size() - 1; i++) {
+                if (starts.get(i + 1) - 1 <= checkpointTxId) {
+                    new File(dir, "edits_" + starts.get(i) + ".log").delete();
                 }
             }
-
-            return true;
         }
         
-        public String getNodeId() { return nodeId; }
-        public String getAddress() { return address; }
-        public int getPort() { return port; }
-        public long getUsedSpace() { return usedSpace; }
-        public long getFreeSpace() { return capacity - usedSpace; }
-        public boolean isActive() { return isActive; }
-        public void setActive(boolean active) { this.isActive = active; }
+        static List<Long> listSegments(File dir) {
+            List<Long> starts = new ArrayList<>();
+            File[] files = dir.listFiles((d, name) -> name.startsWith("edits_") && name.endsWith(".log"));
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    starts.add(Long.parseLong(name.substring(6, name.length() - 4)));
+                }
+            }
+            Collections.sort(starts);
+            return starts;
+        }
         
-        public Map<String, Integer> getBlockSummary() {
-            Map<String, Integer> summary = new HashMap<>();
-            summary.put("totalBlocks", blocks.size());
-            summary.put("usedSpaceMB", (int)(usedSpace / (1024 * 1024)));
-            summary.put("freeSpaceMB", (int)(getFreeSpace() / (1024 * 1024)));
-            return summary;
+        // Replays every edit with txId > afterTxId; returns the last txId applied.
+        // A torn or corrupt record ends replay of that segment (it was never acknowledged).
+        static long replay(File dir, long afterTxId, EditHandler handler) throws IOException {
+            long lastApplied = afterTxId;
+            for (long start : listSegments(dir)) {
+                File segment = new File(dir, "edits_" + start + ".log");
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 1 << 16))) {
+                    while (true) {
+                        long txId;
+                        try {
+                            txId = in.readLong();
+                        } catch (EOFException eof) {
+                            break;
+                        }
+                        byte op;
+                        byte[] payload;
+                        int checksum;
+                        try {
+                            op = in.readByte();
+                            int length = in.readInt();
+                            if (length < 0 || length > (64 << 20)) break;
+                            payload = new byte[length];
+                            in.readFully(payload);
+                            checksum = in.readInt();
+                        } catch (EOFException torn) {
+                            System.err.println("NameNode: Truncated edit at txId " + txId + " in " + segment.getName());
+                            break;
+                        }
+                        CRC32 crc = new CRC32();
+                        crc.update(op);
+                        crc.update(payload);
+                        if ((int) crc.getValue() != checksum) {
+                            System.err.println("NameNode: Corrupt edit at txId " + txId + " in " + segment.getName());
+                            break;
+                        }
+                        if (txId <= lastApplied) continue;
+                        
+                        handler.apply(op, new DataInputStream(new ByteArrayInputStream(payload)));
+                        lastApplied = txId;
+                    }
+                }
+            }
+            return lastApplied;
         }
     }
     
-    static class NameNode {
-        private final Map<String, FileMetadata> fileSystem;
-        private final Map<String, DataNode> dataNodes;
-        private final Map<String, HDFSBlock> blockLocations;
-        private final int replicationFactor;
-        private final int blockSize;
-        private final File metaDir;
+    // ==================== NAMENODE HIGH AVAILABILITY ====================
+    // A standby NameNode shares the active's metadata directory: it loads the
+    // latest checkpoint, then keeps applying the active's edits as they are
+    // synced. Failover fences the active before the standby opens a journal
+    // segment of its own, so two NameNodes never write edits at the same time.
+    enum HAState { ACTIVE, STANDBY, FENCED }
+    
+    // Follows the edit segments for a standby. Each poll applies the complete,
+    // checksummed records written since the previous poll and stops at one that
+    // is still being flushed. The current segment stays open, so a checkpoint
+    // that purges its file cannot take away edits that were not read yet.
+    static class EditLogTailer {
+        private static final int HEADER_BYTES = 13; // txId, op, payload length
         
-        public NameNode(File metaDir, int replicationFactor, int blockSize) {
-            this.fileSystem = new ConcurrentHashMap<>();
-            this.dataNodes = new ConcurrentHashMap<>();
-            this.blockLocations = new ConcurrentHashMap<>();
-            this.replicationFactor = replicationFactor;
-            this.blockSize = blockSize;
-            this.metaDir = metaDir;
-
-            if (this.metaDir != null && !this.metaDir.exists()) this.metaDir.mkdirs();
-
-            System.out.println("NameNode initialized with replication factor: " + replicationFactor + 
-                             ", block size: " + blockSize + " bytes");
-            if (this.metaDir != null) System.out.println("NameNode metadata: " + this.metaDir.getAbsolutePath());
-        }
+        private final File dir;
+        private long lastTxId;
+        private long segmentStart = -1;
+        private FileChannel segment;
+        private long position;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        private volatile long lastPollMillis;
         
-        public void registerDataNode(DataNode dataNode) {
-            dataNodes.put(dataNode.getNodeId(), dataNode);
-            System.out.println("DataNode registered: " + dataNode.getNodeId() + 
-                             " at " + dataNode.getAddress() + ":" + dataNode.getPort());
+        EditLogTailer(File dir, long lastTxId) {
+            this.dir = dir;
+            this.lastTxId = lastTxId;
         }
         
-        public boolean writeFile(String fileName, byte[] data, String owner) {
-            if (fileSystem.containsKey(fileName)) {
-                System.out.println("File already exists: " + fileName);
-                return false;
-            }
-            
-            FileMetadata metadata = new FileMetadata(fileName, data.length, owner);
-            List<HDFSBlock> blocks = createBlocks(data, fileName);
-            
-            // Distribute blocks to DataNodes
-            for (HDFSBlock block : blocks) {
-                List<DataNode> targetNodes = selectDataNodes(replicationFactor);
-                if (targetNodes.size() < replicationFactor) {
-                    System.out.println("Not enough DataNodes for replication");
-                    return false;
-                }
-                
-                boolean stored = false;
-                for (DataNode node : targetNodes) {
-                    if (node.storeBlock(block)) {
-                        stored = true;
-                    }
+        public synchronized long getLastTxId() { return lastTxId; }
+        public long getLastPollMillis() { return lastPollMillis; }
+        
+        // Applies every complete edit after lastTxId; returns how many were applied.
+        // Throws if edits that follow lastTxId are no longer in the directory.
+        public synchronized int poll(EditLog.EditHandler handler) throws IOException {
+            int applied = 0;
+            while (segment != null || openSegmentFor(lastTxId + 1)) {
+                applied += readRecords(handler);
+                long next = nextSegmentAfter(segmentStart);
+                if (next < 0) break;
+                // A later segment exists, so this one is closed: read whatever
+                // the roll flushed after the pass above, then move on
+                applied += readRecords(handler);
+                if (next > lastTxId + 1) {
+                    throw new IOException("Edits " + (lastTxId + 1) + "-" + (next - 1) + " are missing from " + dir);
                 }
-                
-                if (stored) {
-                    blockLocations.put(block.getBlockId(), block);
-                    metadata.addBlock(block.getBlockId());
+                segment.close();
+                segment = null;
+            }
+            lastPollMillis = System.currentTimeMillis();
+            return applied;
+        }
+        
+        public synchronized void close() throws IOException {
+            if (segment != null) segment.close();
+            segment = null;
+        }
+        
+        // Called once the writer is fenced: cuts a torn record (left by an active
+        // that failed mid-flush) off the segment being read, so the next writer's
+        // segment follows clean edits
+        public synchronized void finish() throws IOException {
+            if (segment == null) return;
+            long end = position;
+            segment.close();
+            segment = null;
+            File file = new File(dir, "edits_" + segmentStart + ".log");
+            if (file.exists() && file.length() > end) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(end);
                 }
+                System.out.println("NameNode: Truncated " + file.getName() + " after txId " + lastTxId);
             }
-            
-            if (metadata.getBlockIds().isEmpty()) {
-                System.err.println("NameNode: No blocks were stored for " + fileName + "; write failed");
-                return false;
+        }
+        
+        private boolean openSegmentFor(long txId) throws IOException {
+            List<Long> starts = EditLog.listSegments(dir);
+            long start = -1;
+            for (long s : starts) {
+                if (s <= txId) start = s;
             }
-
-            fileSystem.put(fileName, metadata);
-            System.out.println("File written successfully: " + fileName + " (" + data.length + " bytes)");
-
-            // Persist metadata to disk
-            try {
-                persistFileMetadata(metadata);
-            } catch (Exception e) {
-                System.err.println("NameNode: Failed to persist metadata for " + fileName + " - " + e.getMessage());
+            if (start < 0) {
+                if (!starts.isEmpty()) {
+                    throw new IOException("Edits " + txId + "-" + (starts.get(0) - 1) + " are missing from " + dir);
+                }
+                return false;
             }
+            segment = FileChannel.open(new File(dir, "edits_" + start + ".log").toPath(), StandardOpenOption.READ);
+            segmentStart = start;
+            position = 0;
             return true;
         }
         
-        public byte[] readFile(String fileName) {
-            FileMetadata metadata = fileSystem.get(fileName);
-            if (metadata == null) {
-                System.out.println("File not found: " + fileName);
-                return null;
+        private long nextSegmentAfter(long start) {
+            for (long s : EditLog.listSegments(dir)) {
+                if (s > start) return s;
             }
-            
-            ByteArrayOutputStream result = new ByteArrayOutputStream();
-            
-            for (String blockId : metadata.getBlockIds()) {
-                HDFSBlock block = blockLocations.get(blockId);
-                if (block != null) {
-                    // Find a DataNode that has this block
-                    for (String replica : block.getReplicas()) {
-                        DataNode node = dataNodes.get(replica);
-                        if (node != null && node.isActive()) {
-                            HDFSBlock retrievedBlock = node.getBlock(blockId);
-                            if (retrievedBlock != null) {
-                                try {
-                                    result.write(retrievedBlock.getData());
-                                    break;
-                                } catch (IOException e) {
-                                    System.err.println("Error reading block: " + blockId);
-                                }
-                            }
-                        }
-                    }
+            return -1;
+        }
+        
+        private int readRecords(EditLog.EditHandler handler) throws IOException {
+            int applied = 0;
+            long size = segment.size();
+            while (position + HEADER_BYTES <= size) {
+                header.clear();
+                readFully(header, position);
+                header.flip();
+                long txId = header.getLong();
+                byte op = header.get();
+                int length = header.getInt();
+                if (length < 0 || length > (64 << 20) || position + HEADER_BYTES + length + 4 > size) break;
+                
+                ByteBuffer body = ByteBuffer.allocate(length + 4);
+                readFully(body, position + HEADER_BYTES);
+                body.flip();
+                byte[] payload = new byte[length];
+                body.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(op);
+                crc.update(payload);
+                if ((int) crc.getValue() != body.getInt()) break; // still being written, or torn
+                
+                if (txId > lastTxId) {
+                    handler.apply(op, new DataInputStream(new ByteArrayInputStream(payload)));
+                    lastTxId = txId;
+                    applied++;
                 }
+                position += HEADER_BYTES + length + 4;
             }
-            
-            System.out.println("File read successfully: " + fileName);
-            return result.toByteArray();
+            return applied;
         }
         
-        public boolean deleteFile(String fileName) {
-            FileMetadata metadata = fileSystem.remove(fileName);
-            if (metadata == null) {
-                return false;
+        private void readFully(ByteBuffer buffer, long offset) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = segment.read(buffer, offset + buffer.position());
+                if (n < 0) throw new EOFException("Edit segment edits_" + segmentStart + ".log ended early");
             }
-            
-            // Delete all blocks
-            for (String blockId : metadata.getBlockIds()) {
-                HDFSBlock block = blockLocations.remove(blockId);
-                if (block != null) {
-                    for (String replica : block.getReplicas()) {
-                        DataNode node = dataNodes.get(replica);
-                        if (node != null) {
-                            node.deleteBlock(blockId);
-                        }
+        }
+    }
+    
+    // ==================== BLOCK REPORT RECONCILIATION ====================
+    // Result of comparing DataNode block reports against NameNode metadata
+    static class BlockReconciliation {
+        private final List<String> missingBlocks = new ArrayList<>();
+        private final List<String> underReplicatedBlocks = new ArrayList<>();
+        private final Map<String, List<String>> orphanedReplicas = new TreeMap<>();
+        
+        public List<String> getMissingBlocks() { return missingBlocks; }
+        public List<String> getUnderReplicatedBlocks() { return underReplicatedBlocks; }
+        public Map<String, List<String>> getOrphanedReplicas() { return orphanedReplicas; }
+        
+        public int getOrphanedReplicaCount() {
+            return orphanedReplicas.values().stream().mapToInt(List::size).sum();
+        }
+        
+        @Override
+        public String toString() {
+            return "missing=" + missingBlocks.size() + ", underReplicated=" + underReplicatedBlocks.size() + 
+                   ", orphanedReplicas=" + getOrphanedReplicaCount();
+        }
+    }
+    
+    // ==================== DATANODE BLOCK CACHE ====================
+    // Size-bounded segmented LRU over direct (off-heap) buffers. New blocks enter the
+    // probation segment; a second hit promotes them to the protected segment, so a
+    // one-off scan of cold blocks cannot flush the hot working set. Readers get
+    // read-only views of the cached buffer, never copies.
+    static class BlockCache {
+        private final long capacityBytes;
+        private final long protectedCapacityBytes;
+        private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, ByteBuffer> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationBytes;
+        private long protectedBytes;
+        
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        
+        public BlockCache(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+            this.protectedCapacityBytes = capacityBytes * 4 / 5;
+        }
+        
+        public ByteBuffer get(String blockId) {
+            ByteBuffer buffer;
+            synchronized (this) {
+                buffer = protectedSegment.get(blockId);
+                if (buffer == null) {
+                    buffer = probation.remove(blockId);
+                    if (buffer != null) {
+                        probationBytes -= buffer.capacity();
+                        protectedSegment.put(blockId, buffer);
+                        protectedBytes += buffer.capacity();
+                        demoteOverflow();
                     }
                 }
             }
-            
-            System.out.println("File deleted successfully: " + fileName);
+            if (buffer == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return buffer.asReadOnlyBuffer();
+        }
+        
+        // Copies the block off-heap once; returns a read-only view of the cached copy
+        public ByteBuffer put(String blockId, ByteBuffer data) {
+            if (data.remaining() > capacityBytes) return data.asReadOnlyBuffer();
+            
+            ByteBuffer copy = ByteBuffer.allocateDirect(data.remaining());
+            copy.put(data.duplicate());
+            copy.flip();
+            return adopt(blockId, copy);
+        }
+        
+        // Caches a direct buffer the caller just filled and will not touch again
+        public ByteBuffer adopt(String blockId, ByteBuffer direct) {
+            if (direct.capacity() > capacityBytes) return direct.asReadOnlyBuffer();
+            synchronized (this) {
+                invalidateLocked(blockId);
+                probation.put(blockId, direct);
+                probationBytes += direct.capacity();
+                evictOverflow();
+            }
+            return direct.asReadOnlyBuffer();
+        }
+        
+        public synchronized void invalidate(String blockId) {
+            invalidateLocked(blockId);
+        }
 
-            // Remove metadata file
+        
+        private void invalidateLocked(String blockId) {
+            ByteBuffer removed = probation.remove(blockId);
+            if (removed != null) probationBytes -= removed.capacity();
+            removed = protectedSegment.remove(blockId);
+            if (removed != null) protectedBytes -= removed.capacity();
+        }
+        
+        private void demoteOverflow() {
+            Iterator<Map.Entry<String, ByteBuffer>> it = protectedSegment.entrySet().iterator();
+            while (protectedBytes > protectedCapacityBytes && it.hasNext()) {
+                Map.Entry<String, ByteBuffer> eldest = it.next();
+                it.remove();
+                protectedBytes -= eldest.getValue().capacity();
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationBytes += eldest.getValue().capacity();
+            }
+            evictOverflow();
+        }
+        
+        private void evictOverflow() {
+            Iterator<Map.Entry<String, ByteBuffer>> it = probation.entrySet().iterator();
+            while (probationBytes + protectedBytes > capacityBytes && it.hasNext()) {
+                probationBytes -= it.next().getValue().capacity();
+                it.remove();
+                evictions.increment();
+            }
+        }
+        
+        public long getHits() { return hits.sum(); }
+        public long getMisses() { return misses.sum(); }
+        public long getEvictions() { return evictions.sum(); }
+        public synchronized long getUsedBytes() { return probationBytes + protectedBytes; }
+        public long getCapacityBytes() { return capacityBytes; }
+        
+        public double getHitRatio() {
+            long h = getHits(), total = h + getMisses();
+            return total == 0 ? 0.0 : (double) h / total;
+        }
+    }
+    
+    // ==================== STREAMING FILE CHANNEL ====================
+    // Reads a file as the concatenation of its blocks, fetching one block view at a time
+    static class BlockSequenceChannel implements ReadableByteChannel {
+        private final NameNode nameNode;
+        private final List<String> blockIds;
+        private final CompressionCodec codec;
+        private final ByteBuffer tail;
+        private int nextBlock;
+        private ByteBuffer current;
+        private boolean open = true;
+        
+        BlockSequenceChannel(NameNode nameNode, List<String> blockIds, CompressionCodec codec, byte[] tail) {
+            this.nameNode = nameNode;
+            this.blockIds = blockIds;
+            this.codec = codec;
+            this.tail = ByteBuffer.wrap(tail);
+        }
+        
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            if (!dst.hasRemaining()) return 0;
+            int read = 0;
+            while (dst.hasRemaining()) {
+                if (current == null || !current.hasRemaining()) {
+                    current = nextBuffer();
+                    if (current == null) break;
+                }
+                int length = Math.min(dst.remaining(), current.remaining());
+                ByteBuffer slice = current.duplicate();
+                slice.limit(slice.position() + length);
+                dst.put(slice);
+                current.position(current.position() + length);
+                read += length;
+            }
+            return read == 0 && current == null ? -1 : read;
+        }
+        
+        private ByteBuffer nextBuffer() throws IOException {
+            if (nextBlock < blockIds.size()) {
+                String blockId = blockIds.get(nextBlock++);
+                ByteBuffer data = nameNode.readBlockData(blockId, true, codec);
+                if (data == null) throw new IOException("No live replica for block " + blockId);
+                return data;
+            }
+            return tail.hasRemaining() ? tail : null;
+        }
+        
+        @Override
+        public boolean isOpen() { return open; }
+        
+        @Override
+        public void close() {
+            open = false;
+            current = null;
+        }
+    }
+    
+    // ==================== BLOCK CHECKSUMS ====================
+    // CRC32C per 512-byte chunk, stored next to each replica as <blockId>.crc
+    static class BlockChecksum {
+        static final int BYTES_PER_CHECKSUM = 512;
+        
+        static int[] compute(ByteBuffer data) {
+            ByteBuffer view = data.duplicate();
+            int chunks = (view.remaining() + BYTES_PER_CHECKSUM - 1) / BYTES_PER_CHECKSUM;
+            int[] sums = new int[chunks];
+            CRC32C crc = new CRC32C();
+            for (int i = 0; i < chunks; i++) {
+                int length = Math.min(BYTES_PER_CHECKSUM, view.remaining());
+                ByteBuffer chunk = view.duplicate();
+                chunk.limit(chunk.position() + length);
+                crc.reset();
+                crc.update(chunk);
+                sums[i] = (int) crc.getValue();
+                view.position(view.position() + length);
+            }
+            return sums;
+        }
+        
+        static void verify(String nodeId, String blockId, ByteBuffer data, int[] expected) throws ChecksumException {
+            int[] actual = compute(data);
+            if (actual.length != expected.length) {
+                throw new ChecksumException(nodeId, blockId, -1);
+            }
+            for (int i = 0; i < actual.length; i++) {
+                if (actual[i] != expected[i]) throw new ChecksumException(nodeId, blockId, (long) i * BYTES_PER_CHECKSUM);
+            }
+        }
+        
+        // Checksums of existing + appended, reusing those of existing's full chunks.
+        // Its partial last chunk is checked first, since it is folded into a new sum.
+        static int[] extend(String nodeId, String blockId, ByteBuffer existing, int[] sums, ByteBuffer appended) throws ChecksumException {
+            int length = existing.remaining();
+            int full = length / BYTES_PER_CHECKSUM;
+            if (sums.length != (length + BYTES_PER_CHECKSUM - 1) / BYTES_PER_CHECKSUM) {
+                throw new ChecksumException(nodeId, blockId, -1);
+            }
+            ByteBuffer partial = existing.duplicate();
+            partial.position(partial.position() + full * BYTES_PER_CHECKSUM);
+            int[] partialSum = compute(partial);
+            if (partialSum.length == 1 && partialSum[0] != sums[full]) {
+                throw new ChecksumException(nodeId, blockId, (long) full * BYTES_PER_CHECKSUM);
+            }
+            ByteBuffer tail = ByteBuffer.allocate(partial.remaining() + appended.remaining());
+            tail.put(partial.duplicate()).put(appended.duplicate()).flip();
+            int[] tailSums = compute(tail);
+            int[] extended = Arrays.copyOf(sums, full + tailSums.length);
+            System.arraycopy(tailSums, 0, extended, full, tailSums.length);
+            return extended;
+        }
+        
+        static void write(File file, int[] sums) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(BYTES_PER_CHECKSUM);
+                out.writeInt(sums.length);
+                for (int sum : sums) out.writeInt(sum);
+            }
+        }
+        
+        static int[] read(File file) throws IOException {
+            if (!file.exists()) return null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != BYTES_PER_CHECKSUM) throw new IOException("Unsupported checksum chunk size in " + file);
+                int[] sums = new int[in.readInt()];
+                for (int i = 0; i < sums.length; i++) sums[i] = in.readInt();
+                return sums;
+            }
+        }
+    }
+    
+    static class ChecksumException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        private final String nodeId;
+        private final String blockId;
+        
+        ChecksumException(String nodeId, String blockId, long offset) {
+            super("Checksum mismatch in block " + blockId + " on " + nodeId + 
+                  (offset >= 0 ? " at offset " + offset : " (length mismatch)"));
+            this.nodeId = nodeId;
+            this.blockId = blockId;
+        }
+        
+        public String getNodeId() { return nodeId; }
+        public String getBlockId() { return blockId; }
+    }
+    
+    // Token bucket limiting background I/O (scrubbing, re-replication) to bytesPerSecond
+    static class DataThrottler {
+        private volatile long bytesPerSecond;
+        private long periodStart = System.nanoTime();
+        private long bytesInPeriod;
+        
+        public DataThrottler(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+        
+        // Reserves the bytes under the lock and sleeps outside it, so concurrent
+        // callers queue behind each other's reservations instead of the monitor
+        public void throttle(long bytes) throws InterruptedException {
+            long sleepNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long elapsed = now - periodStart;
+                if (elapsed > 1_000_000_000L && bytesInPeriod * 1_000_000_000L / bytesPerSecond <= elapsed) {
+                    // caught up: start a fresh period so idle time is not banked
+                    periodStart = now;
+                    bytesInPeriod = 0;
+                    elapsed = 0;
+                }
+                bytesInPeriod += bytes;
+                sleepNanos = bytesInPeriod * 1_000_000_000L / bytesPerSecond - elapsed;
+            }
+            if (sleepNanos > 0) TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        }
+        
+        // Starts a fresh period, so a job starting after a long idle stretch gets no burst
+        public synchronized void reset() {
+            periodStart = System.nanoTime();
+            bytesInPeriod = 0;
+        }
+        
+        public void setBytesPerSecond(long bytesPerSecond) { this.bytesPerSecond = bytesPerSecond; }
+        public long getBytesPerSecond() { return bytesPerSecond; }
+    }
+    
+    // ==================== BLOCK SCRUBBER ====================
+    // Walks every replica on every active DataNode, re-reading it from disk and
+    // checking its CRCs at a throttled rate so foreground I/O keeps priority.
+    static class ScrubReport {
+        private final long startedAt = System.currentTimeMillis();
+        private long finishedAt;
+        private long blocksScanned;
+        private long bytesScanned;
+        private final List<String> corruptReplicas = new ArrayList<>();
+        
+        public long getBlocksScanned() { return blocksScanned; }
+        public long getBytesScanned() { return bytesScanned; }
+        public List<String> getCorruptReplicas() { return corruptReplicas; }
+        public long getFinishedAt() { return finishedAt; }
+        public long getDurationMillis() { return finishedAt - startedAt; }
+        
+        public double getBytesPerSecond() {
+            long millis = Math.max(1, getDurationMillis());
+            return bytesScanned * 1000.0 / millis;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d blocks, %d KB in %d ms (%.0f KB/s), %d corrupt replicas%s",
+                                 blocksScanned, bytesScanned / 1024, getDurationMillis(), getBytesPerSecond() / 1024,
+                                 corruptReplicas.size(), corruptReplicas.isEmpty() ? "" : " " + corruptReplicas);
+        }
+    }
+    
+    // ==================== REPLICATION MONITOR ====================
+    // Restores replicationFactor for blocks that lost replicas (dead DataNode,
+    // corrupt replica). Under-replicated blocks wait in a priority queue, fewest
+    // live replicas first; a fixed set of workers copies them from a surviving
+    // replica to a healthy node, sharing one bandwidth throttle. Striped blocks
+    // get their lost cells decoded from the survivors instead.
+    static class ReplicationMonitor {
+        private static class ReplicationTask implements Comparable<ReplicationTask> {
+            final String blockId;
+            final int liveReplicas;
+            final long sequence;
+            
+            ReplicationTask(String blockId, int liveReplicas, long sequence) {
+                this.blockId = blockId;
+                this.liveReplicas = liveReplicas;
+                this.sequence = sequence;
+            }
+            
+            @Override
+            public int compareTo(ReplicationTask other) {
+                int byReplicas = Integer.compare(liveReplicas, other.liveReplicas);
+                return byReplicas != 0 ? byReplicas : Long.compare(sequence, other.sequence);
+            }
+        }
+        
+        private final NameNode nameNode;
+        private final PriorityBlockingQueue<ReplicationTask> queue = new PriorityBlockingQueue<>();
+        private final Set<String> queued = ConcurrentHashMap.newKeySet();
+        private final AtomicLong sequence = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder blocksReplicated = new LongAdder();
+        private final LongAdder bytesReplicated = new LongAdder();
+        private final Set<String> missingBlocks = ConcurrentHashMap.newKeySet();
+        private final DataThrottler throttler;
+        private final ExecutorService workers;
+        private volatile boolean running = true;
+        
+        // Blocks whose replicas could not be read are retried with a growing delay,
+        // and reported missing after MAX_READ_ATTEMPTS rounds
+        private static final int MAX_READ_ATTEMPTS = 5;
+        private static final long RETRY_DELAY_MILLIS = 500;
+        private final Map<String, Integer> readAttempts = new ConcurrentHashMap<>();
+        private final Set<String> retrying = ConcurrentHashMap.newKeySet();
+        private final ScheduledExecutorService retryTimer;
+        
+        // Time from the first block queued until the queue drains
+        private long recoveryStartedAt;
+        private long lastRecoveryMillis = -1;
+        
+        public ReplicationMonitor(NameNode nameNode, int maxConcurrentCopies, long bytesPerSecond) {
+            this.nameNode = nameNode;
+            this.throttler = new DataThrottler(bytesPerSecond);
+            this.workers = Executors.newFixedThreadPool(maxConcurrentCopies, r -> {
+                Thread t = new Thread(r, "replication-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            for (int i = 0; i < maxConcurrentCopies; i++) {
+                workers.execute(this::workLoop);
+            }
+            this.retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replication-retry");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        
+        public void enqueue(String blockId, int liveReplicas) {
+            if (!queued.add(blockId)) return;
+            synchronized (this) {
+                if (recoveryStartedAt == 0) recoveryStartedAt = System.currentTimeMillis();
+            }
+            queue.add(new ReplicationTask(blockId, liveReplicas, sequence.incrementAndGet()));
+        }
+        
+        private void workLoop() {
+            while (running) {
+                ReplicationTask task;
+                try {
+                    task = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == null) continue;
+                
+                inFlight.incrementAndGet();
+                queued.remove(task.blockId);
+                try {
+                    replicate(task.blockId);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.err.println("ReplicationMonitor: Failed to replicate " + task.blockId + " - " + e.getMessage());
+                } finally {
+                    inFlight.decrementAndGet();
+                    checkRecoveryComplete();
+                }
+            }
+        }
+        
+        private void replicate(String blockId) throws InterruptedException {
+            HDFSBlock block = nameNode.blockLocations.get(blockId);
+            if (block == null) return; // file deleted meanwhile
+            if (block.isErasureCoded()) {
+                reconstructCells(block);
+                return;
+            }
+            
+            List<DataNode> live = nameNode.liveReplicas(blockId);
+            int needed = nameNode.replicationFactor - live.size();
+            if (needed <= 0) return;
+            if (live.isEmpty()) {
+                missingBlocks.add(blockId);
+                System.err.println("ReplicationMonitor: Block " + blockId + " has no live replica left");
+                return;
+            }
+            
+            byte[] data = null;
+            for (DataNode source : live) {
+                try {
+                    ByteBuffer buffer = source.readBlock(blockId);
+                    if (buffer == null) continue;
+                    data = new byte[buffer.remaining()];
+                    buffer.get(data);
+                    break;
+                } catch (ChecksumException e) {
+                    nameNode.reportCorruptReplica(blockId, source.getNodeId(), e.getMessage());
+                }
+            }
+            if (data == null) {
+                retryUnreadable(blockId);
+                return;
+            }
+            readAttempts.remove(blockId);
+            missingBlocks.remove(blockId);
+            
+            // Ask for just the missing replicas; nodes that refuse the write are excluded from the next round
+            Set<String> tried = new HashSet<>(block.getReplicas());
+            while (needed > 0) {
+                List<DataNode> targets = nameNode.selectDataNodes(needed, tried);
+                if (targets.isEmpty()) break;
+                for (DataNode target : targets) {
+                    tried.add(target.getNodeId());
+                    throttler.throttle(data.length);
+                    if (target.storeBlock(new HDFSBlock(blockId, data))) {
+                        // An append meanwhile replaced the block, so this copy is stale
+                        if (nameNode.blockLocations.get(blockId) != block) {
+                            target.deleteBlock(blockId);
+                            enqueue(blockId, 0);
+                            return;
+                        }
+                        block.addReplica(target.getNodeId());
+                        blocksReplicated.increment();
+                        bytesReplicated.add(data.length);
+                        needed--;
+                    }
+                }
+            }
+            if (needed > 0) {
+                System.err.println("ReplicationMonitor: Not enough healthy DataNodes for " + blockId);
+            }
+        }
+        
+        // Decodes the lost cells of a striped block from k survivors and stores each
+        // on a live DataNode that holds no other cell of the stripe
+        private void reconstructCells(HDFSBlock block) throws InterruptedException {
+            String blockId = block.getBlockId();
+            String[] locations = block.getCellLocations();
+            List<Integer> lost = new ArrayList<>();
+            for (int i = 0; i < locations.length; i++) {
+                DataNode node = locations[i] != null ? nameNode.dataNodes.get(locations[i]) : null;
+                if (node == null || !node.isActive()) lost.add(i);
+            }
+            if (lost.isEmpty()) return;
+            
+            byte[][] cells = nameNode.fetchCells(block);
+            if (cells == null) {
+                missingBlocks.add(blockId);
+                System.err.println("ReplicationMonitor: Striped block " + blockId + " has fewer than " + 
+                                 block.getEcPolicy().getDataUnits() + " cells left");
+                return;
+            }
+            missingBlocks.remove(blockId);
+            block.getEcPolicy().reconstruct(cells, block.getSize());
+            
+            Set<String> used = new HashSet<>(Arrays.asList(locations));
+            Iterator<DataNode> candidates = nameNode.selectDataNodes(lost.size(), used).iterator();
+            int rebuilt = 0;
+            for (int index : lost) {
+                DataNode target = null;
+                while (candidates.hasNext() && target == null) {
+                    DataNode candidate = candidates.next();
+                    if (!used.contains(candidate.getNodeId())) target = candidate;
+                }
+                if (target == null) {
+                    System.err.println("ReplicationMonitor: Not enough healthy DataNodes to rebuild the stripe of " + blockId);
+                    break;
+                }
+                
+                throttler.throttle(cells[index].length);
+                if (target.storeBlock(new HDFSBlock(ErasureCodingPolicy.cellId(blockId, index), cells[index]))) {
+                    block.setCellLocation(index, target.getNodeId());
+                    blocksReplicated.increment();
+                    bytesReplicated.add(cells[index].length);
+                    rebuilt++;
+                }
+            }
+            if (rebuilt > 0) nameNode.logEdit(EditLog.OP_CONVERT_BLOCK, nameNode.encodeBlock(blockId));
+        }
+        
+        // Sources unreadable right now (a corrupt last copy is kept, not removed):
+        // requeued after a delay that doubles each round rather than spinning on it.
+        // One retry per block at a time; a corrupt report that requeues the block
+        // meanwhile must not start a second chain
+        private void retryUnreadable(String blockId) {
+            if (!retrying.add(blockId)) return;
+            int attempts = readAttempts.merge(blockId, 1, Integer::sum);
+            if (attempts >= MAX_READ_ATTEMPTS) {
+                retrying.remove(blockId);
+                readAttempts.remove(blockId);
+                missingBlocks.add(blockId);
+                System.err.println("ReplicationMonitor: No readable replica of " + blockId + " after " + 
+                                 attempts + " attempts, reported missing");
+                return;
+            }
             try {
-                removeFileMetadata(fileName);
-            } catch (Exception e) {
-                System.err.println("NameNode: Failed to remove metadata for " + fileName + " - " + e.getMessage());
+                retryTimer.schedule(() -> {
+                    // Under the monitor, so checkRecoveryComplete cannot run between the two
+                    synchronized (this) {
+                        retrying.remove(blockId);
+                        enqueue(blockId, 0);
+                    }
+                }, RETRY_DELAY_MILLIS << (attempts - 1), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                retrying.remove(blockId); // shutting down
+            }
+        }
+        
+        private synchronized void checkRecoveryComplete() {
+            if (recoveryStartedAt != 0 && queue.isEmpty() && inFlight.get() == 0 && retrying.isEmpty()) {
+                lastRecoveryMillis = System.currentTimeMillis() - recoveryStartedAt;
+                recoveryStartedAt = 0;
+                notifyAll();
+                System.out.println("ReplicationMonitor: Full replication restored in " + lastRecoveryMillis + " ms (" + 
+                                 blocksReplicated.sum() + " blocks, " + bytesReplicated.sum() + " bytes copied so far)");
+            }
+        }
+        
+        // Blocks until the queue drains; returns the recovery time, or -1 on timeout
+        public synchronized long awaitFullReplication(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (recoveryStartedAt != 0 || !queue.isEmpty() || inFlight.get() > 0 || !retrying.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return -1;
+                wait(remaining);
+            }
+            return lastRecoveryMillis;
+        }
+        
+        public Map<String, Object> getStatus() {
+            Map<String, Object> status = new HashMap<>();
+            status.put("queued", queue.size());
+            status.put("inFlight", inFlight.get());
+            status.put("blocksReplicated", blocksReplicated.sum());
+            status.put("bytesReplicated", bytesReplicated.sum());
+            status.put("missingBlocks", missingBlocks.size());
+            status.put("retriesPending", retrying.size());
+            synchronized (this) {
+                status.put("lastRecoveryMs", lastRecoveryMillis);
+            }
+            return status;
+        }
+        
+        public void setBandwidth(long bytesPerSecond) {
+            throttler.setBytesPerSecond(bytesPerSecond);
+        }
+        
+        public void shutdown() {
+            running = false;
+            workers.shutdownNow();
+            retryTimer.shutdownNow();
+        }
+    }
+    
+    // ==================== BALANCER ====================
+    // Evens out DataNode utilization (used / capacity). Each iteration compares
+    // every live node with the cluster average: nodes more than threshold above
+    // it send blocks to nodes more than threshold below it (then to merely
+    // below-average nodes, then above-average nodes fill under-used ones).
+    // A replica is deleted from its source only after the copy on the target is
+    // registered, so no block ever has fewer replicas than before the move.
+    static class Balancer {
+        private static final int MAX_ITERATIONS = 20;
+        
+        private static class Move {
+            final String blockId;
+            final DataNode source;
+            final DataNode target;
+            final long bytes;
+            
+            Move(String blockId, DataNode source, DataNode target, long bytes) {
+                this.blockId = blockId;
+                this.source = source;
+                this.target = target;
+                this.bytes = bytes;
+            }
+        }
+        
+        private final NameNode nameNode;
+        private final DataThrottler throttler;
+        private final int maxConcurrentMoves;
+        private final ExecutorService runner;
+        private final ExecutorService movers;
+        private volatile boolean running;
+        private volatile boolean stopRequested;
+        
+        // Progress of the current (or last) run
+        private volatile double thresholdPercent;
+        private volatile int iteration;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile double initialDeviation;
+        private final AtomicLong bytesPlanned = new AtomicLong();
+        private final LongAdder bytesMoved = new LongAdder();
+        private final LongAdder blocksMoved = new LongAdder();
+        private final LongAdder movesFailed = new LongAdder();
+        
+        public Balancer(NameNode nameNode, int maxConcurrentMoves, long bytesPerSecond) {
+            this.nameNode = nameNode;
+            this.throttler = new DataThrottler(bytesPerSecond);
+            this.maxConcurrentMoves = maxConcurrentMoves;
+            this.runner = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "balancer");
+                t.setDaemon(true);
+                return t;
+            });
+            this.movers = Executors.newFixedThreadPool(maxConcurrentMoves, r -> {
+                Thread t = new Thread(r, "balancer-mover");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        
+        // Starts a run in the background; false if one is already in progress
+        public synchronized boolean start(double thresholdPercent) {
+            if (running) return false;
+            running = true;
+            stopRequested = false;
+            this.thresholdPercent = thresholdPercent;
+            iteration = 0;
+            startedAt = System.currentTimeMillis();
+            finishedAt = 0;
+            initialDeviation = maxDeviation();
+            bytesPlanned.set(0);
+            bytesMoved.reset();
+            blocksMoved.reset();
+            movesFailed.reset();
+            throttler.reset();
+            runner.execute(() -> {
+                try {
+                    run(thresholdPercent / 100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    System.err.println("Balancer: Run failed - " + e.getMessage());
+                } finally {
+                    finishedAt = System.currentTimeMillis();
+                    running = false;
+                    synchronized (this) { notifyAll(); }
+                }
+            });
+            return true;
+        }
+        
+        public synchronized boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (running) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                wait(remaining);
             }
             return true;
         }
-
-        private String sanitizeName(String fileName) {
-            return fileName.replaceAll("[^a-zA-Z0-9._-]", "_");
+        
+        public void stop() { stopRequested = true; }
+        
+        private void run(double threshold) throws InterruptedException {
+            System.out.printf("Balancer: Started with threshold %.1f%%, max deviation from average %.1f%%%n",
+                              threshold * 100, initialDeviation * 100);
+            while (iteration < MAX_ITERATIONS && !stopRequested) {
+                List<Move> plan = plan(threshold);
+                if (plan.isEmpty()) break;
+                iteration++;
+                long planned = 0;
+                for (Move move : plan) planned += move.bytes;
+                bytesPlanned.addAndGet(planned);
+                
+                long movedBefore = bytesMoved.sum();
+                List<Future<?>> pending = new ArrayList<>();
+                for (Move move : plan) pending.add(movers.submit(() -> execute(move)));
+                for (Future<?> future : pending) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        movesFailed.increment();
+                    }
+                }
+                long moved = bytesMoved.sum() - movedBefore;
+                System.out.printf("Balancer: Iteration %d moved %d/%d KB in %d blocks, %.0f KB/s overall, " +
+                                  "max deviation now %.1f%%%n", iteration, moved / 1024, planned / 1024, plan.size(),
+                                  getBytesPerSecond() / 1024, maxDeviation() * 100);
+                if (moved == 0) break; // nothing movable is left, e.g. every candidate is pinned by placement
+            }
+            System.out.printf("Balancer: Finished after %d iterations: %d blocks, %d KB moved, %d failed moves, " +
+                              "max deviation %.1f%% -> %.1f%%%n", iteration, blocksMoved.sum(), bytesMoved.sum() / 1024,
+                              movesFailed.sum(), initialDeviation * 100, maxDeviation() * 100);
+        }
+        
+        private List<DataNode> liveNodes() {
+            List<DataNode> live = new ArrayList<>();
+            for (DataNode node : nameNode.getDataNodes()) {
+                if (node.isActive() && node.getCapacity() > 0) live.add(node);
+            }
+            return live;
+        }
+        
+        private static double utilization(DataNode node) {
+            return (double) node.getUsedSpace() / node.getCapacity();
+        }
+        
+        private static double averageUtilization(List<DataNode> nodes) {
+            long used = 0, capacity = 0;
+            for (DataNode node : nodes) {
+                used += node.getUsedSpace();
+                capacity += node.getCapacity();
+            }
+            return capacity == 0 ? 0 : (double) used / capacity;
+        }
+        
+        // Largest distance of any live node's utilization from the cluster average
+        public double maxDeviation() {
+            List<DataNode> live = liveNodes();
+            double average = averageUtilization(live), max = 0;
+            for (DataNode node : live) max = Math.max(max, Math.abs(utilization(node) - average));
+            return max;
+        }
+        
+        private List<Move> plan(double threshold) {
+            List<DataNode> live = liveNodes();
+            double average = averageUtilization(live);
+            List<DataNode> over = new ArrayList<>(), above = new ArrayList<>();
+            List<DataNode> below = new ArrayList<>(), under = new ArrayList<>();
+            Map<DataNode, Long> budget = new HashMap<>();
+            for (DataNode node : live) {
+                double utilization = utilization(node);
+                budget.put(node, (long) (Math.abs(utilization - average) * node.getCapacity()));
+                if (utilization > average + threshold) over.add(node);
+                else if (utilization > average) above.add(node);
+                else if (utilization < average - threshold) under.add(node);
+                else if (utilization < average) below.add(node);
+            }
+            
+            List<Move> moves = new ArrayList<>();
+            // The last block of an open container or GPS segment can still be rewritten in place
+            Set<String> scheduled = nameNode.openFileBlocks();
+            pair(over, under, budget, scheduled, moves);
+            pair(over, below, budget, scheduled, moves);
+            pair(above, under, budget, scheduled, moves);
+            return moves;
+        }
+        
+        private void pair(List<DataNode> sources, List<DataNode> targets, Map<DataNode, Long> budget,
+                          Set<String> scheduled, List<Move> moves) {
+            for (DataNode source : sources) {
+                for (DataNode target : targets) {
+                    long bytes = Math.min(budget.get(source), budget.get(target));
+                    if (bytes <= 0) continue;
+                    long chosen = chooseBlocks(source, target, bytes, scheduled, moves);
+                    budget.put(source, budget.get(source) - chosen);
+                    budget.put(target, budget.get(target) - chosen);
+                }
+            }
+        }
+        
+        // Blocks on source that can go to target without dropping below their
+        // current redundancy or placement spread, up to the given number of bytes.
+        // Blocks already in scheduled are skipped
+        private long chooseBlocks(DataNode source, DataNode target, long maxBytes, Set<String> scheduled, List<Move> moves) {
+            long chosen = 0;
+            BlockPlacementPolicy placement = nameNode.getPlacementPolicy();
+            for (Map.Entry<String, Long> entry : source.getBlockReport().entrySet()) {
+                if (chosen + entry.getValue() > maxBytes) continue;
+                String blockId = entry.getKey();
+                String stripedId = nameNode.stripeCells.get(blockId);
+                HDFSBlock block = nameNode.blockLocations.get(stripedId != null ? stripedId : blockId);
+                if (block == null || !scheduled.add(block.getBlockId())) continue;
+                
+                List<String> locations = block.isErasureCoded()
+                    ? Arrays.asList(block.getCellLocations()) : block.getReplicas();
+                boolean movable = locations.contains(source.getNodeId()) && !locations.contains(target.getNodeId()) &&
+                                  block.isErasureCoded() == (stripedId != null) &&
+                                  nameNode.redundancy(block) >= nameNode.targetRedundancy(block) &&
+                                  placement.isMoveAllowed(locations, source.getNodeId(), target.getNodeId());
+                if (!movable) {
+                    scheduled.remove(block.getBlockId());
+                    continue;
+                }
+                moves.add(new Move(blockId, source, target, entry.getValue()));
+                chosen += entry.getValue();
+            }
+            return chosen;
+        }
+        
+        private void execute(Move move) {
+            String source = move.source.getNodeId(), target = move.target.getNodeId();
+            HDFSBlock copied = nameNode.blockLocations.get(move.blockId); // null for a cell
+            try {
+                ByteBuffer buffer = move.source.readBlock(move.blockId);
+                if (buffer == null) {
+                    movesFailed.increment();
+                    return;
+                }
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                throttler.throttle(data.length);
+                if (!move.target.isActive() || !move.target.storeBlock(new HDFSBlock(move.blockId, data))) {
+                    movesFailed.increment();
+                    return;
+                }
+                
+                // The block may have been deleted, rewritten or repaired while it was copied
+                String stripedId = nameNode.stripeCells.get(move.blockId);
+                if (stripedId != null) {
+                    HDFSBlock striped = nameNode.blockLocations.get(stripedId);
+                    int index = ErasureCodingPolicy.cellIndex(move.blockId);
+                    if (striped == null || !source.equals(striped.getCellLocations()[index])) {
+                        move.target.deleteBlock(move.blockId);
+                        movesFailed.increment();
+                        return;
+                    }
+                    striped.setCellLocation(index, target);
+                    nameNode.logEdit(EditLog.OP_CONVERT_BLOCK, nameNode.encodeBlock(stripedId));
+                } else {
+                    // An append replaces the block (see appendContainerBlock), so the copy is stale
+                    HDFSBlock block = nameNode.blockLocations.get(move.blockId);
+                    if (block == null || block != copied || block.getSize() != data.length || 
+                        !block.getReplicas().contains(source)) {
+                        move.target.deleteBlock(move.blockId);
+                        movesFailed.increment();
+                        return;
+                    }
+                    block.addReplica(target);
+                    block.removeReplica(source);
+                }
+                move.source.deleteBlock(move.blockId);
+                blocksMoved.increment();
+                bytesMoved.add(data.length);
+            } catch (ChecksumException e) {
+                nameNode.reportCorruptReplica(move.blockId, source, e.getMessage());
+                movesFailed.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        public double getBytesPerSecond() {
+            long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+            return bytesMoved.sum() * 1000.0 / Math.max(1, end - startedAt);
+        }
+        
+        public void setBandwidth(long bytesPerSecond) {
+            throttler.setBytesPerSecond(bytesPerSecond);
+        }
+        
+        public Map<String, Object> getStatus() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("state", running ? "RUNNING" : startedAt == 0 ? "IDLE" : "DONE");
+            status.put("thresholdPercent", thresholdPercent);
+            status.put("iteration", iteration);
+            status.put("blocksMoved", blocksMoved.sum());
+            status.put("bytesMoved", bytesMoved.sum());
+            status.put("bytesPlanned", bytesPlanned.get());
+            status.put("movesFailed", movesFailed.sum());
+            status.put("bytesPerSecond", (long) getBytesPerSecond());
+            status.put("initialDeviationPercent", Math.round(initialDeviation * 1000) / 10.0);
+            status.put("maxDeviationPercent", Math.round(maxDeviation() * 1000) / 10.0);
+            return status;
+        }
+        
+        public void shutdown() {
+            stopRequested = true;
+            runner.shutdownNow();
+            movers.shutdownNow();
+        }
+    }
+    
+    // ==================== BLOCK COMPRESSION ====================
+    // Files under a compression policy store each block encoded: a mode byte
+    // (0 stored as-is, 1 compressed), the raw length, then the payload. Blocks
+    // are compressed one at a time, so appends (GPS segments, small-file
+    // containers) and offset lookups keep working block by block, while
+    // replication, erasure coding, the balancer and the scrubber only ever see
+    // the encoded bytes.
+    interface CompressionCodec {
+        String getName();
+        
+        // Compressed form of data, or null if it would not be smaller
+        byte[] compress(byte[] data);
+        
+        // Fills raw (sized to the original length) from the compressed bytes in src
+        void decompress(ByteBuffer src, byte[] raw) throws IOException;
+        
+        static CompressionCodec forName(String name) {
+            switch (name) {
+                case "lz": return LzCodec.INSTANCE;
+                case "deflate": return DeflateCodec.DEFAULT;
+                default:
+                    if (name.startsWith("deflate-")) {
+                        return DeflateCodec.LEVELS.computeIfAbsent(name, n -> new DeflateCodec(Integer.parseInt(n.substring(8))));
+                    }
+                    throw new IllegalArgumentException("Unknown compression codec: " + name);
+            }
+        }
+    }
+    
+    // JDK zlib without the zlib wrapper (blocks carry their own CRCs); one
+    // Deflater/Inflater per thread, since creating them costs native memory
+    static class DeflateCodec implements CompressionCodec {
+        static final DeflateCodec DEFAULT = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+        // One instance per level, so files restored from the journal share it
+        static final Map<String, DeflateCodec> LEVELS = new ConcurrentHashMap<>();
+        
+        private final int level;
+        private final ThreadLocal<Deflater> deflaters;
+        private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+        
+        DeflateCodec(int level) {
+            this.level = level;
+            this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+        }
+        
+        public String getName() {
+            return level == Deflater.DEFAULT_COMPRESSION ? "deflate" : "deflate-" + level;
+        }
+        
+        public byte[] compress(byte[] data) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length];
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return deflater.finished() && length < data.length ? Arrays.copyOf(out, length) : null;
+        }
+        
+        public void decompress(ByteBuffer src, byte[] raw) throws IOException {
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(src);
+            try {
+                int length = 0;
+                while (length < raw.length) {
+                    int inflated = inflater.inflate(raw, length, raw.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated deflate block: " + length + " of " + raw.length + " bytes");
+                    }
+                    length += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate block: " + e.getMessage(), e);
+            }
+        }
+    }
+    
+    // Byte-oriented LZ77 in the LZ4 block format: each sequence is a token
+    // (literal length << 4 | match length - 4), literals, and a 2-byte little-endian
+    // back-reference offset; lengths of 15 continue in 255-valued bytes. One hash
+    // probe per position, no entropy coding: a fraction of deflate's CPU cost.
+    static class LzCodec implements CompressionCodec {
+        static final LzCodec INSTANCE = new LzCodec();
+        private static final int HASH_BITS = 12;
+        private static final int MIN_MATCH = 4;
+        private static final int LAST_LITERALS = 5;
+        private static final int MAX_OFFSET = 65535;
+        private static final ThreadLocal<int[]> TABLES = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+        
+        public String getName() { return "lz"; }
+        
+        private static int readInt(byte[] data, int i) {
+            return (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+        }
+        
+        public byte[] compress(byte[] data) {
+            // Small blocks get a small table: clearing it is part of the per-block cost
+            int hashBits = Math.max(8, Math.min(HASH_BITS, 32 - Integer.numberOfLeadingZeros(data.length)));
+            int[] table = TABLES.get();
+            Arrays.fill(table, 0, 1 << hashBits, -1);
+            byte[] out = new byte[data.length + data.length / 255 + 16];
+            int length = 0, anchor = 0, i = 0;
+            int matchLimit = data.length - LAST_LITERALS;
+            
+            while (i + MIN_MATCH <= matchLimit) {
+                int sequence = readInt(data, i);
+                int hash = (sequence * -1640531535) >>> (32 - hashBits);
+                int candidate = table[hash];
+                table[hash] = i;
+                if (candidate < 0 || i - candidate > MAX_OFFSET || readInt(data, candidate) != sequence) {
+                    i++;
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while (i + matchLength < matchLimit && data[candidate + matchLength] == data[i + matchLength]) matchLength++;
+                
+                length = writeSequence(out, length, data, anchor, i - anchor, i - candidate, matchLength);
+                if (length >= data.length) return null;
+                i += matchLength;
+                anchor = i;
+            }
+            length = writeSequence(out, length, data, anchor, data.length - anchor, 0, 0);
+            return length < data.length ? Arrays.copyOf(out, length) : null;
+        }
+        
+        // A match length of 0 marks the final, literals-only sequence
+        private static int writeSequence(byte[] out, int pos, byte[] data, int literalStart, int literals,
+                                         int offset, int matchLength) {
+            int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+            out[pos++] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchCode, 15));
+            pos = writeLength(out, pos, literals);
+            System.arraycopy(data, literalStart, out, pos, literals);
+            pos += literals;
+            if (matchLength == 0) return pos;
+            out[pos++] = (byte) offset;
+            out[pos++] = (byte) (offset >>> 8);
+            return writeLength(out, pos, matchCode);
+        }
+        
+        private static int writeLength(byte[] out, int pos, int length) {
+            if (length < 15) return pos;
+            for (length -= 15; length >= 255; length -= 255) out[pos++] = (byte) 255;
+            out[pos++] = (byte) length;
+            return pos;
+        }
+        
+        public void decompress(ByteBuffer src, byte[] raw) throws IOException {
+            // One bulk copy out of the (often direct) buffer beats a get() per byte
+            byte[] in = new byte[src.remaining()];
+            src.duplicate().get(in);
+            int ip = 0, pos = 0;
+            try {
+                while (true) {
+                    int token = in[ip++] & 0xFF;
+                    int literals = token >>> 4;
+                    if (literals == 15) {
+                        int next;
+                        do { literals += next = in[ip++] & 0xFF; } while (next == 255);
+                    }
+                    System.arraycopy(in, ip, raw, pos, literals);
+                    ip += literals;
+                    pos += literals;
+                    if (ip == in.length) break;
+                    
+                    int offset = (in[ip++] & 0xFF) | (in[ip++] & 0xFF) << 8;
+                    int matchLength = token & 15;
+                    if (matchLength == 15) {
+                        int next;
+                        do { matchLength += next = in[ip++] & 0xFF; } while (next == 255);
+                    }
+                    matchLength += MIN_MATCH;
+                    if (offset == 0 || offset > pos || pos + matchLength > raw.length) {
+                        throw new IOException("Corrupt lz block: bad match at " + pos);
+                    }
+                    if (offset >= matchLength) {
+                        System.arraycopy(raw, pos - offset, raw, pos, matchLength);
+                        pos += matchLength;
+                    } else {
+                        for (int end = pos + matchLength; pos < end; pos++) raw[pos] = raw[pos - offset]; // overlapping run
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Corrupt lz block: truncated at " + pos);
+            }
+            if (pos != raw.length) throw new IOException("Corrupt lz block: " + pos + " of " + raw.length + " bytes");
+        }
+    }
+    
+    // Raw vs stored bytes and CPU time for one codec
+    static class CompressionStats {
+        final LongAdder blocks = new LongAdder();
+        final LongAdder rawBytes = new LongAdder();
+        final LongAdder storedBytes = new LongAdder();
+        final LongAdder compressNanos = new LongAdder();
+        final LongAdder decompressedBytes = new LongAdder();
+        final LongAdder decompressNanos = new LongAdder();
+        
+        double getRatio() {
+            long stored = storedBytes.sum();
+            return stored == 0 ? 1 : (double) rawBytes.sum() / stored;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%.2fx over %d blocks, compress %.0f MB/s, decompress %.0f MB/s", getRatio(), blocks.sum(),
+                                 rawBytes.sum() * 1000.0 / Math.max(1, compressNanos.sum()),
+                                 decompressedBytes.sum() * 1000.0 / Math.max(1, decompressNanos.sum()));
+        }
+    }
+    
+    // ==================== ERASURE CODING ====================
+    // Cold paths can trade replication for Reed-Solomon striping: each block is
+    // split into k data cells plus m parity cells on k+m different DataNodes,
+    // and any k of those cells rebuild the block. RS(2,1) survives one lost
+    // node like 2x replication does, at 1.5x instead of 2x the disk.
+    
+    // Systematic Reed-Solomon code over GF(2^8)
+    static class ReedSolomon {
+        private static final byte[] EXP = new byte[512];
+        private static final int[] LOG = new int[256];
+        private static final byte[][] MUL = new byte[256][256];
+        
+        static {
+            int x = 1;
+            for (int i = 0; i < 255; i++) {
+                EXP[i] = (byte) x;
+                LOG[x] = i;
+                x <<= 1;
+                if (x >= 256) x ^= 0x11D; // x^8 + x^4 + x^3 + x^2 + 1
+            }
+            for (int i = 255; i < 512; i++) EXP[i] = EXP[i - 255];
+            for (int a = 1; a < 256; a++) {
+                for (int b = 1; b < 256; b++) MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+        
+        private static int mul(int a, int b) { return MUL[a][b] & 0xFF; }
+        
+        private static int pow(int a, int n) {
+            if (n == 0) return 1;
+            if (a == 0) return 0;
+            return EXP[(LOG[a] * n) % 255] & 0xFF;
+        }
+        
+        private final int dataShards;
+        private final int parityShards;
+        private final int[][] matrix; // (k+m) x k, the top k rows are the identity
+        
+        ReedSolomon(int dataShards, int parityShards) {
+            this.dataShards = dataShards;
+            this.parityShards = parityShards;
+            int total = dataShards + parityShards;
+            
+            // Any k rows of a Vandermonde matrix are independent; multiplying by the
+            // inverse of its top square keeps that property and makes the code systematic
+            int[][] vandermonde = new int[total][dataShards];
+            for (int r = 0; r < total; r++) {
+                for (int c = 0; c < dataShards; c++) vandermonde[r][c] = pow(r, c);
+            }
+            int[][] topInverse = invert(Arrays.copyOf(vandermonde, dataShards));
+            this.matrix = new int[total][dataShards];
+            for (int r = 0; r < total; r++) {
+                for (int c = 0; c < dataShards; c++) {
+                    int value = 0;
+                    for (int i = 0; i < dataShards; i++) value ^= mul(vandermonde[r][i], topInverse[i][c]);
+                    matrix[r][c] = value;
+                }
+            }
+        }
+        
+        private static int[][] invert(int[][] source) {
+            int n = source.length;
+            int[][] m = new int[n][2 * n];
+            for (int r = 0; r < n; r++) {
+                System.arraycopy(source[r], 0, m[r], 0, n);
+                m[r][n + r] = 1;
+            }
+            for (int c = 0; c < n; c++) {
+                int pivot = c;
+                while (pivot < n && m[pivot][c] == 0) pivot++;
+                if (pivot == n) throw new IllegalArgumentException("Singular coding matrix");
+                int[] swap = m[c]; m[c] = m[pivot]; m[pivot] = swap;
+                
+                int scale = EXP[255 - LOG[m[c][c]]] & 0xFF;
+                for (int i = 0; i < 2 * n; i++) m[c][i] = mul(m[c][i], scale);
+                for (int r = 0; r < n; r++) {
+                    if (r == c || m[r][c] == 0) continue;
+                    int factor = m[r][c];
+                    for (int i = 0; i < 2 * n; i++) m[r][i] ^= mul(factor, m[c][i]);
+                }
+            }
+            int[][] inverse = new int[n][n];
+            for (int r = 0; r < n; r++) System.arraycopy(m[r], n, inverse[r], 0, n);
+            return inverse;
+        }
+        
+        private static void codeRow(int[] coefficients, byte[][] inputs, byte[] output, int length) {
+            Arrays.fill(output, 0, length, (byte) 0);
+            for (int c = 0; c < coefficients.length; c++) {
+                byte[] table = MUL[coefficients[c]];
+                byte[] input = inputs[c];
+                for (int i = 0; i < length; i++) output[i] ^= table[input[i] & 0xFF];
+            }
+        }
+        
+        // shards[0..k-1] hold the data; fills shards[k..k+m-1] with parity
+        void encodeParity(byte[][] shards, int length) {
+            for (int p = 0; p < parityShards; p++) {
+                codeRow(matrix[dataShards + p], shards, shards[dataShards + p], length);
+            }
+        }
+        
+        // Rebuilds every null shard from any k present ones
+        void reconstruct(byte[][] shards, int length) {
+            int[] rows = new int[dataShards];
+            byte[][] inputs = new byte[dataShards][];
+            int found = 0;
+            for (int i = 0; i < shards.length && found < dataShards; i++) {
+                if (shards[i] != null) {
+                    rows[found] = i;
+                    inputs[found++] = shards[i];
+                }
+            }
+            if (found < dataShards) {
+                throw new IllegalArgumentException("Need " + dataShards + " cells to reconstruct, have " + found);
+            }
+            
+            int[][] decode = new int[dataShards][];
+            for (int i = 0; i < dataShards; i++) decode[i] = matrix[rows[i]];
+            decode = invert(decode);
+            for (int d = 0; d < dataShards; d++) {
+                if (shards[d] != null) continue;
+                shards[d] = new byte[length];
+                codeRow(decode[d], inputs, shards[d], length);
+            }
+            for (int p = dataShards; p < shards.length; p++) {
+                if (shards[p] != null) continue;
+                shards[p] = new byte[length];
+                codeRow(matrix[p], shards, shards[p], length);
+            }
+        }
+    }
+    
+    static class ErasureCodingPolicy {
+        static final ErasureCodingPolicy RS_2_1 = new ErasureCodingPolicy(2, 1);
+        static final ErasureCodingPolicy RS_3_2 = new ErasureCodingPolicy(3, 2);
+        static final ErasureCodingPolicy RS_6_3 = new ErasureCodingPolicy(6, 3);
+        
+        private final int dataUnits;
+        private final int parityUnits;
+        private final ReedSolomon codec;
+        
+        public ErasureCodingPolicy(int dataUnits, int parityUnits) {
+            if (dataUnits < 1 || parityUnits < 1 || dataUnits + parityUnits > 128) {
+                throw new IllegalArgumentException("Invalid erasure coding layout RS-" + dataUnits + "-" + parityUnits);
+            }
+            this.dataUnits = dataUnits;
+            this.parityUnits = parityUnits;
+            this.codec = new ReedSolomon(dataUnits, parityUnits);
+        }
+        
+        private static final Map<String, ErasureCodingPolicy> byName = new ConcurrentHashMap<>();
+        
+        // Parses names of the form RS-<data>-<parity>
+        public static ErasureCodingPolicy forName(String name) {
+            return byName.computeIfAbsent(name, n -> {
+                String[] parts = n.split("-");
+                if (parts.length != 3 || !parts[0].equals("RS")) {
+                    throw new IllegalArgumentException("Unknown erasure coding policy: " + n);
+                }
+                return new ErasureCodingPolicy(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            });
+        }
+        
+        public String getName() { return "RS-" + dataUnits + "-" + parityUnits; }
+        public int getDataUnits() { return dataUnits; }
+        public int getParityUnits() { return parityUnits; }
+        public int getTotalUnits() { return dataUnits + parityUnits; }
+        
+        public int cellSize(int blockLength) {
+            return Math.max(1, (blockLength + dataUnits - 1) / dataUnits);
+        }
+        
+        public static String cellId(String blockId, int index) {
+            return blockId + "_ec" + index;
+        }
+        
+        public static int cellIndex(String cellId) {
+            return Integer.parseInt(cellId.substring(cellId.lastIndexOf("_ec") + 3));
+        }
+        
+        // Splits a block into k zero-padded data cells followed by m parity cells
+        public byte[][] encode(ByteBuffer block) {
+            int cellSize = cellSize(block.remaining());
+            byte[][] cells = new byte[getTotalUnits()][cellSize];
+            for (int d = 0; d < dataUnits && block.hasRemaining(); d++) {
+                block.get(cells[d], 0, Math.min(cellSize, block.remaining()));
+            }
+            codec.encodeParity(cells, cellSize);
+            return cells;
+        }
+        
+        // Fills in the null cells; needs at least k cells present
+        public void reconstruct(byte[][] cells, int blockLength) {
+            codec.reconstruct(cells, cellSize(blockLength));
+        }
+        
+        public byte[] join(byte[][] cells, int blockLength) {
+            byte[] block = new byte[blockLength];
+            int cellSize = cellSize(blockLength);
+            for (int d = 0, offset = 0; d < dataUnits && offset < blockLength; d++, offset += cellSize) {
+                System.arraycopy(cells[d], 0, block, offset, Math.min(cellSize, blockLength - offset));
+            }
+            return block;
+        }
+        
+        @Override
+        public String toString() { return getName(); }
+    }
+    
+    // ==================== NAMESPACE DIRECTORY TREE ====================
+    // Directory index kept alongside the NameNode's path map. Children are held
+    // in sorted sets, so listing a directory costs O(children) instead of a scan
+    // over every path, and each directory counts the files in its subtree.
+    // A directory's file set holds the full paths, the same String instances
+    // the path map is keyed by, so a file's name is stored once; paths in one
+    // directory share their prefix and sort exactly like the bare names.
+    
+    static class NamespaceTree {
+        static class Directory {
+            final String path;
+            final ConcurrentSkipListMap<String, Directory> subdirs = new ConcurrentSkipListMap<>();
+            final ConcurrentSkipListSet<String> files = new ConcurrentSkipListSet<>();
+            final AtomicLong fileCount = new AtomicLong(); // files anywhere below this directory
+            
+            Directory(String path) {
+                this.path = path;
+            }
+            
+            String childPath(String name) {
+                return path.equals("/") ? "/" + name : path + "/" + name;
+            }
+        }
+        
+        private final Directory root = new Directory("/");
+        
+        private static String[] components(String path) {
+            List<String> parts = new ArrayList<>();
+            for (String part : path.split("/")) {
+                if (!part.isEmpty()) parts.add(part);
+            }
+            return parts.toArray(new String[0]);
+        }
+        
+        // Returns false if the path was already present
+        public boolean addFile(String path) {
+            String[] parts = components(path);
+            if (parts.length == 0) return false;
+            
+            List<Directory> chain = new ArrayList<>(parts.length);
+            Directory dir = root;
+            chain.add(dir);
+            for (int i = 0; i < parts.length - 1; i++) {
+                Directory parent = dir;
+                dir = parent.subdirs.computeIfAbsent(parts[i], name -> new Directory(parent.childPath(name)));
+                chain.add(dir);
+            }
+            if (!dir.files.add(path)) return false;
+            for (Directory d : chain) d.fileCount.incrementAndGet();
+            return true;
+        }
+        
+        public boolean removeFile(String path) {
+            String[] parts = components(path);
+            if (parts.length == 0) return false;
+            
+            List<Directory> chain = new ArrayList<>(parts.length);
+            Directory dir = root;
+            chain.add(dir);
+            for (int i = 0; i < parts.length - 1 && dir != null; i++) {
+                dir = dir.subdirs.get(parts[i]);
+                chain.add(dir);
+            }
+            if (dir == null || !dir.files.remove(dir.childPath(parts[parts.length - 1]))) return false;
+            for (Directory d : chain) d.fileCount.decrementAndGet();
+            return true;
+        }
+        
+        private Directory find(String dirPath) {
+            Directory dir = root;
+            for (String part : components(dirPath)) {
+                dir = dir.subdirs.get(part);
+                if (dir == null) return null;
+            }
+            return dir;
+        }
+        
+        // Up to limit files directly inside dirPath, in name order, starting after
+        // startAfter (a name or full path, null for the first page)
+        public List<String> listFiles(String dirPath, String startAfter, int limit) {
+            Directory dir = find(dirPath);
+            if (dir == null || limit <= 0) return new ArrayList<>();
+            
+            NavigableSet<String> paths = dir.files;
+            if (startAfter != null && !startAfter.isEmpty()) {
+                paths = paths.tailSet(dir.childPath(startAfter.substring(startAfter.lastIndexOf('/') + 1)), false);
+            }
+            List<String> page = new ArrayList<>(Math.min(limit, 1024));
+            for (String path : paths) {
+                if (page.size() >= limit) break;
+                page.add(path);
+            }
+            return page;
+        }
+        
+        public List<String> listSubdirectories(String dirPath) {
+            Directory dir = find(dirPath);
+            if (dir == null) return new ArrayList<>();
+            List<String> paths = new ArrayList<>(dir.subdirs.size());
+            for (Directory child : dir.subdirs.values()) paths.add(child.path);
+            return paths;
+        }
+        
+        public long countFiles(String dirPath) {
+            Directory dir = find(dirPath);
+            return dir != null ? dir.fileCount.get() : 0;
+        }
+        
+        // Every file below dirPath, depth first
+        public List<String> listFilesRecursive(String dirPath) {
+            List<String> paths = new ArrayList<>();
+            Directory start = find(dirPath);
+            if (start == null) return paths;
+            Deque<Directory> pending = new ArrayDeque<>();
+            pending.push(start);
+            while (!pending.isEmpty()) {
+                Directory dir = pending.pop();
+                paths.addAll(dir.files);
+                for (Directory child : dir.subdirs.descendingMap().values()) pending.push(child);
+            }
+            return paths;
+        }
+        
+        public void clear() {
+            root.subdirs.clear();
+            root.files.clear();
+            root.fileCount.set(0);
+        }
+    }
+    
+    // ==================== DATANODE WRITE DURABILITY ====================
+    // When a DataNode acknowledges a block relative to the block reaching disk.
+    // NONE leaves flushing to the OS page cache. WRITE_BACK acknowledges at once
+    // and a background flusher syncs the store every interval, which bounds what
+    // a crash can lose. SYNC_BATCH acknowledges only after an fsync that covers
+    // the write.
+    enum Durability { NONE, WRITE_BACK, SYNC_BATCH }
+    
+    // Group commit over a block store, like EditLog.logSync: each write takes a
+    // sequence number, the first writer to wait syncs everything written so far,
+    // and writers that arrive while that sync runs share the next one
+    static class GroupCommit {
+        private final BlockStore store;
+        private long writtenSeq;
+        private long syncedSeq;
+        private boolean syncInProgress;
+        private long syncCount;
+        private long syncNanos;
+        
+        GroupCommit(BlockStore store) {
+            this.store = store;
+        }
+        
+        // Call after the write returned; the next sync covers it
+        public synchronized long written() {
+            return ++writtenSeq;
+        }
+        
+        // Returns once every write up to seq has been synced
+        public void awaitSynced(long seq) throws IOException {
+            long syncUpTo;
+            synchronized (this) {
+                while (seq > syncedSeq && syncInProgress) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for block sync");
+                    }
+                }
+                if (seq <= syncedSeq) return; // another writer's sync covered us
+                syncInProgress = true;
+                syncUpTo = writtenSeq;
+            }
+            
+            long start = System.nanoTime();
+            boolean synced = false;
+            try {
+                store.sync();
+                synced = true;
+            } finally {
+                synchronized (this) {
+                    if (synced) {
+                        syncedSeq = syncUpTo;
+                        syncCount++;
+                        syncNanos += System.nanoTime() - start;
+                    }
+                    syncInProgress = false;
+                    notifyAll();
+                }
+            }
+        }
+        
+        public void syncAll() throws IOException {
+            long seq;
+            synchronized (this) {
+                seq = writtenSeq;
+            }
+            awaitSynced(seq);
+        }
+        
+        public synchronized long getPendingWrites() { return writtenSeq - syncedSeq; }
+        
+        public synchronized Map<String, Long> getStats() {
+            Map<String, Long> stats = new HashMap<>();
+            stats.put("writes", writtenSeq);
+            stats.put("syncs", syncCount);
+            stats.put("syncMicros", syncNanos / 1000);
+            stats.put("pendingWrites", writtenSeq - syncedSeq);
+            return stats;
+        }
+    }
+    
+    // ==================== DATANODE BLOCK STORES ====================
+    // How a DataNode lays replicas out on disk. FileBlockStore is the original
+    // layout, one .blk file (plus .crc) per block. SlottedBlockStore packs
+    // blocks into large preallocated extent files, so millions of 1KB blocks
+    // do not turn into millions of inodes.
+    
+    // One version of a block: its contents and the checksums written with them
+    static final class StoredBlock {
+        final ByteBuffer data;
+        // null for blocks written before checksums existed
+        final int[] checksums;
+        
+        StoredBlock(ByteBuffer data, int[] checksums) {
+            this.data = data;
+            this.checksums = checksums;
+        }
+    }
+    
+    interface BlockStore extends Closeable {
+        // Rebuilds the block index from disk: blockId -> length
+        Map<String, Long> scan() throws IOException;
+        
+        // Stores (or replaces) a block together with its chunk checksums
+        void write(String blockId, ByteBuffer data, int[] checksums) throws IOException;
+        
+        // Block contents in a fresh direct buffer, or null if not stored
+        ByteBuffer read(String blockId) throws IOException;
+        
+        // Read-only mapping of the block, or null if not stored
+        ByteBuffer map(String blockId) throws IOException;
+        
+        long transferTo(String blockId, WritableByteChannel target) throws IOException;
+        
+        // Stored checksums, or null for blocks written before checksums existed
+        int[] checksums(String blockId) throws IOException;
+        
+        // Contents (read, or mapped if asked) together with the checksums of the
+        // same write, so a concurrent rewrite cannot pair new data with old
+        // checksums; null if not stored
+        StoredBlock readVersion(String blockId, boolean mapped) throws IOException;
+        
+        // Extends a block that holds exactly offset bytes; checksums cover the
+        // result. Stores that cannot grow a block in place rewrite it.
+        default void append(String blockId, long offset, ByteBuffer data, int[] checksums) throws IOException {
+            StoredBlock current = readVersion(blockId, false);
+            if (current == null || current.data.remaining() != offset) {
+                throw new IOException("Block " + blockId + " does not hold " + offset + " bytes");
+            }
+            ByteBuffer whole = ByteBuffer.allocate(current.data.remaining() + data.remaining());
+            whole.put(current.data).put(data).flip();
+            write(blockId, whole, checksums);
+        }
+        
+        boolean delete(String blockId) throws IOException;
+        
+        // Forces every block written or deleted so far to disk
+        void sync() throws IOException;
+        
+        // Off when nothing will call sync(), so stores that remember each write
+        // for the next sync do not accumulate them
+        default void setSyncTracking(boolean enabled) { }
+        
+        // Where the block lives, for log messages
+        String describe(String blockId);
+        
+        // Reclaims space held by deleted blocks; returns bytes returned to the filesystem
+        default long compact() throws IOException { return 0; }
+        
+        default Map<String, Long> getStats() { return Collections.emptyMap(); }
+        
+        // Slotted for new storage directories; directories that already hold a
+        // blocks/ tree keep the file-per-block layout they were written with
+        static BlockStore open(File storageDir, long extentBytes) throws IOException {
+            File blocksDir = new File(storageDir, "blocks");
+            String[] legacy = blocksDir.list();
+            if (legacy != null && legacy.length > 0 && !new File(storageDir, "extents").exists()) {
+                return new FileBlockStore(blocksDir);
+            }
+            return new SlottedBlockStore(new File(storageDir, "extents"), extentBytes);
+        }
+    }
+    
+    static class FileBlockStore implements BlockStore {
+        private final File blocksDir;
+        // Files written since the last sync, while tracking is on
+        private final Set<File> unsynced = ConcurrentHashMap.newKeySet();
+        private volatile boolean syncTracking;
+        // A block's .blk and .crc are swapped in under its stripe's write lock
+        // and read under the read lock, so readers always see a matching pair
+        private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[64];
+        
+        public FileBlockStore(File blocksDir) {
+            this.blocksDir = blocksDir;
+            if (!blocksDir.exists()) blocksDir.mkdirs();
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantReadWriteLock();
+        }
+        
+        private ReentrantReadWriteLock stripe(String blockId) {
+            return stripes[Math.floorMod(blockId.hashCode(), stripes.length)];
+        }
+        
+        File blockFile(String blockId) {
+            return new File(blocksDir, blockId + ".blk");
+        }
+        
+        private File checksumFile(String blockId) {
+            return new File(blocksDir, blockId + ".crc");
+        }
+        
+        // Walks blocks/ with one fork-join task per directory so large trees are listed in parallel
+        @Override
+        public Map<String, Long> scan() {
+            Map<String, Long> blocks = new ConcurrentHashMap<>();
+            ForkJoinPool.commonPool().invoke(new BlockScanTask(blocksDir, blocksDir.getAbsolutePath().length(), blocks));
+            return blocks;
+        }
+        
+        private static class BlockScanTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            
+            private final File dir;
+            private final int rootLength;
+            private final Map<String, Long> blocks;
+            
+            BlockScanTask(File dir, int rootLength, Map<String, Long> blocks) {
+                this.dir = dir;
+                this.rootLength = rootLength;
+                this.blocks = blocks;
+            }
+            
+            @Override
+            protected void compute() {
+                File[] entries = dir.listFiles();
+                if (entries == null) return;
+                
+                List<BlockScanTask> subdirs = new ArrayList<>();
+                for (File entry : entries) {
+                    String name = entry.getName();
+                    if (entry.isDirectory()) {
+                        subdirs.add(new BlockScanTask(entry, rootLength, blocks));
+                    } else if (name.endsWith(".blk")) {
+                        String blockId;
+                        if (dir.getAbsolutePath().length() == rootLength && NameNode.isFlatBlockId(name)) {
+                            blockId = name.substring(0, name.length() - 4);
+                        } else {
+                            // Older block IDs are absolute HDFS paths, so the path below
+                            // blocks/, starting at its leading separator, is the block ID
+                            String relative = entry.getAbsolutePath().substring(rootLength, entry.getAbsolutePath().length() - 4);
+                            blockId = relative.replace(File.separatorChar, '/');
+                        }
+                        blocks.put(blockId, entry.length());
+                    } else if (name.endsWith(".tmp")) {
+                        // Left behind by a write that crashed before its rename
+                        entry.delete();
+                    }
+                }
+                invokeAll(subdirs);
+            }
+        }
+        
+        // Data and checksums are written to temporary files and renamed over the
+        // old pair together, so a replacement never exposes a half-written block
+        @Override
+        public void write(String blockId, ByteBuffer data, int[] checksums) throws IOException {
+            File blockFile = blockFile(blockId);
+            // ensure parent dirs exist (blockId may contain path-like segments)
+            File parent = blockFile.getParentFile();
+            if (parent != null && !parent.exists()) parent.mkdirs();
+            String suffix = "." + Thread.currentThread().getId() + ".tmp";
+            File blockTmp = new File(blockFile.getPath() + suffix);
+            File checksumTmp = new File(checksumFile(blockId).getPath() + suffix);
+            try {
+                try (FileOutputStream fos = new FileOutputStream(blockTmp)) {
+                    FileChannel channel = fos.getChannel();
+                    while (data.hasRemaining()) channel.write(data);
+                }
+                BlockChecksum.write(checksumTmp, checksums);
+                Lock lock = stripe(blockId).writeLock();
+                lock.lock();
+                try {
+                    Files.move(checksumTmp.toPath(), checksumFile(blockId).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Files.move(blockTmp.toPath(), blockFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                // Only still there if the write failed
+                blockTmp.delete();
+                checksumTmp.delete();
+            }
+            if (syncTracking) {
+                unsynced.add(blockFile);
+                unsynced.add(checksumFile(blockId));
+            }
+        }
+        
+        // Appends in place and renames the new checksum file in under the same
+        // stripe lock, so readers still see data and checksums that match
+        @Override
+        public void append(String blockId, long offset, ByteBuffer data, int[] checksums) throws IOException {
+            File blockFile = blockFile(blockId);
+            File checksumTmp = new File(checksumFile(blockId).getPath() + "." + Thread.currentThread().getId() + ".tmp");
+            try {
+                BlockChecksum.write(checksumTmp, checksums);
+                Lock lock = stripe(blockId).writeLock();
+                lock.lock();
+                try (FileChannel channel = FileChannel.open(blockFile.toPath(), StandardOpenOption.WRITE)) {
+                    if (channel.size() != offset) {
+                        throw new IOException("Block " + blockId + " holds " + channel.size() + " bytes, not " + offset);
+                    }
+                    long position = offset;
+                    while (data.hasRemaining()) position += channel.write(data, position);
+                    Files.move(checksumTmp.toPath(), checksumFile(blockId).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                checksumTmp.delete(); // only still there if the append failed
+            }
+            if (syncTracking) {
+                unsynced.add(blockFile);
+                unsynced.add(checksumFile(blockId));
+            }
+        }
+        
+        @Override
+        public void setSyncTracking(boolean enabled) {
+            syncTracking = enabled;
+            if (!enabled) unsynced.clear();
+        }
+        
+        // One fsync per file written; files deleted in the meantime need none
+        @Override
+        public void sync() throws IOException {
+            for (Iterator<File> it = unsynced.iterator(); it.hasNext(); ) {
+                File file = it.next();
+                it.remove();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                } catch (java.nio.file.NoSuchFileException e) {
+                    // deleted since it was written
+                } catch (IOException e) {
+                    unsynced.add(file);
+                    throw e;
+                }
+            }
+        }
+        
+        @Override
+        public ByteBuffer read(String blockId) throws IOException {
+            File blockFile = blockFile(blockId);
+            if (!blockFile.exists()) return null;
+            try (FileChannel channel = FileChannel.open(blockFile.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer data = ByteBuffer.allocateDirect((int) channel.size());
+                while (data.hasRemaining() && channel.read(data) >= 0) { }
+                data.flip();
+                return data;
+            }
+        }
+        
+        @Override
+        public ByteBuffer map(String blockId) throws IOException {
+            File blockFile = blockFile(blockId);
+            if (!blockFile.exists()) return null;
+            try (FileChannel channel = FileChannel.open(blockFile.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        
+        @Override
+        public long transferTo(String blockId, WritableByteChannel target) throws IOException {
+            File blockFile = blockFile(blockId);
+            if (!blockFile.exists()) throw new FileNotFoundException(blockFile.getAbsolutePath());
+            try (FileChannel channel = FileChannel.open(blockFile.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size(), position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+                return size;
+            }
+        }
+        
+        @Override
+        public int[] checksums(String blockId) throws IOException {
+            return BlockChecksum.read(checksumFile(blockId));
+        }
+        
+        @Override
+        public StoredBlock readVersion(String blockId, boolean mapped) throws IOException {
+            Lock lock = stripe(blockId).readLock();
+            lock.lock();
+            try {
+                ByteBuffer data = mapped ? map(blockId) : read(blockId);
+                return data != null ? new StoredBlock(data, checksums(blockId)) : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public boolean delete(String blockId) {
+            Lock lock = stripe(blockId).writeLock();
+            lock.lock();
+            try {
+                checksumFile(blockId).delete();
+                File blockFile = blockFile(blockId);
+                return blockFile.exists() && blockFile.delete();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public String describe(String blockId) {
+            return blockFile(blockId).getAbsolutePath();
+        }
+        
+        @Override
+        public void close() { }
+    }
+    
+    // Blocks live in slots inside extent files (extents/extent_<n>.dat). Each slot
+    // starts with a self-describing header, so the index is rebuilt by walking
+    // the headers and no separate index file can go stale:
+    //   magic(int) | state(byte) | slotLength(int) | generation(long) |
+    //   idLength(short) | id | dataLength(int) | chunkSize(int) |
+    //   checksumCount(int) | checksums(int...) | data
+    // Freed slots are reused best-fit; compaction moves the live slots out of
+    // mostly-empty extents and deletes those files.
+    static class SlottedBlockStore implements BlockStore {
+        private static final int SLOT_MAGIC = 0x55534C54; // "USLT"
+        private static final byte STATE_FREE = 0;
+        private static final byte STATE_LIVE = 1;
+        private static final int SLOT_ALIGN = 64;
+        private static final int MIN_SPLIT = 256; // smaller remainders stay with the slot
+        private static final int FREE_HEADER = 9;  // magic + state + slotLength
+        
+        private static final class Slot {
+            final int extent;
+            final long offset;
+            final int slotLength;
+            final int dataOffset; // from the slot start
+            final int length;
+            final long generation;
+            final int[] checksums;
+            
+            Slot(int extent, long offset, int slotLength, int dataOffset, int length, long generation, int[] checksums) {
+                this.extent = extent;
+                this.offset = offset;
+                this.slotLength = slotLength;
+                this.dataOffset = dataOffset;
+                this.length = length;
+                this.generation = generation;
+                this.checksums = checksums;
+            }
+        }
+        
+        private final File dir;
+        private final long extentBytes;
+        private final Map<String, Slot> index = new HashMap<>();
+        private final Map<Integer, FileChannel> extents = new HashMap<>();
+        private final Map<Integer, Long> liveBytes = new HashMap<>();
+        // Free slots by length: length -> offsets packed as (extent << 40 | offset)
+        private final TreeMap<Integer, ArrayDeque<Long>> freeSlots = new TreeMap<>();
+        private long freeBytes;
+        private int activeExtent = -1;
+        private int compactingExtent = -1;
+        private long activeTail;
+        private long nextGeneration = 1;
+        // Extents written to since the last sync
+        private final Set<Integer> dirtyExtents = new HashSet<>();
+        // Reads share the lock; writes, deletes and compaction take it exclusively
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        
+        public SlottedBlockStore(File dir, long extentBytes) {
+            this.dir = dir;
+            this.extentBytes = extentBytes;
+            if (!dir.exists()) dir.mkdirs();
+        }
+        
+        private static int align(long length) {
+            return (int) ((length + SLOT_ALIGN - 1) / SLOT_ALIGN * SLOT_ALIGN);
+        }
+        
+        private static long packFree(int extent, long offset) {
+            return ((long) extent << 40) | offset;
+        }
+        
+        private File extentFile(int extent) {
+            return new File(dir, "extent_" + extent + ".dat");
+        }
+        
+        @Override
+        public Map<String, Long> scan() throws IOException {
+            lock.writeLock().lock();
+            try {
+                File[] files = dir.listFiles((d, name) -> name.matches("extent_\\d+\\.dat"));
+                List<Integer> ids = new ArrayList<>();
+                if (files != null) {
+                    for (File file : files) ids.add(Integer.parseInt(file.getName().replaceAll("\\D", "")));
+                }
+                Collections.sort(ids);
+                for (int extent : ids) {
+                    FileChannel channel = FileChannel.open(extentFile(extent).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    extents.put(extent, channel);
+                    liveBytes.put(extent, 0L);
+                    long tail = scanExtent(extent, channel);
+                    // Only the last extent keeps appending; the unwritten end of the others is free
+                    if (activeExtent >= 0 && extentBytes - activeTail >= FREE_HEADER) {
+                        addFree(activeExtent, activeTail, (int) (extentBytes - activeTail));
+                    }
+                    activeExtent = extent;
+                    activeTail = tail;
+                }
+                Map<String, Long> blocks = new HashMap<>();
+                for (Map.Entry<String, Slot> entry : index.entrySet()) {
+                    blocks.put(entry.getKey(), (long) entry.getValue().length);
+                }
+                return blocks;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        // Walks the slot headers of one extent; returns where the written part ends
+        private long scanExtent(int extent, FileChannel channel) throws IOException {
+            long offset = 0;
+            ByteBuffer fixed = ByteBuffer.allocate(FREE_HEADER);
+            while (offset + FREE_HEADER <= extentBytes) {
+                fixed.clear();
+                readFully(channel, fixed, offset);
+                fixed.flip();
+                if (fixed.getInt() != SLOT_MAGIC) break; // never written, or a torn write
+                byte state = fixed.get();
+                int slotLength = fixed.getInt();
+                if (slotLength <= 0 || offset + slotLength > extentBytes) break;
+                
+                Slot slot = null;
+                String blockId = null;
+                if (state == STATE_LIVE) {
+                    ByteBuffer header = ByteBuffer.allocate(Math.min(slotLength, 64 * 1024));
+                    readFully(channel, header, offset);
+                    header.flip();
+                    try {
+                        header.position(FREE_HEADER);
+                        long generation = header.getLong();
+                        byte[] id = new byte[header.getShort()];
+                        header.get(id);
+                        int length = header.getInt();
+                        header.getInt(); // chunk size, always BlockChecksum.BYTES_PER_CHECKSUM
+                        int[] checksums = new int[header.getInt()];
+                        for (int i = 0; i < checksums.length; i++) checksums[i] = header.getInt();
+                        if (intact(channel, offset, slotLength, header.position(), length, checksums)) {
+                            slot = new Slot(extent, offset, slotLength, header.position(), length, generation, checksums);
+                            blockId = new String(id, StandardCharsets.UTF_8);
+                        }
+                    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                        // torn header
+                    }
+                }
+                if (slot != null) {
+                    Slot existing = index.get(blockId);
+                    // A crash between writing a replacement and freeing the old slot leaves two
+                    if (existing == null || existing.generation < slot.generation) {
+                        index.put(blockId, slot);
+                        liveBytes.merge(extent, (long) slotLength, Long::sum);
+                        if (existing != null) freeSlot(existing);
+                    } else {
+                        addFree(extent, offset, slotLength);
+                    }
+                    nextGeneration = Math.max(nextGeneration, slot.generation + 1);
+                } else {
+                    addFree(extent, offset, slotLength);
+                }
+                offset += slotLength;
+            }
+            return offset;
+        }
+        
+        // Whether a live slot holds what its header says. The live flag is not ordered
+        // against the slot's other bytes (nothing is forced until sync), so after a
+        // crash a live slot can be torn; its own checksums tell
+        private static boolean intact(FileChannel channel, long offset, int slotLength, int dataOffset, 
+                                      int length, int[] checksums) throws IOException {
+            if (length < 0 || dataOffset + (long) length > slotLength) return false;
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(channel, data, offset + dataOffset);
+            data.flip();
+            return Arrays.equals(BlockChecksum.compute(data), checksums);
+        }
+        
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) break;
+                position += n;
+            }
+        }
+        
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        }
+        
+        @Override
+        public void write(String blockId, ByteBuffer data, int[] checksums) throws IOException {
+            byte[] id = blockId.getBytes(StandardCharsets.UTF_8);
+            int headerLength = FREE_HEADER + 8 + 2 + id.length + 12 + 4 * checksums.length;
+            int slotLength = align(headerLength + data.remaining());
+            if (slotLength > extentBytes) {
+                throw new IOException("Block " + blockId + " (" + data.remaining() + " bytes) does not fit in an extent");
+            }
+            
+            lock.writeLock().lock();
+            try {
+                long[] allocation = allocate(slotLength);
+                int extent = (int) allocation[0];
+                long offset = allocation[1];
+                int allocated = (int) allocation[2];
+                
+                long generation = nextGeneration++;
+                ByteBuffer slot = ByteBuffer.allocate(headerLength + data.remaining());
+                slot.putInt(SLOT_MAGIC);
+                slot.put(STATE_FREE); // flipped to live last, so a torn write reads as a free slot
+                slot.putInt(allocated);
+                slot.putLong(generation);
+                slot.putShort((short) id.length);
+                slot.put(id);
+                slot.putInt(data.remaining());
+                slot.putInt(BlockChecksum.BYTES_PER_CHECKSUM);
+                slot.putInt(checksums.length);
+                for (int sum : checksums) slot.putInt(sum);
+                int length = data.remaining();
+                slot.put(data);
+                slot.flip();
+                
+                FileChannel channel = extents.get(extent);
+                writeFully(channel, slot, offset);
+                writeFully(channel, ByteBuffer.wrap(new byte[]{STATE_LIVE}), offset + 4);
+                dirtyExtents.add(extent);
+                
+                Slot previous = index.put(blockId, new Slot(extent, offset, allocated, headerLength, length, generation, checksums));
+                liveBytes.merge(extent, (long) allocated, Long::sum);
+                if (previous != null) {
+                    markFree(previous);
+                    freeSlot(previous);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        // Caller holds the write lock. Best-fit from the free slots, otherwise from
+        // the tail of the active extent, opening a new extent when it is full.
+        // Returns {extent, offset, slotLength}; a reused slot may be a little larger
+        // than asked for.
+        private long[] allocate(int slotLength) throws IOException {
+            Map.Entry<Integer, ArrayDeque<Long>> fit = freeSlots.ceilingEntry(slotLength);
+            if (fit != null) {
+                long location = fit.getValue().poll();
+                if (fit.getValue().isEmpty()) freeSlots.remove(fit.getKey());
+                freeBytes -= fit.getKey();
+                int extent = (int) (location >>> 40);
+                long offset = location & ((1L << 40) - 1);
+                
+                int remainder = fit.getKey() - slotLength;
+                if (remainder < MIN_SPLIT) return new long[]{extent, offset, fit.getKey()};
+                writeFreeHeader(extent, offset + slotLength, remainder);
+                addFree(extent, offset + slotLength, remainder);
+                return new long[]{extent, offset, slotLength};
+            }
+            
+            if (activeExtent < 0 || activeTail + slotLength > extentBytes) {
+                if (activeExtent >= 0 && extentBytes - activeTail >= FREE_HEADER) {
+                    int rest = (int) (extentBytes - activeTail);
+                    writeFreeHeader(activeExtent, activeTail, rest);
+                    addFree(activeExtent, activeTail, rest);
+                }
+                openExtent();
+            }
+            long[] allocation = {activeExtent, activeTail, slotLength};
+            activeTail += slotLength;
+            return allocation;
+        }
+        
+        private void openExtent() throws IOException {
+            int extent = extents.isEmpty() ? 0 : Collections.max(extents.keySet()) + 1;
+            File file = extentFile(extent);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(extentBytes); // preallocate; untouched space reads as zeros
+            }
+            extents.put(extent, FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+            liveBytes.put(extent, 0L);
+            activeExtent = extent;
+            activeTail = 0;
+        }
+        
+        private void writeFreeHeader(int extent, long offset, int slotLength) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(FREE_HEADER);
+            header.putInt(SLOT_MAGIC).put(STATE_FREE).putInt(slotLength).flip();
+            writeFully(extents.get(extent), header, offset);
+            dirtyExtents.add(extent);
+        }
+        
+        private void markFree(Slot slot) throws IOException {
+            writeFully(extents.get(slot.extent), ByteBuffer.wrap(new byte[]{STATE_FREE}), slot.offset + 4);
+            dirtyExtents.add(slot.extent);
+        }
+        
+        // The dirty set is taken under the lock and the fsyncs run outside it, so
+        // writes continue while a sync is in progress
+        @Override
+        public void sync() throws IOException {
+            Map<Integer, FileChannel> toSync = new HashMap<>();
+            lock.writeLock().lock();
+            try {
+                for (int extent : dirtyExtents) toSync.put(extent, extents.get(extent));
+                dirtyExtents.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (Map.Entry<Integer, FileChannel> entry : toSync.entrySet()) {
+                FileChannel channel = entry.getValue();
+                if (channel == null) continue;
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // compacted away; compaction synced the slots it moved
+                } catch (IOException e) {
+                    lock.writeLock().lock();
+                    try {
+                        dirtyExtents.add(entry.getKey());
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    throw e;
+                }
+            }
+        }
+        
+        private void freeSlot(Slot slot) {
+            liveBytes.merge(slot.extent, (long) -slot.slotLength, Long::sum);
+            addFree(slot.extent, slot.offset, slot.slotLength);
+        }
+        
+        private void addFree(int extent, long offset, int slotLength) {
+            if (extent == compactingExtent) return; // the whole file is about to go
+            freeSlots.computeIfAbsent(slotLength, l -> new ArrayDeque<>()).add(packFree(extent, offset));
+            freeBytes += slotLength;
+        }
+        
+        private Slot slot(String blockId) {
+            lock.readLock().lock();
+            try {
+                return index.get(blockId);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public ByteBuffer read(String blockId) throws IOException {
+            lock.readLock().lock();
+            try {
+                Slot slot = index.get(blockId);
+                return slot != null ? readSlot(slot) : null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public ByteBuffer map(String blockId) throws IOException {
+            lock.readLock().lock();
+            try {
+                Slot slot = index.get(blockId);
+                return slot != null ? mapSlot(slot) : null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        // The slot carries the checksums written with its data
+        @Override
+        public StoredBlock readVersion(String blockId, boolean mapped) throws IOException {
+            lock.readLock().lock();
+            try {
+                Slot slot = index.get(blockId);
+                if (slot == null) return null;
+                return new StoredBlock(mapped ? mapSlot(slot) : readSlot(slot), slot.checksums);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        // Callers hold the read lock
+        private ByteBuffer readSlot(Slot slot) throws IOException {
+            ByteBuffer data = ByteBuffer.allocateDirect(slot.length);
+            readFully(extents.get(slot.extent), data, slot.offset + slot.dataOffset);
+            data.flip();
+            return data;
+        }
+        
+        private ByteBuffer mapSlot(Slot slot) throws IOException {
+            return extents.get(slot.extent).map(FileChannel.MapMode.READ_ONLY, slot.offset + slot.dataOffset, slot.length);
+        }
+        
+        @Override
+        public long transferTo(String blockId, WritableByteChannel target) throws IOException {
+            lock.readLock().lock();
+            try {
+                Slot slot = index.get(blockId);
+                if (slot == null) throw new FileNotFoundException(describe(blockId));
+                FileChannel channel = extents.get(slot.extent);
+                long start = slot.offset + slot.dataOffset, position = 0;
+                while (position < slot.length) {
+                    position += channel.transferTo(start + position, slot.length - position, target);
+                }
+                return slot.length;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public int[] checksums(String blockId) {
+            Slot slot = slot(blockId);
+            return slot != null ? slot.checksums : null;
+        }
+        
+        @Override
+        public boolean delete(String blockId) throws IOException {
+            lock.writeLock().lock();
+            try {
+                Slot slot = index.remove(blockId);
+                if (slot == null) return false;
+                markFree(slot);
+                freeSlot(slot);
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        @Override
+        public String describe(String blockId) {
+            Slot slot = slot(blockId);
+            return slot == null ? blockId + " (not stored)" 
+                                : extentFile(slot.extent).getAbsolutePath() + "@" + slot.offset;
+        }
+        
+        // Moves the live slots out of every non-active extent that is less than
+        // half full, then deletes the emptied extent files
+        @Override
+        public long compact() throws IOException {
+            lock.writeLock().lock();
+            try {
+                long reclaimed = 0;
+                for (int extent : new ArrayList<>(extents.keySet())) {
+                    if (extent == activeExtent || liveBytes.get(extent) * 2 > extentBytes) continue;
+                    
+                    // The extent's free slots must not receive its own blocks
+                    compactingExtent = extent;
+                    for (Iterator<Map.Entry<Integer, ArrayDeque<Long>>> it = freeSlots.entrySet().iterator(); it.hasNext(); ) {
+                        Map.Entry<Integer, ArrayDeque<Long>> entry = it.next();
+                        int before = entry.getValue().size();
+                        entry.getValue().removeIf(location -> (int) (location >>> 40) == extent);
+                        freeBytes -= (long) entry.getKey() * (before - entry.getValue().size());
+                        if (entry.getValue().isEmpty()) it.remove();
+                    }
+                    
+                    List<Map.Entry<String, Slot>> moving = new ArrayList<>();
+                    for (Map.Entry<String, Slot> entry : index.entrySet()) {
+                        if (entry.getValue().extent == extent) moving.add(entry);
+                    }
+                    FileChannel channel = extents.get(extent);
+                    try {
+                        for (Map.Entry<String, Slot> entry : moving) {
+                            Slot slot = entry.getValue();
+                            ByteBuffer data = ByteBuffer.allocate(slot.length);
+                            readFully(channel, data, slot.offset + slot.dataOffset);
+                            data.flip();
+                            // write() re-enters the lock and frees the old slot
+                            write(entry.getKey(), data, slot.checksums);
+                        }
+                    } finally {
+                        compactingExtent = -1;
+                    }
+                    // The moved slots reach disk before their old copies disappear
+                    for (int dirty : dirtyExtents) {
+                        if (dirty != extent) extents.get(dirty).force(false);
+                    }
+                    dirtyExtents.clear();
+                    channel.close();
+                    extents.remove(extent);
+                    liveBytes.remove(extent);
+                    File file = extentFile(extent);
+                    reclaimed += file.length();
+                    file.delete();
+                }
+                return reclaimed;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        @Override
+        public Map<String, Long> getStats() {
+            lock.readLock().lock();
+            try {
+                Map<String, Long> stats = new HashMap<>();
+                long live = 0;
+                for (long bytes : liveBytes.values()) live += bytes;
+                stats.put("extents", (long) extents.size());
+                stats.put("extentBytes", extents.size() * extentBytes);
+                stats.put("liveBytes", live);
+                stats.put("freeBytes", freeBytes);
+                stats.put("blocks", (long) index.size());
+                return stats;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            lock.writeLock().lock();
+            try {
+                for (FileChannel channel : extents.values()) channel.close();
+                extents.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+    
+    static class DataNode {
+        private final String nodeId;
+        private final String address;
+        private final int port;
+        private final File storageDir;
+        private final BlockStore store;
+        private final BlockCache cache;
+        // Every replica on disk (blockId -> length), rebuilt by the startup scan
+        private final Map<String, Long> storedBlocks;
+        private final long capacity;
+        // Reserved with CAS before a write, so concurrent writers cannot overfill the node
+        private final AtomicLong usedSpace = new AtomicLong();
+        private volatile boolean isActive;
+        private long lastScanMillis;
+        private final GroupCommit commit;
+        private volatile Durability durability = Durability.NONE;
+        private volatile long writeBackMillis;
+        private ScheduledExecutorService flusher;
+
+        public DataNode(String nodeId, String address, int port, long capacity, File storageDir) {
+            this(nodeId, address, port, capacity, storageDir, Math.min(capacity / 8, 64L * 1024 * 1024));
+        }
+        
+        public DataNode(String nodeId, String address, int port, long capacity, File storageDir, long cacheBytes) {
+            this(nodeId, address, port, capacity, storageDir, cacheBytes, openStore(storageDir, capacity));
+        }
+        
+        public DataNode(String nodeId, String address, int port, long capacity, File storageDir, long cacheBytes, BlockStore store) {
+            this.nodeId = nodeId;
+            this.address = address;
+            this.port = port;
+            this.capacity = capacity;
+            this.cache = new BlockCache(cacheBytes);
+            this.storedBlocks = new ConcurrentHashMap<>();
+            this.isActive = true;
+            this.storageDir = storageDir;
+            this.store = store;
+            this.commit = new GroupCommit(store);
+
+            scanStorage();
+        }
+        
+        // Extents of a quarter of the node's capacity, between 1MB and 64MB
+        private static BlockStore openStore(File storageDir, long capacity) {
+            try {
+                long extentBytes = Math.max(1L << 20, Math.min(capacity / 4, 64L << 20));
+                return BlockStore.open(storageDir, extentBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open block store in " + storageDir.getAbsolutePath(), e);
+            }
+        }
+        
+        private void scanStorage() {
+            long start = System.nanoTime();
+            try {
+                storedBlocks.putAll(store.scan());
+            } catch (IOException e) {
+                System.err.println("DataNode " + nodeId + ": Startup scan failed - " + e.getMessage());
+            }
+            
+            long bytes = 0;
+            for (long length : storedBlocks.values()) bytes += length;
+            usedSpace.set(bytes);
+            this.lastScanMillis = (System.nanoTime() - start) / 1_000_000;
+            
+            System.out.println("DataNode " + nodeId + ": Startup scan found " + storedBlocks.size() + 
+                             " blocks (" + bytes + " bytes) in " + lastScanMillis + " ms");
+        }
+        
+        private boolean reserveSpace(long bytes) {
+            long used;
+            do {
+                used = usedSpace.get();
+                if (used + bytes > capacity) return false;
+            } while (!usedSpace.compareAndSet(used, used + bytes));
+            return true;
+        }
+        
+        public boolean storeBlock(HDFSBlock block) {
+            if (!reserveSpace(block.getSize())) {
+                return false;
+            }
+
+            boolean stored = false;
+            try {
+                store.write(block.getBlockId(), block.getDataBuffer(), BlockChecksum.compute(block.getDataBuffer()));
+                long seq = commit.written();
+                if (durability == Durability.SYNC_BATCH) commit.awaitSynced(seq);
+
+                // Freshly written blocks (new rides, GPS) are likely to be read soon
+                cache.put(block.getBlockId(), block.getDataBuffer());
+                Long previous = storedBlocks.put(block.getBlockId(), (long) block.getSize());
+                if (previous != null) usedSpace.addAndGet(-previous); // replaced in place
+                stored = true;
+                block.addReplica(nodeId);
+
+                System.out.println("DataNode " + nodeId + ": Stored block " + block.getBlockId() + 
+                                 " (" + block.getSize() + " bytes) -> " + store.describe(block.getBlockId()));
+                return true;
+            } catch (IOException e) {
+                System.err.println("DataNode " + nodeId + ": Failed to store block " + block.getBlockId() + " - " + e.getMessage());
+                return false;
+            } finally {
+                if (!stored) usedSpace.addAndGet(-block.getSize());
+            }
+        }
+        
+        // Blocks written before checksums existed have no stored checksums and are not verified
+        private void verify(String blockId, StoredBlock stored) throws ChecksumException {
+            if (stored.checksums != null) BlockChecksum.verify(nodeId, blockId, stored.data, stored.checksums);
+        }
+        
+        // Returns a read-only view of the block (positioned at 0), or null if this node lacks it.
+        // Blocks coming from disk are checksum-verified before they enter the cache.
+        public ByteBuffer readBlock(String blockId) throws ChecksumException {
+            ByteBuffer cached = cache.get(blockId);
+            if (cached != null) return cached;
+
+            // Load from disk straight into an off-heap buffer
+            try {
+                StoredBlock stored = store.readVersion(blockId, false);
+                if (stored == null) return null;
+                verify(blockId, stored);
+                return cache.adopt(blockId, stored.data);
+            } catch (ChecksumException e) {
+                throw e;
+            } catch (IOException e) {
+                System.err.println("DataNode " + nodeId + ": Failed to read block " + store.describe(blockId));
+                return null;
+            }
+        }
+        
+        // Cached view if the block is hot, otherwise a verified read-only mapping of the block
+        public ByteBuffer mapBlock(String blockId) throws ChecksumException {
+            ByteBuffer cached = cache.get(blockId);
+            if (cached != null) return cached;
+            
+            try {
+                StoredBlock stored = store.readVersion(blockId, true);
+                if (stored == null) return null;
+                verify(blockId, stored);
+                return stored.data;
+            } catch (ChecksumException e) {
+                throw e;
+            } catch (IOException e) {
+                System.err.println("DataNode " + nodeId + ": Failed to map block " + store.describe(blockId));
+                return null;
+            }
+        }
+        
+        // Verifies through a mapping first so a corrupt replica is rejected before
+        // any byte reaches the target, then sends that same mapping: a rewrite in
+        // between cannot slip unverified bytes onto the wire
+        public long transferBlockTo(String blockId, WritableByteChannel target) throws IOException {
+            StoredBlock stored = store.readVersion(blockId, true);
+            if (stored == null) throw new FileNotFoundException(store.describe(blockId));
+            verify(blockId, stored);
+            ByteBuffer data = stored.data.duplicate();
+            long size = data.remaining();
+            while (data.hasRemaining()) target.write(data);
+            return size;
+        }
+        
+        // Re-reads the block from disk (bypassing the cache) and checks it; used by the scrubber.
+        // Returns the number of bytes verified.
+        public long verifyBlock(String blockId) throws IOException {
+            StoredBlock stored = store.readVersion(blockId, true);
+            if (stored == null) throw new FileNotFoundException(store.describe(blockId));
+            verify(blockId, stored);
+            return stored.data.capacity();
+        }
+        
+        // Appends to a replica that holds exactly the first offset bytes of the
+        // block. False if this node lacks it, holds another length, or the write
+        // fails; the caller then rewrites the whole block instead.
+        public boolean appendBlock(String blockId, long offset, ByteBuffer data) {
+            Long current = storedBlocks.get(blockId);
+            if (current == null || current != offset) return false;
+            int length = data.remaining();
+            if (!reserveSpace(length)) return false;
+            
+            boolean stored = false;
+            try {
+                StoredBlock existing = store.readVersion(blockId, true);
+                if (existing == null || existing.data.remaining() != offset || existing.checksums == null) return false;
+                int[] checksums = BlockChecksum.extend(nodeId, blockId, existing.data, existing.checksums, data);
+                store.append(blockId, offset, data.duplicate(), checksums);
+                long seq = commit.written();
+                if (durability == Durability.SYNC_BATCH) commit.awaitSynced(seq);
+                
+                cache.invalidate(blockId);
+                storedBlocks.put(blockId, offset + length);
+                stored = true;
+                return true;
+            } catch (IOException e) {
+                System.err.println("DataNode " + nodeId + ": Failed to append to block " + blockId + " - " + e.getMessage());
+                return false;
+            } finally {
+                if (!stored) usedSpace.addAndGet(-length);
+            }
+        }
+        
+        public Set<String> getStoredBlockIds() {
+            return new HashSet<>(storedBlocks.keySet());
+        }
+        
+        public boolean hasBlock(String blockId) {
+            return storedBlocks.containsKey(blockId);
+        }
+        
+        public boolean deleteBlock(String blockId) {
+            cache.invalidate(blockId);
+            Long length = storedBlocks.remove(blockId);
+            if (length != null) {
+                usedSpace.addAndGet(-length);
+            }
+
+            try {
+                if (store.delete(blockId)) {
+                    System.out.println("DataNode " + nodeId + ": Deleted block " + blockId);
+                }
+            } catch (IOException e) {
+                System.err.println("DataNode " + nodeId + ": Failed to delete block " + blockId + " - " + e.getMessage());
+            }
+
+            return true;
+        }
+        
+        public long compactStorage() {
+            try {
+                long reclaimed = store.compact();
+                if (reclaimed > 0) {
+                    System.out.println("DataNode " + nodeId + ": Compaction reclaimed " + reclaimed / 1024 + " KB");
+                }
+                return reclaimed;
+            } catch (IOException e) {
+                System.err.println("DataNode " + nodeId + ": Compaction failed - " + e.getMessage());
+                return 0;
+            }
+        }
+        
+        // WRITE_BACK syncs every writeBackMillis on a background thread; the other
+        // modes need none. Writes pending when the mode changes are synced first.
+        public synchronized void setDurability(Durability durability, long writeBackMillis) {
+            if (flusher != null) {
+                flusher.shutdown();
+                flusher = null;
+            }
+            flushWrites();
+            store.setSyncTracking(durability != Durability.NONE);
+            this.durability = durability;
+            this.writeBackMillis = writeBackMillis;
+            if (durability == Durability.WRITE_BACK) {
+                flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "datanode-flush-" + nodeId);
+                    t.setDaemon(true);
+                    return t;
+                });
+                flusher.scheduleWithFixedDelay(this::flushWrites, writeBackMillis, writeBackMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        public Durability getDurability() { return durability; }
+        
+        // Syncs every acknowledged write that has not reached disk yet
+        public void flushWrites() {
+            if (commit.getPendingWrites() == 0) return;
+            try {
+                commit.syncAll();
+            } catch (IOException e) {
+                System.err.println("DataNode " + nodeId + ": Failed to sync block store - " + e.getMessage());
+            }
+        }
+        
+        public synchronized void close() {
+            if (flusher != null) {
+                flusher.shutdown();
+                flusher = null;
+            }
+            if (durability != Durability.NONE) flushWrites();
+        }
+        
+        public Map<String, Long> getDurabilityStats() {
+            return commit.getStats();
+        }
+        
+        public BlockStore getStore() { return store; }
+        
+        public String getNodeId() { return nodeId; }
+        public String getAddress() { return address; }
+        public int getPort() { return port; }
+        public long getUsedSpace() { return usedSpace.get(); }
+        public long getFreeSpace() { return capacity - usedSpace.get(); }
+        public long getCapacity() { return capacity; }
+        public boolean isActive() { return isActive; }
+        public void setActive(boolean active) { this.isActive = active; }
+        public long getLastScanMillis() { return lastScanMillis; }
+        public BlockCache getCache() { return cache; }
+        
+        // Compact block report: blockId -> replica length for every block on disk
+        public Map<String, Long> getBlockReport() {
+            return new HashMap<>(storedBlocks);
+        }
+        
+        public Map<String, Integer> getBlockSummary() {
+            Map<String, Integer> summary = new HashMap<>();
+            summary.put("totalBlocks", storedBlocks.size());
+            summary.put("usedSpaceMB", (int)(usedSpace.get() / (1024 * 1024)));
+            summary.put("freeSpaceMB", (int)(getFreeSpace() / (1024 * 1024)));
+            return summary;
+        }
+    }
+    
+    // ==================== BLOCK PLACEMENT ====================
+    // Which DataNodes receive the replicas of a block. Policies keep a snapshot
+    // of the registered nodes (refreshed when membership changes), so choosing
+    // targets costs O(replicas) instead of sorting the whole cluster per block;
+    // liveness and free space are still checked on every pick.
+    
+    // Maps each DataNode to a "/zone/rack" location, loaded from lines of
+    // "<nodeId> <location>" such as "datanode1 /zone-a/rack-1" ('#' starts a comment)
+    static class NetworkTopology {
+        static final String DEFAULT_RACK = "/default-zone/default-rack";
+        private final Map<String, String> racks = new ConcurrentHashMap<>();
+        
+        public static NetworkTopology load(File config) throws IOException {
+            NetworkTopology topology = new NetworkTopology();
+            if (!config.exists()) return topology;
+            for (String line : Files.readAllLines(config.toPath(), StandardCharsets.UTF_8)) {
+                int comment = line.indexOf('#');
+                String entry = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (entry.isEmpty()) continue;
+                String[] parts = entry.split("\\s+");
+                if (parts.length == 2) {
+                    topology.setRack(parts[0], parts[1]);
+                } else {
+                    System.err.println("NetworkTopology: Ignoring malformed line in " + config.getName() + ": " + line);
+                }
+            }
+            return topology;
+        }
+        
+        public void setRack(String nodeId, String rack) {
+            racks.put(nodeId, rack.startsWith("/") ? rack : "/" + rack);
+        }
+        
+        public String getRack(String nodeId) {
+            return racks.getOrDefault(nodeId, DEFAULT_RACK);
+        }
+        
+        // "/zone-a/rack-1" -> "/zone-a"; single-level racks all share the root zone
+        public static String zoneOf(String rack) {
+            int slash = rack.lastIndexOf('/');
+            return slash > 0 ? rack.substring(0, slash) : "/";
+        }
+        
+        public int size() { return racks.size(); }
+    }
+    
+    interface BlockPlacementPolicy {
+        // Called with every registered DataNode whenever membership changes
+        void refresh(Collection<DataNode> nodes);
+        
+        // Up to count distinct live nodes with free space, none of them in existing
+        // (the block's current replicas, which may contain nulls for lost EC cells)
+        List<DataNode> chooseTargets(int count, Collection<String> existing);
+        
+        String getName();
+        
+        // Whether the balancer may move one of a block's replicas from source to target
+        default boolean isMoveAllowed(Collection<String> replicas, String source, String target) {
+            return true;
+        }
+        
+        static boolean isEligible(DataNode node, Collection<String> existing) {
+            return node.isActive() && node.getFreeSpace() > 0 && !existing.contains(node.getNodeId());
+        }
+        
+        static DataNode[] sortedById(Collection<DataNode> nodes) {
+            DataNode[] sorted = nodes.toArray(new DataNode[0]);
+            Arrays.sort(sorted, Comparator.comparing(DataNode::getNodeId));
+            return sorted;
+        }
+    }
+    
+    // The original policy: sort every node by free space for each block.
+    // O(n log n) per block and always lands on the emptiest nodes; kept as a baseline.
+    static class MostFreeSpacePlacement implements BlockPlacementPolicy {
+        private volatile DataNode[] nodes = new DataNode[0];
+        
+        public void refresh(Collection<DataNode> nodes) { this.nodes = BlockPlacementPolicy.sortedById(nodes); }
+        
+        public List<DataNode> chooseTargets(int count, Collection<String> existing) {
+            return Arrays.stream(nodes)
+                .filter(node -> BlockPlacementPolicy.isEligible(node, existing))
+                .sorted((a, b) -> Long.compare(b.getFreeSpace(), a.getFreeSpace()))
+                .limit(count)
+                .collect(ArrayList::new, ArrayList::add, ArrayList::addAll);
+        }
+        
+        public String getName() { return "most-free"; }
+    }
+    
+    // Successive blocks start one node further along the ring
+    static class RoundRobinPlacement implements BlockPlacementPolicy {
+        private volatile DataNode[] nodes = new DataNode[0];
+        private final AtomicInteger cursor = new AtomicInteger();
+        
+        public void refresh(Collection<DataNode> nodes) { this.nodes = BlockPlacementPolicy.sortedById(nodes); }
+        
+        public List<DataNode> chooseTargets(int count, Collection<String> existing) {
+            DataNode[] snapshot = nodes;
+            List<DataNode> targets = new ArrayList<>(Math.min(count, snapshot.length));
+            int start = cursor.getAndIncrement();
+            for (int i = 0; i < snapshot.length && targets.size() < count; i++) {
+                DataNode node = snapshot[Math.floorMod(start + i, snapshot.length)];
+                if (BlockPlacementPolicy.isEligible(node, existing)) targets.add(node);
+            }
+            return targets;
+        }
+        
+        public String getName() { return "round-robin"; }
+    }
+    
+    // Picks nodes with probability proportional to their free space by rejection
+    // sampling: a uniformly drawn node is kept with chance free / largest capacity.
+    // Falls back to a linear pass when sampling cannot fill the request.
+    static class WeightedRandomPlacement implements BlockPlacementPolicy {
+        private volatile DataNode[] nodes = new DataNode[0];
+        private volatile long maxCapacity = 1;
+        
+        public void refresh(Collection<DataNode> nodes) {
+            DataNode[] snapshot = BlockPlacementPolicy.sortedById(nodes);
+            long max = 1;
+            for (DataNode node : snapshot) max = Math.max(max, node.getFreeSpace() + node.getUsedSpace());
+            this.maxCapacity = max;
+            this.nodes = snapshot;
+        }
+        
+        public List<DataNode> chooseTargets(int count, Collection<String> existing) {
+            DataNode[] snapshot = nodes;
+            List<DataNode> targets = new ArrayList<>(Math.min(count, snapshot.length));
+            if (snapshot.length == 0) return targets;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            
+            for (int attempts = 8 * count + 16; attempts > 0 && targets.size() < count; attempts--) {
+                DataNode node = snapshot[random.nextInt(snapshot.length)];
+                if (random.nextLong(maxCapacity) < node.getFreeSpace() &&
+                    BlockPlacementPolicy.isEligible(node, existing) && !targets.contains(node)) {
+                    targets.add(node);
+                }
+            }
+            int start = random.nextInt(snapshot.length);
+            for (int i = 0; i < snapshot.length && targets.size() < count; i++) {
+                DataNode node = snapshot[(start + i) % snapshot.length];
+                if (BlockPlacementPolicy.isEligible(node, existing) && !targets.contains(node)) targets.add(node);
+            }
+            return targets;
+        }
+        
+        public String getName() { return "weighted-random"; }
+    }
+    
+    // Spreads the replicas of a block over as many zones, then racks, as possible.
+    // Racks take turns supplying the first replica and nodes take turns within each
+    // rack, so the cost per block depends on the number of racks, not nodes.
+    static class RackAwarePlacement implements BlockPlacementPolicy {
+        private static class Rack {
+            final String name;
+            final String zone;
+            final DataNode[] nodes;
+            final AtomicInteger cursor = new AtomicInteger();
+            
+            Rack(String name, List<DataNode> nodes) {
+                this.name = name;
+                this.zone = NetworkTopology.zoneOf(name);
+                this.nodes = nodes.toArray(new DataNode[0]);
+            }
+            
+            DataNode next(Collection<String> existing, List<DataNode> chosen) {
+                for (int i = 0; i < nodes.length; i++) {
+                    DataNode node = nodes[Math.floorMod(cursor.getAndIncrement(), nodes.length)];
+                    if (BlockPlacementPolicy.isEligible(node, existing) && !chosen.contains(node)) return node;
+                }
+                return null;
+            }
+        }
+        
+        private final NetworkTopology topology;
+        private volatile Rack[] racks = new Rack[0];
+        private final AtomicInteger cursor = new AtomicInteger();
+        
+        public RackAwarePlacement(NetworkTopology topology) {
+            this.topology = topology;
+        }
+        
+        public void refresh(Collection<DataNode> nodes) {
+            Map<String, List<DataNode>> byRack = new TreeMap<>();
+            for (DataNode node : BlockPlacementPolicy.sortedById(nodes)) {
+                byRack.computeIfAbsent(topology.getRack(node.getNodeId()), rack -> new ArrayList<>()).add(node);
+            }
+            // Interleave zones (z0 r0, z1 r0, z2 r0, z0 r1, ...) so that consecutive racks
+            // lie in different zones and every rack is equally likely to follow the start rack
+            Map<String, Deque<Rack>> byZone = new TreeMap<>();
+            byRack.forEach((name, members) -> {
+                Rack rack = new Rack(name, members);
+                byZone.computeIfAbsent(rack.zone, zone -> new ArrayDeque<>()).add(rack);
+            });
+            List<Rack> snapshot = new ArrayList<>();
+            while (snapshot.size() < byRack.size()) {
+                for (Deque<Rack> zoneRacks : byZone.values()) {
+                    if (!zoneRacks.isEmpty()) snapshot.add(zoneRacks.poll());
+                }
+            }
+            this.racks = snapshot.toArray(new Rack[0]);
+        }
+        
+        public List<DataNode> chooseTargets(int count, Collection<String> existing) {
+            Rack[] snapshot = racks;
+            List<DataNode> targets = new ArrayList<>();
+            List<String> usedRacks = new ArrayList<>(); // a handful of entries: lists beat hash sets
+            List<String> usedZones = new ArrayList<>();
+            for (String nodeId : existing) {
+                if (nodeId == null) continue;
+                String rack = topology.getRack(nodeId);
+                usedRacks.add(rack);
+                usedZones.add(NetworkTopology.zoneOf(rack));
+            }
+            
+            boolean[] exhausted = new boolean[snapshot.length];
+            int start = cursor.getAndIncrement();
+            while (targets.size() < count) {
+                // Prefer a new zone, then a new rack, then any rack with room left
+                int best = -1, bestScore = -1;
+                for (int i = 0; i < snapshot.length && bestScore < 2; i++) {
+                    int index = Math.floorMod(start + i, snapshot.length);
+                    if (exhausted[index]) continue;
+                    Rack rack = snapshot[index];
+                    int score = !usedZones.contains(rack.zone) ? 2 : !usedRacks.contains(rack.name) ? 1 : 0;
+                    if (score > bestScore) {
+                        best = index;
+                        bestScore = score;
+                    }
+                }
+                if (best < 0) break;
+                
+                DataNode node = snapshot[best].next(existing, targets);
+                if (node == null) {
+                    exhausted[best] = true;
+                    continue;
+                }
+                targets.add(node);
+                usedRacks.add(snapshot[best].name);
+                usedZones.add(snapshot[best].zone);
+            }
+            return targets;
+        }
+        
+        // A move must not shrink the number of racks the block spans
+        @Override
+        public boolean isMoveAllowed(Collection<String> replicas, String source, String target) {
+            Set<String> before = new HashSet<>(), after = new HashSet<>();
+            for (String nodeId : replicas) {
+                if (nodeId == null) continue;
+                before.add(topology.getRack(nodeId));
+                if (!nodeId.equals(source)) after.add(topology.getRack(nodeId));
+            }
+            after.add(topology.getRack(target));
+            return after.size() >= before.size();
+        }
+        
+        public String getName() { return "rack-aware"; }
+    }
+    
+    // ==================== READ REPLICA SELECTION ====================
+    // Reads go to the replica with the lowest expected wait: the DataNode's latency
+    // EWMA scaled by the reads it already has in flight. With hedging on, a read
+    // still unanswered at the hedge percentile of recent replica reads is raced
+    // against the next replica, and whichever answers first wins.
+    
+    // Log-linear histogram in microseconds: 8 buckets per power of two (~12% precision)
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(62 * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        
+        public void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(1, nanos / 1000)));
+            total.increment();
+        }
+        
+        private static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            return (exponent - 2) * SUB_BUCKETS + (int) ((micros >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+        }
+        
+        private static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (bucket / SUB_BUCKETS - 1);
+        }
+        
+        // Upper bound of the bucket holding the given fraction (e.g. 0.99) of samples
+        public long percentileMicros(double fraction) {
+            long n = total.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return i + 1 < counts.length() ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+            }
+            return lowerBound(counts.length() - 1);
+        }
+        
+        public long getCount() { return total.sum(); }
+        
+        public void reset() {
+            for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+            total.reset();
+        }
+    }
+    
+    static class ReplicaSelector {
+        private static final double EWMA_WEIGHT = 0.2;
+        private static final long MIN_HEDGE_DELAY_MICROS = 200;
+        
+        private static class NodeLoad {
+            final AtomicInteger inFlight = new AtomicInteger();
+            final AtomicLong ewmaBits = new AtomicLong(Double.doubleToLongBits(0));
+            
+            double ewmaMicros() { return Double.longBitsToDouble(ewmaBits.get()); }
+            
+            void sample(double micros) {
+                long bits, updated;
+                do {
+                    bits = ewmaBits.get();
+                    double current = Double.longBitsToDouble(bits);
+                    updated = Double.doubleToLongBits(current == 0 ? micros : current + EWMA_WEIGHT * (micros - current));
+                } while (!ewmaBits.compareAndSet(bits, updated));
+            }
+        }
+        
+        private final Map<String, NodeLoad> loads = new ConcurrentHashMap<>();
+        private final LatencyHistogram replicaLatency = new LatencyHistogram();
+        private final AtomicLong samples = new AtomicLong();
+        private volatile boolean latencyAware = true;
+        private volatile double hedgePercentile = 0.95;
+        private volatile long hedgeDelayMicros = 10_000; // until enough samples arrive
+        
+        private NodeLoad load(DataNode node) {
+            return loads.computeIfAbsent(node.getNodeId(), id -> new NodeLoad());
+        }
+        
+        // Best replica first. One read in 64 takes a random order so that a node
+        // which was slow once keeps being sampled and can win its traffic back.
+        public List<DataNode> order(List<DataNode> replicas) {
+            if (!latencyAware || replicas.size() < 2) return replicas;
+            if (ThreadLocalRandom.current().nextInt(64) == 0) {
+                Collections.shuffle(replicas, ThreadLocalRandom.current());
+            } else {
+                replicas.sort(Comparator.comparingDouble(this::expectedWaitMicros));
+            }
+            return replicas;
+        }
+        
+        public double expectedWaitMicros(DataNode node) {
+            NodeLoad load = load(node);
+            return (load.ewmaMicros() + 1) * (load.inFlight.get() + 1);
+        }
+        
+        // Marks a read as outstanding; returns the start time to pass to finish
+        public long begin(DataNode node) {
+            load(node).inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+        
+        public void finish(DataNode node, long startNanos, boolean succeeded) {
+            NodeLoad load = load(node);
+            load.inFlight.decrementAndGet();
+            if (!succeeded) return;
+            long nanos = System.nanoTime() - startNanos;
+            load.sample(nanos / 1000.0);
+            replicaLatency.record(nanos);
+            if (samples.incrementAndGet() % 128 == 0) {
+                hedgeDelayMicros = Math.max(MIN_HEDGE_DELAY_MICROS, replicaLatency.percentileMicros(hedgePercentile));
+            }
+        }
+        
+        public long getHedgeDelayMicros() { return hedgeDelayMicros; }
+        
+        public void setLatencyAware(boolean latencyAware) { this.latencyAware = latencyAware; }
+        
+        public void setHedgePercentile(double percentile) { this.hedgePercentile = percentile; }
+        
+        public Map<String, Long> getLatencyEwmaMicros() {
+            Map<String, Long> ewmas = new TreeMap<>();
+            loads.forEach((nodeId, load) -> ewmas.put(nodeId, Math.round(load.ewmaMicros())));
+            return ewmas;
+        }
+    }
+    
+    static class NameNode {
+        private final Map<String, FileMetadata> fileSystem;
+        private final NamespaceTree namespace = new NamespaceTree();
+        // Path-striped locks keep a path's map entry and tree entry in step;
+        // different paths never contend on one global lock
+        private static final int PATH_LOCK_STRIPES = 256;
+        private final Object[] pathLocks = new Object[PATH_LOCK_STRIPES];
+        // Paths with a create or delete in progress
+        private final Set<String> busyPaths = ConcurrentHashMap.newKeySet();
+        private final Map<String, DataNode> dataNodes;
+        private final Map<String, HDFSBlock> blockLocations;
+        private final int replicationFactor;
+        private final int blockSize;
+        private final File metaDir;
+        
+        // Open GPS segments, keyed by directory (/uber/gps/<partition>/<driverId>) and by segment path
+        private static final String GPS_ROOT = "/uber/gps";
+        private final Map<String, GPSSegment> openGpsSegments;
+        private final Map<String, GPSSegment> openSegmentFiles;
+        // Sparse GPS index: partition -> driverId -> entries in shipping order
+        private final ConcurrentSkipListMap<String, Map<String, List<GPSIndexEntry>>> gpsPartitions = new ConcurrentSkipListMap<>();
+        private final LongAdder gpsBlocksRead = new LongAdder();
+        private final LongAdder gpsBlocksPruned = new LongAdder();
+        private volatile long gpsSegmentMaxBytes = 256 * 1024; // 256KB per segment
+        private volatile long gpsSegmentMaxAgeMillis = 10 * 60 * 1000; // 10 minutes
+        private final ScheduledExecutorService maintenanceExecutor;
+        
+        // Metadata persistence: fsimage_<txId> checkpoints plus the edit log tail
+        private static final int FSIMAGE_MAGIC = 0x55464D47; // "UFMG"
+        private static final int PACKED_SECTION = 'P';
+        private static final int BLOCK_ID_SECTION = 'B';
+        private static final int GENERATION_SECTION = 'G';
+        private static final int GPS_INDEX_SECTION = 'T';
+        private static final int RETIRED_SECTION = 'R';
+        
+        // Regular file blocks get short numeric IDs (blk_<n>). The high-water mark
+        // covers every ID seen in the image, the journal and DataNode block reports,
+        // so an ID is never handed out twice, not even one of a write that failed.
+        private static final String BLOCK_ID_PREFIX = "blk_";
+        private final AtomicLong lastBlockId = new AtomicLong();
+        // Federated NameNodes share DataNodes: each tags its numeric and content
+        // block IDs with its block pool ("blk_rides.17"; "" keeps "blk_17") and
+        // takes only its own pool's blocks from a block report
+        private final String blockPoolId;
+        private final String blockIdPrefix;
+        private final String contentBlockPrefix;
+        private volatile Predicate<String> blockPoolFilter = blockId -> true;
+        // Owners and DataNode IDs restored from disk share one String each
+        private final Map<String, String> internedNames = new ConcurrentHashMap<>();
+        private EditLog editLog;
+        private volatile long lastCheckpointTxId;
+        private volatile long checkpointPeriodTxns = 100_000;
+        private volatile long checkpointIntervalMillis = 10 * 60 * 1000; // 10 minutes
+        private final AtomicBoolean checkpointScheduled = new AtomicBoolean(false);
+        private long startupMillis;
+        private long replayedEdits;
+        
+        // High availability: a standby follows the edit log until it is promoted
+        private volatile HAState haState;
+        private volatile EditLogTailer editTailer;
+        private volatile ScheduledFuture<?> tailTask;
+        private volatile String tailError;
+        private volatile long editTailPeriodMillis = 100;
+        private volatile long lastFailoverMillis = -1;
+        
+        // Write pipeline: replica writes run on ioExecutor; blocksInFlight bounds
+        // how many blocks a writer may have outstanding at once
+        private final ExecutorService ioExecutor;
+        private volatile WriteAckPolicy writeAckPolicy = WriteAckPolicy.ALL;
+        private volatile Semaphore blocksInFlight = new Semaphore(8);
+        
+        // Background scrubbing of replicas against their stored checksums
+        private final DataThrottler scrubThrottler = new DataThrottler(1024 * 1024); // 1MB/s
+        private volatile long scrubIntervalMillis = 10 * 60 * 1000; // 10 minutes
+        private volatile ScrubReport lastScrubReport;
+        private final LongAdder corruptReplicaCount = new LongAdder();
+        private final ScheduledExecutorService scrubExecutor;
+        
+        private final ReplicationMonitor replicationMonitor;
+        private final Balancer balancer;
+        
+        // Erasure coding: directory -> policy for cold files, cellId -> striped blockId
+        private final Map<String, ErasureCodingPolicy> storagePolicies = new ConcurrentHashMap<>();
+        private final Map<String, String> stripeCells = new ConcurrentHashMap<>();
+        private volatile long ecColdAfterMillis = 5 * 60 * 1000; // 5 minutes
+        private final LongAdder ecBlocksConverted = new LongAdder();
+        private final LongAdder ecReconstructedReads = new LongAdder();
+        
+        // Block compression: directory -> codec for new files, and per-codec totals
+        private final Map<String, CompressionCodec> compressionPolicies = new ConcurrentHashMap<>();
+        private final Map<String, CompressionStats> compressionStats = new ConcurrentHashMap<>();
+        
+        // Deduplication: directory -> enabled, and content-addressed blockId -> reference count
+        private final Map<String, Boolean> dedupPolicies = new ConcurrentHashMap<>();
+        private final Map<String, Integer> blockRefs = new ConcurrentHashMap<>();
+        // Untracked blocks whose copies are being deleted, outside the blockRefs lock
+        private final Set<String> deletingBlocks = new HashSet<>();
+        private final LongAdder dedupBlocksReused = new LongAdder();
+        private final LongAdder dedupBytesSaved = new LongAdder();
+        
+        // Small-file containers: the open container per directory and the record index
+        private static final String CONTAINER_ROOT = "/.pack";
+        private final Map<String, SmallFileContainer> openContainers = new ConcurrentHashMap<>();
+        private final Map<String, PackedRecord> packedRecords = new ConcurrentHashMap<>();
+        private final AtomicLong containerSequence = new AtomicLong();
+        private volatile long containerMaxBytes = 4 * 1024 * 1024; // 4MB per container
+        
+        // Appends and overwrites: blocks the new generation of a file no longer uses
+        // stay readable for a grace period, so readers holding the old block list
+        // finish before the replicas go; blockId -> time retired
+        private final Map<String, Long> retiredBlocks = new ConcurrentHashMap<>();
+        private volatile long retiredBlockGraceMillis = 30 * 1000;
+        
+        // Replicas reported by DataNodes that no file refers to (nodeId -> blockIds)
+        private final Map<String, List<String>> orphanedReplicas = new ConcurrentHashMap<>();
+        private volatile BlockReconciliation lastReconciliation;
+        
+        private volatile BlockPlacementPolicy placementPolicy = new RackAwarePlacement(new NetworkTopology());
+        // Applied to every DataNode, including ones that register later
+        private volatile Durability dataNodeDurability = Durability.WRITE_BACK;
+        private volatile long writeBackMillis = 1000;
+        
+        // Read side: replica ordering, optional hedged reads and block read latency
+        private final ReplicaSelector replicaSelector = new ReplicaSelector();
+        private final LatencyHistogram readLatency = new LatencyHistogram();
+        private static final int HEDGE_THREADS = 4;
+        private final ScheduledExecutorService hedgeExecutor;
+        private volatile boolean hedgedReads = false;
+        private final LongAdder hedgedReadCount = new LongAdder();
+        private final LongAdder hedgedReadWins = new LongAdder();
+        
+        public NameNode(File metaDir, int replicationFactor, int blockSize) {
+            this(metaDir, replicationFactor, blockSize, HAState.ACTIVE);
+        }
+        
+        // A STANDBY NameNode needs the metaDir its active writes to
+        public NameNode(File metaDir, int replicationFactor, int blockSize, HAState initialState) {
+            this(metaDir, replicationFactor, blockSize, initialState, "");
+        }
+        
+        public NameNode(File metaDir, int replicationFactor, int blockSize, HAState initialState, String blockPoolId) {
+            if (initialState == HAState.STANDBY && metaDir == null) {
+                throw new IllegalArgumentException("A standby NameNode needs the active's metadata directory");
+            }
+            if (!blockPoolId.isEmpty() && !blockPoolId.matches("[a-z][a-z0-9]*")) {
+                throw new IllegalArgumentException("Invalid block pool ID: " + blockPoolId);
+            }
+            this.haState = initialState;
+            this.blockPoolId = blockPoolId;
+            String poolTag = blockPoolId.isEmpty() ? "" : blockPoolId + ".";
+            this.blockIdPrefix = BLOCK_ID_PREFIX + poolTag;
+            this.contentBlockPrefix = CONTENT_BLOCK_PREFIX + poolTag;
+            this.fileSystem = new ConcurrentHashMap<>();
+            this.dataNodes = new ConcurrentHashMap<>();
+            this.blockLocations = new ConcurrentHashMap<>();
+            this.openGpsSegments = new ConcurrentHashMap<>();
+            this.openSegmentFiles = new ConcurrentHashMap<>();
+            this.replicationFactor = replicationFactor;
+            this.blockSize = blockSize;
+            Arrays.setAll(pathLocks, i -> new Object());
+            this.metaDir = metaDir;
+
+            if (this.metaDir != null && !this.metaDir.exists()) this.metaDir.mkdirs();
+
+            this.ioExecutor = Executors.newFixedThreadPool(16, r -> {
+                Thread t = new Thread(r, "namenode-io");
+                t.setDaemon(true);
+                return t;
+            });
+            ScheduledThreadPoolExecutor hedges = new ScheduledThreadPoolExecutor(HEDGE_THREADS, r -> {
+                Thread t = new Thread(r, "namenode-read");
+                t.setDaemon(true);
+                return t;
+            });
+            hedges.setRemoveOnCancelPolicy(true); // most hedges are cancelled by a prompt primary
+            this.hedgeExecutor = hedges;
+            this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "namenode-maintenance");
+                t.setDaemon(true);
+                return t;
+            });
+            
+            if (this.metaDir != null) {
+                try {
+                    long lastTxId = loadNamespace();
+                    if (haState == HAState.STANDBY) {
+                        this.editTailer = new EditLogTailer(metaDir, lastTxId);
+                    } else {
+                        this.editLog = new EditLog(metaDir, lastTxId);
+                        if (lastCheckpointTxId == 0 && !fileSystem.isEmpty()) {
+                            saveCheckpoint(); // first start after importing legacy .meta files
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("NameNode: Failed to load metadata from " + metaDir.getAbsolutePath(), e);
+                }
+                maintenanceExecutor.scheduleAtFixedRate(whenActive(this::checkpointIfDue), 60, 60, TimeUnit.SECONDS);
+                if (editTailer != null) {
+                    tailTask = maintenanceExecutor.scheduleWithFixedDelay(this::tailEdits, editTailPeriodMillis, 
+                                                                          editTailPeriodMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            this.scrubExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "block-scrubber");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+            scrubExecutor.scheduleWithFixedDelay(whenActive(this::scrubBlocks), scrubIntervalMillis, scrubIntervalMillis, TimeUnit.MILLISECONDS);
+
+            this.replicationMonitor = new ReplicationMonitor(this, 4, 4L * 1024 * 1024); // 4 copies, 4MB/s
+            this.balancer = new Balancer(this, 4, 8L * 1024 * 1024); // 4 moves, 8MB/s
+            maintenanceExecutor.scheduleAtFixedRate(whenActive(this::scanForUnderReplicatedBlocks), 30, 30, TimeUnit.SECONDS);
+            maintenanceExecutor.scheduleWithFixedDelay(whenActive(this::convertColdFiles), 60, 60, TimeUnit.SECONDS);
+            maintenanceExecutor.scheduleWithFixedDelay(whenActive(this::compactDataNodes), 5, 5, TimeUnit.MINUTES);
+            maintenanceExecutor.scheduleWithFixedDelay(whenActive(this::deleteRetiredBlocks), 5, 5, TimeUnit.SECONDS);
+
+            // Seal GPS segments of drivers that stopped reporting
+            maintenanceExecutor.scheduleAtFixedRate(whenActive(this::rollIdleGPSSegments), 30, 30, TimeUnit.SECONDS);
+
+            System.out.println("NameNode initialized (" + haState.name().toLowerCase() + ") with replication factor: " + 
+                             replicationFactor + ", block size: " + blockSize + " bytes");
+            if (this.metaDir != null) System.out.println("NameNode metadata: " + this.metaDir.getAbsolutePath());
+        }
+        
+        public void registerDataNode(DataNode dataNode) {
+            dataNode.setDurability(dataNodeDurability, writeBackMillis);
+            dataNodes.put(dataNode.getNodeId(), dataNode);
+            placementPolicy.refresh(dataNodes.values());
+            System.out.println("DataNode registered: " + dataNode.getNodeId() + 
+                             " at " + dataNode.getAddress() + ":" + dataNode.getPort());
+            
+            processBlockReport(dataNode.getNodeId(), dataNode.getBlockReport());
+        }
+        
+        // The DataNode's report is the source of truth for where replicas live:
+        // replicas the NameNode expected but the node no longer has are dropped,
+        // and reported blocks that belong to no file are remembered as orphans.
+        public void processBlockReport(String nodeId, Map<String, Long> report) {
+            long start = System.nanoTime();
+            int reported = 0, added = 0, stale = 0;
+            List<String> orphans = new ArrayList<>();
+            Predicate<String> inPool = blockPoolFilter;
+            
+            for (Map.Entry<String, Long> entry : report.entrySet()) {
+                if (!inPool.test(entry.getKey())) continue; // another namespace's block
+                reported++;
+                noteBlockId(entry.getKey());
+                String stripedId = stripeCells.get(entry.getKey());
+                if (stripedId != null) {
+                    HDFSBlock striped = blockLocations.get(stripedId);
+                    int index = ErasureCodingPolicy.cellIndex(entry.getKey());
+                    String location = striped != null ? striped.getCellLocations()[index] : null;
+                    if (striped == null) {
+                        orphans.add(entry.getKey());
+                    } else if (striped.getEcPolicy().cellSize(striped.getSize()) != entry.getValue()) {
+                        if (striped.clearCellLocation(index, nodeId)) stale++;
+                    } else if (location == null) {
+                        striped.setCellLocation(index, nodeId);
+                        added++;
+                    } else if (!location.equals(nodeId)) {
+                        orphans.add(entry.getKey()); // superseded by a rebuilt cell
+                    }
+                    continue;
+                }
+                HDFSBlock block = blockLocations.get(entry.getKey());
+                if (block == null) {
+                    orphans.add(entry.getKey());
+                } else if (block.getSize() != entry.getValue() && 
+                           !(entry.getValue() > block.getSize() && isContainerBlock(block.getBlockId()))) {
+                    block.removeReplica(nodeId); // truncated or stale replica
+                    stale++;
+                } else if (!block.getReplicas().contains(nodeId)) {
+                    block.addReplica(nodeId);
+                    added++;
+                }
+            }
+            for (HDFSBlock block : blockLocations.values()) {
+                if (block.isErasureCoded()) {
+                    String[] locations = block.getCellLocations();
+                    for (int i = 0; i < locations.length; i++) {
+                        if (nodeId.equals(locations[i]) && !report.containsKey(ErasureCodingPolicy.cellId(block.getBlockId(), i)) &&
+                            block.clearCellLocation(i, nodeId)) {
+                            stale++;
+                        }
+                    }
+                } else if (block.getReplicas().contains(nodeId) && !report.containsKey(block.getBlockId())) {
+                    block.removeReplica(nodeId);
+                    stale++;
+                }
+            }
+            
+            if (orphans.isEmpty()) {
+                orphanedReplicas.remove(nodeId);
+            } else {
+                orphanedReplicas.put(nodeId, orphans);
+            }
+            System.out.println("NameNode: Block report from " + nodeId + ": " + reported + " blocks, " + 
+                             added + " replicas added, " + stale + " stale, " + orphans.size() + " orphaned (" + 
+                             (System.nanoTime() - start) / 1_000_000 + " ms)");
+        }
+        
+        // ==================== HIGH AVAILABILITY ====================
+        
+        public HAState getHAState() { return haState; }
+        public long getLastFailoverMillis() { return lastFailoverMillis; }
+        
+        // Last txId journaled by an active, or applied by a standby
+        public long getLastTxId() {
+            EditLog log = editLog;
+            if (log != null) return log.getLastTxId();
+            EditLogTailer tailer = editTailer;
+            return tailer != null ? tailer.getLastTxId() : 0;
+        }
+        
+        // An active whose journal failed refuses every write until it is replaced
+        public boolean canAcceptWrites() {
+            EditLog log = editLog;
+            return haState == HAState.ACTIVE && log != null && !log.hasFailed();
+        }
+        
+        // Background work that changes the namespace or the DataNodes runs on the active only
+        private Runnable whenActive(Runnable task) {
+            return () -> {
+                if (haState == HAState.ACTIVE) task.run();
+            };
+        }
+        
+        private void checkActive() {
+            if (haState != HAState.ACTIVE) {
+                throw new IllegalStateException("NameNode is " + haState.name().toLowerCase() + 
+                                                "; writes go to the active NameNode");
+            }
+        }
+        
+        private void tailEdits() {
+            EditLogTailer tailer = editTailer;
+            if (haState != HAState.STANDBY || tailer == null || tailError != null) return;
+            try {
+                tailer.poll(this::applyEdit);
+            } catch (IOException e) {
+                tailError = e.getMessage();
+                System.err.println("NameNode: Standby stopped following the edit log - " + tailError);
+            }
+        }
+        
+        // Stops this NameNode from changing anything: writes are refused, background
+        // work stops and edits not yet synced are dropped. The failover controller
+        // fences the active before promoting the standby, whether it failed or not.
+        public synchronized void fence() {
+            if (haState != HAState.ACTIVE) return;
+            haState = HAState.FENCED;
+            if (editLog != null) {
+                try {
+                    editLog.abort();
+                } catch (IOException e) {
+                    System.err.println("NameNode: Failed to close the edit log while fencing - " + e.getMessage());
+                }
+            }
+            System.out.println("NameNode: Fenced at txId " + (editLog != null ? editLog.getLastTxId() : 0));
+        }
+        
+        // Promotes a standby: applies the edits it has not read yet, starts a journal
+        // segment after the last of them and takes replica locations from fresh
+        // DataNode block reports (the journal does not follow re-replication).
+        // Returns the time taken in milliseconds.
+        public synchronized long transitionToActive() throws IOException {
+            if (haState != HAState.STANDBY) {
+                throw new IllegalStateException("NameNode is " + haState.name().toLowerCase() + ", not standby");
+            }
+            if (tailError != null) {
+                throw new IllegalStateException("Standby missed edits (" + tailError + "); restart it from the latest checkpoint");
+            }
+            long start = System.nanoTime();
+            tailTask.cancel(false);
+            EditLogTailer tailer = editTailer;
+            int caughtUp;
+            try {
+                caughtUp = tailer.poll(this::applyEdit);
+                tailer.finish();
+            } catch (IOException e) {
+                tailError = e.getMessage();
+                throw e;
+            }
+            editLog = new EditLog(metaDir, tailer.getLastTxId());
+            editTailer = null;
+            haState = HAState.ACTIVE;
+            
+            for (DataNode node : dataNodes.values()) {
+                if (node.isActive()) processBlockReport(node.getNodeId(), node.getBlockReport());
+            }
+            lastFailoverMillis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("NameNode: Standby is now active at txId " + editLog.getLastTxId() + " (" + caughtUp + 
+                             " edits caught up, " + fileSystem.size() + " files) in " + lastFailoverMillis + " ms");
+            return lastFailoverMillis;
+        }
+        
+        // ==================== DATANODE FAILURE HANDLING ====================
+        
+        // Takes the DataNode out of service and queues every block it held for re-replication
+        public int markDataNodeDead(String nodeId) {
+            DataNode node = dataNodes.get(nodeId);
+            if (node == null) return 0;
+            node.setActive(false);
+            
+            int queued = 0;
+            for (HDFSBlock block : blockLocations.values()) {
+                if (block.isStoredOn(nodeId)) {
+                    int live = redundancy(block);
+                    if (live < targetRedundancy(block)) {
+                        replicationMonitor.enqueue(block.getBlockId(), live);
+                        queued++;
+                    }
+                }
+            }
+            System.out.println("NameNode: DataNode " + nodeId + " marked dead, " + queued + " blocks queued for re-replication");
+            return queued;
+        }
+        
+        // A returning node re-sends its block report so its replicas count again
+        public void markDataNodeAlive(String nodeId) {
+            DataNode node = dataNodes.get(nodeId);
+            if (node == null) return;
+            node.setActive(true);
+            processBlockReport(nodeId, node.getBlockReport());
+        }
+        
+        private void scanForUnderReplicatedBlocks() {
+            for (HDFSBlock block : blockLocations.values()) {
+                int live = redundancy(block);
+                if (live < targetRedundancy(block)) {
+                    replicationMonitor.enqueue(block.getBlockId(), live);
+                }
+            }
+        }
+        
+        public ReplicationMonitor getReplicationMonitor() {
+            return replicationMonitor;
+        }
+        
+        public Balancer getBalancer() {
+            return balancer;
+        }
+        
+        private void compactDataNodes() {
+            for (DataNode node : getDataNodes()) {
+                if (node.isActive()) node.compactStorage();
+            }
+        }
+        
+        public BlockReconciliation reconcileBlocks() {
+            BlockReconciliation result = new BlockReconciliation();
+            for (HDFSBlock block : blockLocations.values()) {
+                int live = redundancy(block);
+                if (live <= 0) {
+                    result.getMissingBlocks().add(block.getBlockId());
+                } else if (live < targetRedundancy(block)) {
+                    result.getUnderReplicatedBlocks().add(block.getBlockId());
+                }
+            }
+            for (Map.Entry<String, List<String>> entry : orphanedReplicas.entrySet()) {
+                result.getOrphanedReplicas().put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+            lastReconciliation = result;
+            return result;
+        }
+        
+        // Deletes replicas no file refers to. Only safe while no writes are in flight,
+        // since a block being written is not yet attached to its file.
+        public int invalidateOrphanedReplicas() {
+            int deleted = 0;
+            for (Map.Entry<String, List<String>> entry : orphanedReplicas.entrySet()) {
+                DataNode node = dataNodes.get(entry.getKey());
+                if (node == null) continue;
+                for (String blockId : entry.getValue()) {
+                    if (blockLocations.containsKey(blockId)) continue;
+                    String stripedId = stripeCells.get(blockId);
+                    if (stripedId != null && blockLocations.containsKey(stripedId) &&
+                        node.getNodeId().equals(blockLocations.get(stripedId).getCellLocations()[ErasureCodingPolicy.cellIndex(blockId)])) {
+                        continue; // cell adopted since the report
+                    }
+                    if (node.deleteBlock(blockId)) deleted++;
+                }
+            }
+            orphanedReplicas.clear();
+            return deleted;
+        }
+        
+        private Object pathLock(String path) {
+            int hash = path.hashCode();
+            return pathLocks[(hash ^ (hash >>> 16)) & (PATH_LOCK_STRIPES - 1)];
+        }
+        
+        // Atomic create-if-absent. A claim is held from the existence check until
+        // the new file's edit is journaled, so only one writer of a path succeeds
+        // and a delete cannot be journaled ahead of the create it follows.
+        private boolean claimForCreate(String path) {
+            checkActive();
+            synchronized (pathLock(path)) {
+                if (fileSystem.containsKey(path) || packedRecords.containsKey(path)) {
+                    System.out.println("File already exists: " + path);
+                    return false;
+                }
+                if (!busyPaths.add(path)) {
+                    System.out.println("File is being created: " + path);
+                    return false;
+                }
+                return true;
+            }
+        }
+        
+        // Claims an existing path, for a delete or an append
+        private boolean claimExisting(String path) {
+            checkActive();
+            synchronized (pathLock(path)) {
+                if (!fileSystem.containsKey(path) && !packedRecords.containsKey(path)) return false;
+                return busyPaths.add(path);
+            }
+        }
+        
+        // Claims a path whether or not it exists, for an overwrite
+        private boolean claimForWrite(String path) {
+            checkActive();
+            if (!busyPaths.add(path)) {
+                System.out.println("File is being written: " + path);
+                return false;
+            }
+            return true;
+        }
+        
+        private void releasePath(String path) {
+            busyPaths.remove(path);
+        }
+        
+        public boolean writeFile(String fileName, byte[] data, String owner) {
+            if (!claimForCreate(fileName)) return false;
+            try {
+                return writeClaimedFile(fileName, data, owner);
+            } finally {
+                releasePath(fileName);
+            }
+        }
+        
+        private boolean writeClaimedFile(String fileName, byte[] data, String owner) {
+            FileMetadata metadata = new FileMetadata(fileName, data.length, owner);
+            metadata.setCodec(getCompressionPolicy(fileName));
+            if (!storeFileBlocks(metadata, data, null)) return false;
+            
+            if (metadata.getBlockIds().isEmpty()) {
+                System.err.println("NameNode: No blocks were stored for " + fileName + "; write failed");
+                return false;
+            }
+
+            putFile(metadata);
+            // Journal the new file before acknowledging the write
+            boolean journaled = logEdit(EditLog.OP_ADD_FILE, encodeFile(metadata));
+            if (!journaled) removeFileEntry(fileName);
+            unpinBlocks(metadata); // the file's own references hold them now
+            if (!journaled) {
+                deleteUnsharedBlocks(metadata.getBlockIds());
+                System.err.println("NameNode: Could not journal " + fileName + "; write failed");
+                return false;
+            }
+            System.out.println("File written successfully: " + fileName + " (" + data.length + " bytes)");
+            return true;
+        }
+        
+        // Cuts data into blocks, stores them and adds them to metadata. Blocks of
+        // previous (the generation being overwritten) that hold the same bytes at
+        // the same position are kept rather than rewritten.
+        private boolean storeFileBlocks(FileMetadata metadata, byte[] data, FileMetadata previous) {
+            boolean dedup = isDeduplicated(metadata.getFileName());
+            List<HDFSBlock> blocks = new ArrayList<>();
+            List<String> blockIds = dedup ? createSharedBlocks(data, metadata.getCodec(), blocks)
+                                          : createBlocks(data, metadata.getCodec(), previous, blocks);
+            if (!storeBlocks(metadata.getFileName(), blocks, blockIds, dedup)) return false;
+            for (String blockId : blockIds) {
+                metadata.addBlock(blockId);
+            }
+            return true;
+        }
+        
+        // Distributes blocks to DataNodes, keeping up to maxBlocksInFlight blocks of
+        // the file in flight while their replicas are written in parallel
+        private boolean storeBlocks(String fileName, List<HDFSBlock> blocks, List<String> blockIds, boolean dedup) {
+            Semaphore inFlight = blocksInFlight;
+            List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+            for (HDFSBlock block : blocks) {
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pending.forEach(CompletableFuture::join);
+                    discardBlocks(blocks, blockIds, dedup);
+                    return false;
+                }
+                pending.add(storeBlockAsync(block).whenComplete((ok, error) -> inFlight.release()));
+            }
+            
+            boolean allStored = true;
+            for (CompletableFuture<Boolean> future : pending) {
+                allStored &= future.join();
+            }
+            if (!allStored) {
+                System.err.println("NameNode: Write failed for " + fileName + "; discarding stored blocks");
+                discardBlocks(blocks, blockIds, dedup);
+                return false;
+            }
+            return true;
+        }
+        
+        // Content-addressed blocks stay pinned from createSharedBlocks until their file is in the namespace
+        private void unpinBlocks(FileMetadata metadata) {
+            for (String blockId : metadata.getBlockIds()) {
+                if (isContentAddressed(blockId)) releaseBlock(blockId);
+            }
+        }
+        
+        // ==================== APPEND AND OVERWRITE ====================
+        
+        // Replaces the file's contents, or creates it. Readers see either the old or
+        // the new generation: the new blocks are stored before the namespace entry
+        // is swapped, and the old ones are only deleted after a grace period.
+        // A packed record becomes a regular file.
+        public boolean overwriteFile(String fileName, byte[] data, String owner) {
+            if (isOpenForAppends(fileName)) return false;
+            if (!claimForWrite(fileName)) return false;
+            try {
+                FileMetadata previous = fileSystem.get(fileName);
+                if (previous == null && !packedRecords.containsKey(fileName)) {
+                    return writeClaimedFile(fileName, data, owner);
+                }
+                return replaceClaimedFile(fileName, data, owner, previous);
+            } finally {
+                releasePath(fileName);
+            }
+        }
+        
+        // Small-file counterpart of overwriteFile: new or packed contents up to a
+        // block are packed into the directory's open container. The old record's
+        // bytes stay behind in their container as dead space, so this suits files
+        // rewritten now and then, not constantly. Regular files, and data larger
+        // than a block, are overwritten as regular files.
+        public boolean overwriteSmallFile(String fileName, byte[] data, String owner) {
+            if (isOpenForAppends(fileName)) return false;
+            if (!claimForWrite(fileName)) return false;
+            try {
+                FileMetadata previous = fileSystem.get(fileName);
+                if (previous == null && data.length > 0 && data.length <= blockSize) {
+                    return packClaimedFile(fileName, data);
+                }
+                if (previous == null && !packedRecords.containsKey(fileName)) {
+                    return writeClaimedFile(fileName, data, owner);
+                }
+                return replaceClaimedFile(fileName, data, owner, previous);
+            } finally {
+                releasePath(fileName);
+            }
+        }
+        
+        // Appends to an existing file: the partial last block is rewritten with the
+        // new bytes added and the rest goes into new blocks; full blocks are left
+        // alone. A packed record is re-packed, or becomes a regular file once it
+        // outgrows a block.
+        public boolean appendFile(String fileName, byte[] data) {
+            if (isOpenForAppends(fileName)) return false;
+            if (!claimExisting(fileName)) {
+                System.out.println("Cannot append to " + fileName + ": not found or busy");
+                return false;
+            }
+            try {
+                FileMetadata metadata = fileSystem.get(fileName);
+                if (metadata != null) return appendClaimedFile(metadata, data);
+                
+                PackedRecord record = packedRecords.get(fileName);
+                byte[] current = record != null ? readPacked(record) : null;
+                if (current == null) return false;
+                byte[] combined = Arrays.copyOf(current, current.length + data.length);
+                System.arraycopy(data, 0, combined, current.length, data.length);
+                if (combined.length <= blockSize) return packClaimedFile(fileName, combined);
+                FileMetadata container = fileSystem.get(record.container);
+                return replaceClaimedFile(fileName, combined, container != null ? container.getOwner() : "uber_system", null);
+            } finally {
+                releasePath(fileName);
+            }
+        }
+        
+        // GPS segments and small-file containers are appended to by the NameNode
+        // itself, and the GPS index points at the blocks of sealed segments
+        private boolean isOpenForAppends(String fileName) {
+            if (fileName.startsWith(CONTAINER_ROOT + "/") || openSegmentFiles.containsKey(fileName) 
+                    || gpsSegmentKey(fileName) != null) {
+                System.out.println("File is open for appends by the NameNode: " + fileName);
+                return true;
+            }
+            return false;
+        }
+        
+        // previous is null when a packed record is replaced
+        private boolean replaceClaimedFile(String fileName, byte[] data, String owner, FileMetadata previous) {
+            FileMetadata metadata = new FileMetadata(fileName, data.length, owner);
+            metadata.setCodec(getCompressionPolicy(fileName));
+            metadata.setGeneration(previous != null ? previous.getGeneration() + 1 : 1);
+            if (!storeFileBlocks(metadata, data, previous)) return false;
+            if (metadata.getBlockIds().isEmpty()) {
+                System.err.println("NameNode: No blocks were stored for " + fileName + "; overwrite failed");
+                return false;
+            }
+            
+            PackedRecord packed = previous == null ? packedRecords.get(fileName) : null;
+            commitGeneration(metadata, previous);
+            if (!logEdit(EditLog.OP_REPLACE_FILE, encodeReplace(metadata))) {
+                rollbackGeneration(metadata, previous, packed);
+                System.err.println("NameNode: Could not journal " + fileName + "; overwrite failed");
+                return false;
+            }
+            System.out.println("File overwritten successfully: " + fileName + " (" + data.length + 
+                             " bytes, generation " + metadata.getGeneration() + ")");
+            return true;
+        }
+        
+        private boolean appendClaimedFile(FileMetadata metadata, byte[] data) {
+            String fileName = metadata.getFileName();
+            CompressionCodec codec = metadata.getCodec();
+            List<String> blockIds = metadata.getBlockIds();
+            int kept = blockIds.size();
+            byte[] appended = data;
+            long tailLength = kept == 0 ? blockSize : metadata.getFileSize() - (long) (kept - 1) * blockSize;
+            if (tailLength < blockSize) {
+                String tailId = blockIds.get(kept - 1);
+                ByteBuffer tail;
+                try {
+                    tail = readBlockData(tailId, false, codec);
+                } catch (IOException e) {
+                    System.err.println("Error decoding block: " + tailId + " - " + e.getMessage());
+                    return false;
+                }
+                if (tail == null) {
+                    System.err.println("Cannot append to " + fileName + ": no live replica of its last block " + tailId);
+                    return false;
+                }
+                if (tail.remaining() < blockSize) {
+                    kept--;
+                    appended = new byte[tail.remaining() + data.length];
+                    int tailBytes = tail.remaining();
+                    tail.get(appended, 0, tailBytes);
+                    System.arraycopy(data, 0, appended, tailBytes, data.length);
+                }
+            }
+            
+            FileMetadata next = new FileMetadata(fileName, metadata.getFileSize() + data.length, metadata.getOwner());
+            next.setCodec(codec);
+            next.setGeneration(metadata.getGeneration() + 1);
+            for (String blockId : blockIds.subList(0, kept)) next.addBlock(blockId);
+            if (!storeFileBlocks(next, appended, null)) return false;
+            
+            commitGeneration(next, metadata);
+            if (!logEdit(EditLog.OP_APPEND_FILE, encodeAppend(next, kept))) {
+                rollbackGeneration(next, metadata, null);
+                System.err.println("NameNode: Could not journal " + fileName + "; append failed");
+                return false;
+            }
+            System.out.println("File appended successfully: " + fileName + " (+" + data.length + " bytes, generation " + 
+                             next.getGeneration() + ")");
+            return true;
+        }
+        
+        // Swaps in the new generation of a file and retires the blocks it dropped
+        private void commitGeneration(FileMetadata metadata, FileMetadata previous) {
+            String fileName = metadata.getFileName();
+            synchronized (pathLock(fileName)) {
+                putFile(metadata);
+                if (previous == null) removePackedRecord(fileName);
+            }
+            unpinBlocks(metadata);
+            if (previous == null) return;
+            Set<String> kept = new HashSet<>(metadata.getBlockIds());
+            long now = System.currentTimeMillis();
+            for (String blockId : previous.getBlockIds()) {
+                if (!kept.contains(blockId)) retiredBlocks.put(blockId, now);
+            }
+        }
+        
+        // The new generation could not be journaled: the previous one, or the packed
+        // record it replaced, comes back and the blocks only the new one used go
+        private void rollbackGeneration(FileMetadata metadata, FileMetadata previous, PackedRecord packed) {
+            String fileName = metadata.getFileName();
+            synchronized (pathLock(fileName)) {
+                if (previous != null) {
+                    putFile(previous);
+                } else {
+                    removeFileEntry(fileName);
+                    if (packed != null) addPackedRecord(fileName, packed);
+                }
+            }
+            Set<String> restored = previous != null ? new HashSet<>(previous.getBlockIds()) : Collections.emptySet();
+            retiredBlocks.keySet().removeAll(restored);
+            List<String> added = new ArrayList<>();
+            for (String blockId : metadata.getBlockIds()) {
+                if (!restored.contains(blockId)) added.add(blockId);
+            }
+            deleteUnsharedBlocks(added);
+        }
+        
+        // Replay: blocks a new generation dropped are retired as they were on the
+        // active, so they are deleted once this NameNode is active, unless the
+        // journal says the active already deleted them
+        private void retireDroppedBlocks(FileMetadata previous, FileMetadata metadata) {
+            Set<String> kept = new HashSet<>(metadata.getBlockIds());
+            long now = System.currentTimeMillis();
+            for (String blockId : previous.getBlockIds()) {
+                if (!kept.contains(blockId) && blockLocations.containsKey(blockId)) retiredBlocks.putIfAbsent(blockId, now);
+            }
+        }
+        
+        private void deleteRetiredBlocks() {
+            deleteRetiredBlocks(retiredBlockGraceMillis);
+        }
+        
+        // The deletions are journaled so a standby, or a replay, stops tracking the
+        // blocks too; if that fails, replay retires them again and they are deleted twice
+        private int deleteRetiredBlocks(long minAgeMillis) {
+            long cutoff = System.currentTimeMillis() - minAgeMillis;
+            List<String> deleted = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : retiredBlocks.entrySet()) {
+                if (entry.getValue() > cutoff || !retiredBlocks.remove(entry.getKey(), entry.getValue())) continue;
+                String blockId = entry.getKey();
+                if (isContentAddressed(blockId)) {
+                    if (deleteSharedBlock(blockId)) deleted.add(blockId); // unless another file still shares it
+                    continue;
+                }
+                HDFSBlock block = untrackBlock(blockId);
+                if (block != null) {
+                    deleteStoredCopies(block);
+                    deleted.add(blockId);
+                }
+            }
+            if (!deleted.isEmpty()) logEdit(EditLog.OP_DELETE_BLOCKS, encodeBlockIds(deleted));
+            return deleted.size();
+        }
+        
+        public void setRetiredBlockGraceMillis(long graceMillis) {
+            this.retiredBlockGraceMillis = graceMillis;
+        }
+        
+        public int getRetiredBlockCount() {
+            return retiredBlocks.size();
+        }
+        
+        // True if the block already holds exactly data[offset, offset + length)
+        private boolean hasContents(String blockId, CompressionCodec codec, byte[] data, int offset, int length) {
+            try {
+                ByteBuffer stored = readBlockData(blockId, false, codec);
+                return stored != null && stored.equals(ByteBuffer.wrap(data, offset, length));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        
+        // Undoes a failed write: drops the write's pins and deletes the blocks it
+        // stored, unless another file has come to share them in the meantime
+        private void discardBlocks(List<HDFSBlock> stored, List<String> blockIds, boolean dedup) {
+            if (dedup) {
+                for (String blockId : blockIds) releaseBlock(blockId);
+            }
+            for (HDFSBlock block : stored) {
+                synchronized (blockRefs) {
+                    if (blockRefs.containsKey(block.getBlockId())) continue;
+                    blockLocations.remove(block.getBlockId());
+                    deletingBlocks.add(block.getBlockId());
+                }
+                try {
+                    for (String replica : block.getReplicas()) {
+                        DataNode node = dataNodes.get(replica);
+                        if (node != null) node.deleteBlock(block.getBlockId());
+                    }
+                } finally {
+                    finishSharedDelete(block.getBlockId());
+                }
+            }
+        }
+        
+        public byte[] readFile(String fileName) {
+            FileMetadata metadata = fileSystem.get(fileName);
+            if (metadata == null) {
+                PackedRecord record = packedRecords.get(fileName);
+                if (record != null) return readPacked(record);
+                System.out.println("File not found: " + fileName);
+                return null;
+            }
+            
+            // Gather read-only block views first so the result is allocated exactly once
+            List<ByteBuffer> buffers = new ArrayList<>();
+            long totalSize = 0;
+            for (String blockId : metadata.getBlockIds()) {
+                ByteBuffer data;
+                String error = null;
+                try {
+                    data = readBlockData(blockId, false, metadata.getCodec());
+                    if (data == null) error = "Error reading block: " + blockId + " (no live replica)";
+                } catch (IOException e) {
+                    data = null;
+                    error = "Error decoding block: " + blockId + " - " + e.getMessage();
+                }
+                if (error != null) {
+                    // An append or overwrite replaced the file and its old blocks are gone: read the new generation
+                    FileMetadata current = fileSystem.get(fileName);
+                    if (current != null && current != metadata) return readFile(fileName);
+                    System.err.println(error);
+                    return null;
+                }
+                buffers.add(data);
+                totalSize += data.remaining();
+            }
+            
+            // Open GPS segments still hold their newest points in memory
+            GPSSegment openSegment = openSegmentFiles.get(fileName);
+            if (openSegment != null) {
+                ByteBuffer tail = ByteBuffer.wrap(openSegment.getTailSnapshot());
+                buffers.add(tail);
+                totalSize += tail.remaining();
+            }
+            if (totalSize > Integer.MAX_VALUE - 8) {
+                System.err.println("File too large for readFile, use openFile instead: " + fileName);
+                return null;
+            }
+            
+            byte[] result = new byte[(int) totalSize];
+            int offset = 0;
+            for (ByteBuffer buffer : buffers) {
+                int length = buffer.remaining();
+                buffer.get(result, offset, length);
+                offset += length;
+            }
+            
+            System.out.println("File read successfully: " + fileName);
+            return result;
+        }
+        
+        // ==================== STREAMING READS ====================
+        
+        // Streams the file block by block; blocks are memory-mapped (or served from
+        // the DataNode cache), so the file is never materialized on the heap.
+        public InputStream openFile(String fileName) throws IOException {
+            return Channels.newInputStream(openFileChannel(fileName));
+        }
+        
+        public ReadableByteChannel openFileChannel(String fileName) throws IOException {
+            FileMetadata metadata = fileSystem.get(fileName);
+            if (metadata == null) {
+                return Channels.newChannel(new ByteArrayInputStream(readPackedOrThrow(fileName)));
+            }
+            GPSSegment openSegment = openSegmentFiles.get(fileName);
+            byte[] tail = openSegment != null ? openSegment.getTailSnapshot() : new byte[0];
+            return new BlockSequenceChannel(this, metadata.getBlockIds(), metadata.getCodec(), tail);
+        }
+        
+        // Sends the file to target with FileChannel.transferTo, letting the OS move
+        // bytes from the DataNode's block files to a socket without touching the heap.
+        public long transferFile(String fileName, WritableByteChannel target) throws IOException {
+            FileMetadata metadata = fileSystem.get(fileName);
+            if (metadata == null) {
+                ByteBuffer record = ByteBuffer.wrap(readPackedOrThrow(fileName));
+                long transferred = 0;
+                while (record.hasRemaining()) transferred += target.write(record);
+                return transferred;
+            }
+            
+            long transferred = 0;
+            for (String blockId : metadata.getBlockIds()) {
+                if (metadata.getCodec() == null) {
+                    transferred += transferBlock(blockId, target);
+                    continue;
+                }
+                // Compressed blocks have to pass through the heap to be decoded
+                ByteBuffer data = readBlockData(blockId, false, metadata.getCodec());
+                if (data == null) throw new IOException("No live replica for block " + blockId);
+                while (data.hasRemaining()) transferred += target.write(data);
+            }
+            GPSSegment openSegment = openSegmentFiles.get(fileName);
+            if (openSegment != null) {
+                ByteBuffer tail = ByteBuffer.wrap(openSegment.getTailSnapshot());
+                while (tail.hasRemaining()) transferred += target.write(tail);
+            }
+            return transferred;
+        }
+        
+        private long transferBlock(String blockId, WritableByteChannel target) throws IOException {
+            HDFSBlock block = blockLocations.get(blockId);
+            if (block != null && block.isErasureCoded()) {
+                ByteBuffer data = readStriped(block);
+                if (data == null) throw new IOException("Too few cells left to read block " + blockId);
+                long written = 0;
+                while (data.hasRemaining()) written += target.write(data);
+                return written;
+            }
+            for (DataNode node : replicaSelector.order(liveReplicas(blockId))) {
+                try {
+                    return node.transferBlockTo(blockId, target);
+                } catch (ChecksumException e) {
+                    reportCorruptReplica(blockId, node.getNodeId(), e.getMessage());
+                } catch (FileNotFoundException e) {
+                    // replica vanished, try the next one
+                }
+            }
+            throw new IOException("No live replica for block " + blockId);
+        }
+        
+        // Returns a read-only view of a block from the best live replica that has it.
+        // mapped=true bypasses the DataNode cache for large sequential scans.
+        // A replica failing its checksum is reported and the next one is tried.
+        ByteBuffer readBlockBuffer(String blockId, boolean mapped) {
+            HDFSBlock block = blockLocations.get(blockId);
+            if (block != null && block.isErasureCoded()) return readStriped(block);
+            
+            long start = System.nanoTime();
+            List<DataNode> replicas = replicaSelector.order(liveReplicas(blockId));
+            ByteBuffer data = null;
+            if (hedgedReads && replicas.size() > 1) {
+                data = readHedged(blockId, replicas, mapped);
+            } else {
+                for (DataNode node : replicas) {
+                    data = readReplica(node, blockId, mapped);
+                    if (data != null) break;
+                }
+            }
+            if (data != null) readLatency.record(System.nanoTime() - start);
+            return data;
+        }
+        
+        private ByteBuffer readReplica(DataNode node, String blockId, boolean mapped) {
+            long start = replicaSelector.begin(node);
+            ByteBuffer data = null;
+            try {
+                data = mapped ? node.mapBlock(blockId) : node.readBlock(blockId);
+            } catch (ChecksumException e) {
+                reportCorruptReplica(blockId, node.getNodeId(), e.getMessage());
+            } finally {
+                replicaSelector.finish(node, start, data != null);
+            }
+            return data;
+        }
+        
+        // The primary read runs on the calling thread. If it has not answered by the
+        // hedge deadline, the next replica is read on the hedge pool, so a primary that
+        // then fails finds the fallback already under way. A stalled primary still holds
+        // the caller: a blocking store read cannot be abandoned without closing its channel
+        private ByteBuffer readHedged(String blockId, List<DataNode> replicas, boolean mapped) {
+            CompletableFuture<ByteBuffer> hedge = new CompletableFuture<>();
+            ScheduledFuture<?> timer;
+            try {
+                timer = hedgeExecutor.schedule(() -> {
+                    hedgedReadCount.increment();
+                    hedge.complete(readReplica(replicas.get(1), blockId, mapped));
+                }, replicaSelector.getHedgeDelayMicros(), TimeUnit.MICROSECONDS);
+            } catch (RejectedExecutionException e) {
+                timer = null; // shutting down
+            }
+            
+            ByteBuffer data = readReplica(replicas.get(0), blockId, mapped);
+            int next = 1;
+            if (timer != null && !timer.cancel(false)) {
+                // Losers run to completion; only a failed primary waits for the hedge
+                if (data != null) return data;
+                data = hedge.join();
+                if (data != null) {
+                    hedgedReadWins.increment();
+                    return data;
+                }
+                next = 2;
+            }
+            for (int i = next; data == null && i < replicas.size(); i++) {
+                data = readReplica(replicas.get(i), blockId, mapped);
+            }
+            return data;
+        }
+        
+        // Hedging costs a second read for the slowest reads in exchange for a shorter tail
+        public void setHedgedReads(boolean enabled, double percentile) {
+            replicaSelector.setHedgePercentile(percentile);
+            this.hedgedReads = enabled;
+        }
+        
+        public ReplicaSelector getReplicaSelector() { return replicaSelector; }
+        
+        public LatencyHistogram getReadLatency() { return readLatency; }
+        
+        // ==================== CORRUPT REPLICAS ====================
+        
+        // Drops the replica from the block's locations and deletes it, unless it is
+        // the last copy (a damaged copy is still better than none for manual recovery)
+        public void reportCorruptReplica(String blockId, String nodeId, String reason) {
+            System.err.println("NameNode: Corrupt replica reported - " + reason);
+            corruptReplicaCount.increment();
+            String stripedId = stripeCells.get(blockId);
+            if (stripedId != null) {
+                // A damaged cell is useless for decoding; drop it and rebuild from the others
+                HDFSBlock striped = blockLocations.get(stripedId);
+                if (striped == null) return;
+                if (striped.clearCellLocation(ErasureCodingPolicy.cellIndex(blockId), nodeId)) {
+                    DataNode node = dataNodes.get(nodeId);
+                    if (node != null) node.deleteBlock(blockId);
+                }
+                replicationMonitor.enqueue(stripedId, redundancy(striped));
+                return;
+            }
+            HDFSBlock block = blockLocations.get(blockId);
+            if (block == null) return;
+            
+            boolean otherCopies = block.getReplicas().stream().anyMatch(r -> !r.equals(nodeId));
+            if (!otherCopies) {
+                System.err.println("NameNode: Keeping last replica of " + blockId + " on " + nodeId + " despite corruption");
+                return;
+            }
+            block.removeReplica(nodeId);
+            DataNode node = dataNodes.get(nodeId);
+            if (node != null) node.deleteBlock(blockId);
+            replicationMonitor.enqueue(blockId, liveReplicas(blockId).size());
+        }
+        
+        public ScrubReport scrubBlocks() {
+            ScrubReport report = new ScrubReport();
+            for (DataNode node : getDataNodes()) {
+                if (!node.isActive()) continue;
+                for (String blockId : node.getStoredBlockIds()) {
+                    try {
+                        long bytes = node.verifyBlock(blockId);
+                        report.blocksScanned++;
+                        report.bytesScanned += bytes;
+                        scrubThrottler.throttle(bytes);
+                    } catch (ChecksumException e) {
+                        report.blocksScanned++;
+                        report.corruptReplicas.add(blockId + "@" + node.getNodeId());
+                        reportCorruptReplica(blockId, node.getNodeId(), e.getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        report.finishedAt = System.currentTimeMillis();
+                        return report;
+                    } catch (IOException e) {
+                        // deleted while the scan was running
+                    }
+                }
+            }
+            report.finishedAt = System.currentTimeMillis();
+            lastScrubReport = report;
+            System.out.println("NameNode: Block scrub finished - " + report);
+            return report;
+        }
+        
+        public ScrubReport getLastScrubReport() { return lastScrubReport; }
+        
+        public void setScrubRate(long bytesPerSecond) {
+            scrubThrottler.setBytesPerSecond(bytesPerSecond);
+        }
+        
+        private List<DataNode> liveReplicas(String blockId) {
+            HDFSBlock block = blockLocations.get(blockId);
+            if (block == null) return Collections.emptyList();
+            
+            List<DataNode> live = new ArrayList<>();
+            for (String replica : block.getReplicas()) {
+                DataNode node = dataNodes.get(replica);
+                if (node != null && node.isActive()) live.add(node);
+            }
+            return live;
+        }
+        
+        // Replication-equivalent redundancy: live replicas, or for a striped block
+        // live cells - k + 1, so RS(2,1) at full strength counts like 2 replicas
+        // and 0 means the block can no longer be read
+        private int redundancy(HDFSBlock block) {
+            if (!block.isErasureCoded()) return liveReplicas(block.getBlockId()).size();
+            int live = 0;
+            for (String location : block.getCellLocations()) {
+                DataNode node = location != null ? dataNodes.get(location) : null;
+                if (node != null && node.isActive()) live++;
+            }
+            return Math.max(0, live - block.getEcPolicy().getDataUnits() + 1);
+        }
+        
+        private int targetRedundancy(HDFSBlock block) {
+            return block.isErasureCoded() ? block.getEcPolicy().getParityUnits() + 1 : replicationFactor;
+        }
+        
+        private void trackBlock(HDFSBlock block) {
+            noteBlockId(block.getBlockId());
+            blockLocations.put(block.getBlockId(), block);
+            if (block.isErasureCoded()) {
+                for (int i = 0; i < block.getEcPolicy().getTotalUnits(); i++) {
+                    stripeCells.put(ErasureCodingPolicy.cellId(block.getBlockId(), i), block.getBlockId());
+                }
+            }
+        }
+        
+        private HDFSBlock untrackBlock(String blockId) {
+            HDFSBlock block = blockLocations.remove(blockId);
+            if (block != null && block.isErasureCoded()) {
+                for (int i = 0; i < block.getEcPolicy().getTotalUnits(); i++) {
+                    stripeCells.remove(ErasureCodingPolicy.cellId(blockId, i));
+                }
+            }
+            return block;
+        }
+        
+        private void deleteStoredCopies(HDFSBlock block) {
+            if (block.isErasureCoded()) {
+                String[] locations = block.getCellLocations();
+                for (int i = 0; i < locations.length; i++) {
+                    DataNode node = locations[i] != null ? dataNodes.get(locations[i]) : null;
+                    if (node != null) node.deleteBlock(ErasureCodingPolicy.cellId(block.getBlockId(), i));
+                }
+                return;
+            }
+            for (String replica : block.getReplicas()) {
+                DataNode node = dataNodes.get(replica);
+                if (node != null) {
+                    node.deleteBlock(block.getBlockId());
+                }
+            }
+        }
+        
+        // ==================== BLOCK COMPRESSION ====================
+        
+        // New files under dir (and its subdirectories) get their blocks encoded with
+        // codec; null stores them raw. Existing files keep the codec they were written with.
+        public void setCompressionPolicy(String dir, CompressionCodec codec) {
+            if (codec == null) {
+                compressionPolicies.remove(dir);
+            } else {
+                compressionPolicies.put(dir, codec);
+            }
+            System.out.println("NameNode: Compression policy for " + dir + " set to " + (codec != null ? codec.getName() : "none"));
+        }
+        
+        public CompressionCodec getCompressionPolicy(String path) {
+            return nearestPolicy(compressionPolicies, path);
+        }
+        
+        private CompressionStats statsFor(CompressionCodec codec) {
+            return compressionStats.computeIfAbsent(codec.getName(), name -> new CompressionStats());
+        }
+        
+        private static final int ENCODED_HEADER_BYTES = 5;
+        
+        // Mode byte, raw length, payload; blocks that do not shrink are stored as-is
+        private byte[] encodeBlockData(CompressionCodec codec, byte[] raw) {
+            if (codec == null) return raw;
+            long start = System.nanoTime();
+            byte[] compressed = codec.compress(raw);
+            byte[] payload = compressed != null ? compressed : raw;
+            byte[] encoded = ByteBuffer.allocate(ENCODED_HEADER_BYTES + payload.length)
+                .put((byte) (compressed != null ? 1 : 0)).putInt(raw.length).put(payload).array();
+            
+            CompressionStats stats = statsFor(codec);
+            stats.compressNanos.add(System.nanoTime() - start);
+            stats.blocks.increment();
+            stats.rawBytes.add(raw.length);
+            stats.storedBytes.add(encoded.length);
+            return encoded;
+        }
+        
+        // The partial last block of a compressed container is kept as-is (mode 2,
+        // raw length unused) so records can be appended to it; it is compressed
+        // once, when it fills
+        private static byte[] encodeGrowingBlock(byte[] raw) {
+            return ByteBuffer.allocate(ENCODED_HEADER_BYTES + raw.length).put((byte) 2).putInt(0).put(raw).array();
+        }
+        
+        private ByteBuffer decodeBlockData(CompressionCodec codec, ByteBuffer stored) throws IOException {
+            if (codec == null) return stored;
+            ByteBuffer in = stored.duplicate();
+            if (in.remaining() < ENCODED_HEADER_BYTES) throw new IOException("Encoded block too short: " + in.remaining() + " bytes");
+            byte mode = in.get();
+            int rawLength = in.getInt();
+            if (mode == 0 || mode == 2) return in.slice().asReadOnlyBuffer();
+            if (mode != 1) throw new IOException("Unknown block encoding " + mode);
+            // A damaged header must not size the buffer: no block holds more than blockSize raw bytes
+            if (rawLength < 0 || rawLength > blockSize) {
+                throw new IOException("Encoded block claims " + rawLength + " raw bytes, block size is " + blockSize);
+            }
+            
+            long start = System.nanoTime();
+            byte[] raw = new byte[rawLength];
+            codec.decompress(in, raw);
+            CompressionStats stats = statsFor(codec);
+            stats.decompressNanos.add(System.nanoTime() - start);
+            stats.decompressedBytes.add(rawLength);
+            return ByteBuffer.wrap(raw).asReadOnlyBuffer();
+        }
+        
+        // A file's block as the application wrote it, or null if no replica is readable
+        ByteBuffer readBlockData(String blockId, boolean mapped, CompressionCodec codec) throws IOException {
+            ByteBuffer stored = readBlockBuffer(blockId, mapped);
+            return stored != null ? decodeBlockData(codec, stored) : null;
+        }
+        
+        public Map<String, CompressionStats> getCompressionStats() {
+            return new TreeMap<>(compressionStats);
+        }
+        
+        // ==================== BLOCK DEDUPLICATION ====================
+        
+        // New files under dir (and its subdirectories) are cut into content-addressed
+        // blocks, so chunks already stored by an earlier file are referenced, not rewritten.
+        // Disabling a subdirectory overrides an enabled parent.
+        public void setDeduplication(String dir, boolean enabled) {
+            dedupPolicies.put(dir, enabled);
+            System.out.println("NameNode: Deduplication for " + dir + " " + (enabled ? "enabled" : "disabled"));
+        }
+        
+        public boolean isDeduplicated(String path) {
+            return Boolean.TRUE.equals(nearestPolicy(dedupPolicies, path));
+        }
+        
+        private static final String CONTENT_BLOCK_PREFIX = "cas_";
+        private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        
+        // The codec is part of the identity, since it decides the bytes on disk
+        static String contentBlockId(String prefix, CompressionCodec codec, byte[] raw, int offset, int length) {
+            MessageDigest digest = SHA256.get();
+            if (codec != null) digest.update(codec.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(raw, offset, length);
+            byte[] hash = digest.digest();
+            StringBuilder id = new StringBuilder(prefix.length() + 32).append(prefix);
+            for (int i = 0; i < 16; i++) {
+                id.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return id.toString();
+        }
+        
+        static boolean isContentAddressed(String blockId) {
+            return blockId.startsWith(CONTENT_BLOCK_PREFIX);
+        }
+        
+        // Cuts data into content-addressed blocks and pins each one until the file
+        // holds its own reference. Returns the block IDs in file order; only blocks
+        // with no live copy are encoded and added to toStore.
+        // Chunks start at fixed multiples of blockSize, so only aligned repeats are
+        // found: identical files, or a file that extends another. A byte inserted
+        // near the start shifts every later chunk and nothing after it is shared;
+        // finding those would take content-defined (variable-size) chunks.
+        private List<String> createSharedBlocks(byte[] data, CompressionCodec codec, List<HDFSBlock> toStore) {
+            List<String> blockIds = new ArrayList<>();
+            Set<String> cut = new HashSet<>();
+            for (int offset = 0; offset < data.length; offset += blockSize) {
+                int length = Math.min(blockSize, data.length - offset);
+                String blockId = contentBlockId(contentBlockPrefix, codec, data, offset, length);
+                HDFSBlock existing;
+                synchronized (blockRefs) {
+                    awaitSharedDelete(blockId);
+                    retainBlock(blockId);
+                    existing = blockLocations.get(blockId);
+                }
+                blockIds.add(blockId);
+                
+                if (!cut.add(blockId) || existing != null && redundancy(existing) > 0) {
+                    dedupBlocksReused.increment();
+                    dedupBytesSaved.add(length);
+                    continue;
+                }
+                byte[] blockData = Arrays.copyOfRange(data, offset, offset + length);
+                toStore.add(new HDFSBlock(blockId, encodeBlockData(codec, blockData)));
+            }
+            return blockIds;
+        }
+        
+        // Pinning and untracking are serialized, so a writer either finds the old copy
+        // still live and pinned, or stores a fresh one after the delete finished. The
+        // copies are deleted outside the lock; only a writer cutting the same block
+        // waits for that. Returns whether the block was deleted
+        private boolean deleteSharedBlock(String blockId) {
+            HDFSBlock block;
+            synchronized (blockRefs) {
+                if (blockRefs.containsKey(blockId)) return false;
+                block = untrackBlock(blockId);
+                if (block == null) return false;
+                deletingBlocks.add(blockId);
+            }
+            try {
+                deleteStoredCopies(block);
+            } finally {
+                finishSharedDelete(blockId);
+            }
+            return true;
+        }
+        
+        private void finishSharedDelete(String blockId) {
+            synchronized (blockRefs) {
+                deletingBlocks.remove(blockId);
+                blockRefs.notifyAll();
+            }
+        }
+        
+        // Caller holds blockRefs. A fresh copy stored while the old one is still
+        // being deleted could be deleted with it
+        private void awaitSharedDelete(String blockId) {
+            boolean interrupted = false;
+            while (deletingBlocks.contains(blockId)) {
+                try {
+                    blockRefs.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        
+        private void retainBlock(String blockId) {
+            blockRefs.merge(blockId, 1, Integer::sum);
+        }
+        
+        // True once nothing references the block any more
+        private boolean releaseBlock(String blockId) {
+            return blockRefs.computeIfPresent(blockId, (id, refs) -> refs > 1 ? refs - 1 : null) == null;
+        }
+        
+        private void retainBlocks(FileMetadata metadata) {
+            for (String blockId : metadata.getBlockIds()) {
+                if (isContentAddressed(blockId)) retainBlock(blockId);
+            }
+        }
+        
+        private void releaseBlocks(FileMetadata metadata) {
+            for (String blockId : metadata.getBlockIds()) {
+                if (isContentAddressed(blockId)) releaseBlock(blockId);
+            }
+        }
+        
+        public int getSharedBlockCount() {
+            int shared = 0;
+            for (int refs : blockRefs.values()) {
+                if (refs > 1) shared++;
+            }
+            return shared;
+        }
+        
+        // ==================== ERASURE CODING ====================
+        
+        // Cold files under dir (and its subdirectories) are striped with the given
+        // policy by the background converter; null returns dir to plain replication
+        public void setStoragePolicy(String dir, ErasureCodingPolicy policy) {
+            String key = dir.length() > 1 && dir.endsWith("/") ? dir.substring(0, dir.length() - 1) : dir;
+            if (policy == null) {
+                storagePolicies.remove(key);
+            } else {
+                storagePolicies.put(key, policy);
+            }
+            System.out.println("NameNode: Storage policy for " + key + " set to " + (policy != null ? policy : "REPLICATED"));
+        }
+        
+        // Policy of the nearest ancestor directory that has one, null if replicated
+        public ErasureCodingPolicy getStoragePolicy(String path) {
+            return nearestPolicy(storagePolicies, path);
+        }
+        
+        // Policy of the closest ancestor directory that has one; containers follow
+        // the policy of the directory they pack
+        private <T> T nearestPolicy(Map<String, T> policies, String path) {
+            if (policies.isEmpty()) return null;
+            String dir = path.startsWith(CONTAINER_ROOT + "/") ? path.substring(CONTAINER_ROOT.length()) : path;
+            int slash;
+            while ((slash = dir.lastIndexOf('/')) >= 0) {
+                dir = dir.substring(0, slash);
+                T policy = policies.get(dir.isEmpty() ? "/" : dir);
+                if (policy != null) return policy;
+            }
+            return null;
+        }
+        
+        public void setErasureCodingColdAge(long millis) {
+            this.ecColdAfterMillis = millis;
+        }
+        
+        private void convertColdFiles() {
+            long cutoff = System.currentTimeMillis() - ecColdAfterMillis;
+            int blocks = 0;
+            for (Map.Entry<String, ErasureCodingPolicy> entry : storagePolicies.entrySet()) {
+                List<String> candidates = namespace.listFilesRecursive(entry.getKey());
+                candidates.addAll(namespace.listFilesRecursive(CONTAINER_ROOT + entry.getKey()));
+                for (String fileName : candidates) {
+                    FileMetadata metadata = fileSystem.get(fileName);
+                    if (metadata == null || metadata.getTimestamp() > cutoff) continue;
+                    if (getStoragePolicy(fileName) != entry.getValue()) continue; // a nested directory decides
+                    blocks += convertToErasureCoded(fileName, entry.getValue());
+                }
+            }
+            if (blocks > 0) {
+                System.out.println("NameNode: Erasure coding converted " + blocks + " cold blocks");
+            }
+        }
+        
+        // Stripes every still-replicated block of the file; returns how many were converted
+        public int convertToErasureCoded(String fileName, ErasureCodingPolicy policy) {
+            checkActive();
+            FileMetadata metadata = fileSystem.get(fileName);
+            if (metadata == null || openSegmentFiles.containsKey(fileName) || isOpenContainer(fileName)) return 0;
+            
+            int converted = 0;
+            for (String blockId : metadata.getBlockIds()) {
+                HDFSBlock block = blockLocations.get(blockId);
+                if (block == null || block.isErasureCoded()) continue;
+                if (!stripeBlock(block, policy)) break;
+                converted++;
+            }
+            return converted;
+        }
+        
+        // Writes the k+m cells to distinct DataNodes, journals the new layout and
+        // only then deletes the old replicas
+        private boolean stripeBlock(HDFSBlock block, ErasureCodingPolicy policy) {
+            String blockId = block.getBlockId();
+            List<DataNode> targets = selectDataNodes(policy.getTotalUnits());
+            if (targets.size() < policy.getTotalUnits()) {
+                System.err.println("NameNode: " + policy + " needs " + policy.getTotalUnits() + 
+                                 " live DataNodes, only " + targets.size() + " available");
+                return false;
+            }
+            ByteBuffer data = readBlockBuffer(blockId, false);
+            if (data == null) return false;
+            
+            byte[][] cells = policy.encode(data);
+            String[] locations = new String[cells.length];
+            for (int i = 0; i < cells.length; i++) {
+                if (!targets.get(i).storeBlock(new HDFSBlock(ErasureCodingPolicy.cellId(blockId, i), cells[i]))) {
+                    for (int j = 0; j < i; j++) targets.get(j).deleteBlock(ErasureCodingPolicy.cellId(blockId, j));
+                    return false;
+                }
+                locations[i] = targets.get(i).getNodeId();
+            }
+            
+            List<String> oldReplicas;
+            synchronized (block) {
+                if (blockLocations.get(blockId) != block) { // file deleted meanwhile
+                    for (int i = 0; i < cells.length; i++) targets.get(i).deleteBlock(ErasureCodingPolicy.cellId(blockId, i));
+                    return false;
+                }
+                oldReplicas = block.getReplicas();
+                block.setStriped(policy, locations);
+                trackBlock(block);
+            }
+            logEdit(EditLog.OP_CONVERT_BLOCK, encodeBlock(blockId));
+            for (String replica : oldReplicas) {
+                DataNode node = dataNodes.get(replica);
+                if (node != null) node.deleteBlock(blockId);
+            }
+            ecBlocksConverted.increment();
+            return true;
+        }
+        
+        // Reads cells of a striped block, data cells first, until k are in hand;
+        // null if fewer than k are readable
+        private byte[][] fetchCells(HDFSBlock block) {
+            ErasureCodingPolicy policy = block.getEcPolicy();
+            String[] locations = block.getCellLocations();
+            byte[][] cells = new byte[locations.length][];
+            int found = 0;
+            for (int i = 0; i < locations.length && found < policy.getDataUnits(); i++) {
+                DataNode node = locations[i] != null ? dataNodes.get(locations[i]) : null;
+                if (node == null || !node.isActive()) continue;
+                String cellId = ErasureCodingPolicy.cellId(block.getBlockId(), i);
+                try {
+                    ByteBuffer cell = node.readBlock(cellId);
+                    if (cell == null) continue;
+                    cells[i] = new byte[cell.remaining()];
+                    cell.get(cells[i]);
+                    found++;
+                } catch (ChecksumException e) {
+                    reportCorruptReplica(cellId, node.getNodeId(), e.getMessage());
+                }
+            }
+            return found >= policy.getDataUnits() ? cells : null;
+        }
+        
+        // Joins the data cells; if one is unavailable, decodes it from parity
+        private ByteBuffer readStriped(HDFSBlock block) {
+            byte[][] cells = fetchCells(block);
+            if (cells == null) return null;
+            ErasureCodingPolicy policy = block.getEcPolicy();
+            for (int d = 0; d < policy.getDataUnits(); d++) {
+                if (cells[d] == null) {
+                    policy.reconstruct(cells, block.getSize());
+                    ecReconstructedReads.increment();
+                    break;
+                }
+            }
+            return ByteBuffer.wrap(policy.join(cells, block.getSize())).asReadOnlyBuffer();
+        }
+        
+        public boolean deleteFile(String fileName) {
+            if (!claimExisting(fileName)) return false;
+            try {
+                return deleteClaimedFile(fileName);
+            } finally {
+                releasePath(fileName);
+            }
+        }
+        
+        // The blocks are only deleted once the delete is journaled, so a failed
+        // delete can put the entry back
+        private boolean deleteClaimedFile(String fileName) {
+            FileMetadata metadata = removeFileEntry(fileName);
+            if (metadata == null) {
+                // A packed record only leaves the index; its bytes stay in the container
+                PackedRecord record = removePackedRecord(fileName);
+                if (record == null) return false;
+                if (!logEdit(EditLog.OP_DELETE_FILE, encodeDelete(fileName))) {
+                    addPackedRecord(fileName, record);
+                    System.err.println("NameNode: Could not journal the delete of " + fileName);
+                    return false;
+                }
+                System.out.println("File deleted successfully: " + fileName);
+                return true;
+            }
+            if (!logEdit(EditLog.OP_DELETE_FILE, encodeDelete(fileName))) {
+                putFile(metadata);
+                System.err.println("NameNode: Could not journal the delete of " + fileName);
+                return false;
+            }
+            
+            deleteUnsharedBlocks(metadata.getBlockIds());
+            System.out.println("File deleted successfully: " + fileName);
+            return true;
+        }
+        
+        // Deletes the blocks no other file still shares
+        private void deleteUnsharedBlocks(List<String> blockIds) {
+            for (String blockId : blockIds) {
+                if (isContentAddressed(blockId)) {
+                    deleteSharedBlock(blockId);
+                    continue;
+                }
+                HDFSBlock block = untrackBlock(blockId);
+                if (block != null) {
+                    deleteStoredCopies(block);
+                }
+            }
+        }
+        
+        // ==================== METADATA PERSISTENCE ====================
+        
+        // Mutations are applied in memory first, so a checkpoint taken meanwhile
+        // either holds them or precedes their edit, and journaled here before they
+        // are acknowledged. Returns false if the edit is not durable; the caller
+        // then undoes the mutation and reports the failure.
+        private boolean logEdit(byte op, byte[] payload) {
+            checkActive();
+            if (editLog == null) return true;
+            try {
+                long txId = editLog.logEdit(op, payload);
+                editLog.logSync(txId);
+                if (txId - lastCheckpointTxId >= checkpointPeriodTxns && checkpointScheduled.compareAndSet(false, true)) {
+                    maintenanceExecutor.execute(this::checkpointIfDue);
+                }
+                return true;
+            } catch (IOException e) {
+                checkActive(); // fenced while this edit was being synced: it was never acknowledged
+                System.err.println("NameNode: Failed to journal edit - " + e.getMessage());
+                return false;
+            }
+        }
+        
+        private void writeFileRecord(DataOutputStream out, FileMetadata metadata) throws IOException {
+            List<String> blockIds = metadata.getBlockIds();
+            out.writeUTF(metadata.getFileName());
+            out.writeUTF(metadata.getOwner());
+            out.writeLong(metadata.getFileSize());
+            out.writeLong(metadata.getTimestamp());
+            // A negative block count (-count - 1) is followed by the codec name
+            if (metadata.getCodec() != null) {
+                out.writeInt(-blockIds.size() - 1);
+                out.writeUTF(metadata.getCodec().getName());
+            } else {
+                out.writeInt(blockIds.size());
+            }
+            for (String blockId : blockIds) {
+                writeBlockRecord(out, blockId);
+            }
+        }
+        
+        // A negative replica count marks a striped block: policy name, then one
+        // location per cell ("" for a lost cell)
+        private void writeBlockRecord(DataOutputStream out, String blockId) throws IOException {
+            HDFSBlock block = blockLocations.get(blockId);
+            out.writeUTF(blockId);
+            out.writeInt(block != null ? block.getSize() : 0);
+            if (block != null && block.isErasureCoded()) {
+                out.writeByte(-1);
+                out.writeUTF(block.getEcPolicy().getName());
+                for (String location : block.getCellLocations()) out.writeUTF(location != null ? location : "");
+                return;
+            }
+            List<String> replicas = block != null ? block.getReplicas() : Collections.emptyList();
+            out.writeByte(replicas.size());
+            for (String replica : replicas) out.writeUTF(replica);
+        }
+        
+        private HDFSBlock readBlockRecord(DataInputStream in) throws IOException {
+            HDFSBlock block = new HDFSBlock(in.readUTF(), in.readInt());
+            int replicaCount = in.readByte();
+            if (replicaCount < 0) {
+                ErasureCodingPolicy policy = ErasureCodingPolicy.forName(in.readUTF());
+                String[] locations = new String[policy.getTotalUnits()];
+                for (int i = 0; i < locations.length; i++) {
+                    String location = in.readUTF();
+                    locations[i] = location.isEmpty() ? null : intern(location);
+                }
+                block.setStriped(policy, locations);
+                return block;
+            }
+            for (int i = 0; i < replicaCount; i++) block.addReplica(intern(in.readUTF()));
+            return block;
+        }
+        
+        private String intern(String name) {
+            String existing = internedNames.putIfAbsent(name, name);
+            return existing != null ? existing : name;
+        }
+        
+        static boolean isFlatBlockId(String name) {
+            return name.startsWith(BLOCK_ID_PREFIX) || name.startsWith(CONTENT_BLOCK_PREFIX);
+        }
+        
+        // "blk_rides.17" -> "rides", "blk_17" or "cas_<hash>" -> "", path-derived IDs -> null
+        static String blockPoolOf(String blockId) {
+            if (!isFlatBlockId(blockId)) return null;
+            int dot = blockId.indexOf('.', BLOCK_ID_PREFIX.length());
+            return dot < 0 ? "" : blockId.substring(BLOCK_ID_PREFIX.length(), dot);
+        }
+        
+        public String getBlockPoolId() { return blockPoolId; }
+        
+        // Set by the mount table once several namespaces share the DataNodes
+        void setBlockPoolFilter(Predicate<String> filter) {
+            this.blockPoolFilter = filter;
+        }
+        
+        private String newBlockId() {
+            return blockIdPrefix + lastBlockId.incrementAndGet();
+        }
+        
+        // Raises the high-water mark past a numeric block ID (or one of its EC cells)
+        private void noteBlockId(String blockId) {
+            if (!blockId.startsWith(blockIdPrefix)) return;
+            long id = 0;
+            for (int i = blockIdPrefix.length(); i < blockId.length(); i++) {
+                char c = blockId.charAt(i);
+                if (c < '0' || c > '9') break;
+                id = id * 10 + (c - '0');
+            }
+            lastBlockId.accumulateAndGet(id, Math::max);
+        }
+        
+        private FileMetadata readFileRecord(DataInputStream in) throws IOException {
+            String fileName = in.readUTF();
+            String owner = intern(in.readUTF());
+            long fileSize = in.readLong();
+            FileMetadata metadata = new FileMetadata(fileName, fileSize, owner, in.readLong());
+            int blockCount = in.readInt();
+            if (blockCount < 0) {
+                blockCount = -blockCount - 1;
+                metadata.setCodec(CompressionCodec.forName(in.readUTF()));
+            }
+            for (int i = 0; i < blockCount; i++) {
+                HDFSBlock block = readBlockRecord(in);
+                trackBlock(block);
+                metadata.addBlock(block.getBlockId());
+            }
+            return metadata;
+        }
+        
+        private byte[] encodeFile(FileMetadata metadata) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                writeFileRecord(out, metadata);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        private byte[] encodeDelete(String fileName) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(fileName);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        private byte[] encodeGPSBlock(GPSIndexEntry entry) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(192);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(entry.segment);
+                out.writeLong(entry.minTimestamp);
+                out.writeLong(entry.maxTimestamp);
+                writeBlockRecord(out, entry.blockId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        private byte[] encodeReplace(FileMetadata metadata) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(metadata.getGeneration());
+                writeFileRecord(out, metadata);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        private static byte[] encodeBlockIds(List<String> blockIds) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * blockIds.size() + 4);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(blockIds.size());
+                for (String blockId : blockIds) out.writeUTF(blockId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        // Only the blocks after the first kept ones are written out
+        private byte[] encodeAppend(FileMetadata metadata, int kept) {
+            List<String> blockIds = metadata.getBlockIds();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(metadata.getFileName());
+                out.writeInt(metadata.getGeneration());
+                out.writeLong(metadata.getFileSize());
+                out.writeLong(metadata.getTimestamp());
+                out.writeInt(kept);
+                out.writeInt(blockIds.size() - kept);
+                for (String blockId : blockIds.subList(kept, blockIds.size())) writeBlockRecord(out, blockId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        private byte[] encodeBlock(String blockId) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                writeBlockRecord(out, blockId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        private byte[] encodeAddBlock(String fileName, String blockId) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(fileName);
+                writeBlockRecord(out, blockId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        // Edits may be replayed on top of a checkpoint that already contains them,
+        // so every operation here must be idempotent.
+        private void applyEdit(byte op, DataInputStream in) throws IOException {
+            switch (op) {
+                case EditLog.OP_ADD_FILE: {
+                    putFile(readFileRecord(in));
+                    break;
+                }
+                case EditLog.OP_DELETE_FILE: {
+                    String fileName = in.readUTF();
+                    FileMetadata metadata = removeFileEntry(fileName);
+                    if (metadata != null) {
+                        for (String blockId : metadata.getBlockIds()) {
+                            if (!blockRefs.containsKey(blockId)) untrackBlock(blockId);
+                        }
+                    } else {
+                        removePackedRecord(fileName);
+                    }
+                    break;
+                }
+                case EditLog.OP_ADD_BLOCK: {
+                    FileMetadata metadata = fileSystem.get(in.readUTF());
+                    HDFSBlock block = readBlockRecord(in);
+                    if (metadata != null && !metadata.getBlockIds().contains(block.getBlockId())) {
+                        trackBlock(block);
+                        metadata.appendBlock(block.getBlockId(), block.getSize());
+                    }
+                    break;
+                }
+                case EditLog.OP_PACK_RECORD: {
+                    String key = in.readUTF();
+                    PackedRecord record = new PackedRecord(in.readUTF(), in.readLong(), in.readInt());
+                    FileMetadata container = fileSystem.get(record.container);
+                    int blocks = in.readByte();
+                    for (int i = 0; i < blocks; i++) {
+                        HDFSBlock block = readBlockRecord(in);
+                        if (container == null) continue;
+                        boolean known = blockLocations.containsKey(block.getBlockId());
+                        trackBlock(block);
+                        if (!known) container.addBlock(block.getBlockId());
+                    }
+                    if (container != null) {
+                        container.extendTo(record.offset + record.length);
+                        addPackedRecord(key, record);
+                    }
+                    break;
+                }
+                case EditLog.OP_PACK_BATCH: {
+                    String containerName = in.readUTF();
+                    FileMetadata container = fileSystem.get(containerName);
+                    int count = in.readInt();
+                    List<String> keys = new ArrayList<>(count);
+                    List<PackedRecord> records = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        keys.add(in.readUTF());
+                        records.add(new PackedRecord(containerName, in.readLong(), in.readInt()));
+                    }
+                    int blocks = in.readInt();
+                    for (int i = 0; i < blocks; i++) {
+                        HDFSBlock block = readBlockRecord(in);
+                        if (container == null) continue;
+                        boolean known = blockLocations.containsKey(block.getBlockId());
+                        trackBlock(block);
+                        if (!known) container.addBlock(block.getBlockId());
+                    }
+                    if (container != null) {
+                        for (int i = 0; i < count; i++) {
+                            PackedRecord record = records.get(i);
+                            container.extendTo(record.offset + record.length);
+                            addPackedRecord(keys.get(i), record);
+                        }
+                    }
+                    break;
+                }
+                case EditLog.OP_GPS_BLOCK: {
+                    String fileName = in.readUTF();
+                    long minTimestamp = in.readLong();
+                    long maxTimestamp = in.readLong();
+                    HDFSBlock block = readBlockRecord(in);
+                    FileMetadata metadata = fileSystem.get(fileName);
+                    if (metadata == null) break;
+                    if (!metadata.getBlockIds().contains(block.getBlockId())) {
+                        trackBlock(block);
+                        metadata.appendBlock(block.getBlockId(), block.getSize());
+                    }
+                    indexGPSBlock(new GPSIndexEntry(metadata.getFileName(), block.getBlockId(), minTimestamp, maxTimestamp));
+                    break;
+                }
+                case EditLog.OP_REPLACE_FILE: {
+                    int generation = in.readInt();
+                    FileMetadata metadata = readFileRecord(in);
+                    metadata.setGeneration(generation);
+                    FileMetadata previous = fileSystem.get(metadata.getFileName());
+                    putFile(metadata);
+                    if (previous != null) {
+                        retireDroppedBlocks(previous, metadata);
+                    } else {
+                        removePackedRecord(metadata.getFileName());
+                    }
+                    break;
+                }
+                case EditLog.OP_APPEND_FILE: {
+                    String fileName = in.readUTF();
+                    int generation = in.readInt();
+                    long fileSize = in.readLong();
+                    long timestamp = in.readLong();
+                    int kept = in.readInt();
+                    int count = in.readInt();
+                    List<HDFSBlock> added = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) added.add(readBlockRecord(in));
+                    // A generation the checkpoint already holds is not appended twice
+                    FileMetadata previous = fileSystem.get(fileName);
+                    if (previous == null || previous.getGeneration() >= generation || kept > previous.getBlockCount()) break;
+                    FileMetadata metadata = new FileMetadata(fileName, fileSize, previous.getOwner(), timestamp);
+                    metadata.setCodec(previous.getCodec());
+                    metadata.setGeneration(generation);
+                    for (String blockId : previous.getBlockIds().subList(0, kept)) metadata.addBlock(blockId);
+                    for (HDFSBlock block : added) {
+                        trackBlock(block);
+                        metadata.addBlock(block.getBlockId());
+                    }
+                    putFile(metadata);
+                    retireDroppedBlocks(previous, metadata);
+                    break;
+                }
+                case EditLog.OP_DELETE_BLOCKS: {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String blockId = in.readUTF();
+                        retiredBlocks.remove(blockId);
+                        untrackBlock(blockId);
+                    }
+                    break;
+                }
+                case EditLog.OP_CONVERT_BLOCK: {
+                    HDFSBlock record = readBlockRecord(in);
+                    HDFSBlock block = blockLocations.get(record.getBlockId());
+                    if (block != null && record.isErasureCoded()) {
+                        block.setStriped(record.getEcPolicy(), record.getCellLocations());
+                        trackBlock(block);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown edit log op: " + op);
+            }
+        }
+        
+        private long loadNamespace() throws IOException {
+            long start = System.nanoTime();
+            long imageTxId = 0;
+            
+            File image = findLatestImage();
+            if (image != null) {
+                imageTxId = loadImage(image);
+            } else if (haState == HAState.ACTIVE && EditLog.listSegments(metaDir).isEmpty()) {
+                importLegacyMetadata();
+            }
+            
+            long lastTxId = EditLog.replay(metaDir, imageTxId, this::applyEdit);
+            this.lastCheckpointTxId = imageTxId;
+            this.replayedEdits = lastTxId - imageTxId;
+            this.startupMillis = (System.nanoTime() - start) / 1_000_000;
+            
+            System.out.println("NameNode: Restored " + fileSystem.size() + " files (checkpoint txId " + imageTxId + 
+                             ", " + replayedEdits + " edits replayed) in " + startupMillis + " ms");
+            return lastTxId;
+        }
+        
+        private File findLatestImage() {
+            File latest = null;
+            long latestTxId = -1;
+            File[] images = metaDir.listFiles((d, name) -> name.matches("fsimage_\\d+"));
+            if (images != null) {
+                for (File image : images) {
+                    long txId = Long.parseLong(image.getName().substring(8));
+                    if (txId > latestTxId) {
+                        latestTxId = txId;
+                        latest = image;
+                    }
+                }
+            }
+            return latest;
+        }
+        
+        private long loadImage(File image) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(image), 1 << 16))) {
+                if (in.readInt() != FSIMAGE_MAGIC) {
+                    throw new IOException("Not a NameNode checkpoint: " + image.getAbsolutePath());
+                }
+                long txId = in.readLong();
+                while (in.readBoolean()) {
+                    putFile(readFileRecord(in));
+                }
+                // Packed-record index, absent from images written before containers existed
+                if (in.read() == PACKED_SECTION) {
+                    while (in.readBoolean()) {
+                        String container = in.readUTF();
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            String key = in.readUTF();
+                            addPackedRecord(key, new PackedRecord(container, in.readLong(), in.readInt()));
+                        }
+                    }
+                    // Block ID high-water mark, absent from images written before numeric IDs
+                    if (in.read() == BLOCK_ID_SECTION) {
+                        lastBlockId.accumulateAndGet(in.readLong(), Math::max);
+                        // Generations of appended or overwritten files, absent from older images
+                        if (in.read() == GENERATION_SECTION) {
+                            while (in.readBoolean()) {
+                                FileMetadata metadata = fileSystem.get(in.readUTF());
+                                int generation = in.readInt();
+                                if (metadata != null) metadata.setGeneration(generation);
+                            }
+                            // Sparse GPS index, absent from images written before partitioned GPS storage
+                            if (in.read() == GPS_INDEX_SECTION) {
+                                while (in.readBoolean()) {
+                                    FileMetadata segment = fileSystem.get(in.readUTF());
+                                    HDFSBlock block = blockLocations.get(in.readUTF());
+                                    long minTimestamp = in.readLong();
+                                    long maxTimestamp = in.readLong();
+                                    if (segment == null || block == null) continue; // the block joined its file after the image was cut
+                                    indexGPSBlock(new GPSIndexEntry(segment.getFileName(), block.getBlockId(), minTimestamp, maxTimestamp));
+                                }
+                                // Retired blocks not deleted yet, absent from older images
+                                if (in.read() == RETIRED_SECTION) {
+                                    long now = System.currentTimeMillis();
+                                    while (in.readBoolean()) {
+                                        HDFSBlock block = readBlockRecord(in);
+                                        if (!blockLocations.containsKey(block.getBlockId())) trackBlock(block);
+                                        retiredBlocks.putIfAbsent(block.getBlockId(), now);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                return txId;
+            }
+        }
+        
+        // Writes the whole namespace to fsimage_<txId> and drops the edit segments it covers.
+        // The namespace keeps changing while it is written, which is safe because
+        // replaying edits after txId onto the image is idempotent.
+        public synchronized void saveCheckpoint() throws IOException {
+            if (editLog == null || haState != HAState.ACTIVE) return;
+            long start = System.nanoTime();
+            long txId = editLog.rollSegment();
+            
+            File tmp = new File(metaDir, "fsimage_" + txId + ".tmp");
+            int files = 0;
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+                out.writeInt(FSIMAGE_MAGIC);
+                out.writeLong(txId);
+                // Taken from the same FileMetadata as the record, which a concurrent append replaces
+                Map<String, Integer> generations = new HashMap<>();
+                for (FileMetadata metadata : fileSystem.values()) {
+                    out.writeBoolean(true);
+                    writeFileRecord(out, metadata);
+                    if (metadata.getGeneration() > 0) generations.put(metadata.getFileName(), metadata.getGeneration());
+                    files++;
+                }
+                out.writeBoolean(false);
+                // Packed records grouped by container, so each container path is written once
+                Map<String, List<Map.Entry<String, PackedRecord>>> byContainer = new HashMap<>();
+                for (Map.Entry<String, PackedRecord> entry : packedRecords.entrySet()) {
+                    byContainer.computeIfAbsent(entry.getValue().container, c -> new ArrayList<>()).add(entry);
+                }
+                out.writeByte(PACKED_SECTION);
+                for (Map.Entry<String, List<Map.Entry<String, PackedRecord>>> group : byContainer.entrySet()) {
+                    out.writeBoolean(true);
+                    out.writeUTF(group.getKey());
+                    out.writeInt(group.getValue().size());
+                    for (Map.Entry<String, PackedRecord> entry : group.getValue()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeLong(entry.getValue().offset);
+                        out.writeInt(entry.getValue().length);
+                    }
+                }
+                out.writeBoolean(false);
+                out.writeByte(BLOCK_ID_SECTION);
+                out.writeLong(lastBlockId.get());
+                out.writeByte(GENERATION_SECTION);
+                for (Map.Entry<String, Integer> entry : generations.entrySet()) {
+                    out.writeBoolean(true);
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+                out.writeBoolean(false);
+                out.writeByte(GPS_INDEX_SECTION);
+                for (Map<String, List<GPSIndexEntry>> drivers : gpsPartitions.values()) {
+                    for (List<GPSIndexEntry> entries : drivers.values()) {
+                        for (GPSIndexEntry entry : entries) {
+                            out.writeBoolean(true);
+                            out.writeUTF(entry.segment);
+                            out.writeUTF(entry.blockId);
+                            out.writeLong(entry.minTimestamp);
+                            out.writeLong(entry.maxTimestamp);
+                        }
+                    }
+                }
+                out.writeBoolean(false);
+                out.writeByte(RETIRED_SECTION);
+                for (String blockId : retiredBlocks.keySet()) {
+                    if (!blockLocations.containsKey(blockId)) continue;
+                    out.writeBoolean(true);
+                    writeBlockRecord(out, blockId);
+                }
+                out.writeBoolean(false);
+                out.flush();
+                fos.getFD().sync();
+            }
+            File image = new File(metaDir, "fsimage_" + txId);
+            Files.move(tmp.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            File[] oldImages = metaDir.listFiles((d, name) -> name.matches("fsimage_\\d+") && !name.equals(image.getName()));
+            if (oldImages != null) {
+                for (File old : oldImages) old.delete();
+            }
+            editLog.purgeSegmentsBefore(txId);
+            lastCheckpointTxId = txId;
+            
+            System.out.println("NameNode: Checkpoint fsimage_" + txId + " saved (" + files + " files, " + 
+                             packedRecords.size() + " packed records) in " + 
+                             (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        
+        private void checkpointIfDue() {
+            checkpointScheduled.set(false);
+            if (editLog == null) return;
+            long pending = editLog.getLastTxId() - lastCheckpointTxId;
+            if (pending >= checkpointPeriodTxns || (pending > 0 && System.currentTimeMillis() - lastCheckpointTime() >= checkpointIntervalMillis)) {
+                try {
+                    saveCheckpoint();
+                } catch (IOException e) {
+                    System.err.println("NameNode: Checkpoint failed - " + e.getMessage());
+                }
+            }
+        }
+        
+        private long lastCheckpointTime() {
+            File image = new File(metaDir, "fsimage_" + lastCheckpointTxId);
+            return image.exists() ? image.lastModified() : 0;
+        }
+        
+        // One-time upgrade from the old one-text-file-per-file .meta layout
+        private void importLegacyMetadata() throws IOException {
+            File[] metaFiles = metaDir.listFiles((d, name) -> name.endsWith(".meta"));
+            if (metaFiles == null || metaFiles.length == 0) return;
+            
+            for (File metaFile : metaFiles) {
+                String fileName = null, owner = "unknown";
+                long size = 0, timestamp = metaFile.lastModified();
+                List<String> blockIds = new ArrayList<>();
+                boolean inBlocks = false;
+                for (String line : Files.readAllLines(metaFile.toPath(), StandardCharsets.UTF_8)) {
+                    if (inBlocks) {
+                        if (!line.isEmpty()) blockIds.add(line);
+                    } else if (line.startsWith("fileName:")) {
+                        fileName = line.substring(9);
+                    } else if (line.startsWith("owner:")) {
+                        owner = line.substring(6);
+                    } else if (line.startsWith("size:")) {
+                        size = Long.parseLong(line.substring(5));
+                    } else if (line.startsWith("timestamp:")) {
+                        timestamp = Long.parseLong(line.substring(10));
+                    } else if (line.equals("blocks:")) {
+                        inBlocks = true;
+                    }
+                }
+                if (fileName == null) continue;
+                
+                FileMetadata metadata = new FileMetadata(fileName, size, owner, timestamp);
+                long remaining = size;
+                for (String blockId : blockIds) {
+                    int length = (int) Math.min(blockSize, remaining);
+                    remaining -= length;
+                    blockLocations.put(blockId, new HDFSBlock(blockId, length));
+                    metadata.addBlock(blockId);
+                }
+                putFile(metadata);
+            }
+            System.out.println("NameNode: Imported " + fileSystem.size() + " files from legacy .meta files");
+        }
+        
+        public void setCheckpointPeriod(long txns, long intervalMillis) {
+            this.checkpointPeriodTxns = txns;
+            this.checkpointIntervalMillis = intervalMillis;
+        }
+        
+        public long getStartupMillis() { return startupMillis; }
+        public long getReplayedEdits() { return replayedEdits; }
+        
+        public List<String> listFiles() {
+            return new ArrayList<>(fileSystem.keySet());
+        }
+        
+        // Files directly inside dir, in name order
+        public List<String> listDirectory(String dir) {
+            return namespace.listFiles(dir, null, Integer.MAX_VALUE);
+        }
+        
+        // One page of listDirectory; pass the last path of the previous page as startAfter
+        public List<String> listDirectory(String dir, String startAfter, int limit) {
+            return namespace.listFiles(dir, startAfter, limit);
+        }
+        
+        public List<String> listSubdirectories(String dir) {
+            return namespace.listSubdirectories(dir);
+        }
+        
+        // Files anywhere below dir
+        public long countFiles(String dir) {
+            return namespace.countFiles(dir);
+        }
+        
+        // Every namespace change goes through these two so the path map and the
+        // directory tree stay in step
+        // Reference counts follow the namespace entries, so replaying an edit that a
+        // checkpoint already contains replaces the entry without counting it twice
+        void putFile(FileMetadata metadata) {
+            synchronized (pathLock(metadata.getFileName())) {
+                retainBlocks(metadata);
+                FileMetadata previous = fileSystem.put(metadata.getFileName(), metadata);
+                if (previous == null) {
+                    namespace.addFile(metadata.getFileName());
+                } else {
+                    releaseBlocks(previous);
+                }
+            }
+        }
+        
+        FileMetadata removeFileEntry(String fileName) {
+            synchronized (pathLock(fileName)) {
+                FileMetadata metadata = fileSystem.remove(fileName);
+                if (metadata != null) {
+                    namespace.removeFile(fileName);
+                    releaseBlocks(metadata);
+                    if (fileName.startsWith(GPS_ROOT + "/")) unindexGPSSegment(fileName);
+                }
+                return metadata;
+            }
+        }
+        
+        public FileMetadata getFileInfo(String fileName) {
+            return fileSystem.get(fileName);
+        }
+        
+        private boolean storeBlockOnReplicas(HDFSBlock block) {
+            return storeBlockAsync(block).join();
+        }
+        
+        // Writes all replicas of a block in parallel. The future completes with true
+        // once the ack policy is satisfied (every replica, or a majority); remaining
+        // replicas finish in the background. It completes with false only after every
+        // replica write, retries included, is done, so a caller that then deletes the
+        // block's replicas finds all of them. A replica that fails is retried once on
+        // a replacement DataNode outside the original target set.
+        CompletableFuture<Boolean> storeBlockAsync(HDFSBlock block) {
+            return storeBlockAsync(block, selectDataNodes(replicationFactor));
+        }
+        
+        CompletableFuture<Boolean> storeBlockAsync(HDFSBlock block, List<DataNode> targetNodes) {
+            if (targetNodes.size() < replicationFactor) {
+                System.out.println("Not enough DataNodes for replication");
+                return CompletableFuture.completedFuture(false);
+            }
+            
+            int required = writeAckPolicy == WriteAckPolicy.ALL ? targetNodes.size() 
+                                                                 : Math.min(replicationFactor / 2 + 1, targetNodes.size());
+            CompletableFuture<Boolean> acked = new CompletableFuture<>();
+            AtomicInteger successes = new AtomicInteger();
+            AtomicInteger settled = new AtomicInteger();
+            Set<String> tried = ConcurrentHashMap.newKeySet();
+            for (DataNode node : targetNodes) tried.add(node.getNodeId());
+            
+            for (DataNode node : targetNodes) {
+                writeReplica(block, node, tried, true).thenAccept(ok -> {
+                    if (ok && successes.incrementAndGet() == required) {
+                        blockLocations.put(block.getBlockId(), block);
+                        acked.complete(true);
+                    }
+                    if (settled.incrementAndGet() == targetNodes.size()) {
+                        // The NameNode keeps only the block's metadata once every replica write is done
+                        block.releaseData();
+                        acked.complete(false); // no-op once acknowledged
+                    }
+                });
+            }
+            return acked;
+        }
+        
+        private CompletableFuture<Boolean> writeReplica(HDFSBlock block, DataNode node, Set<String> tried, boolean retry) {
+            return CompletableFuture.supplyAsync(() -> node.storeBlock(block), ioExecutor)
+                .exceptionally(error -> false)
+                .thenCompose(ok -> {
+                    if (ok || !retry) return CompletableFuture.completedFuture(ok);
+                    for (DataNode replacement : selectDataNodes(1, tried)) {
+                        if (tried.add(replacement.getNodeId())) {
+                            System.out.println("NameNode: Replacing " + node.getNodeId() + " with " + 
+                                             replacement.getNodeId() + " for block " + block.getBlockId());
+                            return writeReplica(block, replacement, tried, false);
+                        }
+                    }
+                    return CompletableFuture.completedFuture(false);
+                });
+        }
+        
+        public void setWriteAckPolicy(WriteAckPolicy policy) {
+            this.writeAckPolicy = policy;
+        }
+        
+        public void setMaxBlocksInFlight(int maxBlocks) {
+            this.blocksInFlight = new Semaphore(maxBlocks);
+        }
+        
+        // ==================== GPS SEGMENTS ====================
+        
+        // Each point goes to the open segment of its driver and of the hour of its
+        // own timestamp; a record spanning an hour boundary is split
+        public boolean appendGPSRecord(String driverId, byte[] record) {
+            checkActive();
+            long now = System.currentTimeMillis();
+            String partition = null;
+            boolean mixed = false;
+            for (int start = 0, end; start < record.length; start = end) {
+                end = lineEnd(record, start);
+                String linePartition = gpsPartitionOf(record, start, end, now);
+                if (partition == null) {
+                    partition = linePartition;
+                } else if (!partition.equals(linePartition)) {
+                    mixed = true;
+                    break;
+                }
+            }
+            if (!mixed) return appendToGPSSegment(driverId, partition != null ? partition : GPSSegment.partitionOf(now), record);
+            
+            Map<String, ByteArrayOutputStream> byPartition = new TreeMap<>();
+            for (int start = 0, end; start < record.length; start = end) {
+                end = lineEnd(record, start);
+                byPartition.computeIfAbsent(gpsPartitionOf(record, start, end, now), p -> new ByteArrayOutputStream())
+                           .write(record, start, end - start);
+            }
+            boolean appended = true;
+            for (Map.Entry<String, ByteArrayOutputStream> entry : byPartition.entrySet()) {
+                appended &= appendToGPSSegment(driverId, entry.getKey(), entry.getValue().toByteArray());
+            }
+            return appended;
+        }
+        
+        private static int lineEnd(byte[] data, int start) {
+            for (int i = start; i < data.length; i++) {
+                if (data[i] == '\n') return i + 1;
+            }
+            return data.length;
+        }
+        
+        private static String gpsPartitionOf(byte[] data, int start, int end, long now) {
+            long timestamp = GPSSegment.timestampOf(data, start, end);
+            return GPSSegment.partitionOf(timestamp >= 0 ? timestamp : now);
+        }
+        
+        private boolean appendToGPSSegment(String driverId, String partition, byte[] record) {
+            String directory = GPS_ROOT + "/" + partition + "/" + driverId;
+            while (true) {
+                GPSSegment segment = openGpsSegments.computeIfAbsent(directory, dir -> openGPSSegment(driverId, partition));
+                if (segment == null) return false; // could not be journaled
+                synchronized (segment) {
+                    if (segment.sealed) continue; // lost a race with the roller, pick up the new segment
+                    
+                    // An empty segment takes any record, even one over the size limit:
+                    // sealing it would only open another empty one
+                    long now = System.currentTimeMillis();
+                    if (segment.getTotalBytes() > 0 && (segment.getTotalBytes() + record.length > gpsSegmentMaxBytes
+                            || now - segment.getCreatedAt() > gpsSegmentMaxAgeMillis)) {
+                        if (!sealGPSSegment(segment)) return false; // its tail is still buffered; the roller retries
+                        continue;
+                    }
+                    
+                    segment.tail.write(record, 0, record.length);
+                    segment.lastAppend = now;
+                    return flushFullBlocks(segment);
+                }
+            }
+        }
+        
+        private GPSSegment openGPSSegment(String driverId, String partition) {
+            String fileName = GPS_ROOT + "/" + partition + "/" + driverId + "/segment_" + System.currentTimeMillis() + ".log";
+            FileMetadata metadata = new FileMetadata(fileName, 0, "uber_system");
+            metadata.setCodec(getCompressionPolicy(fileName));
+            GPSSegment segment = new GPSSegment(driverId, partition, metadata, blockSize);
+            
+            putFile(metadata);
+            if (!logEdit(EditLog.OP_ADD_FILE, encodeFile(metadata))) {
+                removeFileEntry(fileName);
+                return null;
+            }
+            openSegmentFiles.put(fileName, segment);
+            System.out.println("NameNode: Opened GPS segment " + fileName);
+            return segment;
+        }
+        
+        // Caller holds the segment lock. Blocks end on a record boundary, so each
+        // one can be read and parsed on its own.
+        private boolean flushFullBlocks(GPSSegment segment) {
+            if (segment.tail.size() < blockSize) return true;
+            
+            byte[] buffered = segment.tail.toByteArray();
+            int offset = 0;
+            while (buffered.length - offset >= blockSize) {
+                int cut = offset + blockSize;
+                while (cut > offset && buffered[cut - 1] != '\n') cut--;
+                if (cut == offset) cut = offset + blockSize; // a single record longer than a block
+                if (!shipSegmentBlock(segment, Arrays.copyOfRange(buffered, offset, cut))) {
+                    break;
+                }
+                offset = cut;
+            }
+            
+            segment.tail.reset();
+            segment.tail.write(buffered, offset, buffered.length - offset);
+            return offset > 0;
+        }
+        
+        private boolean shipSegmentBlock(GPSSegment segment, byte[] data) {
+            String blockId = segment.getFileName() + "_block_" + segment.blockIndex + "_" + System.currentTimeMillis();
+            HDFSBlock block = new HDFSBlock(blockId, encodeBlockData(segment.getMetadata().getCodec(), data));
+            if (!storeBlockOnReplicas(block)) {
+                System.err.println("NameNode: Failed to ship block " + segment.blockIndex + " of " + segment.getFileName());
+                return false;
+            }
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for (int start = 0, end; start < data.length; start = end) {
+                end = lineEnd(data, start);
+                long timestamp = GPSSegment.timestampOf(data, start, end);
+                if (timestamp < 0) continue;
+                min = Math.min(min, timestamp);
+                max = Math.max(max, timestamp);
+            }
+            if (min > max) { // no parseable timestamp: never prune the block
+                min = 0;
+                max = Long.MAX_VALUE;
+            }
+            GPSIndexEntry entry = new GPSIndexEntry(segment.getFileName(), blockId, min, max);
+            // Indexed before the block joins the file, so a checkpoint never holds the block without its entry
+            indexGPSBlock(entry);
+            segment.getMetadata().appendBlock(blockId, data.length);
+            if (!logEdit(EditLog.OP_GPS_BLOCK, encodeGPSBlock(entry))) {
+                // Left out again: its points are still in the tail
+                segment.getMetadata().removeLastBlock(blockId, data.length);
+                unindexGPSBlock(entry);
+                deleteUnsharedBlocks(Collections.singletonList(blockId));
+                return false;
+            }
+            segment.blockIndex++;
+            return true;
+        }
+        
+        // Caller holds the segment lock. A segment whose tail cannot be shipped stays
+        // open, still serving its points to queries, and false is returned.
+        private boolean sealGPSSegment(GPSSegment segment) {
+            if (segment.sealed) return true;
+            
+            flushFullBlocks(segment);
+            if (segment.tail.size() >= blockSize
+                    || segment.tail.size() > 0 && !shipSegmentBlock(segment, segment.tail.toByteArray())) {
+                System.err.println("NameNode: Cannot seal GPS segment " + segment.getFileName() + ", " + 
+                                 segment.tail.size() + " bytes not yet on DataNodes");
+                return false;
+            }
+            segment.tail.reset();
+            segment.sealed = true;
+            openGpsSegments.remove(GPS_ROOT + "/" + segment.getPartition() + "/" + segment.getDriverId(), segment);
+            openSegmentFiles.remove(segment.getFileName());
+            
+            if (segment.getMetadata().getBlockIds().isEmpty() && segment.tail.size() == 0) {
+                removeFileEntry(segment.getFileName());
+                logEdit(EditLog.OP_DELETE_FILE, encodeDelete(segment.getFileName()));
+                return true;
+            }
+            
+            System.out.println("NameNode: Sealed GPS segment " + segment.getFileName() + 
+                             " (" + segment.getMetadata().getFileSize() + " bytes, " + 
+                             segment.getMetadata().getBlockIds().size() + " blocks)");
+            return true;
+        }
+        
+        // "/uber/gps/<partition>/<driverId>/<segment>" -> {partition, driverId}; null
+        // for segments written before partitioning (/uber/gps/<driverId>/<segment>)
+        private static String[] gpsSegmentKey(String fileName) {
+            if (!fileName.startsWith(GPS_ROOT + "/")) return null;
+            String[] parts = fileName.substring(GPS_ROOT.length() + 1).split("/");
+            return parts.length == 3 ? new String[]{parts[0], parts[1]} : null;
+        }
+        
+        // Idempotent, since edits are replayed over checkpoints that may hold the entry
+        private void indexGPSBlock(GPSIndexEntry entry) {
+            String[] key = gpsSegmentKey(entry.segment);
+            if (key == null) return;
+            Map<String, List<GPSIndexEntry>> drivers = gpsPartitions.computeIfAbsent(key[0], p -> new ConcurrentHashMap<>());
+            drivers.compute(key[1], (driverId, entries) -> {
+                if (entries == null) entries = new CopyOnWriteArrayList<>();
+                for (GPSIndexEntry existing : entries) {
+                    if (existing.blockId.equals(entry.blockId)) return entries;
+                }
+                entries.add(entry);
+                return entries;
+            });
+        }
+        
+        private void unindexGPSBlock(GPSIndexEntry entry) {
+            String[] key = gpsSegmentKey(entry.segment);
+            Map<String, List<GPSIndexEntry>> drivers = key != null ? gpsPartitions.get(key[0]) : null;
+            if (drivers == null) return;
+            drivers.computeIfPresent(key[1], (driverId, entries) -> {
+                entries.removeIf(existing -> existing.blockId.equals(entry.blockId));
+                return entries.isEmpty() ? null : entries;
+            });
+        }
+        
+        private void unindexGPSSegment(String fileName) {
+            String[] key = gpsSegmentKey(fileName);
+            Map<String, List<GPSIndexEntry>> drivers = key != null ? gpsPartitions.get(key[0]) : null;
+            if (drivers == null) return;
+            drivers.computeIfPresent(key[1], (driverId, entries) -> {
+                entries.removeIf(entry -> entry.segment.equals(fileName));
+                return entries.isEmpty() ? null : entries;
+            });
+        }
+        
+        // Points of driverId with fromMillis <= timestamp <= toMillis, oldest first.
+        // Only partitions overlapping the range are visited, and in them only blocks
+        // whose indexed timestamp range overlaps it are read.
+        public List<GPSPoint> queryGPSRange(String driverId, long fromMillis, long toMillis) throws IOException {
+            List<GPSPoint> points = new ArrayList<>();
+            if (fromMillis > toMillis) return points;
+            
+            // Open segments first: each tail is taken together with the blocks shipped
+            // so far, so no point is missed or seen twice while the segment grows
+            Map<String, Set<String>> shippedBlocks = new HashMap<>();
+            for (GPSSegment segment : openGPSSegments(driverId, fromMillis, toMillis)) {
+                byte[] tail;
+                synchronized (segment) {
+                    tail = segment.getTailSnapshot();
+                    shippedBlocks.put(segment.getFileName(), new HashSet<>(segment.getMetadata().getBlockIds()));
+                }
+                parseGPSPoints(ByteBuffer.wrap(tail), fromMillis, toMillis, points);
+            }
+            
+            String first = GPSSegment.partitionOf(fromMillis), last = GPSSegment.partitionOf(toMillis);
+            for (Map<String, List<GPSIndexEntry>> drivers : gpsPartitions.subMap(first, true, last, true).values()) {
+                List<GPSIndexEntry> entries = drivers.get(driverId);
+                if (entries == null) continue;
+                for (GPSIndexEntry entry : entries) {
+                    Set<String> shipped = shippedBlocks.get(entry.segment);
+                    if (shipped != null && !shipped.contains(entry.blockId)) continue; // its points were in the tail
+                    if (!entry.overlaps(fromMillis, toMillis)) {
+                        gpsBlocksPruned.increment();
+                        continue;
+                    }
+                    FileMetadata segment = fileSystem.get(entry.segment);
+                    if (segment == null) continue; // deleted meanwhile
+                    ByteBuffer data = readBlockData(entry.blockId, false, segment.getCodec());
+                    if (data == null) throw new IOException("No live replica for block " + entry.blockId);
+                    gpsBlocksRead.increment();
+                    parseGPSPoints(data, fromMillis, toMillis, points);
+                }
+            }
+            
+            // Segments written before partitioning have no index and are read whole
+            for (String segment : listDirectory(GPS_ROOT + "/" + driverId)) {
+                byte[] data = readFile(segment);
+                if (data == null) throw new IOException("Cannot read GPS segment " + segment);
+                parseGPSPoints(ByteBuffer.wrap(data), fromMillis, toMillis, points);
+            }
+            points.sort(Comparator.comparingLong(point -> point.timestamp));
+            return points;
+        }
+        
+        private List<GPSSegment> openGPSSegments(String driverId, long fromMillis, long toMillis) {
+            List<GPSSegment> segments = new ArrayList<>();
+            fromMillis = Math.max(fromMillis, 0);
+            toMillis = Math.min(toMillis, GPSSegment.LAST_PARTITION_MILLIS + GPSSegment.PARTITION_MILLIS - 1);
+            long firstHour = fromMillis - Math.floorMod(fromMillis, GPSSegment.PARTITION_MILLIS);
+            if ((toMillis - firstHour) / GPSSegment.PARTITION_MILLIS < openGpsSegments.size()) {
+                for (long hour = firstHour; hour <= toMillis && hour >= firstHour; hour += GPSSegment.PARTITION_MILLIS) {
+                    GPSSegment segment = openGpsSegments.get(GPS_ROOT + "/" + GPSSegment.partitionOf(hour) + "/" + driverId);
+                    if (segment != null) segments.add(segment);
+                }
+                return segments;
+            }
+            String first = GPSSegment.partitionOf(fromMillis), last = GPSSegment.partitionOf(toMillis);
+            for (GPSSegment segment : openGpsSegments.values()) {
+                if (segment.getDriverId().equals(driverId) && segment.getPartition().compareTo(first) >= 0 
+                        && segment.getPartition().compareTo(last) <= 0) {
+                    segments.add(segment);
+                }
+            }
+            return segments;
+        }
+        
+        static void parseGPSPoints(ByteBuffer data, long fromMillis, long toMillis, List<GPSPoint> points) {
+            for (String line : StandardCharsets.UTF_8.decode(data.duplicate()).toString().split("\n")) {
+                GPSPoint point = GPSPoint.parse(line);
+                if (point != null && point.timestamp >= fromMillis && point.timestamp <= toMillis) points.add(point);
+            }
+        }
+        
+        public List<String> listGPSSegments(String driverId) {
+            List<String> segments = new ArrayList<>(listDirectory(GPS_ROOT + "/" + driverId)); // before partitioning
+            for (String partition : listSubdirectories(GPS_ROOT)) {
+                segments.addAll(listDirectory(partition + "/" + driverId));
+            }
+            return segments;
+        }
+        
+        public Map<String, Object> getGPSIndexStats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            long entries = 0;
+            for (Map<String, List<GPSIndexEntry>> drivers : gpsPartitions.values()) {
+                for (List<GPSIndexEntry> list : drivers.values()) entries += list.size();
+            }
+            stats.put("partitions", gpsPartitions.size());
+            stats.put("indexedBlocks", entries);
+            stats.put("blocksRead", gpsBlocksRead.sum());
+            stats.put("blocksPruned", gpsBlocksPruned.sum());
+            return stats;
+        }
+        
+        private void rollIdleGPSSegments() {
+            long now = System.currentTimeMillis();
+            for (GPSSegment segment : openGpsSegments.values()) {
+                synchronized (segment) {
+                    if (now - segment.getCreatedAt() > gpsSegmentMaxAgeMillis
+                            || now - segment.getLastAppend() > gpsSegmentMaxAgeMillis / 2) {
+                        sealGPSSegment(segment);
+                    }
+                }
+            }
+        }
+        
+        // Returns the number of segments left open because their tails could not be shipped
+        public int sealAllGPSSegments() {
+            int unsealed = 0;
+            for (GPSSegment segment : openGpsSegments.values()) {
+                synchronized (segment) {
+                    if (!sealGPSSegment(segment)) unsealed++;
+                }
+            }
+            return unsealed;
+        }
+        
+        // Run by an active that is stepping down (shutdown, or failover to the
+        // standby). The tails are only in memory, so shipping them is retried a
+        // few times before giving up on them.
+        void sealOpenGPSSegments() {
+            int unsealed = sealAllGPSSegments();
+            for (int attempt = 1; unsealed > 0 && attempt <= 3; attempt++) {
+                try {
+                    Thread.sleep(attempt * 500L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                unsealed = sealAllGPSSegments();
+            }
+            if (unsealed > 0) {
+                System.err.println("NameNode: " + unsealed + " GPS segments could not be sealed, their buffered points are lost");
+            }
+        }
+        
+        public void setGPSSegmentLimits(long maxBytes, long maxAgeMillis) {
+            this.gpsSegmentMaxBytes = maxBytes;
+            this.gpsSegmentMaxAgeMillis = maxAgeMillis;
+        }
+        
+        public int getOpenGPSSegmentCount() {
+            return openGpsSegments.size();
+        }
+        
+        public void shutdown() {
+            maintenanceExecutor.shutdown();
+            scrubExecutor.shutdownNow();
+            replicationMonitor.shutdown();
+            balancer.shutdown();
+            if (tailTask != null) tailTask.cancel(false);
+            boolean active = haState == HAState.ACTIVE;
+            if (active) sealOpenGPSSegments();
+            ioExecutor.shutdown();
+            hedgeExecutor.shutdown();
+            if (!active) {
+                // A standby or fenced NameNode shares the DataNodes with the active one
+                EditLogTailer tailer = editTailer;
+                if (tailer != null) {
+                    try {
+                        tailer.close();
+                    } catch (IOException e) {
+                        System.err.println("NameNode: Failed to close the edit log tailer - " + e.getMessage());
+                    }
+                }
+                System.out.println("NameNode: Shutdown complete (" + haState.name().toLowerCase() + ")");
+                return;
+            }
+            deleteRetiredBlocks(0); // nothing reads the old generations any more
+            for (DataNode node : dataNodes.values()) node.close();
+            if (editLog != null) {
+                try {
+                    saveCheckpoint();
+                    editLog.close();
+                } catch (IOException e) {
+                    System.err.println("NameNode: Failed to checkpoint on shutdown - " + e.getMessage());
+                }
+            }
+            System.out.println("NameNode: Shutdown complete");
+        }
+        
+        // ==================== SMALL-FILE CONTAINERS ====================
+        
+        // Stores a small file as a record in its directory's open container;
+        // anything larger than a block is written as a regular file
+        public boolean writeSmallFile(String fileName, byte[] data, String owner) {
+            if (data.length == 0 || data.length > blockSize) return writeFile(fileName, data, owner);
+            
+            if (!claimForCreate(fileName)) return false;
+            try {
+                return packClaimedFile(fileName, data);
+            } finally {
+                releasePath(fileName);
+            }
+        }
+        
+        private boolean packClaimedFile(String fileName, byte[] data) {
+            int slash = fileName.lastIndexOf('/');
+            String directory = slash > 0 ? fileName.substring(0, slash) : "/";
+            while (true) {
+                SmallFileContainer container = openContainers.computeIfAbsent(directory, this::openContainer);
+                if (container == null) return false; // could not be journaled
+                synchronized (container) {
+                    if (container.sealed) continue; // rolled over meanwhile
+                    
+                    long offset = container.getMetadata().getFileSize();
+                    List<String> touched = appendToContainer(container, data);
+                    if (touched == null) {
+                        System.err.println("NameNode: Failed to append " + fileName + " to " + container.getFileName());
+                        sealContainer(container); // its tail is in an unknown state
+                        return false;
+                    }
+                    PackedRecord record = new PackedRecord(container.getFileName(), offset, data.length);
+                    PackedRecord previous = packedRecords.get(fileName); // re-packed by an append or overwrite
+                    container.getMetadata().extendTo(offset + data.length);
+                    addPackedRecord(fileName, record);
+                    if (!logEdit(EditLog.OP_PACK_RECORD, encodePackRecord(fileName, record, touched))) {
+                        if (previous != null) {
+                            addPackedRecord(fileName, previous);
+                        } else {
+                            removePackedRecord(fileName);
+                        }
+                        System.err.println("NameNode: Could not journal " + fileName + "; write failed");
+                        sealContainer(container); // its tail holds bytes the journal does not know
+                        return false;
+                    }
+                    
+                    if (container.getMetadata().getFileSize() >= containerMaxBytes) sealContainer(container);
+                    System.out.println("File written successfully: " + fileName + " (" + data.length + " bytes, packed)");
+                    return true;
+                }
+            }
+        }
+        
+        // Packs many small files under one container lock hold: their bytes go in as
+        // one append, so each touched block is rewritten once, and the batch is one
+        // journal edit. Files too large to pack are written on their own. Returns
+        // whether each file was written, in the order given.
+        public Map<String, Boolean> writeSmallFiles(Map<String, byte[]> files, String owner) {
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            Map<String, Map<String, byte[]>> byDirectory = new LinkedHashMap<>();
+            for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+                String fileName = entry.getKey();
+                byte[] data = entry.getValue();
+                results.put(fileName, false);
+                if (data.length == 0 || data.length > blockSize) {
+                    results.put(fileName, writeFile(fileName, data, owner));
+                    continue;
+                }
+                int slash = fileName.lastIndexOf('/');
+                String directory = slash > 0 ? fileName.substring(0, slash) : "/";
+                byDirectory.computeIfAbsent(directory, dir -> new LinkedHashMap<>()).put(fileName, data);
+            }
+            for (Map.Entry<String, Map<String, byte[]>> entry : byDirectory.entrySet()) {
+                packBatch(entry.getKey(), entry.getValue(), results);
+            }
+            return results;
+        }
+        
+        private void packBatch(String directory, Map<String, byte[]> files, Map<String, Boolean> results) {
+            Map<String, byte[]> claimed = new LinkedHashMap<>();
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                if (claimForCreate(file.getKey())) claimed.put(file.getKey(), file.getValue());
+            }
+            try {
+                if (!claimed.isEmpty()) packClaimedBatch(directory, claimed, results);
+            } finally {
+                for (String fileName : claimed.keySet()) releasePath(fileName);
+            }
+        }
+        
+        private void packClaimedBatch(String directory, Map<String, byte[]> files, Map<String, Boolean> results) {
+            while (true) {
+                SmallFileContainer container = openContainers.computeIfAbsent(directory, this::openContainer);
+                if (container == null) return; // could not be journaled
+                synchronized (container) {
+                    if (container.sealed) continue; // rolled over meanwhile
+                    
+                    long offset = container.getMetadata().getFileSize();
+                    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                    List<String> keys = new ArrayList<>(files.size());
+                    List<PackedRecord> records = new ArrayList<>(files.size());
+                    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                        String fileName = file.getKey();
+                        byte[] data = file.getValue();
+                        keys.add(fileName);
+                        records.add(new PackedRecord(container.getFileName(), offset + batch.size(), data.length));
+                        batch.write(data, 0, data.length);
+                    }
+                    List<String> touched = appendToContainer(container, batch.toByteArray());
+                    if (touched == null) {
+                        System.err.println("NameNode: Failed to append " + keys.size() + " records to " + container.getFileName());
+                        sealContainer(container); // its tail is in an unknown state
+                        return;
+                    }
+                    container.getMetadata().extendTo(offset + batch.size());
+                    for (int i = 0; i < keys.size(); i++) {
+                        addPackedRecord(keys.get(i), records.get(i));
+                    }
+                    if (!logEdit(EditLog.OP_PACK_BATCH, encodePackBatch(container.getFileName(), keys, records, touched))) {
+                        for (String key : keys) removePackedRecord(key);
+                        System.err.println("NameNode: Could not journal " + keys.size() + " records; writes failed");
+                        sealContainer(container); // its tail holds bytes the journal does not know
+                        return;
+                    }
+                    for (String key : keys) results.put(key, true);
+                    
+                    if (container.getMetadata().getFileSize() >= containerMaxBytes) sealContainer(container);
+                    System.out.println("Files written successfully: " + keys.size() + " records (" + batch.size() + 
+                                     " bytes) packed into " + container.getFileName());
+                    return;
+                }
+            }
+        }
+        
+        private SmallFileContainer openContainer(String directory) {
+            String fileName = CONTAINER_ROOT + (directory.equals("/") ? "" : directory) + 
+                              "/container_" + System.currentTimeMillis() + "_" + containerSequence.incrementAndGet() + ".pack";
+            FileMetadata metadata = new FileMetadata(fileName, 0, "uber_system");
+            metadata.setCodec(getCompressionPolicy(fileName));
+            putFile(metadata);
+            if (!logEdit(EditLog.OP_ADD_FILE, encodeFile(metadata))) {
+                removeFileEntry(fileName);
+                return null;
+            }
+            System.out.println("NameNode: Opened container " + fileName);
+            return new SmallFileContainer(directory, metadata, blockSize);
+        }
+        
+        // Caller holds the container lock. Appends to the partial last block and
+        // rewrites it, and any block the append filled, on its replicas.
+        // Returns the blocks written, or null if a write failed.
+        private List<String> appendToContainer(SmallFileContainer container, byte[] data) {
+            List<String> touched = new ArrayList<>(2);
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min(blockSize - container.tail.size(), data.length - offset);
+                container.tail.write(data, offset, length);
+                offset += length;
+                
+                String blockId = SmallFileContainer.blockId(container.getFileName(), container.blockIndex);
+                if (!flushContainerBlock(container, blockId)) return null;
+                touched.add(blockId);
+                if (container.tail.size() == blockSize) {
+                    container.tail.reset();
+                    container.flushed = 0;
+                    container.blockIndex++;
+                }
+            }
+            return touched;
+        }
+        
+        // Sends the replicas only the bytes added since the last flush. A new block,
+        // a block that just filled (compressed now, if the container is), or a
+        // replica that cannot take the append gets the whole block rewritten, on the
+        // replicas that already hold it, so every version of the block lives on the
+        // same nodes.
+        private boolean flushContainerBlock(SmallFileContainer container, String blockId) {
+            byte[] tail = container.tail.toByteArray();
+            CompressionCodec codec = container.getMetadata().getCodec();
+            boolean full = tail.length == blockSize;
+            boolean known = blockLocations.containsKey(blockId);
+            int header = codec != null ? ENCODED_HEADER_BYTES : 0;
+            if (known && !full && container.flushed > 0 && appendContainerBlock(blockId, tail, container.flushed, header)) {
+                container.flushed = tail.length;
+                return true;
+            }
+            byte[] encoded = codec == null ? tail : full ? encodeBlockData(codec, tail) : encodeGrowingBlock(tail);
+            HDFSBlock block = new HDFSBlock(blockId, encoded);
+            List<DataNode> targets = known ? liveReplicas(blockId) : Collections.emptyList();
+            if (targets.size() < replicationFactor) targets = selectDataNodes(replicationFactor);
+            if (!storeBlockAsync(block, targets).join()) return false;
+            if (!known) container.getMetadata().addBlock(blockId);
+            container.flushed = tail.length;
+            return true;
+        }
+        
+        // Every live replica must take the append; on success the block's recorded
+        // size grows to the whole tail behind its header
+        private boolean appendContainerBlock(String blockId, byte[] tail, int from, int header) {
+            List<DataNode> targets = liveReplicas(blockId);
+            if (targets.size() < replicationFactor) return false;
+            ByteBuffer added = ByteBuffer.wrap(tail, from, tail.length - from).slice().asReadOnlyBuffer();
+            List<CompletableFuture<Boolean>> appends = new ArrayList<>(targets.size());
+            for (DataNode node : targets) {
+                appends.add(CompletableFuture.supplyAsync(() -> node.appendBlock(blockId, header + from, added.duplicate()), ioExecutor)
+                                             .exceptionally(error -> false));
+            }
+            HDFSBlock grown = new HDFSBlock(blockId, header + tail.length);
+            boolean appended = true;
+            for (int i = 0; i < targets.size(); i++) {
+                if (appends.get(i).join()) {
+                    grown.addReplica(targets.get(i).getNodeId());
+                } else {
+                    appended = false;
+                }
+            }
+            if (appended) blockLocations.put(blockId, grown);
+            return appended;
+        }
+        
+        // Container blocks only grow, so a replica longer than the journal says
+        // holds bytes appended after the last edit that reached it, not stale data
+        private static boolean isContainerBlock(String blockId) {
+            return blockId.startsWith(CONTAINER_ROOT + "/") && blockId.contains(".pack_block_");
+        }
+        
+        private void sealContainer(SmallFileContainer container) {
+            container.sealed = true;
+            openContainers.remove(container.getDirectory(), container);
+            System.out.println("NameNode: Sealed container " + container.getFileName() + 
+                             " (" + container.getMetadata().getFileSize() + " bytes)");
+        }
+        
+        // Blocks of open containers and GPS segments; a container's last block is
+        // rewritten in place on every flush
+        Set<String> openFileBlocks() {
+            Set<String> blocks = new HashSet<>();
+            for (SmallFileContainer container : openContainers.values()) {
+                blocks.addAll(container.getMetadata().getBlockIds());
+                blocks.add(SmallFileContainer.blockId(container.getFileName(), container.blockIndex));
+            }
+            for (GPSSegment segment : openSegmentFiles.values()) {
+                blocks.addAll(segment.getMetadata().getBlockIds());
+            }
+            return blocks;
+        }
+        
+        private boolean isOpenContainer(String fileName) {
+            for (SmallFileContainer container : openContainers.values()) {
+                if (container.getFileName().equals(fileName)) return true;
+            }
+            return false;
+        }
+        
+        // Packed records appear in the namespace tree like files, so listings and
+        // counts include them
+        void addPackedRecord(String key, PackedRecord record) {
+            synchronized (pathLock(key)) {
+                if (packedRecords.put(key, record) == null) namespace.addFile(key);
+            }
+        }
+        
+        PackedRecord removePackedRecord(String key) {
+            synchronized (pathLock(key)) {
+                PackedRecord record = packedRecords.remove(key);
+                if (record != null) namespace.removeFile(key);
+                return record;
+            }
+        }
+        
+        private byte[] readPacked(PackedRecord record) {
+            FileMetadata container = fileSystem.get(record.container);
+            CompressionCodec codec = container != null ? container.getCodec() : null;
+            byte[] result = new byte[record.length];
+            int copied = 0;
+            long position = record.offset;
+            while (copied < record.length) {
+                String blockId = SmallFileContainer.blockId(record.container, (int) (position / blockSize));
+                int within = (int) (position % blockSize);
+                ByteBuffer block;
+                try {
+                    block = readBlockData(blockId, false, codec);
+                } catch (IOException e) {
+                    System.err.println("Error decoding block: " + blockId + " - " + e.getMessage());
+                    return null;
+                }
+                if (block == null || block.remaining() <= within) {
+                    System.err.println("Error reading block: " + blockId + " (no live replica)");
+                    return null;
+                }
+                block.position(block.position() + within);
+                int length = Math.min(block.remaining(), record.length - copied);
+                block.get(result, copied, length);
+                copied += length;
+                position += length;
+            }
+            return result;
+        }
+        
+        private byte[] readPackedOrThrow(String fileName) throws IOException {
+            PackedRecord record = packedRecords.get(fileName);
+            if (record == null) throw new FileNotFoundException("File not found: " + fileName);
+            byte[] data = readPacked(record);
+            if (data == null) throw new IOException("No live replica for " + fileName);
+            return data;
+        }
+        
+        private byte[] encodePackRecord(String key, PackedRecord record, List<String> blockIds) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(key);
+                out.writeUTF(record.container);
+                out.writeLong(record.offset);
+                out.writeInt(record.length);
+                out.writeByte(blockIds.size());
+                for (String blockId : blockIds) writeBlockRecord(out, blockId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        private byte[] encodePackBatch(String container, List<String> keys, List<PackedRecord> records, List<String> blockIds) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * keys.size() + 256 * blockIds.size());
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(container);
+                out.writeInt(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    out.writeUTF(keys.get(i));
+                    out.writeLong(records.get(i).offset);
+                    out.writeInt(records.get(i).length);
+                }
+                out.writeInt(blockIds.size());
+                for (String blockId : blockIds) writeBlockRecord(out, blockId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+        
+        public void setContainerMaxBytes(long maxBytes) {
+            this.containerMaxBytes = maxBytes;
+        }
+        
+        public int getPackedRecordCount() {
+            return packedRecords.size();
+        }
+        
+        private List<HDFSBlock> createBlocks(byte[] data, String fileName, CompressionCodec codec) {
+            List<HDFSBlock> blocks = new ArrayList<>();
+            int offset = 0;
+            int blockIndex = 0;
+            
+            while (offset < data.length) {
+                int currentBlockSize = Math.min(blockSize, data.length - offset);
+                byte[] blockData = Arrays.copyOfRange(data, offset, offset + currentBlockSize);
+                
+                String blockId = newBlockId();
+                HDFSBlock block = new HDFSBlock(blockId, encodeBlockData(codec, blockData));
+                blocks.add(block);
+                
+                offset += currentBlockSize;
+                blockIndex++;
+            }
+            
+            return blocks;
+        }
+        
+        // Numeric blocks for an overwrite: a block of previous holding the same bytes
+        // at the same position keeps its ID and is not added to toStore
+        private List<String> createBlocks(byte[] data, CompressionCodec codec, FileMetadata previous, List<HDFSBlock> toStore) {
+            List<String> previousIds = previous != null && Objects.equals(previous.getCodec(), codec) 
+                                       ? previous.getBlockIds() : Collections.emptyList();
+            List<String> blockIds = new ArrayList<>();
+            for (int offset = 0, index = 0; offset < data.length; offset += blockSize, index++) {
+                int length = Math.min(blockSize, data.length - offset);
+                if (index < previousIds.size()) {
+                    String previousId = previousIds.get(index);
+                    if (!isContentAddressed(previousId) && hasContents(previousId, codec, data, offset, length)) {
+                        blockIds.add(previousId);
+                        continue;
+                    }
+                }
+                HDFSBlock block = new HDFSBlock(newBlockId(), encodeBlockData(codec, Arrays.copyOfRange(data, offset, offset + length)));
+                toStore.add(block);
+                blockIds.add(block.getBlockId());
+            }
+            return blockIds;
+        }
+        
+        private List<DataNode> selectDataNodes(int count) {
+            return selectDataNodes(count, Collections.emptySet());
+        }
+        
+        // Nodes already holding the block are skipped, and rack-aware placement spreads away from them
+        private List<DataNode> selectDataNodes(int count, Collection<String> existing) {
+            return placementPolicy.chooseTargets(count, existing);
+        }
+        
+        public void setPlacementPolicy(BlockPlacementPolicy policy) {
+            policy.refresh(dataNodes.values());
+            this.placementPolicy = policy;
+            System.out.println("NameNode: Block placement policy set to " + policy.getName());
+        }
+        
+        public BlockPlacementPolicy getPlacementPolicy() {
+            return placementPolicy;
+        }
+        
+        public void setDataNodeDurability(Durability durability, long writeBackMillis) {
+            this.dataNodeDurability = durability;
+            this.writeBackMillis = writeBackMillis;
+            for (DataNode node : dataNodes.values()) node.setDurability(durability, writeBackMillis);
+            System.out.println("NameNode: DataNode durability set to " + durability + 
+                             (durability == Durability.WRITE_BACK ? " (" + writeBackMillis + " ms)" : ""));
+        }
+        
+        public Map<String, Object> getClusterStatus() {
+            Map<String, Object> status = new HashMap<>();
+            status.put("totalFiles", fileSystem.size());
+            status.put("haState", haState.name());
+            status.put("lastTxId", getLastTxId());
+            status.put("packedRecords", packedRecords.size());
+            status.put("gpsIndex", getGPSIndexStats());
+            long extents = 0, freeSlotBytes = 0;
+            for (DataNode node : dataNodes.values()) {
+                Map<String, Long> stats = node.getStore().getStats();
+                extents += stats.getOrDefault("extents", 0L);
+                freeSlotBytes += stats.getOrDefault("freeBytes", 0L);
+            }
+            status.put("storeExtents", extents);
+            status.put("storeFreeBytes", freeSlotBytes);
+            status.put("openContainers", openContainers.size());
+            status.put("totalDataNodes", dataNodes.size());
+            status.put("placementPolicy", placementPolicy.getName());
+            long writes = 0, syncs = 0;
+            for (DataNode node : dataNodes.values()) {
+                Map<String, Long> durabilityStats = node.getDurabilityStats();
+                writes += durabilityStats.get("writes");
+                syncs += durabilityStats.get("syncs");
+            }
+            status.put("dataNodeDurability", dataNodeDurability);
+            status.put("dataNodeSyncs", syncs);
+            status.put("dataNodeWritesPerSync", syncs > 0 ? String.format("%.1f", (double) writes / syncs) : "-");
+            status.put("activeDataNodes", dataNodes.values().stream().mapToInt(n -> n.isActive() ? 1 : 0).sum());
+            status.put("totalBlocks", blockLocations.size());
+            status.put("openGpsSegments", openGpsSegments.size());
+            status.put("lastStartupMs", startupMillis);
+            status.put("corruptReplicasReported", corruptReplicaCount.sum());
+            status.put("erasureCodedBlocks", blockLocations.values().stream().filter(HDFSBlock::isErasureCoded).count());
+            status.put("ecBlocksConverted", ecBlocksConverted.sum());
+            status.put("ecReconstructedReads", ecReconstructedReads.sum());
+            long rawBytes = 0, storedBytes = 0, compressNanos = 0, decompressNanos = 0;
+            for (CompressionStats stats : compressionStats.values()) {
+                rawBytes += stats.rawBytes.sum();
+                storedBytes += stats.storedBytes.sum();
+                compressNanos += stats.compressNanos.sum();
+                decompressNanos += stats.decompressNanos.sum();
+            }
+            status.put("compressionRatio", storedBytes == 0 ? 1.0 : Math.round(100.0 * rawBytes / storedBytes) / 100.0);
+            status.put("compressedRawBytes", rawBytes);
+            status.put("compressedStoredBytes", storedBytes);
+            status.put("compressMillis", compressNanos / 1_000_000);
+            status.put("decompressMillis", decompressNanos / 1_000_000);
+            status.put("compressionCodecs", getCompressionStats());
+            status.put("dedupBlocks", blockRefs.size());
+            status.put("dedupSharedBlocks", getSharedBlockCount());
+            status.put("dedupBlocksReused", dedupBlocksReused.sum());
+            status.put("dedupBytesSaved", dedupBytesSaved.sum());
+            status.put("readP50Micros", readLatency.percentileMicros(0.50));
+            status.put("readP99Micros", readLatency.percentileMicros(0.99));
+            status.put("hedgedReads", hedgedReadCount.sum());
+            status.put("hedgedReadWins", hedgedReadWins.sum());
+            Map<String, Object> replication = replicationMonitor.getStatus();
+            status.put("replicationQueued", replication.get("queued"));
+            status.put("blocksReReplicated", replication.get("blocksReplicated"));
+            status.put("lastReplicationRecoveryMs", replication.get("lastRecoveryMs"));
+            Map<String, Object> balance = balancer.getStatus();
+            status.put("balancerState", balance.get("state"));
+            status.put("balancerBytesMoved", balance.get("bytesMoved"));
+            status.put("utilizationDeviationPercent", balance.get("maxDeviationPercent"));
+            BlockReconciliation reconciliation = lastReconciliation;
+            if (reconciliation != null) {
+                status.put("missingBlocks", reconciliation.getMissingBlocks().size());
+                status.put("underReplicatedBlocks", reconciliation.getUnderReplicatedBlocks().size());
+                status.put("orphanedReplicas", reconciliation.getOrphanedReplicaCount());
+            }
+            if (editLog != null) {
+                status.put("journalTxId", editLog.getLastTxId());
+                status.put("journalSyncs", editLog.getSyncCount());
+                status.put("lastCheckpointTxId", lastCheckpointTxId);
+            }
+            
+            long totalCapacity = dataNodes.values().stream().mapToLong(n -> n.getFreeSpace() + n.getUsedSpace()).sum();
+            long usedSpace = dataNodes.values().stream().mapToLong(DataNode::getUsedSpace).sum();
+            
+            status.put("totalCapacityMB", totalCapacity / (1024 * 1024));
+            status.put("usedSpaceMB", usedSpace / (1024 * 1024));
+            status.put("cacheHits", dataNodes.values().stream().mapToLong(n -> n.getCache().getHits()).sum());
+            status.put("cacheMisses", dataNodes.values().stream().mapToLong(n -> n.getCache().getMisses()).sum());
+            status.put("cacheEvictions", dataNodes.values().stream().mapToLong(n -> n.getCache().getEvictions()).sum());
+            status.put("freeSpaceMB", (totalCapacity - usedSpace) / (1024 * 1024));
+            
+            return status;
+        }
+        
+        public List<DataNode> getDataNodes() {
+            return new ArrayList<>(dataNodes.values());
+        }
+    }
+    
+    // ==================== NAMENODE FEDERATION ====================
+    // Several NameNodes each own the namespace below one or more path prefixes
+    // and share the DataNodes; each keeps its own journal, checkpoints and
+    // block pool. A path belongs to the NameNode of its longest mounted prefix,
+    // and everything not mounted elsewhere belongs to the root NameNode ("/").
+    static class MountTable {
+        private final Map<String, NameNode> mounts = new ConcurrentHashMap<>();
+        
+        public MountTable(NameNode root) {
+            mounts.put("/", root);
+        }
+        
+        // A driver's GPS segments span every hourly partition under /uber/gps and
+        // one NameNode keeps their index, so GPS data can only be mounted as a whole
+        static boolean isMountable(String prefix) {
+            String dir = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+            return !dir.startsWith(NameNode.GPS_ROOT + "/");
+        }
+        
+        // Mount file, one "<prefix> <namespace>" per line; the root namespace is implicit
+        public static Map<String, String> load(File config) throws IOException {
+            Map<String, String> entries = new LinkedHashMap<>();
+            if (!config.exists()) return entries;
+            for (String line : Files.readAllLines(config.toPath(), StandardCharsets.UTF_8)) {
+                int comment = line.indexOf('#');
+                String entry = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (entry.isEmpty()) continue;
+                String[] parts = entry.split("\\s+");
+                if (parts.length == 2 && parts[0].startsWith("/") && !parts[0].equals("/") && isMountable(parts[0])) {
+                    entries.put(parts[0], parts[1]);
+                } else {
+                    System.err.println("MountTable: Ignoring malformed line in " + config.getName() + ": " + line);
+                }
+            }
+            return entries;
+        }
+        
+        public synchronized void mount(String prefix, NameNode nameNode) {
+            if (!isMountable(prefix)) {
+                throw new IllegalArgumentException("Cannot mount " + prefix + ": mount " + NameNode.GPS_ROOT + " as a whole");
+            }
+            String dir = prefix.length() > 1 && prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+            mounts.put(dir, nameNode);
+            // Once DataNodes are shared, every NameNode must tell its blocks from the others'
+            for (NameNode member : getNameNodes()) {
+                member.setBlockPoolFilter(blockPoolFilter(member.getBlockPoolId()));
+            }
+            System.out.println("MountTable: " + dir + " -> " + describe(nameNode));
+        }
+        
+        // Points the mounts of a failed NameNode at the one that took over from it
+        public synchronized void replace(NameNode failed, NameNode successor) {
+            mounts.replaceAll((prefix, nameNode) -> nameNode == failed ? successor : nameNode);
+        }
+        
+        public NameNode getRoot() {
+            return mounts.get("/");
+        }
+        
+        public NameNode resolve(String path) {
+            if (mounts.size() == 1) return getRoot();
+            String dir = path.startsWith(NameNode.CONTAINER_ROOT + "/") ? path.substring(NameNode.CONTAINER_ROOT.length()) : path;
+            while (!dir.isEmpty()) {
+                NameNode owner = mounts.get(dir);
+                if (owner != null) return owner;
+                dir = dir.substring(0, Math.max(0, dir.lastIndexOf('/')));
+            }
+            return getRoot();
+        }
+        
+        // Every NameNode once, the root first
+        public List<NameNode> getNameNodes() {
+            List<NameNode> nameNodes = new ArrayList<>();
+            nameNodes.add(getRoot());
+            for (NameNode nameNode : mounts.values()) {
+                if (!nameNodes.contains(nameNode)) nameNodes.add(nameNode);
+            }
+            return nameNodes;
+        }
+        
+        public Map<String, String> getMounts() {
+            Map<String, String> view = new TreeMap<>();
+            mounts.forEach((prefix, nameNode) -> view.put(prefix, describe(nameNode)));
+            return view;
+        }
+        
+        // Pool-tagged block IDs name their pool; path-derived ones (small-file
+        // containers, GPS segments, files written before numeric IDs) start with
+        // the path of their file, which the mount table resolves
+        public Predicate<String> blockPoolFilter(String blockPoolId) {
+            return blockId -> {
+                String pool = NameNode.blockPoolOf(blockId);
+                return blockPoolId.equals(pool != null ? pool : resolve(blockId).getBlockPoolId());
+            };
+        }
+        
+        private static String describe(NameNode nameNode) {
+            return nameNode.getBlockPoolId().isEmpty() ? "root" : nameNode.getBlockPoolId();
+        }
+    }
+    
+    // ==================== UBER HDFS CLIENT ====================
+    // One ride for UberHDFSClient.storeRideBatch
+    static class RideRecord {
+        final String rideId, riderName, driverName, pickup, destination;
+        final double fare;
+        
+        public RideRecord(String rideId, String riderName, String driverName, String pickup, String destination, double fare) {
+            this.rideId = rideId;
+            this.riderName = riderName;
+            this.driverName = driverName;
+            this.pickup = pickup;
+            this.destination = destination;
+            this.fare = fare;
+        }
+    }
+    
+    // One GPS fix for UberHDFSClient.storeGPSBatch
+    static class GPSPoint {
+        final String driverId;
+        final double lat, lon;
+        final long timestamp;
+        
+        public GPSPoint(String driverId, double lat, double lon, long timestamp) {
+            this.driverId = driverId;
+            this.lat = lat;
+            this.lon = lon;
+            this.timestamp = timestamp;
+        }
+        
+        // "GPS_DATA|driverId|lat|lon|timestamp" as stored in GPS segments, or null
+        static GPSPoint parse(String line) {
+            String[] parts = line.split("\\|");
+            if (parts.length != 5 || !parts[0].equals("GPS_DATA")) return null;
+            try {
+                return new GPSPoint(parts[1], Double.parseDouble(parts[2]), Double.parseDouble(parts[3]), Long.parseLong(parts[4].trim()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%s@%d(%.6f,%.6f)", driverId, timestamp, lat, lon);
+        }
+    }
+    
+    // Outcome of one batch call: which records failed, and how long it took.
+    // Counts are in records (rides or GPS points); failed names what failed, which
+    // for a GPS batch is the drivers whose points were refused.
+    static class BatchResult {
+        private final int records;
+        private final int failedRecords;
+        private final List<String> failed;
+        private final long bytes;
+        private final long nanos;
+        
+        BatchResult(int records, int failedRecords, List<String> failed, long bytes, long nanos) {
+            this.records = records;
+            this.failedRecords = failedRecords;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+        
+        public int getRecords() { return records; }
+        public int getSucceeded() { return records - failedRecords; }
+        public int getFailedRecords() { return failedRecords; }
+        public List<String> getFailed() { return failed; }
+        public long getBytes() { return bytes; }
+        public long getLatencyMicros() { return nanos / 1000; }
+        public double getRecordsPerSecond() { return records / Math.max(1e-9, nanos / 1e9); }
+        
+        @Override
+        public String toString() {
+            return String.format("%d/%d records, %d bytes in %.2f ms (%.0f records/s)", getSucceeded(), records, bytes,
+                                 nanos / 1e6, getRecordsPerSecond());
+        }
+    }
+    
+    static class UberHDFSClient {
+        // Each call goes to the NameNode that owns its path
+        private final MountTable mounts;
+        
+        // Asynchronous calls run on the client's pool. At most maxInFlightRecords
+        // records are outstanding; further calls block the caller until earlier
+        // ones complete, so a fast producer cannot queue unbounded work.
+        private final ExecutorService asyncExecutor;
+        private final int maxInFlightRecords;
+        private final Semaphore inFlightRecords;
+        private final LatencyHistogram batchLatency = new LatencyHistogram();
+        private final LongAdder batchRecords = new LongAdder();
+        private final LongAdder batchBytes = new LongAdder();
+        private final LongAdder batchFailures = new LongAdder();
+        private final LongAdder batchNanos = new LongAdder();
+        
+        public UberHDFSClient(NameNode nameNode) {
+            this(nameNode, 4, 10_000);
+        }
+        
+        public UberHDFSClient(NameNode nameNode, int asyncThreads, int maxInFlightRecords) {
+            this(new MountTable(nameNode), asyncThreads, maxInFlightRecords);
+        }
+        
+        public UberHDFSClient(MountTable mounts, int asyncThreads, int maxInFlightRecords) {
+            this.mounts = mounts;
+            this.maxInFlightRecords = maxInFlightRecords;
+            this.inFlightRecords = new Semaphore(maxInFlightRecords);
+            this.asyncExecutor = Executors.newFixedThreadPool(asyncThreads, r -> {
+                Thread t = new Thread(r, "hdfs-client-async");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        
+        private static String formatRide(String rideId, String riderName, String driverName, 
+                                         String pickup, String destination, double fare) {
+            return String.format("RIDE_DATA|%s|%s|%s|%s|%s|%.2f|%d\n", 
+                                 rideId, riderName, driverName, pickup, destination, fare, System.currentTimeMillis());
+        }
+        
+        private static String formatGPS(String driverId, double lat, double lon, long timestamp) {
+            return String.format("GPS_DATA|%s|%.6f|%.6f|%d\n", driverId, lat, lon, timestamp);
+        }
+        
+        public boolean storeRideData(String rideId, String riderName, String driverName, 
+                                   String pickup, String destination, double fare) {
+            String rideData = formatRide(rideId, riderName, driverName, pickup, destination, fare);
+            
+            String fileName = "/uber/rides/" + rideId + ".txt";
+            return resolve(fileName).writeSmallFile(fileName, rideData.getBytes(), "uber_system");
+        }
+        
+        public boolean storeDriverData(String driverId, String name, String location, String vehicle) {
+            String driverData = String.format("DRIVER_DATA|%s|%s|%s|%s|%d\n", 
+                                            driverId, name, location, vehicle, System.currentTimeMillis());
+            
+            // Re-registering a driver replaces the profile, packed like a ride record
+            String fileName = "/uber/drivers/" + driverId + ".txt";
+            return resolve(fileName).overwriteSmallFile(fileName, driverData.getBytes(), "uber_system");
+        }
+        
+        public boolean storeGPSData(String driverId, double lat, double lon) {
+            String gpsData = formatGPS(driverId, lat, lon, System.currentTimeMillis());
+            
+            // Appended to the driver's open segment under /uber/gps/<hour>/<driverId>/
+            return resolve(NameNode.GPS_ROOT).appendGPSRecord(driverId, gpsData.getBytes());
+        }
+        
+        public List<String> listGPSSegments(String driverId) {
+            return resolve(NameNode.GPS_ROOT).listGPSSegments(driverId);
+        }
+        
+        // Where the driver was between fromMillis and toMillis (inclusive), oldest point first
+        public List<GPSPoint> queryGPSRange(String driverId, long fromMillis, long toMillis) throws IOException {
+            return resolve(NameNode.GPS_ROOT).queryGPSRange(driverId, fromMillis, toMillis);
+        }
+        
+        public String getRideData(String rideId) {
+            String fileName = "/uber/rides/" + rideId + ".txt";
+            byte[] data = resolve(fileName).readFile(fileName);
+            return data != null ? new String(data) : null;
+        }
+        
+        public String getDriverData(String driverId) {
+            String fileName = "/uber/drivers/" + driverId + ".txt";
+            byte[] data = resolve(fileName).readFile(fileName);
+            return data != null ? new String(data) : null;
+        }
+        
+        public InputStream openRideData(String rideId) throws IOException {
+            return openFile("/uber/rides/" + rideId + ".txt");
+        }
+        
+        public InputStream openFile(String fileName) throws IOException {
+            return resolve(fileName).openFile(fileName);
+        }
+        
+        public long transferFile(String fileName, WritableByteChannel target) throws IOException {
+            return resolve(fileName).transferFile(fileName, target);
+        }
+        
+        public List<String> listAllRides() {
+            return resolve("/uber/rides").listDirectory("/uber/rides");
+        }
+        
+        public List<String> listRides(String startAfter, int limit) {
+            return resolve("/uber/rides").listDirectory("/uber/rides", startAfter, limit);
+        }
+        
+        public long countRides() {
+            return resolve("/uber/rides").countFiles("/uber/rides");
+        }
+        
+        public List<String> listAllDrivers() {
+            return resolve("/uber/drivers").listDirectory("/uber/drivers");
+        }
+        
+        public List<String> listDrivers(String startAfter, int limit) {
+            return resolve("/uber/drivers").listDirectory("/uber/drivers", startAfter, limit);
+        }
+        
+        public long countDrivers() {
+            return resolve("/uber/drivers").countFiles("/uber/drivers");
+        }
+        
+        // The root NameNode, which owns every path not mounted elsewhere
+        public NameNode getNameNode() {
+            return mounts.getRoot();
+        }
+        
+        public NameNode resolve(String path) {
+            return mounts.resolve(path);
+        }
+        
+        public List<NameNode> getNameNodes() {
+            return mounts.getNameNodes();
+        }
+        
+        public boolean writeFile(String fileName, byte[] data, String owner) {
+            return resolve(fileName).writeFile(fileName, data, owner);
+        }
+        
+        public byte[] readFile(String fileName) {
+            return resolve(fileName).readFile(fileName);
+        }
+        
+        public boolean deleteFile(String fileName) {
+            return resolve(fileName).deleteFile(fileName);
+        }
+        
+        public boolean appendFile(String fileName, byte[] data) {
+            return resolve(fileName).appendFile(fileName, data);
+        }
+        
+        public boolean overwriteFile(String fileName, byte[] data, String owner) {
+            return resolve(fileName).overwriteFile(fileName, data, owner);
+        }
+        
+        // DataNodes are shared, so every namespace re-replicates its own blocks
+        public int markDataNodeDead(String dataNodeId) {
+            int queued = 0;
+            for (NameNode nameNode : getNameNodes()) queued += nameNode.markDataNodeDead(dataNodeId);
+            return queued;
+        }
+        
+        public void markDataNodeAlive(String dataNodeId) {
+            for (NameNode nameNode : getNameNodes()) nameNode.markDataNodeAlive(dataNodeId);
+        }
+        
+        // Starts the balancer unless it is already running; thresholdPercent is the
+        // allowed distance of a DataNode's utilization from the cluster average
+        // The root namespace's balancer moves the root block pool only
+        public boolean balanceCluster(double thresholdPercent) {
+            return getNameNode().getBalancer().start(thresholdPercent);
+        }
+        
+        public Map<String, Object> getBalancerStatus() {
+            return getNameNode().getBalancer().getStatus();
+        }
+        
+        // ---- Asynchronous and batched calls ----
+        
+        public CompletableFuture<Boolean> storeRideDataAsync(String rideId, String riderName, String driverName, 
+                                                             String pickup, String destination, double fare) {
+            return submit(1, () -> storeRideData(rideId, riderName, driverName, pickup, destination, fare));
+        }
+        
+        public CompletableFuture<Boolean> storeDriverDataAsync(String driverId, String name, String location, String vehicle) {
+            return submit(1, () -> storeDriverData(driverId, name, location, vehicle));
+        }
+        
+        public CompletableFuture<Boolean> storeGPSDataAsync(String driverId, double lat, double lon) {
+            return submit(1, () -> storeGPSData(driverId, lat, lon));
+        }
+        
+        public CompletableFuture<String> getRideDataAsync(String rideId) {
+            return submit(1, () -> getRideData(rideId));
+        }
+        
+        public CompletableFuture<String> getDriverDataAsync(String driverId) {
+            return submit(1, () -> getDriverData(driverId));
+        }
+        
+        // All rides are packed into the rides container together, so they share its
+        // blocks and are committed to the journal as one edit
+        public CompletableFuture<BatchResult> storeRideBatch(List<RideRecord> rides) {
+            return submit(rides.size(), () -> {
+                long start = System.nanoTime();
+                Map<String, byte[]> files = new LinkedHashMap<>();
+                List<String> failed = new ArrayList<>();
+                long bytes = 0;
+                for (RideRecord ride : rides) {
+                    byte[] data = formatRide(ride.rideId, ride.riderName, ride.driverName, 
+                                             ride.pickup, ride.destination, ride.fare).getBytes();
+                    String fileName = "/uber/rides/" + ride.rideId + ".txt";
+                    if (files.putIfAbsent(fileName, data) != null) failed.add(fileName); // repeated within the batch
+                    bytes += data.length;
+                }
+                for (Map.Entry<String, Boolean> result : resolve("/uber/rides").writeSmallFiles(files, "uber_system").entrySet()) {
+                    if (!result.getValue()) failed.add(result.getKey());
+                }
+                return recordBatch(rides.size(), failed.size(), failed, bytes, start);
+            });
+        }
+        
+        // Points are grouped per driver and each driver's group is one append to
+        // its open GPS segment
+        public CompletableFuture<BatchResult> storeGPSBatch(List<GPSPoint> points) {
+            return submit(points.size(), () -> {
+                long start = System.nanoTime();
+                Map<String, StringBuilder> byDriver = new LinkedHashMap<>();
+                Map<String, Integer> pointsByDriver = new HashMap<>();
+                for (GPSPoint point : points) {
+                    byDriver.computeIfAbsent(point.driverId, id -> new StringBuilder())
+                            .append(formatGPS(point.driverId, point.lat, point.lon, point.timestamp));
+                    pointsByDriver.merge(point.driverId, 1, Integer::sum);
+                }
+                List<String> failed = new ArrayList<>();
+                int failedPoints = 0;
+                long bytes = 0;
+                for (Map.Entry<String, StringBuilder> entry : byDriver.entrySet()) {
+                    byte[] data = entry.getValue().toString().getBytes();
+                    bytes += data.length;
+                    if (!resolve(NameNode.GPS_ROOT).appendGPSRecord(entry.getKey(), data)) {
+                        failed.add(entry.getKey());
+                        failedPoints += pointsByDriver.get(entry.getKey());
+                    }
+                }
+                return recordBatch(points.size(), failedPoints, failed, bytes, start);
+            });
+        }
+        
+        private BatchResult recordBatch(int records, int failedRecords, List<String> failed, long bytes, long start) {
+            long nanos = System.nanoTime() - start;
+            batchLatency.record(nanos);
+            batchRecords.add(records);
+            batchBytes.add(bytes);
+            batchFailures.add(failedRecords);
+            batchNanos.add(nanos);
+            return new BatchResult(records, failedRecords, failed, bytes, nanos);
+        }
+        
+        private <T> CompletableFuture<T> submit(int records, Supplier<T> call) {
+            int permits = Math.min(records, maxInFlightRecords);
+            try {
+                inFlightRecords.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(e);
+            }
+            try {
+                return CompletableFuture.supplyAsync(call, asyncExecutor)
+                                        .whenComplete((result, error) -> inFlightRecords.release(permits));
+            } catch (RejectedExecutionException e) {
+                inFlightRecords.release(permits);
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        
+        public Map<String, Object> getBatchStats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            long records = batchRecords.sum();
+            stats.put("batches", batchLatency.getCount());
+            stats.put("batchRecords", records);
+            stats.put("batchBytes", batchBytes.sum());
+            stats.put("batchFailures", batchFailures.sum());
+            stats.put("batchP50Micros", batchLatency.percentileMicros(0.50));
+            stats.put("batchP99Micros", batchLatency.percentileMicros(0.99));
+            stats.put("batchRecordsPerSecond", Math.round(records / Math.max(1e-9, batchNanos.sum() / 1e9)));
+            stats.put("inFlightRecords", maxInFlightRecords - inFlightRecords.availablePermits());
+            return stats;
+        }
+        
+        // Waits for outstanding asynchronous calls to finish
+        public void shutdown() {
+            asyncExecutor.shutdown();
+            try {
+                asyncExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    // ==================== MAIN HDFS SYSTEM ====================
+    private volatile NameNode nameNode;
+    private volatile NameNode standbyNameNode;
+    private final MountTable mountTable;
+    private final List<DataNode> dataNodes;
+    private final UberHDFSClient client;
+    private final File basePath;
+    private final File nameNodeDir;
+    private final int blockSize;
+    
+    public UberHDFS() {
+        // Base path for persisted HDFS data; the application runs a standby NameNode
+        this(new File("UberSystem" + File.separator + "hdfs_data"), 1024, true);
+    }
+    
+    public UberHDFS(File basePath) {
+        this(basePath, 1024);
+    }
+    
+    public UberHDFS(File basePath, int blockSize) {
+        this(basePath, blockSize, false);
+    }
+    
+    public UberHDFS(File basePath, int blockSize, boolean withStandby) {
+        this(basePath, blockSize, withStandby, loadMounts(basePath));
+    }
+    
+    // mounts maps path prefixes to namespace names; each namespace gets its own
+    // NameNode (metadata in namenode-<name>, block pool <name>) and the root
+    // NameNode keeps everything else
+    public UberHDFS(File basePath, int blockSize, boolean withStandby, Map<String, String> mounts) {
+        for (String prefix : mounts.keySet()) {
+            if (!MountTable.isMountable(prefix)) {
+                throw new IllegalArgumentException("Cannot mount " + prefix + ": mount " + NameNode.GPS_ROOT + " as a whole");
+            }
+        }
+        this.basePath = basePath;
+        this.blockSize = blockSize;
+        if (!basePath.exists()) basePath.mkdirs();
+
+        // Prepare namenode metadata dir
+        this.nameNodeDir = new File(basePath, "namenode");
+        if (!nameNodeDir.exists()) nameNodeDir.mkdirs();
+
+        // Initialize HDFS with replication factor and block size (and meta dir)
+        this.nameNode = new NameNode(nameNodeDir, 2, blockSize);
+        this.dataNodes = new ArrayList<>();
+        configure(nameNode);
+        
+        this.mountTable = new MountTable(nameNode);
+        Map<String, NameNode> namespaces = new HashMap<>();
+        for (Map.Entry<String, String> mount : mounts.entrySet()) {
+            NameNode owner = namespaces.computeIfAbsent(mount.getValue(), name -> {
+                NameNode federated = new NameNode(new File(basePath, "namenode-" + name), 2, blockSize, HAState.ACTIVE, name);
+                configure(federated);
+                return federated;
+            });
+            mountTable.mount(mount.getKey(), owner);
+        }
+
+        // Create 3 DataNodes with on-disk storage
+        File dn1 = new File(basePath, "datanode1"); dn1.mkdirs();
+        File dn2 = new File(basePath, "datanode2"); dn2.mkdirs();
+        File dn3 = new File(basePath, "datanode3"); dn3.mkdirs();
+
+        dataNodes.add(new DataNode("datanode1", "localhost", 9001, 10 * 1024 * 1024, dn1)); // 10MB
+        dataNodes.add(new DataNode("datanode2", "localhost", 9002, 10 * 1024 * 1024, dn2)); // 10MB
+        dataNodes.add(new DataNode("datanode3", "localhost", 9003, 10 * 1024 * 1024, dn3)); // 10MB
+
+        // Register DataNodes with every NameNode; each registration carries a block report
+        for (NameNode owner : mountTable.getNameNodes()) {
+            for (DataNode node : dataNodes) {
+                owner.registerDataNode(node);
+            }
+            String pool = owner.getBlockPoolId();
+            System.out.println("Block reconciliation" + (pool.isEmpty() ? "" : " (" + pool + ")") + ": " + owner.reconcileBlocks());
+        }
+        if (withStandby) startStandbyNameNode();
+
+        this.client = new UberHDFSClient(mountTable, 4, 10_000);
+
+        System.out.println("Uber HDFS initialized successfully! Data stored under: " + basePath.getAbsolutePath());
+    }
+    
+    public UberHDFSClient getClient() {
+        return client;
+    }
+    
+    public NameNode getNameNode() {
+        return nameNode;
+    }
+    
+    public NameNode getStandbyNameNode() {
+        return standbyNameNode;
+    }
+    
+    public MountTable getMountTable() {
+        return mountTable;
+    }
+    
+    private static Map<String, String> loadMounts(File basePath) {
+        File mountFile = new File(basePath, "mounts.conf");
+        try {
+            return MountTable.load(mountFile);
+        } catch (IOException e) {
+            System.err.println("Failed to load " + mountFile.getAbsolutePath() + ": " + e.getMessage());
+            return new LinkedHashMap<>();
+        }
+    }
+    
+    // Policies are not journaled, so every NameNode gets the same ones
+    private void configure(NameNode node) {
+        // Backups and logs are rarely read: stripe them RS(2,1) across the 3 DataNodes
+        node.setStoragePolicy("/backup", ErasureCodingPolicy.RS_2_1);
+        node.setStoragePolicy("/logs", ErasureCodingPolicy.RS_2_1);
+        
+        // Text records compress well: fast LZ where reads are frequent, deflate for cold data
+        node.setCompressionPolicy("/uber/rides", LzCodec.INSTANCE);
+        node.setCompressionPolicy("/uber/drivers", LzCodec.INSTANCE);
+        node.setCompressionPolicy("/uber/gps", LzCodec.INSTANCE);
+        node.setCompressionPolicy("/backup", DeflateCodec.DEFAULT);
+        node.setCompressionPolicy("/logs", DeflateCodec.DEFAULT);
+        node.setDeduplication("/backup", true);
+        
+        // Rack/zone locations of the DataNodes, one "<nodeId> /zone/rack" per line
+        File topologyFile = new File(basePath, "topology.conf");
+        if (topologyFile.exists()) {
+            try {
+                node.setPlacementPolicy(new RackAwarePlacement(NetworkTopology.load(topologyFile)));
+            } catch (IOException e) {
+                System.err.println("Failed to load " + topologyFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    // Starts a standby for the root NameNode on the shared metadata directory
+    // (again after a failover)
+    public synchronized NameNode startStandbyNameNode() {
+        if (standbyNameNode != null) return standbyNameNode;
+        NameNode standby = new NameNode(nameNodeDir, 2, blockSize, HAState.STANDBY);
+        configure(standby);
+        if (mountTable.getNameNodes().size() > 1) standby.setBlockPoolFilter(mountTable.blockPoolFilter(""));
+        for (DataNode node : dataNodes) {
+            standby.registerDataNode(node);
+        }
+        standbyNameNode = standby;
+        return standby;
+    }
+    
+    // Fences the active NameNode and promotes the standby; the client follows the
+    // new active. Returns the time from fencing to the standby serving writes, in ms.
+    // GPS points wait in memory until their segment ships, so an active that is
+    // still up ships its open tails first and the standby replays them. An active
+    // that already died takes its unshipped points with it, and so do points
+    // accepted between the hand-over and the fence: GPS ingest is at-most-once
+    // across a failover.
+    public synchronized long failoverNameNode() throws IOException {
+        NameNode standby = standbyNameNode;
+        if (standby == null) throw new IllegalStateException("No standby NameNode to fail over to");
+        NameNode failed = nameNode;
+        if (failed.getHAState() == HAState.ACTIVE) failed.sealOpenGPSSegments();
+        long start = System.nanoTime();
+        failed.fence();
+        standby.transitionToActive();
+        nameNode = standby;
+        standbyNameNode = null;
+        mountTable.replace(failed, standby);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        
+        failed.shutdown();
+        return millis;
+    }
+    
+    public List<DataNode> getDataNodes() {
+        return new ArrayList<>(dataNodes);
+    }
+    
+    public void shutdown() {
+        client.shutdown();
+        NameNode standby = standbyNameNode;
+        if (standby != null) standby.shutdown();
+        // The root NameNode goes last: the shared DataNodes stay open for the others' final writes
+        List<NameNode> nameNodes = mountTable.getNameNodes();
+        for (int i = nameNodes.size() - 1; i >= 0; i--) {
+            nameNodes.get(i).shutdown();
+        }
+    }
+    
+    public void printClusterStatus() {
+        System.out.println("\n=== UBER HDFS CLUSTER STATUS ===");
+        Map<String, Object> status = nameNode.getClusterStatus();
+        
+        System.out.println("Files: " + status.get("totalFiles"));
+        NameNode standby = standbyNameNode;
+        System.out.println("NameNode: active at txId " + nameNode.getLastTxId() + ", standby " + 
+                         (standby != null ? "at txId " + standby.getLastTxId() : "none"));
+        List<NameNode> nameNodes = mountTable.getNameNodes();
+        if (nameNodes.size() > 1) {
+            StringBuilder namespaces = new StringBuilder();
+            for (NameNode owner : nameNodes.subList(1, nameNodes.size())) {
+                namespaces.append(", ").append(owner.getBlockPoolId()).append(" (").append(owner.getClusterStatus().get("totalFiles"))
+                          .append(" files, txId ").append(owner.getLastTxId()).append(")");
+            }
+            System.out.println("Namespaces: root" + namespaces + "; mounts " + mountTable.getMounts());
+        }
+        System.out.println("DataNodes: " + status.get("activeDataNodes") + "/" + status.get("totalDataNodes"));
+        System.out.println("Blocks: " + status.get("totalBlocks"));
+        System.out.println("Storage: " + status.get("usedSpaceMB") + "MB used / " + 
+                         status.get("totalCapacityMB") + "MB total");
+        System.out.println("DataNode writes: " + status.get("dataNodeDurability") + ", " + status.get("dataNodeSyncs") + 
+                         " syncs (" + status.get("dataNodeWritesPerSync") + " writes per sync)");
+        System.out.println("Compression: " + status.get("compressionRatio") + "x (" + 
+                         status.get("compressedRawBytes") + " -> " + status.get("compressedStoredBytes") + " bytes), " + 
+                         status.get("compressionCodecs"));
+        System.out.println("Deduplication: " + status.get("dedupBlocks") + " content blocks, " + 
+                         status.get("dedupSharedBlocks") + " shared, " + status.get("dedupBlocksReused") + 
+                         " reused (" + status.get("dedupBytesSaved") + " bytes not rewritten)");
+        System.out.println("GPS index: " + status.get("gpsIndex"));
+        System.out.println("Block reads: p50 " + status.get("readP50Micros") + " us, p99 " + 
+                         status.get("readP99Micros") + " us, hedged " + status.get("hedgedReads") + 
+                         " (" + status.get("hedgedReadWins") + " won by the hedge)");
+        
+        System.out.println("\nDataNode Details:");
+        for (DataNode node : dataNodes) {
+            Map<String, Integer> summary = node.getBlockSummary();
+            System.out.println("  " + node.getNodeId() + ": " + 
+                             summary.get("totalBlocks") + " blocks, " +
+                             summary.get("usedSpaceMB") + "MB used, " +
+                             summary.get("freeSpaceMB") + "MB free, startup scan " + 
+                             node.getLastScanMillis() + " ms");
+            BlockCache cache = node.getCache();
+            System.out.printf("    cache: %d/%d KB, hits=%d, misses=%d, evictions=%d, hit ratio %.1f%%%n",
+                              cache.getUsedBytes() / 1024, cache.getCapacityBytes() / 1024, cache.getHits(),
+                              cache.getMisses(), cache.getEvictions(), cache.getHitRatio() * 100);
+        }
+        System.out.println("================================\n");
+    }
+    
+    // ==================== BENCHMARKS ====================
+    // Run with: java UberHDFS bench <name>. Each benchmark uses a scratch directory.
+    
+    static File createScratchDir(String name) throws IOException {
+        return Files.createTempDirectory("uberhdfs-" + name).toFile();
+    }
+    
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+    
+    // Benchmarks and checks mute the cluster's logging while they run and print
+    // only their own results
+    private static final PrintStream CONSOLE = System.out;
+    
+    static void muteOutput() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+    
+    static void restoreOutput() {
+        System.setOut(CONSOLE);
+    }
+    
+    static long countFiles(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) return 0;
+        long count = 0;
+        for (File child : children) {
+            count += child.isDirectory() ? countFiles(child) : 1;
+        }
+        return count;
+    }
+    
+    // Bytes the files under dir occupy with 4KB filesystem blocks
+    static long diskBytes(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) return 0;
+        long bytes = 0;
+        for (File child : children) {
+            bytes += child.isDirectory() ? diskBytes(child) : (child.length() + 4095) / 4096 * 4096;
+        }
+        return bytes;
+    }
+    
+    // Per-point files vs. append-only segments for the same GPS stream
+    static void benchmarkGPSIngest(int drivers, int pointsPerDriver) throws IOException {
+        String[] modes = {"file-per-point", "segment-log"};
+        
+        for (String mode : modes) {
+            File dir = createScratchDir("gps");
+            UberHDFS hdfs = new UberHDFS(dir);
+            UberHDFSClient client = hdfs.getClient();
+            
+            muteOutput();
+            long start = System.nanoTime();
+            for (int p = 0; p < pointsPerDriver; p++) {
+                for (int d = 0; d < drivers; d++) {
+                    String driverId = "DRIVER" + d;
+                    if (mode.equals("segment-log")) {
+                        client.storeGPSData(driverId, 40.0 + p * 1e-5, -74.0 + d * 1e-5);
+                    } else {
+                        String gpsData = String.format("GPS_DATA|%s|%.6f|%.6f|%d\n", 
+                                                     driverId, 40.0 + p * 1e-5, -74.0 + d * 1e-5, System.currentTimeMillis());
+                        hdfs.getNameNode().writeFile("/uber/gps/" + driverId + "_" + p + ".txt", gpsData.getBytes(), "uber_system");
+                    }
+                }
+            }
+            hdfs.shutdown();
+            long elapsed = System.nanoTime() - start;
+            restoreOutput();
+            
+            int points = drivers * pointsPerDriver;
+            System.out.printf("%-15s points=%d  hdfsFiles=%d  osFiles=%d  %.0f points/s%n",
+                              mode, points, hdfs.getNameNode().listFiles().size(), countFiles(dir),
+                              points / (elapsed / 1e9));
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Journal throughput with concurrent writers, then restart from the full journal
+    // versus restart from a checkpoint
+    static void benchmarkNameNodeRestart(int files, int threads) throws Exception {
+        File dir = createScratchDir("restart");
+        
+        NameNode nameNode = new NameNode(dir, 2, 1024);
+        nameNode.setCheckpointPeriod(Long.MAX_VALUE, Long.MAX_VALUE);
+        
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = thread; i < files; i += threads) {
+                    String fileName = "/uber/rides/RIDE" + i + ".txt";
+                    String blockId = nameNode.newBlockId();
+                    HDFSBlock block = new HDFSBlock(blockId, 80);
+                    block.addReplica("datanode1");
+                    block.addReplica("datanode2");
+                    FileMetadata metadata = new FileMetadata(fileName, 80, "uber_system");
+                    metadata.addBlock(blockId);
+                    nameNode.blockLocations.put(blockId, block);
+                    nameNode.putFile(metadata);
+                    nameNode.logEdit(EditLog.OP_ADD_FILE, nameNode.encodeFile(metadata));
+                }
+            }));
+        }
+        for (Future<?> f : futures) f.get();
+        long journalNanos = System.nanoTime() - start;
+        pool.shutdown();
+        nameNode.maintenanceExecutor.shutdownNow();
+        nameNode.fileSystem.clear();
+        nameNode.namespace.clear();
+        nameNode.blockLocations.clear();
+        
+        System.out.printf("journal: %d edits from %d threads in %d ms (%.0f edits/s, %d fsyncs)%n",
+                          files, threads, journalNanos / 1_000_000, files / (journalNanos / 1e9),
+                          nameNode.editLog.getSyncCount());
+        
+        muteOutput();
+        NameNode fromJournal = new NameNode(dir, 2, 1024);
+        restoreOutput();
+        System.out.printf("restart from journal only: %d files, %d edits replayed in %d ms%n",
+                          fromJournal.listFiles().size(), fromJournal.getReplayedEdits(), fromJournal.getStartupMillis());
+        
+        muteOutput();
+        fromJournal.shutdown(); // writes a checkpoint
+        fromJournal = null;
+        System.gc();
+        NameNode fromImage = new NameNode(dir, 2, 1024);
+        restoreOutput();
+        System.out.printf("restart from checkpoint:   %d files, %d edits replayed in %d ms%n",
+                          fromImage.listFiles().size(), fromImage.getReplayedEdits(), fromImage.getStartupMillis());
+        
+        fromImage.maintenanceExecutor.shutdownNow();
+        deleteRecursively(dir);
+    }
+    
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    // Heap allocated per read path for one large multi-block file
+    static void benchmarkStreamingRead(int fileKB) throws Exception {
+        File dir = createScratchDir("read");
+        muteOutput();
+        UberHDFS hdfs = new UberHDFS(dir, 64 * 1024);
+        NameNode nameNode = hdfs.getNameNode();
+        byte[] data = new byte[fileKB * 1024];
+        new Random(42).nextBytes(data);
+        nameNode.writeFile("/uber/archive/rides.bin", data, "uber_system");
+        
+        for (int round = 0; round < 3; round++) { // last round is reported
+            long before = allocatedBytes(), start = System.nanoTime();
+            byte[] copy = nameNode.readFile("/uber/archive/rides.bin");
+            long readFileAlloc = allocatedBytes() - before, readFileNanos = System.nanoTime() - start;
+            
+            byte[] chunk = new byte[64 * 1024];
+            before = allocatedBytes();
+            start = System.nanoTime();
+            long streamed = 0;
+            try (InputStream in = nameNode.openFile("/uber/archive/rides.bin")) {
+                int n;
+                while ((n = in.read(chunk)) > 0) streamed += n;
+            }
+            long streamAlloc = allocatedBytes() - before, streamNanos = System.nanoTime() - start;
+            
+            before = allocatedBytes();
+            start = System.nanoTime();
+            long transferred;
+            try (FileChannel sink = FileChannel.open(new File(dir, "sink.bin").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                transferred = nameNode.transferFile("/uber/archive/rides.bin", sink);
+            }
+            long transferAlloc = allocatedBytes() - before, transferNanos = System.nanoTime() - start;
+            
+            if (round == 2) {
+                restoreOutput();
+                System.out.printf("file: %d KB in %d blocks%n", fileKB, nameNode.getFileInfo("/uber/archive/rides.bin").getBlockIds().size());
+                System.out.printf("readFile     %8d bytes  heap allocated %,12d bytes  %6.1f ms%n", copy.length, readFileAlloc, readFileNanos / 1e6);
+                System.out.printf("openFile     %8d bytes  heap allocated %,12d bytes  %6.1f ms%n", streamed, streamAlloc, streamNanos / 1e6);
+                System.out.printf("transferFile %8d bytes  heap allocated %,12d bytes  %6.1f ms%n", transferred, transferAlloc, transferNanos / 1e6);
+                muteOutput();
+            }
+        }
+        hdfs.shutdown();
+        restoreOutput();
+        deleteRecursively(dir);
+    }
+    
+    // Multi-block file writes: the old one-replica-at-a-time loop against the
+    // parallel pipeline at several depths and both ack policies
+    static void benchmarkPipelinedWrites(int files, int fileKB) throws Exception {
+        byte[] data = new byte[fileKB * 1024];
+        new Random(7).nextBytes(data);
+        String[] modes = {"sequential", "pipeline-1/ALL", "pipeline-8/ALL", "pipeline-32/ALL", "pipeline-32/QUORUM"};
+        
+        for (String mode : modes) {
+            File dir = createScratchDir("write");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir, 16 * 1024);
+            NameNode nameNode = hdfs.getNameNode();
+            if (mode.startsWith("pipeline")) {
+                String[] parts = mode.substring(9).split("/");
+                nameNode.setMaxBlocksInFlight(Integer.parseInt(parts[0]));
+                nameNode.setWriteAckPolicy(WriteAckPolicy.valueOf(parts[1]));
+            }
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < files; i++) {
+                String fileName = "/uber/archive/batch_" + i + ".bin";
+                if (mode.equals("sequential")) {
+                    for (HDFSBlock block : nameNode.createBlocks(data, fileName, null)) {
+                        for (DataNode node : nameNode.selectDataNodes(nameNode.replicationFactor)) {
+                            node.storeBlock(block);
+                        }
+                    }
+                } else {
+                    nameNode.writeFile(fileName, data, "uber_system");
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            hdfs.shutdown();
+            restoreOutput();
+            
+            double mb = (double) files * data.length / (1024 * 1024);
+            System.out.printf("%-20s %d files x %d KB: %7.1f ms/file  %6.1f MB/s%n",
+                              mode, files, fileKB, elapsed / 1e6 / files, mb / (elapsed / 1e9));
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Flip a byte in one replica, read through it, then scrub at two rates
+    static void benchmarkScrubber(int files, int fileKB) throws Exception {
+        File dir = createScratchDir("scrub");
+        muteOutput();
+        UberHDFS hdfs = new UberHDFS(dir, 16 * 1024);
+        NameNode nameNode = hdfs.getNameNode();
+        byte[] data = new byte[fileKB * 1024];
+        new Random(3).nextBytes(data);
+        for (int i = 0; i < files; i++) {
+            nameNode.writeFile("/uber/archive/scrub_" + i + ".bin", data, "uber_system");
+        }
+        
+        // Corrupt the first replica of the first block of two files on disk;
+        // the first is caught by a read, the second is left for the scrubber
+        String blockId = null;
+        for (int i = 0; i < 2; i++) {
+            blockId = nameNode.getFileInfo("/uber/archive/scrub_" + (1 - i) + ".bin").getBlockIds().get(0);
+            DataNode victim = nameNode.dataNodes.get(nameNode.blockLocations.get(blockId).getReplicas().get(0));
+            victim.getCache().invalidate(blockId);
+            // Rewrite the replica with one byte flipped but the original checksums (bit rot)
+            BlockStore store = victim.getStore();
+            ByteBuffer rotten = store.read(blockId);
+            rotten.put(100, (byte) (rotten.get(100) ^ 0xFF));
+            store.write(blockId, rotten, store.checksums(blockId));
+        }
+        
+        byte[] read = nameNode.readFile("/uber/archive/scrub_0.bin");
+        restoreOutput();
+        System.out.println("read with corrupt first replica: " + (Arrays.equals(read, data) ? "correct data (failed over)" : "WRONG DATA") +
+                           ", replicas now " + nameNode.blockLocations.get(blockId).getReplicas());
+        
+        for (long rate : new long[]{512 * 1024, 64L * 1024 * 1024}) {
+            nameNode.setScrubRate(rate);
+            muteOutput();
+            ScrubReport report = nameNode.scrubBlocks();
+            restoreOutput();
+            System.out.printf("scrub limited to %6d KB/s: %s%n", rate / 1024, report);
+        }
+        
+        muteOutput();
+        hdfs.shutdown();
+        restoreOutput();
+        deleteRecursively(dir);
+    }
+    
+    // Kill one DataNode and time how long the monitor takes to restore replication
+    static void benchmarkReReplication(int files, int fileKB) throws Exception {
+        byte[] data = new byte[fileKB * 1024];
+        new Random(11).nextBytes(data);
+        
+        for (long rate : new long[]{2L * 1024 * 1024, 64L * 1024 * 1024}) {
+            File dir = createScratchDir("rereplicate");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir, 16 * 1024);
+            NameNode nameNode = hdfs.getNameNode();
+            for (int i = 0; i < files; i++) {
+                nameNode.writeFile("/uber/archive/replica_" + i + ".bin", data, "uber_system");
+            }
+            nameNode.getReplicationMonitor().setBandwidth(rate);
+            
+            int queued = nameNode.markDataNodeDead("datanode1");
+            long recoveryMillis = nameNode.getReplicationMonitor().awaitFullReplication(120_000);
+            BlockReconciliation after = nameNode.reconcileBlocks();
+            Map<String, Object> status = nameNode.getReplicationMonitor().getStatus();
+            hdfs.shutdown();
+            restoreOutput();
+            
+            System.out.printf("bandwidth %5d KB/s: %d blocks queued, %s bytes copied, full replication in %d ms (%s)%n",
+                              rate / 1024, queued, status.get("bytesReplicated"), recoveryMillis, after);
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Two empty DataNodes join a cluster whose three original nodes are ~40% full;
+    // the balancer evens them out at different thresholds and bandwidths
+    static void benchmarkBalancer(int files, int fileKB) throws Exception {
+        byte[] data = new byte[fileKB * 1024];
+        new Random(13).nextBytes(data);
+        
+        double[][] runs = {{10, 8}, {10, 64}, {2, 64}}; // threshold %, MB/s
+        for (double[] run : runs) {
+            File dir = createScratchDir("balancer");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir, 16 * 1024);
+            NameNode nameNode = hdfs.getNameNode();
+            for (int i = 0; i < files; i++) {
+                nameNode.writeFile("/uber/archive/balance_" + i + ".bin", data, "uber_system");
+            }
+            for (int i = 4; i <= 5; i++) {
+                File spareDir = new File(dir, "datanode" + i);
+                nameNode.registerDataNode(new DataNode("datanode" + i, "localhost", 9000 + i, 10 * 1024 * 1024, spareDir));
+            }
+            Map<String, Long> before = new TreeMap<>();
+            for (DataNode node : nameNode.getDataNodes()) before.put(node.getNodeId(), node.getUsedSpace() * 100 / node.getCapacity());
+            
+            Balancer balancer = nameNode.getBalancer();
+            balancer.setBandwidth((long) run[1] << 20);
+            balancer.start(run[0]);
+            balancer.awaitCompletion(120_000);
+            Map<String, Object> status = balancer.getStatus();
+            Map<String, Long> after = new TreeMap<>();
+            for (DataNode node : nameNode.getDataNodes()) after.put(node.getNodeId(), node.getUsedSpace() * 100 / node.getCapacity());
+            int readable = 0;
+            for (int i = 0; i < files; i++) {
+                if (Arrays.equals(data, nameNode.readFile("/uber/archive/balance_" + i + ".bin"))) readable++;
+            }
+            BlockReconciliation reconciliation = nameNode.reconcileBlocks();
+            hdfs.shutdown();
+            restoreOutput();
+            
+            System.out.printf("threshold %4.1f%%, %2.0f MB/s: used%% %s -> %s%n", run[0], run[1], before.values(), after.values());
+            System.out.printf("    %s blocks / %d KB moved in %d iterations at %d KB/s, max deviation %s%% -> %s%%, " +
+                              "%d/%d files intact (%s)%n", status.get("blocksMoved"), (Long) status.get("bytesMoved") / 1024,
+                              status.get("iteration"), (Long) status.get("bytesPerSecond") / 1024,
+                              status.get("initialDeviationPercent"), status.get("maxDeviationPercent"),
+                              readable, files, reconciliation);
+            deleteRecursively(dir);
+        }
+    }
+    
+    // GPS_DATA text written raw, with lz and with deflate, at the default 1KB
+    // block size and at 64KB: bytes on the DataNodes, write/read speed, CPU time
+    static void benchmarkCompression(int records) throws Exception {
+        Random random = new Random(17);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            text.append(String.format("GPS_DATA|DRIVER%03d|%.6f|%.6f|%d%n", i % 50, 37.7749 + random.nextGaussian() * 0.05,
+                                      -122.4194 + random.nextGaussian() * 0.05, 1792190000000L + i * 1000L));
+        }
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        int fileBytes = 256 * 1024, files = (data.length + fileBytes - 1) / fileBytes;
+        
+        for (int blockSize : new int[]{1024, 64 * 1024}) {
+            for (CompressionCodec codec : new CompressionCodec[]{null, LzCodec.INSTANCE, DeflateCodec.DEFAULT}) {
+                File dir = createScratchDir("compression");
+                muteOutput();
+                UberHDFS hdfs = new UberHDFS(dir, blockSize);
+                NameNode nameNode = hdfs.getNameNode();
+                nameNode.setCompressionPolicy("/uber/archive", codec);
+                
+                long start = System.nanoTime();
+                for (int i = 0; i < files; i++) {
+                    int from = i * fileBytes, to = Math.min(data.length, from + fileBytes);
+                    nameNode.writeFile("/uber/archive/gps_" + i + ".log", Arrays.copyOfRange(data, from, to), "uber_system");
+                }
+                long writeNanos = System.nanoTime() - start;
+                long stored = 0;
+                for (DataNode node : hdfs.getDataNodes()) stored += node.getUsedSpace();
+                
+                start = System.nanoTime();
+                boolean intact = true;
+                for (int i = 0; i < files; i++) {
+                    int from = i * fileBytes, to = Math.min(data.length, from + fileBytes);
+                    intact &= Arrays.equals(Arrays.copyOfRange(data, from, to), nameNode.readFile("/uber/archive/gps_" + i + ".log"));
+                }
+                long readNanos = System.nanoTime() - start;
+                Map<String, Object> status = nameNode.getClusterStatus();
+                hdfs.shutdown();
+                restoreOutput();
+                
+                System.out.printf("%2d KB blocks %-8s %6d KB raw x2 replicas -> %6d KB on DataNodes (%.2fx), write %5.1f MB/s, " +
+                                  "read %6.1f MB/s, compress %4d ms, decompress %4d ms, %s%n",
+                                  blockSize / 1024, codec != null ? codec.getName() : "none", 2 * data.length / 1024,
+                                  stored / 1024, 2.0 * data.length / stored, data.length / (writeNanos / 1e3),
+                                  data.length / (readNanos / 1e3), status.get("compressMillis"),
+                                  status.get("decompressMillis"), intact ? "intact" : "CORRUPT");
+                deleteRecursively(dir);
+            }
+        }
+    }
+    
+    // A ride ledger that only grows, backed up every round with the last `keep`
+    // backups retained, with and without deduplication on /backup: bytes on the
+    // DataNodes, readability after a restart, and space left once all are deleted
+    static void benchmarkDedup(int rounds, int keep) throws Exception {
+        for (boolean dedup : new boolean[]{false, true}) {
+            File dir = createScratchDir("dedup");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir);
+            NameNode nameNode = hdfs.getNameNode();
+            nameNode.setDeduplication("/backup", dedup);
+            long baseline = hdfs.getDataNodes().stream().mapToLong(DataNode::getUsedSpace).sum();
+            
+            Random random = new Random(17);
+            StringBuilder ledger = new StringBuilder();
+            Deque<String> retained = new ArrayDeque<>();
+            Map<String, byte[]> contents = new HashMap<>();
+            long written = 0, peak = 0;
+            int rides = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (int i = round == 0 ? 0 : 295; i < 300; i++) {
+                    String record = String.format("RIDE%06d|DRIVER%03d|%.6f|%.6f|%.6f|%.6f|%.2f|COMPLETED", rides, random.nextInt(50),
+                                                  37.7749 + random.nextGaussian() * 0.05, -122.4194 + random.nextGaussian() * 0.05,
+                                                  37.7749 + random.nextGaussian() * 0.05, -122.4194 + random.nextGaussian() * 0.05,
+                                                  5 + random.nextDouble() * 40);
+                    ledger.append("BACKUP_RIDE|/uber/rides/RIDE").append(String.format("%06d", rides++)).append(".txt|")
+                          .append(record.length()).append('\n').append(record).append('\n');
+                }
+                byte[] backup = ledger.toString().getBytes(StandardCharsets.UTF_8);
+                String fileName = String.format("/backup/rides/rides_%04d.bak", round);
+                nameNode.writeFile(fileName, backup, "backup_system");
+                written += backup.length;
+                retained.addLast(fileName);
+                contents.put(fileName, backup);
+                if (retained.size() > keep) {
+                    String expired = retained.removeFirst();
+                    nameNode.deleteFile(expired);
+                    contents.remove(expired);
+                }
+                peak = Math.max(peak, hdfs.getDataNodes().stream().mapToLong(DataNode::getUsedSpace).sum() - baseline);
+            }
+            long writeNanos = System.nanoTime() - start;
+            long stored = hdfs.getDataNodes().stream().mapToLong(DataNode::getUsedSpace).sum() - baseline;
+            long retainedBytes = contents.values().stream().mapToLong(data -> data.length).sum();
+            Map<String, Object> status = nameNode.getClusterStatus();
+            hdfs.shutdown();
+            
+            // Reference counts are rebuilt from the checkpoint and journal
+            hdfs = new UberHDFS(dir);
+            nameNode = hdfs.getNameNode();
+            int intact = 0;
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                if (Arrays.equals(entry.getValue(), nameNode.readFile(entry.getKey()))) intact++;
+            }
+            Object blocksAfterRestart = nameNode.getClusterStatus().get("dedupBlocks");
+            for (String fileName : retained) nameNode.deleteFile(fileName);
+            long leftover = hdfs.getDataNodes().stream().mapToLong(DataNode::getUsedSpace).sum() - baseline;
+            hdfs.shutdown();
+            restoreOutput();
+            
+            System.out.printf("dedup %-3s %d backups (%d KB written), %d retained (%d KB): %5d KB on DataNodes, peak %5d KB, " +
+                              "%4d blocks reused, write %4d ms, %d/%d intact after restart (%s content blocks), %d KB left after deleting all%n",
+                              dedup ? "on" : "off", rounds, written / 1024, retained.size(), retainedBytes / 1024, stored / 1024,
+                              peak / 1024, status.get("dedupBlocksReused"), writeNanos / 1_000_000, intact, contents.size(),
+                              blocksAfterRestart, leftover / 1024);
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Rides and GPS fixes stored one synchronous call at a time, as individual
+    // asynchronous calls, and in batches: throughput, batch latency, journal syncs
+    static void benchmarkAsyncClient(int records) throws Exception {
+        for (int batchSize : new int[]{0, 1, 100, 1000}) {
+            File dir = createScratchDir("async");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir);
+            UberHDFSClient client = hdfs.getClient();
+            NameNode nameNode = hdfs.getNameNode();
+            long syncsBefore = nameNode.editLog.getSyncCount();
+            
+            long start = System.nanoTime();
+            List<CompletableFuture<?>> pending = new ArrayList<>();
+            List<RideRecord> batch = new ArrayList<>();
+            for (int i = 0; i < records; i++) {
+                String rideId = String.format("RIDE%06d", i);
+                if (batchSize == 0) {
+                    client.storeRideData(rideId, "Rider " + i, "Driver " + i % 50, "Airport", "Downtown", 10 + i % 40);
+                } else if (batchSize == 1) {
+                    pending.add(client.storeRideDataAsync(rideId, "Rider " + i, "Driver " + i % 50, "Airport", "Downtown", 10 + i % 40));
+                } else {
+                    batch.add(new RideRecord(rideId, "Rider " + i, "Driver " + i % 50, "Airport", "Downtown", 10 + i % 40));
+                    if (batch.size() == batchSize || i == records - 1) {
+                        pending.add(client.storeRideBatch(batch));
+                        batch = new ArrayList<>();
+                    }
+                }
+            }
+            pending.forEach(CompletableFuture::join);
+            long rideNanos = System.nanoTime() - start;
+            long rideSyncs = nameNode.editLog.getSyncCount() - syncsBefore;
+            Map<String, Object> rideStats = client.getBatchStats();
+            
+            start = System.nanoTime();
+            pending.clear();
+            List<GPSPoint> points = new ArrayList<>();
+            for (int i = 0; i < records; i++) {
+                String driverId = String.format("DRIVER%03d", i % 50);
+                double lat = 37.7749 + (i % 997) * 1e-5, lon = -122.4194 + (i % 991) * 1e-5;
+                if (batchSize == 0) {
+                    client.storeGPSData(driverId, lat, lon);
+                } else if (batchSize == 1) {
+                    pending.add(client.storeGPSDataAsync(driverId, lat, lon));
+                } else {
+                    points.add(new GPSPoint(driverId, lat, lon, System.currentTimeMillis()));
+                    if (points.size() == batchSize || i == records - 1) {
+                        pending.add(client.storeGPSBatch(points));
+                        points = new ArrayList<>();
+                    }
+                }
+            }
+            pending.forEach(CompletableFuture::join);
+            long gpsNanos = System.nanoTime() - start;
+            
+            int readable = 0;
+            for (int i = 0; i < records; i += 97) {
+                if (client.getRideData(String.format("RIDE%06d", i)) != null) readable++;
+            }
+            hdfs.shutdown();
+            restoreOutput();
+            
+            String mode = batchSize == 0 ? "sync" : batchSize == 1 ? "async" : "batch " + batchSize;
+            System.out.printf("%-10s rides %7.0f/s (%5d journal syncs, %d/%d sampled readable), gps %8.0f/s%s%n", mode,
+                              records / (rideNanos / 1e9), rideSyncs, readable, (records + 96) / 97, records / (gpsNanos / 1e9),
+                              batchSize > 1 ? String.format(", ride batch p50 %s us p99 %s us", rideStats.get("batchP50Micros"),
+                                                            rideStats.get("batchP99Micros")) : "");
+            deleteRecursively(dir);
+        }
+    }
+    
+    // 4KB block writes into one DataNode from 1 and 16 threads under each
+    // durability mode: throughput, acknowledgement latency, and how many writes
+    // each fsync covered
+    static void benchmarkDurability(int blocks) throws Exception {
+        byte[] data = new byte[4096];
+        new Random(17).nextBytes(data);
+        for (Durability durability : Durability.values()) {
+            for (int threads : new int[]{1, 16}) {
+                File dir = createScratchDir("durability");
+                muteOutput();
+                DataNode node = new DataNode("dn1", "localhost", 9001, 1L << 30, dir, 0);
+                node.setDurability(durability, 100);
+                LatencyHistogram latency = new LatencyHistogram();
+                AtomicInteger next = new AtomicInteger();
+                AtomicInteger failed = new AtomicInteger();
+                
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                long start = System.nanoTime();
+                List<Future<?>> workers = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    workers.add(pool.submit(() -> {
+                        int i;
+                        while ((i = next.getAndIncrement()) < blocks) {
+                            long begin = System.nanoTime();
+                            if (!node.storeBlock(new HDFSBlock("/bench/durability_block_" + i, data))) failed.incrementAndGet();
+                            latency.record(System.nanoTime() - begin);
+                        }
+                    }));
+                }
+                for (Future<?> worker : workers) worker.get();
+                long elapsed = System.nanoTime() - start;
+                pool.shutdown();
+                Map<String, Long> stats = node.getDurabilityStats();
+                long pendingAtEnd = stats.get("pendingWrites");
+                node.close();
+                node.getStore().close();
+                restoreOutput();
+                
+                long syncs = stats.get("syncs");
+                System.out.printf("%-10s %2d threads: %6.0f writes/s (%5.1f MB/s), ack p50 %6d us p99 %6d us, " +
+                                  "%5d fsyncs (%s writes each), %d unsynced at end%s%n",
+                                  durability, threads, blocks / (elapsed / 1e9), blocks * 4096.0 / (elapsed / 1e3),
+                                  latency.percentileMicros(0.50), latency.percentileMicros(0.99), syncs,
+                                  syncs > 0 ? String.format("%.1f", (double) (stats.get("writes") - pendingAtEnd) / syncs) : "-",
+                                  pendingAtEnd, failed.get() > 0 ? ", " + failed.get() + " FAILED" : "");
+                deleteRecursively(dir);
+            }
+        }
+    }
+    
+    // Creates and deletes from 1 to 16 threads: each thread writes and deletes
+    // its own files, then every thread races to create the same set of paths.
+    // Checks exactly one create per contended path wins and that DataNode space
+    // accounting matches the replicas on disk.
+    static void benchmarkConcurrentMutations(int opsPerThread) throws Exception {
+        byte[] data = new byte[2048];
+        new Random(17).nextBytes(data);
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+        for (int threads : new int[]{1, 2, 4, 8, 16}) {
+            File dir = createScratchDir("concurrency");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir);
+            NameNode nameNode = hdfs.getNameNode();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            
+            long start = System.nanoTime();
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < opsPerThread; i++) {
+                        String fileName = "/uber/stress/t" + thread + "/f" + i;
+                        nameNode.writeFile(fileName, data, "uber_system");
+                        if (i % 2 == 1) nameNode.deleteFile("/uber/stress/t" + thread + "/f" + (i - 1));
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+            long elapsed = System.nanoTime() - start;
+            
+            int contended = 200;
+            AtomicInteger wins = new AtomicInteger();
+            CyclicBarrier barrier = new CyclicBarrier(threads);
+            workers.clear();
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(() -> {
+                    barrier.await();
+                    for (int i = 0; i < contended; i++) {
+                        boolean small = i % 2 == 0;
+                        String fileName = "/uber/shared/f" + i;
+                        if (small ? nameNode.writeSmallFile(fileName, Arrays.copyOf(data, 100), "uber_system") 
+                                  : nameNode.writeFile(fileName, data, "uber_system")) {
+                            wins.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+            pool.shutdown();
+            
+            boolean accounted = true;
+            for (DataNode node : hdfs.getDataNodes()) {
+                long onDisk = node.getBlockReport().values().stream().mapToLong(Long::longValue).sum();
+                accounted &= onDisk == node.getUsedSpace();
+            }
+            long files = nameNode.countFiles("/uber/stress");
+            hdfs.shutdown();
+            restoreOutput();
+            
+            int ops = threads * opsPerThread * 3 / 2; // every other write is followed by a delete
+            System.out.printf("%2d threads: %6.0f mutations/s, %d files left (expected %d), contended creates won %d/%d, " +
+                              "DataNode space %s%n", threads, ops / (elapsed / 1e9), files, threads * opsPerThread / 2,
+                              wins.get(), contended, accounted ? "consistent" : "INCONSISTENT");
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Heap retained per file by the NameNode's namespace (path map, directory
+    // tree, file metadata, block map): single-block ride files with two replicas,
+    // 1000 per directory, built in memory and again when restored from a checkpoint
+    static void benchmarkNamespaceFootprint(int files) throws Exception {
+        String[] nodes = {"datanode1", "datanode2", "datanode3"};
+        for (boolean pathBlockIds : new boolean[]{true, false}) {
+            File dir = createScratchDir("namespace");
+            muteOutput();
+            long baseline = retainedHeap();
+            NameNode nameNode = new NameNode(dir, 2, 1024);
+            nameNode.setCheckpointPeriod(Long.MAX_VALUE, Long.MAX_VALUE);
+            long empty = retainedHeap();
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < files; i++) {
+                String fileName = String.format("/uber/rides/d%05d/RIDE%09d.txt", i / 1000, i);
+                // The old scheme embedded the path and a timestamp in every block ID
+                String blockId = pathBlockIds ? fileName + "_block_0_" + (1792190000000L + i) : nameNode.newBlockId();
+                HDFSBlock block = new HDFSBlock(blockId, 180);
+                block.addReplica(nodes[i % 3]);
+                block.addReplica(nodes[(i + 1) % 3]);
+                nameNode.trackBlock(block);
+                FileMetadata metadata = new FileMetadata(fileName, 180, "uber_system");
+                metadata.setCodec(LzCodec.INSTANCE);
+                metadata.addBlock(blockId);
+                nameNode.putFile(metadata);
+            }
+            long buildNanos = System.nanoTime() - start;
+            long built = retainedHeap() - empty;
+            
+            long restored = 0, loadMillis = 0;
+            if (!pathBlockIds) {
+                nameNode.saveCheckpoint();
+                nameNode.shutdown();
+                nameNode = null;
+                retainedHeap();
+                start = System.nanoTime();
+                nameNode = new NameNode(dir, 2, 1024);
+                loadMillis = (System.nanoTime() - start) / 1_000_000;
+                restored = retainedHeap() - baseline - (empty - baseline);
+            }
+            int loaded = nameNode.fileSystem.size();
+            nameNode.shutdown();
+            nameNode = null;
+            restoreOutput();
+            
+            System.out.printf("%-16s %d files: %4d bytes/file in memory (built in %d ms)%s, 10M files ~ %.1f GB%n",
+                              pathBlockIds ? "path block IDs" : "numeric block IDs", files, built / files, buildNanos / 1_000_000,
+                              pathBlockIds ? "" : String.format(", %4d bytes/file restored (%d files from checkpoint in %d ms)",
+                                                                restored / loaded, loaded, loadMillis),
+                              10_000_000.0 * (pathBlockIds ? built : Math.max(built, restored)) / files / (1L << 30));
+            deleteRecursively(dir);
+        }
+    }
+    
+    private static long retainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+    
+    // NameNode failover under load: ride writes and GPS points run against the
+    // active while the standby follows the journal, then the active hands over and
+    // is fenced. Reports how far the standby trailed, how long the takeover took
+    // and whether every acknowledged ride and point is on the new active, for a
+    // growing namespace.
+    static void benchmarkFailover(int[] namespaceSizes, long loadMillis) throws Exception {
+        byte[] ride = "RIDE_DATA|RIDE|Rider|Driver|Airport|Hotel|25.00|1792190000000\n".getBytes(StandardCharsets.UTF_8);
+        for (int files : namespaceSizes) {
+            File dir = createScratchDir("failover");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir, 1024, false);
+            NameNode active = hdfs.getNameNode();
+            Map<String, byte[]> batch = new HashMap<>();
+            for (int i = 0; i < files; i++) {
+                batch.put(String.format("/uber/rides/d%03d/RIDE%08d.txt", i / 1000, i), ride);
+                if (batch.size() == 1000 || i == files - 1) {
+                    active.writeSmallFiles(batch, "uber_system");
+                    batch.clear();
+                }
+            }
+            NameNode standby = hdfs.startStandbyNameNode();
+            
+            // One writer journals a ride at a time; the sampler reads from the standby
+            Set<String> acknowledged = ConcurrentHashMap.newKeySet();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread writer = new Thread(() -> {
+                for (int i = 0; !stop.get(); i++) {
+                    String fileName = "/uber/rides/live/RIDE" + i + ".txt";
+                    try {
+                        if (active.writeSmallFile(fileName, ride, "uber_system")) acknowledged.add(fileName);
+                    } catch (IllegalStateException fenced) {
+                        return;
+                    }
+                }
+            });
+            // GPS points stay in open segments until the hand-over ships them
+            AtomicInteger pointsAcknowledged = new AtomicInteger();
+            AtomicBoolean stopGps = new AtomicBoolean();
+            long firstPoint = System.currentTimeMillis();
+            Thread gpsWriter = new Thread(() -> {
+                for (int i = 0; !stopGps.get(); i++) {
+                    String driverId = "DRIVER" + (i % 20);
+                    try {
+                        if (active.appendGPSRecord(driverId, bytes(gpsLine(driverId, System.currentTimeMillis())))) {
+                            pointsAcknowledged.incrementAndGet();
+                        }
+                    } catch (IllegalStateException fenced) {
+                        return;
+                    }
+                }
+            });
+            writer.start();
+            gpsWriter.start();
+            long lagSum = 0, maxLag = 0, samples = 0;
+            long deadline = System.currentTimeMillis() + loadMillis;
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+                long lag = active.getLastTxId() - standby.getLastTxId();
+                lagSum += Math.max(0, lag);
+                maxLag = Math.max(maxLag, lag);
+                samples++;
+                standby.countFiles("/uber/rides/live"); // read-only queries keep working meanwhile
+            }
+            
+            stopGps.set(true); // points accepted during the hand-over are at-most-once
+            gpsWriter.join();
+            long failoverMillis = hdfs.failoverNameNode();
+            stop.set(true);
+            writer.join();
+            NameNode promoted = hdfs.getNameNode();
+            long start = System.nanoTime();
+            boolean written = promoted.writeSmallFile("/uber/rides/live/after_failover.txt", ride, "uber_system");
+            long firstWriteMillis = (System.nanoTime() - start) / 1_000_000;
+            Set<String> present = new HashSet<>(promoted.listDirectory("/uber/rides/live"));
+            long lost = acknowledged.stream().filter(name -> !present.contains(name)).count();
+            int points = 0;
+            for (int d = 0; d < 20; d++) {
+                points += promoted.queryGPSRange("DRIVER" + d, firstPoint, System.currentTimeMillis()).size();
+            }
+            long pointsLost = pointsAcknowledged.get() - points;
+            hdfs.shutdown();
+            restoreOutput();
+            
+            double avgLag = samples > 0 ? (double) lagSum / samples : 0;
+            double editsPerMilli = Math.max(1, acknowledged.size()) / (double) loadMillis;
+            System.out.printf("%7d files: standby lag avg %.0f edits (~%.0f ms) / max %d over %d acknowledged writes, " +
+                              "failover %d ms, first write %s in %d ms, acknowledged writes lost: %d, GPS points lost: %d of %d%n",
+                              files, avgLag, avgLag / editsPerMilli, maxLag, acknowledged.size(), failoverMillis,
+                              written ? "ok" : "FAILED", firstWriteMillis, lost, pointsLost, pointsAcknowledged.get());
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Metadata throughput with the namespace split over 1, 2 and 4 NameNodes:
+    // threads create, look up and delete small files spread over rides, drivers,
+    // GPS, backups and logs, each call routed through the client's mount table
+    static void benchmarkFederation(int opsPerThread, int threads) throws Exception {
+        byte[] record = "RIDE_DATA|RIDE|Rider|Driver|Airport|Hotel|25.00|1792190000000\n".getBytes(StandardCharsets.UTF_8);
+        String[] prefixes = {"/uber/rides", "/uber/drivers", "/uber/gps", "/backup", "/logs"};
+        List<Map<String, String>> layouts = List.of(
+            Map.of(),
+            Map.of("/backup", "archive", "/logs", "archive"),
+            Map.of("/uber/rides", "rides", "/uber/gps", "gps", "/backup", "archive", "/logs", "archive"));
+        for (Map<String, String> layout : layouts) {
+            File dir = createScratchDir("federation");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir, 1024, false, layout);
+            UberHDFSClient client = hdfs.getClient();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            
+            long start = System.nanoTime();
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < opsPerThread; i++) {
+                        String fileName = prefixes[(thread + i) % prefixes.length] + "/t" + thread + "/f" + i + ".txt";
+                        NameNode owner = client.resolve(fileName);
+                        owner.writeSmallFile(fileName, record, "uber_system");
+                        owner.getFileInfo(fileName);
+                        if (i % 2 == 1) owner.deleteFile(fileName);
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            
+            long files = 0;
+            for (String prefix : prefixes) files += client.resolve(prefix).countFiles(prefix);
+            int nameNodes = hdfs.getMountTable().getNameNodes().size();
+            hdfs.shutdown();
+            restoreOutput();
+            
+            int ops = threads * opsPerThread * 5 / 2; // create + lookup, and a delete for every other file
+            System.out.printf("%d namespace%s: %7.0f metadata ops/s, %d files left (expected %d)%n", nameNodes,
+                              nameNodes == 1 ? " " : "s", ops / (elapsed / 1e9), files, threads * opsPerThread / 2);
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Adding 1KB records to files of growing size: appendFile, overwriteFile of
+    // the whole new contents (unchanged blocks are kept), and delete plus
+    // writeFile, the only way to update a file before. Counts the blocks each
+    // update wrote.
+    static void benchmarkAppend(int updates) throws Exception {
+        byte[] record = new byte[1024];
+        new Random(23).nextBytes(record);
+        for (int fileKB : new int[]{64, 512, 4096}) {
+            byte[] initial = new byte[fileKB * 1024];
+            new Random(fileKB).nextBytes(initial);
+            System.out.printf("%5d KB file:", fileKB);
+            for (String mode : new String[]{"append", "overwrite", "delete+write"}) {
+                File dir = createScratchDir("append");
+                muteOutput();
+                UberHDFS hdfs = new UberHDFS(dir, 64 * 1024, false);
+                NameNode nameNode = hdfs.getNameNode();
+                String fileName = "/uber/logs/trips.log";
+                nameNode.writeFile(fileName, initial, "uber_system");
+                
+                byte[] contents = initial;
+                long blocksWritten = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < updates; i++) {
+                    Set<String> before = new HashSet<>(nameNode.getFileInfo(fileName).getBlockIds());
+                    if (mode.equals("append")) {
+                        nameNode.appendFile(fileName, record);
+                    } else {
+                        byte[] current = nameNode.readFile(fileName);
+                        contents = Arrays.copyOf(current, current.length + record.length);
+                        System.arraycopy(record, 0, contents, current.length, record.length);
+                        if (mode.equals("overwrite")) {
+                            nameNode.overwriteFile(fileName, contents, "uber_system");
+                        } else {
+                            nameNode.deleteFile(fileName);
+                            nameNode.writeFile(fileName, contents, "uber_system");
+                        }
+                    }
+                    for (String blockId : nameNode.getFileInfo(fileName).getBlockIds()) {
+                        if (!before.contains(blockId)) blocksWritten++;
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                long expected = initial.length + (long) updates * record.length;
+                boolean intact = nameNode.getFileInfo(fileName).getFileSize() == expected && 
+                                 nameNode.readFile(fileName).length == expected;
+                hdfs.shutdown();
+                restoreOutput();
+                
+                System.out.printf("  %s %7.2f ms/update (%.1f blocks written)%s", mode, elapsed / 1e6 / updates, 
+                                  (double) blocksWritten / updates, intact ? "" : " CORRUPT");
+                deleteRecursively(dir);
+            }
+            System.out.println();
+        }
+    }
+    
+    // "Where was driver X during these 30 minutes" as GPS history grows: the
+    // partition index against listing and reading every segment of the driver.
+    // Each driver reports every 10 s; each hour is sealed once it is over, as the
+    // idle-segment roller would.
+    static void benchmarkGPSRangeQuery(int drivers, int queries) throws Exception {
+        long hour = GPSSegment.PARTITION_MILLIS;
+        long window = 30 * 60 * 1000;
+        long origin = 1_790_000_000_000L / hour * hour;
+        for (int hours : new int[]{6, 48, 192}) {
+            File dir = createScratchDir("gpsquery");
+            muteOutput();
+            NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 8 * 1024); // a few blocks per driver and hour
+            for (int i = 1; i <= 2; i++) {
+                nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9200 + i, 1L << 30, new File(dir, "dn" + i)));
+            }
+            long bytes = 0;
+            for (int h = 0; h < hours; h++) {
+                for (int d = 0; d < drivers; d++) {
+                    StringBuilder batch = new StringBuilder();
+                    for (long t = origin + h * hour + d * 100; t < origin + (h + 1) * hour; t += 10_000) {
+                        batch.append("GPS_DATA|DRIVER").append(d).append('|').append(40.0 + d * 1e-3).append('|')
+                             .append(-74.0 + (t - origin) * 1e-9).append('|').append(t).append('\n');
+                    }
+                    byte[] data = batch.toString().getBytes(StandardCharsets.UTF_8);
+                    nameNode.appendGPSRecord("DRIVER" + d, data);
+                    bytes += data.length;
+                }
+                nameNode.sealAllGPSSegments();
+            }
+            
+            Random random = new Random(hours);
+            long indexNanos = 0, scanNanos = 0, found = 0, mismatches = 0;
+            long blocksRead = (Long) nameNode.getGPSIndexStats().get("blocksRead");
+            for (int q = 0; q < queries; q++) {
+                String driverId = "DRIVER" + random.nextInt(drivers);
+                long from = origin + (long) (random.nextDouble() * (hours * hour - window));
+                long start = System.nanoTime();
+                List<GPSPoint> points = nameNode.queryGPSRange(driverId, from, from + window);
+                indexNanos += System.nanoTime() - start;
+                
+                start = System.nanoTime();
+                List<GPSPoint> scanned = new ArrayList<>();
+                for (String segment : nameNode.listGPSSegments(driverId)) {
+                    NameNode.parseGPSPoints(ByteBuffer.wrap(nameNode.readFile(segment)), from, from + window, scanned);
+                }
+                scanNanos += System.nanoTime() - start;
+                found += points.size();
+                if (points.size() != scanned.size()) mismatches++;
+            }
+            blocksRead = (Long) nameNode.getGPSIndexStats().get("blocksRead") - blocksRead;
+            long indexedBlocks = (Long) nameNode.getGPSIndexStats().get("indexedBlocks");
+            nameNode.shutdown();
+            restoreOutput();
+            
+            System.out.printf("%3d hours (%6.1f MB, %5d blocks): index %6.2f ms/query (%.1f blocks read), " +
+                              "list + read all %8.2f ms/query, %d points per query%s%n",
+                              hours, bytes / 1e6, indexedBlocks, indexNanos / 1e6 / queries, (double) blocksRead / queries,
+                              scanNanos / 1e6 / queries, found / queries, mismatches == 0 ? "" : ", " + mismatches + " MISMATCHED");
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Listing /uber/rides in a namespace dominated by GPS segments and backups:
+    // prefix filter over every path vs the directory tree
+    static void benchmarkListing(int rides, int otherFiles) throws Exception {
+        File dir = createScratchDir("list");
+        muteOutput();
+        NameNode nameNode = new NameNode(dir, 2, 1024);
+        restoreOutput();
+        for (int i = 0; i < rides; i++) {
+            nameNode.putFile(new FileMetadata("/uber/rides/RIDE" + i + ".txt", 80, "uber_system"));
+        }
+        for (int i = 0; i < otherFiles; i++) {
+            String fileName = (i % 2 == 0)
+                ? "/uber/gps/DRIVER" + (i % 500) + "/segment_" + i + ".log"
+                : "/backup/rides/" + i + "_RIDE" + (i % rides) + ".txt";
+            nameNode.putFile(new FileMetadata(fileName, 80, "uber_system"));
+        }
+        
+        int calls = 50;
+        long start = System.nanoTime();
+        int found = 0;
+        for (int c = 0; c < calls; c++) {
+            found = nameNode.listFiles().stream()
+                .filter(f -> f.startsWith("/uber/rides/"))
+                .collect(ArrayList::new, ArrayList::add, ArrayList::addAll).size();
+        }
+        double scanMs = (System.nanoTime() - start) / 1e6 / calls;
+        
+        start = System.nanoTime();
+        int listed = 0;
+        for (int c = 0; c < calls; c++) {
+            listed = nameNode.listDirectory("/uber/rides").size();
+        }
+        double treeMs = (System.nanoTime() - start) / 1e6 / calls;
+        
+        start = System.nanoTime();
+        int paged = 0;
+        String cursor = null;
+        for (List<String> page; !(page = nameNode.listDirectory("/uber/rides", cursor, 100)).isEmpty(); ) {
+            paged += page.size();
+            cursor = page.get(page.size() - 1);
+        }
+        double pagedMs = (System.nanoTime() - start) / 1e6;
+        
+        System.out.printf("%d files in namespace, %d rides%n", nameNode.listFiles().size(), rides);
+        System.out.printf("prefix scan:     %6d rides, %8.3f ms/listing%n", found, scanMs);
+        System.out.printf("directory tree:  %6d rides, %8.3f ms/listing%n", listed, treeMs);
+        System.out.printf("pages of 100:    %6d rides, %8.3f ms total%n", paged, pagedMs);
+        System.out.printf("recursive count: /uber=%d /backup=%d /uber/gps/DRIVER8=%d%n",
+                          nameNode.countFiles("/uber"), nameNode.countFiles("/backup"),
+                          nameNode.countFiles("/uber/gps/DRIVER8"));
+        
+        nameNode.maintenanceExecutor.shutdownNow();
+        deleteRecursively(dir);
+    }
+    
+    // Disk use of cold backups before and after RS(2,1) striping, then reads and
+    // cell rebuilds with one DataNode down
+    static void benchmarkErasureCoding(int files, int fileKB) throws Exception {
+        File dir = createScratchDir("ec");
+        byte[][] contents = new byte[files][fileKB * 1024];
+        Random random = new Random(17);
+        for (byte[] content : contents) random.nextBytes(content);
+        
+        muteOutput();
+        UberHDFS hdfs = new UberHDFS(dir, 64 * 1024);
+        NameNode nameNode = hdfs.getNameNode();
+        for (int i = 0; i < files; i++) {
+            nameNode.writeFile("/backup/bench/backup_" + i + ".bin", contents[i], "backup_system");
+        }
+        long replicatedBytes = hdfs.getDataNodes().stream().mapToLong(DataNode::getUsedSpace).sum();
+        long start = System.nanoTime();
+        int blocks = 0;
+        for (int i = 0; i < files; i++) {
+            String fileName = "/backup/bench/backup_" + i + ".bin";
+            blocks += nameNode.convertToErasureCoded(fileName, nameNode.getStoragePolicy(fileName));
+        }
+        long convertNanos = System.nanoTime() - start;
+        long stripedBytes = hdfs.getDataNodes().stream().mapToLong(DataNode::getUsedSpace).sum();
+        hdfs.shutdown();
+        
+        // Restart from the journal, then lose a DataNode
+        hdfs = new UberHDFS(dir, 64 * 1024);
+        nameNode = hdfs.getNameNode();
+        nameNode.markDataNodeDead("datanode1");
+        start = System.nanoTime();
+        int intact = 0;
+        for (int i = 0; i < files; i++) {
+            if (Arrays.equals(nameNode.readFile("/backup/bench/backup_" + i + ".bin"), contents[i])) intact++;
+        }
+        long degradedNanos = System.nanoTime() - start;
+        Object reconstructed = nameNode.getClusterStatus().get("ecReconstructedReads");
+        
+        File spareDir = new File(dir, "datanode4");
+        spareDir.mkdirs();
+        nameNode.registerDataNode(new DataNode("datanode4", "localhost", 9004, 10 * 1024 * 1024, spareDir));
+        nameNode.getReplicationMonitor().setBandwidth(64L * 1024 * 1024);
+        nameNode.scanForUnderReplicatedBlocks();
+        long rebuildMillis = nameNode.getReplicationMonitor().awaitFullReplication(120_000);
+        BlockReconciliation after = nameNode.reconcileBlocks();
+        hdfs.shutdown();
+        restoreOutput();
+        
+        System.out.printf("%d files x %d KB under /backup, policy %s%n", files, fileKB, ErasureCodingPolicy.RS_2_1);
+        System.out.printf("disk used replicated x2: %6d KB%n", replicatedBytes / 1024);
+        System.out.printf("disk used striped:       %6d KB (%.0f%% saved), %d blocks converted in %d ms%n",
+                          stripedBytes / 1024, 100.0 * (replicatedBytes - stripedBytes) / replicatedBytes,
+                          blocks, convertNanos / 1_000_000);
+        System.out.printf("after restart, datanode1 dead: %d/%d files intact, %s blocks decoded, %.1f ms/file%n",
+                          intact, files, reconstructed, degradedNanos / 1e6 / files);
+        System.out.printf("cells rebuilt onto datanode4 in %d ms (%s)%n", rebuildMillis, after);
+        deleteRecursively(dir);
+    }
+    
+    // One file per ride record vs records packed into containers: namespace
+    // entries, DataNode files, disk and checkpoint size, plus a crash restart
+    // that rebuilds the packed index from the edit log
+    static void benchmarkSmallFiles(int records) throws Exception {
+        Random random = new Random(5);
+        for (boolean packed : new boolean[]{false, true}) {
+            File dir = createScratchDir("smallfiles");
+            muteOutput();
+            UberHDFS hdfs = new UberHDFS(dir);
+            NameNode nameNode = hdfs.getNameNode();
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < records; i++) {
+                String fileName = String.format("/uber/rides/RIDE%06d.txt", i);
+                byte[] data = String.format("RIDE_DATA|RIDE%06d|Rider %d|Driver %d|Airport|Hotel|%.2f|%d%n",
+                                            i, i, i % 100, 10 + i % 50 * 0.5, System.currentTimeMillis()).getBytes();
+                if (packed) {
+                    nameNode.writeSmallFile(fileName, data, "uber_system");
+                } else {
+                    nameNode.writeFile(fileName, data, "uber_system");
+                }
+            }
+            long writeNanos = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            int lookups = 2000, found = 0;
+            for (int i = 0; i < lookups; i++) {
+                if (nameNode.readFile(String.format("/uber/rides/RIDE%06d.txt", random.nextInt(records))) != null) found++;
+            }
+            long readNanos = System.nanoTime() - start;
+            
+            // Crash without a checkpoint: the restart has to replay every write
+            nameNode.maintenanceExecutor.shutdownNow();
+            nameNode.editLog.close();
+            UberHDFS restarted = new UberHDFS(dir);
+            NameNode recovered = restarted.getNameNode();
+            long restoredRides = restarted.getClient().countRides();
+            boolean readable = recovered.readFile(String.format("/uber/rides/RIDE%06d.txt", records - 1)) != null;
+            recovered.saveCheckpoint();
+            File[] images = new File(dir, "namenode").listFiles((d, name) -> name.matches("fsimage_\\d+"));
+            long imageBytes = images != null && images.length > 0 ? images[0].length() : 0;
+            int entries = recovered.listFiles().size();
+            restarted.shutdown();
+            
+            long dataNodeFiles = 0, dataNodeBytes = 0;
+            for (String node : new String[]{"datanode1", "datanode2", "datanode3"}) {
+                dataNodeFiles += countFiles(new File(dir, node));
+                dataNodeBytes += diskBytes(new File(dir, node));
+            }
+            restoreOutput();
+            
+            System.out.printf("%-13s %d records: %5.2f ms/write, %5.3f ms/lookup (%d found)%n",
+                              packed ? "containers" : "file-per-ride", records, writeNanos / 1e6 / records,
+                              readNanos / 1e6 / lookups, found);
+            System.out.printf("              namespace files %6d, fsimage %7d KB, DataNode files %6d, disk %7d KB%n",
+                              entries, imageBytes / 1024, dataNodeFiles, dataNodeBytes / 1024);
+            System.out.printf("              after crash restart: %d rides listed, last record %s%n",
+                              restoredRides, readable ? "readable" : "MISSING");
+            deleteRecursively(dir);
+        }
+    }
+    
+    // File-per-block vs slotted extents for many 1KB blocks with path-like IDs:
+    // write, random read, delete most, compact, and rescan on restart
+    static void benchmarkBlockStore(int blocks) throws Exception {
+        byte[] payload = new byte[1024];
+        new Random(23).nextBytes(payload);
+        int[] checksums = BlockChecksum.compute(ByteBuffer.wrap(payload));
+        
+        for (String layout : new String[]{"file-per-block", "slotted"}) {
+            File dir = createScratchDir("blockstore");
+            BlockStore store = layout.equals("slotted")
+                ? new SlottedBlockStore(new File(dir, "extents"), 16L << 20)
+                : new FileBlockStore(new File(dir, "blocks"));
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < blocks; i++) {
+                store.write("/uber/gps/DRIVER" + (i % 200) + "/segment_" + i + ".log_block_0", ByteBuffer.wrap(payload), checksums);
+            }
+            long writeNanos = System.nanoTime() - start;
+            
+            Random random = new Random(1);
+            start = System.nanoTime();
+            for (int i = 0; i < blocks; i++) {
+                int n = random.nextInt(blocks);
+                store.read("/uber/gps/DRIVER" + (n % 200) + "/segment_" + n + ".log_block_0");
+            }
+            long readNanos = System.nanoTime() - start;
+            long filesBefore = countFiles(dir), diskBefore = diskBytes(dir);
+            
+            // Delete 80% of the blocks, then compact
+            for (int i = 0; i < blocks; i++) {
+                if (i % 5 != 0) store.delete("/uber/gps/DRIVER" + (i % 200) + "/segment_" + i + ".log_block_0");
+            }
+            start = System.nanoTime();
+            long reclaimed = store.compact();
+            long compactNanos = System.nanoTime() - start;
+            long diskAfter = diskBytes(dir);
+            store.close();
+            
+            start = System.nanoTime();
+            BlockStore reopened = layout.equals("slotted")
+                ? new SlottedBlockStore(new File(dir, "extents"), 16L << 20)
+                : new FileBlockStore(new File(dir, "blocks"));
+            int found = reopened.scan().size();
+            long scanNanos = System.nanoTime() - start;
+            ByteBuffer check = reopened.read("/uber/gps/DRIVER0/segment_0.log_block_0");
+            boolean intact = check != null && check.equals(ByteBuffer.wrap(payload));
+            reopened.close();
+            
+            restoreOutput();
+            System.out.printf("%-15s %d x 1KB: write %6.1f us/block, read %5.1f us/block, %6d OS files, disk %6d KB%n",
+                              layout, blocks, writeNanos / 1e3 / blocks, readNanos / 1e3 / blocks,
+                              filesBefore, diskBefore / 1024);
+            System.out.printf("%-15s after deleting 80%%: disk %6d KB (compaction reclaimed %d KB in %d ms), " +
+                              "rescan %d blocks in %d ms, data %s%n",
+                              "", diskAfter / 1024, reclaimed / 1024, compactNanos / 1_000_000,
+                              found, scanNanos / 1_000_000, intact ? "intact" : "CORRUPT");
+            deleteRecursively(dir);
+        }
+    }
+    
+    // Placement throughput and balance for each policy on a 120-node, 3-zone,
+    // 12-rack cluster where every fourth node has 4x the capacity. Free space is
+    // not consumed during the run, so most-free keeps choosing the same nodes.
+    static void benchmarkPlacement(int blocks) throws Exception {
+        muteOutput();
+        File dir = createScratchDir("placement");
+        NetworkTopology topology = new NetworkTopology();
+        List<DataNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            String nodeId = String.format("dn%03d", i);
+            long capacity = (i % 4 == 0 ? 4L : 1L) << 30;
+            nodes.add(new DataNode(nodeId, "localhost", 10000 + i, capacity, new File(dir, nodeId), 0));
+            topology.setRack(nodeId, "/zone-" + (i % 3) + "/rack-" + (i % 12));
         }
-
-        private void persistFileMetadata(FileMetadata metadata) throws IOException {
-            if (metaDir == null) return;
-            String safe = sanitizeName(metadata.getFileName());
-            File metaFile = new File(metaDir, safe + ".meta");
-            try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(metaFile), StandardCharsets.UTF_8))) {
-                bw.write("fileName:" + metadata.getFileName() + "\n");
-                bw.write("owner:" + metadata.getOwner() + "\n");
-                bw.write("size:" + metadata.getFileSize() + "\n");
-                bw.write("timestamp:" + metadata.getTimestamp() + "\n");
-                bw.write("blocks:\n");
-                for (String b : metadata.getBlockIds()) bw.write(b + "\n");
-            }
-            System.out.println("NameNode: Persisted metadata -> " + metaFile.getAbsolutePath());
+        long bigCapacity = 0, totalCapacity = 0;
+        for (DataNode node : nodes) {
+            totalCapacity += node.getFreeSpace();
+            if (node.getFreeSpace() > 1L << 30) bigCapacity += node.getFreeSpace();
         }
-
-        private void removeFileMetadata(String fileName) {
-            if (metaDir == null) return;
-            String safe = sanitizeName(fileName);
-            File metaFile = new File(metaDir, safe + ".meta");
-            if (metaFile.exists()) {
-                if (metaFile.delete()) {
-                    System.out.println("NameNode: Removed metadata file " + metaFile.getAbsolutePath());
-                } else {
-                    System.err.println("NameNode: Failed to delete metadata file " + metaFile.getAbsolutePath());
+        
+        BlockPlacementPolicy[] policies = {
+            new MostFreeSpacePlacement(), new RoundRobinPlacement(),
+            new WeightedRandomPlacement(), new RackAwarePlacement(topology)
+        };
+        for (BlockPlacementPolicy policy : policies) {
+            policy.refresh(nodes);
+            for (int i = 0; i < 10_000; i++) policy.chooseTargets(3, Collections.emptySet()); // warm-up
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < blocks; i++) policy.chooseTargets(3, Collections.emptySet());
+            long elapsed = System.nanoTime() - start;
+            
+            Map<String, Integer> placed = new HashMap<>();
+            int multiRack = 0, multiZone = 0;
+            for (int i = 0; i < blocks; i++) {
+                List<DataNode> targets = policy.chooseTargets(3, Collections.emptySet());
+                Set<String> racks = new HashSet<>(), zones = new HashSet<>();
+                for (DataNode target : targets) {
+                    placed.merge(target.getNodeId(), 1, Integer::sum);
+                    String rack = topology.getRack(target.getNodeId());
+                    racks.add(rack);
+                    zones.add(NetworkTopology.zoneOf(rack));
                 }
+                if (racks.size() > 1) multiRack++;
+                if (zones.size() > 1) multiZone++;
+            }
+            
+            double mean = 3.0 * blocks / nodes.size(), variance = 0;
+            long onBig = 0;
+            int max = 0;
+            for (DataNode node : nodes) {
+                int count = placed.getOrDefault(node.getNodeId(), 0);
+                variance += (count - mean) * (count - mean) / nodes.size();
+                max = Math.max(max, count);
+                if (node.getFreeSpace() > 1L << 30) onBig += count;
             }
+            restoreOutput();
+            System.out.printf("%-15s %7.0f ns/block, %3d/%d nodes used, max/mean %5.2f, stddev %5.1f%%, " +
+                              "big nodes %3.0f%% (capacity %3.0f%%), multi-rack %3.0f%%, multi-zone %3.0f%%%n",
+                              policy.getName(), (double) elapsed / blocks, placed.size(), nodes.size(),
+                              max / mean, 100 * Math.sqrt(variance) / mean,
+                              100.0 * onBig / (3.0 * blocks), 100.0 * bigCapacity / totalCapacity,
+                              100.0 * multiRack / blocks, 100.0 * multiZone / blocks);
+            muteOutput();
         }
+        restoreOutput();
+        deleteRecursively(dir);
+    }
+    
+    // Delays reads on a DataNode: a fixed extra latency plus occasional long stalls
+    static class SlowReadStore implements BlockStore {
+        private final BlockStore delegate;
+        private final long extraMicros;
+        private final double stallChance;
+        private final long stallMicros;
         
-        public List<String> listFiles() {
-            return new ArrayList<>(fileSystem.keySet());
+        SlowReadStore(BlockStore delegate, long extraMicros, double stallChance, long stallMicros) {
+            this.delegate = delegate;
+            this.extraMicros = extraMicros;
+            this.stallChance = stallChance;
+            this.stallMicros = stallMicros;
         }
         
-        public FileMetadata getFileInfo(String fileName) {
-            return fileSystem.get(fileName);
+        private void delay() {
+            long micros = extraMicros + (ThreadLocalRandom.current().nextDouble() < stallChance ? stallMicros : 0);
+            if (micros > 0) LockSupport.parkNanos(micros * 1000);
         }
         
-        private List<HDFSBlock> createBlocks(byte[] data, String fileName) {
-            List<HDFSBlock> blocks = new ArrayList<>();
-            int offset = 0;
-            int blockIndex = 0;
+        public Map<String, Long> scan() throws IOException { return delegate.scan(); }
+        public void write(String blockId, ByteBuffer data, int[] checksums) throws IOException { delegate.write(blockId, data, checksums); }
+        public ByteBuffer read(String blockId) throws IOException { delay(); return delegate.read(blockId); }
+        public ByteBuffer map(String blockId) throws IOException { delay(); return delegate.map(blockId); }
+        public long transferTo(String blockId, WritableByteChannel target) throws IOException { return delegate.transferTo(blockId, target); }
+        public int[] checksums(String blockId) throws IOException { return delegate.checksums(blockId); }
+        public StoredBlock readVersion(String blockId, boolean mapped) throws IOException { delay(); return delegate.readVersion(blockId, mapped); }
+        public void append(String blockId, long offset, ByteBuffer data, int[] checksums) throws IOException { delegate.append(blockId, offset, data, checksums); }
+        public boolean delete(String blockId) throws IOException { return delegate.delete(blockId); }
+        public void sync() throws IOException { delegate.sync(); }
+        public void setSyncTracking(boolean enabled) { delegate.setSyncTracking(enabled); }
+        public String describe(String blockId) { return delegate.describe(blockId); }
+        public void close() throws IOException { delegate.close(); }
+    }
+    
+    // Block read latency with 3 replicas per block, where dn1 is 2 ms slower than
+    // the others and any read has a 2% chance of stalling for 20 ms
+    static void benchmarkHedgedReads(int files, int reads) throws Exception {
+        muteOutput();
+        File dir = createScratchDir("hedged");
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 3, 4096);
+        for (int i = 1; i <= 3; i++) {
+            File nodeDir = new File(dir, "dn" + i);
+            BlockStore store = new SlowReadStore(new SlottedBlockStore(new File(nodeDir, "extents"), 16L << 20),
+                                                 i == 1 ? 2000 : 0, 0.02, 20_000);
+            nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9100 + i, 1L << 30, nodeDir, 0, store));
+        }
+        byte[] data = new byte[4096];
+        new Random(5).nextBytes(data);
+        for (int i = 0; i < files; i++) nameNode.writeFile("/uber/archive/hedged_" + i + ".bin", data, "uber_system");
+        
+        String[] modes = {"insertion order", "latency-aware", "latency-aware + hedged p95"};
+        for (String mode : modes) {
+            nameNode.getReplicaSelector().setLatencyAware(!mode.equals("insertion order"));
+            nameNode.setHedgedReads(mode.contains("hedged"), 0.95);
+            nameNode.getReadLatency().reset();
+            long hedgedBefore = (Long) nameNode.getClusterStatus().get("hedgedReads");
             
-            while (offset < data.length) {
-                int currentBlockSize = Math.min(blockSize, data.length - offset);
-                byte[] blockData = Arrays.copyOfRange(data, offset, offset + currentBlockSize);
-                
-                String blockId = fileName + "_block_" + blockIndex + "_" + System.currentTimeMillis();
-                HDFSBlock block = new HDFSBlock(blockId, blockData);
-                blocks.add(block);
-                
-                offset += currentBlockSize;
-                blockIndex++;
+            int threads = 8;
+            ExecutorService readers = Executors.newFixedThreadPool(threads);
+            long start = System.nanoTime();
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                done.add(readers.submit(() -> {
+                    for (int i = 0; i < reads / threads; i++) {
+                        nameNode.readFile("/uber/archive/hedged_" + ThreadLocalRandom.current().nextInt(files) + ".bin");
+                    }
+                }));
             }
+            for (Future<?> future : done) future.get();
+            long elapsed = System.nanoTime() - start;
+            readers.shutdown();
             
-            return blocks;
+            LatencyHistogram latency = nameNode.getReadLatency();
+            long hedged = (Long) nameNode.getClusterStatus().get("hedgedReads") - hedgedBefore;
+            restoreOutput();
+            System.out.printf("%-27s %6d reads: p50 %6d us, p99 %6d us, %6.0f reads/s, %5.1f%% hedged%n",
+                              mode, latency.getCount(), latency.percentileMicros(0.50), latency.percentileMicros(0.99),
+                              reads / (elapsed / 1e9), 100.0 * hedged / latency.getCount());
+            muteOutput();
         }
-        
-        private List<DataNode> selectDataNodes(int count) {
-            List<DataNode> activeNodes = dataNodes.values().stream()
-                .filter(DataNode::isActive)
-                .sorted((a, b) -> Long.compare(b.getFreeSpace(), a.getFreeSpace()))
-                .limit(count)
-                .collect(ArrayList::new, ArrayList::add, ArrayList::addAll);
-            
-            return activeNodes;
+        restoreOutput();
+        System.out.println("latency EWMA per DataNode (us): " + nameNode.getReplicaSelector().getLatencyEwmaMicros());
+        nameNode.shutdown();
+        deleteRecursively(dir);
+    }
+    
+    // ==================== CHECKS ====================
+    // Run with: java UberHDFS check [name]. Each check builds a cluster in a
+    // scratch directory, drives it through a durability or replay path and
+    // asserts on what survives; the exit status is the number of failures.
+    
+    interface Check {
+        void run(File dir) throws Exception;
+    }
+    
+    static void check(boolean condition, String message) {
+        if (!condition) throw new IllegalStateException(message);
+    }
+    
+    static void checkContents(NameNode nameNode, String fileName, byte[] expected) {
+        byte[] actual = nameNode.readFile(fileName);
+        check(actual != null, fileName + " is missing");
+        check(Arrays.equals(actual, expected), fileName + " has " + actual.length + " bytes, expected " + 
+              expected.length + (actual.length == expected.length ? " (contents differ)" : ""));
+    }
+    
+    static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+    
+    static String gpsLine(String driverId, long timestamp) {
+        return "GPS_DATA|" + driverId + "|40.712800|-74.006000|" + timestamp + "\n";
+    }
+    
+    static Map<String, Check> checks() {
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("journal-replay", UberHDFS::checkJournalReplay);
+        checks.put("checkpoint-replay", UberHDFS::checkCheckpointReplay);
+        checks.put("gps-index-replay", UberHDFS::checkGPSIndexReplay);
+        checks.put("gps-oversized-record", UberHDFS::checkOversizedGPSRecord);
+        checks.put("gps-seal-failure", UberHDFS::checkGPSSealFailure);
+        checks.put("corrupt-last-replica", UberHDFS::checkCorruptLastReplica);
+        checks.put("journal-failure", UberHDFS::checkJournalFailure);
+        checks.put("quorum-write-cleanup", UberHDFS::checkQuorumWriteCleanup);
+        checks.put("block-rewrite-read", UberHDFS::checkBlockRewriteRead);
+        checks.put("container-append", UberHDFS::checkContainerAppend);
+        checks.put("failover-gps-tails", UberHDFS::checkFailoverGPSTails);
+        checks.put("retired-block-replay", UberHDFS::checkRetiredBlockReplay);
+        checks.put("gps-mount-routing", UberHDFS::checkGPSMountRouting);
+        checks.put("gps-batch-result", UberHDFS::checkGPSBatchResult);
+        checks.put("throttler-concurrency", UberHDFS::checkThrottlerConcurrency);
+        checks.put("channel-empty-read", UberHDFS::checkChannelEmptyRead);
+        checks.put("encoded-length", UberHDFS::checkEncodedLength);
+        checks.put("shared-block-delete", UberHDFS::checkSharedBlockDelete);
+        checks.put("torn-slot", UberHDFS::checkTornSlot);
+        checks.put("balancer-changing-blocks", UberHDFS::checkBalancerChangingBlocks);
+        return checks;
+    }
+    
+    static int runChecks(String only) {
+        int failures = 0, run = 0;
+        for (Map.Entry<String, Check> entry : checks().entrySet()) {
+            if (only != null && !only.equals(entry.getKey())) continue;
+            run++;
+            File dir = null;
+            long start = System.nanoTime();
+            String failure = null;
+            try {
+                dir = createScratchDir("check");
+                muteOutput();
+                entry.getValue().run(dir);
+            } catch (Exception | AssertionError e) {
+                failure = e.toString();
+            } finally {
+                restoreOutput();
+                if (dir != null) deleteRecursively(dir);
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            if (failure == null) {
+                System.out.printf("PASS %-22s %6d ms%n", entry.getKey(), millis);
+            } else {
+                failures++;
+                System.out.printf("FAIL %-22s %6d ms: %s%n", entry.getKey(), millis, failure);
+            }
         }
+        if (run == 0) System.out.println("Unknown check: " + only);
+        System.out.println(failures == 0 ? run + " checks passed" : failures + " of " + run + " checks failed");
+        return run == 0 ? 1 : failures;
+    }
+    
+    // Every kind of namespace edit, then two restarts from the journal alone:
+    // the second replays the same edits over the first one's state
+    static void checkJournalReplay(File dir) throws Exception {
+        byte[] ride = bytes("RIDE_DATA|RIDE001|Rider|Driver|Airport|Hotel|25.50|1792190000000\n");
+        byte[] log = new byte[3000];
+        new Random(1).nextBytes(log);
+        byte[] record = bytes("trip completed\n");
         
-        public Map<String, Object> getClusterStatus() {
-            Map<String, Object> status = new HashMap<>();
-            status.put("totalFiles", fileSystem.size());
-            status.put("totalDataNodes", dataNodes.size());
-            status.put("activeDataNodes", dataNodes.values().stream().mapToInt(n -> n.isActive() ? 1 : 0).sum());
-            status.put("totalBlocks", blockLocations.size());
-            
-            long totalCapacity = dataNodes.values().stream().mapToLong(n -> n.getFreeSpace() + n.getUsedSpace()).sum();
-            long usedSpace = dataNodes.values().stream().mapToLong(DataNode::getUsedSpace).sum();
-            
-            status.put("totalCapacityMB", totalCapacity / (1024 * 1024));
-            status.put("usedSpaceMB", usedSpace / (1024 * 1024));
-            status.put("freeSpaceMB", (totalCapacity - usedSpace) / (1024 * 1024));
-            
-            return status;
+        UberHDFS hdfs = new UberHDFS(dir, 1024, false);
+        NameNode nameNode = hdfs.getNameNode();
+        nameNode.setCheckpointPeriod(Long.MAX_VALUE, Long.MAX_VALUE);
+        check(nameNode.writeFile("/uber/rides/RIDE001.txt", ride, "uber_system"), "write failed");
+        check(nameNode.writeFile("/uber/logs/trips.log", log, "uber_system"), "write failed");
+        check(nameNode.appendFile("/uber/logs/trips.log", record), "append failed");
+        check(nameNode.writeFile("/uber/logs/replaced.log", log, "uber_system"), "write failed");
+        check(nameNode.overwriteFile("/uber/logs/replaced.log", record, "uber_system"), "overwrite failed");
+        check(nameNode.overwriteFile("/uber/logs/created.log", record, "uber_system"), "overwrite failed");
+        check(nameNode.getFileInfo("/uber/logs/created.log") != null, "overwriteFile packed a new small file");
+        check(nameNode.overwriteSmallFile("/uber/drivers/DRIVER001.txt", ride, "uber_system"), "small overwrite failed");
+        check(nameNode.overwriteSmallFile("/uber/drivers/DRIVER001.txt", record, "uber_system"), "small overwrite failed");
+        check(nameNode.packedRecords.containsKey("/uber/drivers/DRIVER001.txt"), "overwriteSmallFile did not pack");
+        check(nameNode.writeFile("/uber/logs/deleted.log", log, "uber_system"), "write failed");
+        check(nameNode.deleteFile("/uber/logs/deleted.log"), "delete failed");
+        int generation = nameNode.getFileInfo("/uber/logs/trips.log").getGeneration();
+        List<String> files = nameNode.listFiles();
+        hdfs.shutdown();
+        
+        for (int restart = 1; restart <= 2; restart++) {
+            hdfs = new UberHDFS(dir, 1024, false);
+            nameNode = hdfs.getNameNode();
+            nameNode.setCheckpointPeriod(Long.MAX_VALUE, Long.MAX_VALUE);
+            check(nameNode.listFiles().equals(files), "restart " + restart + " lists " + nameNode.listFiles() + 
+                  ", expected " + files);
+            checkContents(nameNode, "/uber/rides/RIDE001.txt", ride);
+            checkContents(nameNode, "/uber/logs/trips.log", concat(log, record));
+            checkContents(nameNode, "/uber/logs/created.log", record);
+            checkContents(nameNode, "/uber/drivers/DRIVER001.txt", record);
+            checkContents(nameNode, "/uber/logs/replaced.log", record);
+            check(nameNode.getFileInfo("/uber/logs/trips.log").getGeneration() == generation, 
+                  "generation changed across restart " + restart);
+            hdfs.shutdown();
         }
+    }
+    
+    // Edits on both sides of a checkpoint: the image holds the first half and
+    // the journal the rest, including an append to a file from the image
+    static void checkCheckpointReplay(File dir) throws Exception {
+        byte[] log = new byte[2500];
+        new Random(2).nextBytes(log);
+        byte[] first = bytes("first\n"), second = bytes("second\n");
         
-        public List<DataNode> getDataNodes() {
-            return new ArrayList<>(dataNodes.values());
+        UberHDFS hdfs = new UberHDFS(dir, 1024, false);
+        NameNode nameNode = hdfs.getNameNode();
+        nameNode.setCheckpointPeriod(Long.MAX_VALUE, Long.MAX_VALUE);
+        check(nameNode.writeFile("/uber/logs/a.log", log, "uber_system"), "write failed");
+        check(nameNode.appendFile("/uber/logs/a.log", first), "append failed");
+        check(nameNode.writeFile("/uber/logs/b.log", log, "uber_system"), "write failed");
+        nameNode.saveCheckpoint();
+        check(nameNode.appendFile("/uber/logs/a.log", second), "append failed");
+        check(nameNode.deleteFile("/uber/logs/b.log"), "delete failed");
+        check(nameNode.writeFile("/uber/logs/c.log", first, "uber_system"), "write failed");
+        long lastTxId = nameNode.getLastTxId();
+        int generation = nameNode.getFileInfo("/uber/logs/a.log").getGeneration();
+        hdfs.shutdown();
+        
+        hdfs = new UberHDFS(dir, 1024, false);
+        nameNode = hdfs.getNameNode();
+        check(nameNode.getLastTxId() >= lastTxId, "restart is at txId " + nameNode.getLastTxId() + ", expected " + lastTxId);
+        checkContents(nameNode, "/uber/logs/a.log", concat(concat(log, first), second));
+        checkContents(nameNode, "/uber/logs/c.log", first);
+        check(nameNode.getFileInfo("/uber/logs/b.log") == null, "deleted file came back");
+        check(nameNode.getFileInfo("/uber/logs/a.log").getGeneration() == generation, "generation changed across restart");
+        hdfs.shutdown();
+    }
+    
+    // GPS points over two hours, one hour sealed and the other open at
+    // shutdown: a range query returns the same points from the journal and
+    // again from the checkpoint written at the second shutdown
+    static void checkGPSIndexReplay(File dir) throws Exception {
+        long hour = GPSSegment.PARTITION_MILLIS;
+        long origin = 1_790_000_000_000L / hour * hour;
+        StringBuilder firstHour = new StringBuilder(), secondHour = new StringBuilder();
+        for (long t = origin; t < origin + hour; t += 10_000) firstHour.append(gpsLine("DRIVER001", t));
+        for (long t = origin + hour; t < origin + hour + 600_000; t += 10_000) secondHour.append(gpsLine("DRIVER001", t));
+        
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        nameNode.setCheckpointPeriod(Long.MAX_VALUE, Long.MAX_VALUE);
+        for (int i = 1; i <= 2; i++) nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 30, new File(dir, "dn" + i)));
+        check(nameNode.appendGPSRecord("DRIVER001", bytes(firstHour.toString())), "first hour not appended");
+        nameNode.sealAllGPSSegments();
+        check(nameNode.appendGPSRecord("DRIVER001", bytes(secondHour.toString())), "second hour not appended");
+        List<GPSPoint> expected = nameNode.queryGPSRange("DRIVER001", origin + hour - 300_000, origin + hour + 300_000);
+        check(expected.size() == 61, expected.size() + " points in range, expected 61");
+        int all = nameNode.queryGPSRange("DRIVER001", Long.MIN_VALUE, Long.MAX_VALUE).size();
+        check(all == 420, all + " points over all time, expected 420");
+        nameNode.shutdown();
+        
+        for (int restart = 1; restart <= 2; restart++) {
+            nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+            for (int i = 1; i <= 2; i++) nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 30, new File(dir, "dn" + i)));
+            List<GPSPoint> replayed = nameNode.queryGPSRange("DRIVER001", origin + hour - 300_000, origin + hour + 300_000);
+            check(replayed.toString().equals(expected.toString()), "restart " + restart + " returned " + replayed.size() + 
+                  " points, expected " + expected.size());
+            check(nameNode.queryGPSRange("DRIVER001", Long.MIN_VALUE, Long.MAX_VALUE).size() == all, "restart " + restart + " lost points");
+            check((Long) nameNode.getGPSIndexStats().get("indexedBlocks") > 2, "index not rebuilt on restart " + restart);
+            nameNode.shutdown();
         }
     }
     
-    // ==================== UBER HDFS CLIENT ====================
-    static class UberHDFSClient {
-        private final NameNode nameNode;
+    // One record larger than a whole segment, as a bulk import sends a driver's
+    // points: it is stored in a segment of its own instead of sealing empty ones
+    static void checkOversizedGPSRecord(File dir) throws Exception {
+        long origin = 1_790_000_000_000L / GPSSegment.PARTITION_MILLIS * GPSSegment.PARTITION_MILLIS;
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < 5000; i++) batch.append(gpsLine("DRIVER001", origin + i * 500L));
+        byte[] record = bytes(batch.toString());
         
-        public UberHDFSClient(NameNode nameNode) {
-            this.nameNode = nameNode;
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        for (int i = 1; i <= 2; i++) nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 30, new File(dir, "dn" + i)));
+        nameNode.setGPSSegmentLimits(256 * 1024, 60_000);
+        check(record.length > 256 * 1024, "record is only " + record.length + " bytes");
+        long txId = nameNode.getLastTxId();
+        
+        ExecutorService appender = Executors.newSingleThreadExecutor();
+        try {
+            check(appender.submit(() -> nameNode.appendGPSRecord("DRIVER001", record)).get(10, TimeUnit.SECONDS), 
+                  "oversized record not appended");
+            check(appender.submit(() -> nameNode.appendGPSRecord("DRIVER001", bytes(gpsLine("DRIVER001", origin + 2_600_000))))
+                          .get(10, TimeUnit.SECONDS), "record after it not appended");
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("append did not return; " + (nameNode.getLastTxId() - txId) + " edits journaled");
+        } finally {
+            appender.shutdownNow();
         }
+        check(nameNode.listGPSSegments("DRIVER001").size() == 2, "segments " + nameNode.listGPSSegments("DRIVER001"));
+        check(nameNode.queryGPSRange("DRIVER001", origin, origin + GPSSegment.PARTITION_MILLIS).size() == 5001, 
+              "points lost");
+        nameNode.shutdown();
+    }
+    
+    // Sealing while no DataNode can take the tail: the segment stays open with
+    // its points, and is sealed once the DataNodes are back
+    static void checkGPSSealFailure(File dir) throws Exception {
+        long origin = 1_790_000_000_000L / GPSSegment.PARTITION_MILLIS * GPSSegment.PARTITION_MILLIS;
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        for (int i = 1; i <= 2; i++) nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 30, new File(dir, "dn" + i)));
+        check(nameNode.appendGPSRecord("DRIVER001", bytes(gpsLine("DRIVER001", origin))), "point not appended");
         
-        public boolean storeRideData(String rideId, String riderName, String driverName, 
-                                   String pickup, String destination, double fare) {
-            String rideData = String.format("RIDE_DATA|%s|%s|%s|%s|%s|%.2f|%d\n", 
-                                          rideId, riderName, driverName, pickup, destination, fare, System.currentTimeMillis());
-            
-            String fileName = "/uber/rides/" + rideId + ".txt";
-            return nameNode.writeFile(fileName, rideData.getBytes(), "uber_system");
+        nameNode.markDataNodeDead("dn1");
+        nameNode.markDataNodeDead("dn2");
+        check(nameNode.sealAllGPSSegments() == 1, "segment sealed without a DataNode");
+        check(nameNode.getOpenGPSSegmentCount() == 1, "segment no longer open");
+        check(nameNode.queryGPSRange("DRIVER001", origin, origin).size() == 1, "point lost while unsealed");
+        
+        nameNode.markDataNodeAlive("dn1");
+        nameNode.markDataNodeAlive("dn2");
+        check(nameNode.sealAllGPSSegments() == 0, "segment not sealed after the DataNodes came back");
+        check(nameNode.getOpenGPSSegmentCount() == 0, "segment still open");
+        List<String> segments = nameNode.listGPSSegments("DRIVER001");
+        check(segments.size() == 1 && nameNode.readFile(segments.get(0)).length > 0, "segments " + segments);
+        check(nameNode.queryGPSRange("DRIVER001", origin, origin).size() == 1, "point lost after sealing");
+        nameNode.shutdown();
+    }
+    
+    // A GPS batch counts points: a refused driver fails all of its points
+    static void checkGPSBatchResult(File dir) throws Exception {
+        long origin = 1_790_000_000_000L / GPSSegment.PARTITION_MILLIS * GPSSegment.PARTITION_MILLIS;
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        for (int i = 1; i <= 2; i++) nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 30, new File(dir, "dn" + i)));
+        nameNode.setGPSSegmentLimits(1, Long.MAX_VALUE); // every append after the first must seal first
+        UberHDFSClient client = new UberHDFSClient(new MountTable(nameNode), 1, 100);
+        List<GPSPoint> points = new ArrayList<>();
+        for (int i = 0; i < 3; i++) points.add(new GPSPoint("DRIVER1", 40.7128, -74.006, origin + i));
+        points.add(new GPSPoint("DRIVER2", 40.7128, -74.006, origin));
+        check(client.storeGPSBatch(points).join().getSucceeded() == 4, "first batch refused");
+        
+        nameNode.markDataNodeDead("dn1");
+        nameNode.markDataNodeDead("dn2");
+        BatchResult result = client.storeGPSBatch(points).join();
+        check(result.getFailed().equals(List.of("DRIVER1", "DRIVER2")), "failed drivers " + result.getFailed());
+        check(result.getSucceeded() == 0 && result.getFailedRecords() == 4, "batch reports " + result);
+        
+        nameNode.markDataNodeAlive("dn1");
+        nameNode.markDataNodeAlive("dn2");
+        client.shutdown();
+        nameNode.shutdown();
+    }
+    
+    // Concurrent callers share the rate, and one caller's sleep does not hold
+    // the throttler's lock
+    static void checkThrottlerConcurrency(File dir) throws Exception {
+        DataThrottler throttler = new DataThrottler(1 << 20);
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    throttler.throttle(256 * 1024);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            threads.add(thread);
         }
+        for (Thread thread : threads) thread.join();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        check(millis >= 900, "1 MB passed a 1 MB/s throttle in " + millis + " ms");
         
-        public boolean storeDriverData(String driverId, String name, String location, String vehicle) {
-            String driverData = String.format("DRIVER_DATA|%s|%s|%s|%s|%d\n", 
-                                            driverId, name, location, vehicle, System.currentTimeMillis());
-            
-            String fileName = "/uber/drivers/" + driverId + ".txt";
-            return nameNode.writeFile(fileName, driverData.getBytes(), "uber_system");
+        throttler.reset();
+        Thread sleeper = new Thread(() -> {
+            try {
+                throttler.throttle(1 << 20);
+            } catch (InterruptedException e) {
+                // expected
+            }
+        });
+        sleeper.start();
+        Thread.sleep(100);
+        start = System.nanoTime();
+        throttler.reset();
+        millis = (System.nanoTime() - start) / 1_000_000;
+        sleeper.interrupt();
+        sleeper.join();
+        check(millis < 200, "reset waited " + millis + " ms for a sleeping caller");
+    }
+    
+    // A read with no room in the buffer is not end-of-stream, even before the first block
+    static void checkChannelEmptyRead(File dir) throws Exception {
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        for (int i = 1; i <= 2; i++) nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 30, new File(dir, "dn" + i)));
+        byte[] data = new byte[10_000];
+        new Random(9).nextBytes(data);
+        check(nameNode.writeFile("/uber/archive/channel.bin", data, "uber_system"), "write failed");
+        
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (ReadableByteChannel channel = nameNode.openFileChannel("/uber/archive/channel.bin")) {
+            check(channel.read(ByteBuffer.allocate(0)) == 0, "empty read before the first block was not 0");
+            ByteBuffer buffer = ByteBuffer.allocate(3000);
+            while (channel.read(buffer) >= 0) {
+                check(channel.read(ByteBuffer.allocate(0)) == 0, "empty read mid-file was not 0");
+                copy.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        check(Arrays.equals(copy.toByteArray(), data), "channel returned " + copy.size() + " bytes, expected " + data.length);
+        nameNode.shutdown();
+    }
+    
+    // A compressed block whose header claims more raw bytes than a block holds is
+    // rejected before anything is allocated
+    static void checkEncodedLength(File dir) throws Exception {
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        CompressionCodec codec = CompressionCodec.forName("deflate");
+        byte[] raw = new byte[4096];
+        Arrays.fill(raw, (byte) 'u');
+        byte[] encoded = nameNode.encodeBlockData(codec, raw);
+        check(nameNode.decodeBlockData(codec, ByteBuffer.wrap(encoded)).equals(ByteBuffer.wrap(raw)), "round trip changed the block");
+        for (int rawLength : new int[]{-1, 4097, Integer.MAX_VALUE}) {
+            ByteBuffer damaged = ByteBuffer.wrap(encoded.clone()).putInt(1, rawLength);
+            try {
+                nameNode.decodeBlockData(codec, damaged);
+                check(false, "raw length " + rawLength + " was accepted");
+            } catch (IOException e) {
+                // expected
+            }
         }
+        nameNode.shutdown();
+    }
+    
+    // A live slot whose data does not match its checksums, as a crash can leave
+    // it, is dropped by the next scan and its space is reused
+    static void checkTornSlot(File dir) throws Exception {
+        File extents = new File(dir, "extents");
+        SlottedBlockStore store = new SlottedBlockStore(extents, 1 << 20);
+        store.scan();
+        byte[] a = new byte[3000], b = new byte[3000];
+        new Random(12).nextBytes(a);
+        new Random(13).nextBytes(b);
+        store.write("blk_a", ByteBuffer.wrap(a), BlockChecksum.compute(ByteBuffer.wrap(a)));
+        store.write("blk_b", ByteBuffer.wrap(b), BlockChecksum.compute(ByteBuffer.wrap(b)));
+        String location = store.describe("blk_b");
+        store.close();
         
-        public boolean storeGPSData(String driverId, double lat, double lon) {
-            String gpsData = String.format("GPS_DATA|%s|%.6f|%.6f|%d\n", 
-                                         driverId, lat, lon, System.currentTimeMillis());
-            
-            String fileName = "/uber/gps/" + driverId + "_" + System.currentTimeMillis() + ".txt";
-            return nameNode.writeFile(fileName, gpsData.getBytes(), "uber_system");
+        String[] parts = location.split("@");
+        try (RandomAccessFile extent = new RandomAccessFile(parts[0], "rw")) {
+            long at = Long.parseLong(parts[1]) + 1000; // past the header, inside the data
+            extent.seek(at);
+            int value = extent.read();
+            extent.seek(at);
+            extent.write(value ^ 0xFF);
         }
         
-        public String getRideData(String rideId) {
-            String fileName = "/uber/rides/" + rideId + ".txt";
-            byte[] data = nameNode.readFile(fileName);
-            return data != null ? new String(data) : null;
+        store = new SlottedBlockStore(extents, 1 << 20);
+        Map<String, Long> blocks = store.scan();
+        check(blocks.keySet().equals(Collections.singleton("blk_a")), "scan found " + blocks.keySet());
+        check(store.read("blk_a").equals(ByteBuffer.wrap(a)), "intact slot changed");
+        store.write("blk_c", ByteBuffer.wrap(b), BlockChecksum.compute(ByteBuffer.wrap(b)));
+        check(store.describe("blk_c").equals(location), "torn slot not reused: blk_c at " + store.describe("blk_c"));
+        store.close();
+    }
+    
+    // Re-replication when the only live replica is corrupt: the block is
+    // retried with backoff and then reported missing, and the monitor drains
+    static void checkCorruptLastReplica(File dir) throws Exception {
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        for (int i = 1; i <= 3; i++) nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 30, new File(dir, "dn" + i), 0));
+        byte[] data = new byte[4096];
+        new Random(8).nextBytes(data);
+        check(nameNode.writeFile("/uber/archive/only.bin", data, "uber_system"), "write failed");
+        String blockId = nameNode.getFileInfo("/uber/archive/only.bin").getBlockIds().get(0);
+        List<String> replicas = nameNode.blockLocations.get(blockId).getReplicas();
+        
+        for (String replica : replicas) {
+            BlockStore store = nameNode.dataNodes.get(replica).getStore();
+            ByteBuffer rotten = store.read(blockId);
+            rotten.put(100, (byte) (rotten.get(100) ^ 0xFF));
+            store.write(blockId, rotten, store.checksums(blockId));
         }
+        // The read drops the first corrupt replica, keeps the second as the last
+        // copy and queues the block for re-replication
+        check(nameNode.readFile("/uber/archive/only.bin") == null, "read returned corrupt data");
         
-        public String getDriverData(String driverId) {
-            String fileName = "/uber/drivers/" + driverId + ".txt";
-            byte[] data = nameNode.readFile(fileName);
-            return data != null ? new String(data) : null;
+        ReplicationMonitor monitor = nameNode.getReplicationMonitor();
+        check(monitor.awaitFullReplication(30_000) >= 0, "replication never drained: " + monitor.getStatus());
+        check((Integer) monitor.getStatus().get("missingBlocks") == 1, "block not reported missing: " + monitor.getStatus());
+        check(nameNode.blockLocations.get(blockId).getReplicas().size() == 1, "last copy was removed");
+        nameNode.shutdown();
+    }
+    
+    // Once the journal cannot be synced every mutation reports failure and is
+    // undone, and a restart shows exactly what was acknowledged before
+    static void checkJournalFailure(File dir) throws Exception {
+        byte[] log = new byte[3000];
+        new Random(4).nextBytes(log);
+        byte[] record = bytes("trip completed\n");
+        byte[] ride = bytes("RIDE_DATA|RIDE001|Rider|Driver|Airport|Hotel|25.50|1792190000000\n");
+        
+        UberHDFS hdfs = new UberHDFS(dir, 1024, false);
+        NameNode nameNode = hdfs.getNameNode();
+        nameNode.setCheckpointPeriod(Long.MAX_VALUE, Long.MAX_VALUE);
+        check(nameNode.writeFile("/uber/logs/trips.log", log, "uber_system"), "write failed");
+        check(nameNode.writeSmallFile("/uber/rides/RIDE001.txt", ride, "uber_system"), "small write failed");
+        int blocks = nameNode.blockLocations.size();
+        
+        check(nameNode.canAcceptWrites(), "healthy NameNode reports it cannot accept writes");
+        nameNode.editLog.segmentOut.close(); // the next sync fails
+        check(!nameNode.writeFile("/uber/logs/new.log", log, "uber_system"), "write acknowledged without a journal");
+        check(!nameNode.canAcceptWrites(), "NameNode with a failed journal still reports it accepts writes");
+        check(!nameNode.appendFile("/uber/logs/trips.log", record), "append acknowledged without a journal");
+        check(!nameNode.overwriteFile("/uber/logs/trips.log", record, "uber_system"), "overwrite acknowledged without a journal");
+        check(!nameNode.deleteFile("/uber/logs/trips.log"), "delete acknowledged without a journal");
+        check(!nameNode.deleteFile("/uber/rides/RIDE001.txt"), "packed delete acknowledged without a journal");
+        check(!nameNode.writeSmallFile("/uber/rides/RIDE002.txt", ride, "uber_system"), "packed write acknowledged without a journal");
+        
+        check(nameNode.getFileInfo("/uber/logs/new.log") == null, "failed write is visible");
+        checkContents(nameNode, "/uber/logs/trips.log", log);
+        checkContents(nameNode, "/uber/rides/RIDE001.txt", ride);
+        check(nameNode.blockLocations.size() == blocks, (nameNode.blockLocations.size() - blocks) + 
+              " blocks of failed writes still tracked");
+        hdfs.shutdown();
+        
+        hdfs = new UberHDFS(dir, 1024, false);
+        nameNode = hdfs.getNameNode();
+        checkContents(nameNode, "/uber/logs/trips.log", log);
+        checkContents(nameNode, "/uber/rides/RIDE001.txt", ride);
+        check(nameNode.getFileInfo("/uber/logs/new.log") == null, "failed write came back");
+        check(nameNode.getFileInfo("/uber/rides/RIDE002.txt") == null, "failed packed write came back");
+        hdfs.shutdown();
+    }
+    
+    // Records packed one at a time grow the container's blocks by appends; every
+    // replica must pass verification and the records must survive a restart
+    static void checkContainerAppend(File dir) throws Exception {
+        Map<String, byte[]> rides = new LinkedHashMap<>();
+        for (int i = 0; i < 40; i++) {
+            rides.put(String.format("/uber/rides/RIDE%03d.txt", i), 
+                      bytes("RIDE_DATA|RIDE" + i + "|Rider|Driver|Airport|Hotel|" + (10 + i) + ".50|1792190000000\n"));
         }
+        UberHDFS hdfs = new UberHDFS(dir, 1024, false);
+        NameNode nameNode = hdfs.getNameNode();
+        for (Map.Entry<String, byte[]> ride : rides.entrySet()) {
+            check(nameNode.writeSmallFile(ride.getKey(), ride.getValue(), "uber_system"), ride.getKey() + " not written");
+        }
+        for (Map.Entry<String, byte[]> ride : rides.entrySet()) checkContents(nameNode, ride.getKey(), ride.getValue());
+        for (DataNode node : nameNode.dataNodes.values()) {
+            for (String blockId : node.getStoredBlockIds()) node.verifyBlock(blockId);
+        }
+        hdfs.shutdown();
         
-        public List<String> listAllRides() {
-            return nameNode.listFiles().stream()
-                .filter(f -> f.startsWith("/uber/rides/"))
-                .collect(ArrayList::new, ArrayList::add, ArrayList::addAll);
+        hdfs = new UberHDFS(dir, 1024, false);
+        nameNode = hdfs.getNameNode();
+        for (Map.Entry<String, byte[]> ride : rides.entrySet()) checkContents(nameNode, ride.getKey(), ride.getValue());
+        hdfs.shutdown();
+    }
+    
+    // GPS points still buffered in open segments when the active hands over must
+    // be shipped and reach the promoted standby
+    static void checkFailoverGPSTails(File dir) throws Exception {
+        UberHDFS hdfs = new UberHDFS(dir, 1024, false);
+        NameNode active = hdfs.getNameNode();
+        active.setGPSSegmentLimits(Long.MAX_VALUE, Long.MAX_VALUE);
+        hdfs.startStandbyNameNode();
+        long base = 1792190000000L;
+        for (int i = 0; i < 30; i++) {
+            String driverId = "DRIVER" + (i % 3);
+            check(active.appendGPSRecord(driverId, bytes(gpsLine(driverId, base + i * 1000))), "point " + i + " refused");
         }
+        check(active.getOpenGPSSegmentCount() == 3, "segments sealed before the failover");
         
-        public List<String> listAllDrivers() {
-            return nameNode.listFiles().stream()
-                .filter(f -> f.startsWith("/uber/drivers/"))
-                .collect(ArrayList::new, ArrayList::add, ArrayList::addAll);
+        hdfs.failoverNameNode();
+        NameNode promoted = hdfs.getNameNode();
+        for (int d = 0; d < 3; d++) {
+            int points = promoted.queryGPSRange("DRIVER" + d, base, base + 30_000).size();
+            check(points == 10, "DRIVER" + d + " has " + points + " of 10 points after the failover");
         }
+        hdfs.shutdown();
+    }
+    
+    // Blocks dropped by an overwrite are deleted after a grace period. A standby
+    // that replays the overwrite, and a NameNode loading a checkpoint, must still
+    // delete them, and must forget the ones the active already deleted.
+    static void checkRetiredBlockReplay(File dir) throws Exception {
+        byte[] log = new byte[3000];
+        new Random(5).nextBytes(log);
+        byte[] small = bytes("rotated\n");
+        UberHDFS hdfs = new UberHDFS(dir, 1024, false);
+        NameNode active = hdfs.getNameNode();
+        active.setRetiredBlockGraceMillis(Long.MAX_VALUE);
+        NameNode standby = hdfs.startStandbyNameNode();
         
-        public NameNode getNameNode() {
-            return nameNode;
+        check(active.writeFile("/uber/logs/a.log", log, "uber_system"), "write failed");
+        check(active.writeFile("/uber/logs/b.log", log, "uber_system"), "write failed");
+        List<String> aBlocks = active.getFileInfo("/uber/logs/a.log").getBlockIds();
+        List<String> bBlocks = active.getFileInfo("/uber/logs/b.log").getBlockIds();
+        check(active.overwriteFile("/uber/logs/b.log", small, "uber_system"), "overwrite failed");
+        check(active.deleteRetiredBlocks(0) == bBlocks.size(), "b.log's old blocks not deleted");
+        check(active.overwriteFile("/uber/logs/a.log", small, "uber_system"), "overwrite failed");
+        
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (standby.getLastTxId() < active.getLastTxId() && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        check(standby.getRetiredBlockCount() == aBlocks.size(), "standby retired " + standby.getRetiredBlockCount() + 
+              " of a.log's " + aBlocks.size() + " old blocks");
+        for (String blockId : bBlocks) check(!standby.blockLocations.containsKey(blockId), "standby still tracks deleted " + blockId);
+        
+        hdfs.failoverNameNode();
+        NameNode promoted = hdfs.getNameNode();
+        promoted.deleteRetiredBlocks(0);
+        for (DataNode node : hdfs.getDataNodes()) {
+            for (String blockId : aBlocks) check(!node.hasBlock(blockId), node.getNodeId() + " kept retired " + blockId);
         }
+        
+        check(promoted.writeFile("/uber/logs/c.log", log, "uber_system"), "write failed");
+        int cBlocks = promoted.getFileInfo("/uber/logs/c.log").getBlockCount();
+        check(promoted.overwriteFile("/uber/logs/c.log", small, "uber_system"), "overwrite failed");
+        promoted.saveCheckpoint();
+        NameNode restarted = hdfs.startStandbyNameNode();
+        check(restarted.getRetiredBlockCount() == cBlocks, "checkpoint kept " + restarted.getRetiredBlockCount() + 
+              " of c.log's " + cBlocks + " retired blocks");
+        hdfs.shutdown();
     }
     
-    // ==================== MAIN HDFS SYSTEM ====================
-    private final NameNode nameNode;
-    private final List<DataNode> dataNodes;
-    private final UberHDFSClient client;
-    private final File basePath;
+    // GPS calls go to the NameNode that owns /uber/gps, and nothing below it can
+    // be mounted elsewhere
+    static void checkGPSMountRouting(File dir) throws Exception {
+        try {
+            new UberHDFS(new File(dir, "partitioned"), 1024, false, Map.of("/uber/gps/2026-10-17-10", "gps")).shutdown();
+            check(false, "mount below /uber/gps accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        
+        UberHDFS hdfs = new UberHDFS(new File(dir, "federated"), 1024, false, Map.of("/uber/gps", "gps"));
+        UberHDFSClient client = hdfs.getClient();
+        long from = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) check(client.storeGPSData("DRIVER1", 40.7128, -74.006), "point " + i + " refused");
+        client.resolve("/uber/gps").sealAllGPSSegments();
+        long to = System.currentTimeMillis();
+        check(client.queryGPSRange("DRIVER1", from, to).size() == 5, "client finds " + 
+              client.queryGPSRange("DRIVER1", from, to).size() + " of 5 points");
+        check(client.resolve("/uber/gps") != hdfs.getNameNode(), "/uber/gps not mounted");
+        check(hdfs.getNameNode().queryGPSRange("DRIVER1", from, to).isEmpty(), "points landed on the root NameNode");
+        hdfs.shutdown();
+    }
     
-    public UberHDFS() {
-        // Base path for persisted HDFS data
-        this.basePath = new File("UberSystem" + File.separator + "hdfs_data");
-        if (!basePath.exists()) basePath.mkdirs();
-
-        // Prepare namenode metadata dir
-        File nameNodeDir = new File(basePath, "namenode");
-        if (!nameNodeDir.exists()) nameNodeDir.mkdirs();
-
-        // Initialize HDFS with replication factor and block size (and meta dir)
-        this.nameNode = new NameNode(nameNodeDir, 2, 1024);
-        this.dataNodes = new ArrayList<>();
-
-        // Create 3 DataNodes with on-disk storage
-        File dn1 = new File(basePath, "datanode1"); dn1.mkdirs();
-        File dn2 = new File(basePath, "datanode2"); dn2.mkdirs();
-        File dn3 = new File(basePath, "datanode3"); dn3.mkdirs();
-
-        dataNodes.add(new DataNode("datanode1", "localhost", 9001, 10 * 1024 * 1024, dn1)); // 10MB
-        dataNodes.add(new DataNode("datanode2", "localhost", 9002, 10 * 1024 * 1024, dn2)); // 10MB
-        dataNodes.add(new DataNode("datanode3", "localhost", 9003, 10 * 1024 * 1024, dn3)); // 10MB
-
-        // Register DataNodes with NameNode
-        for (DataNode node : dataNodes) {
-            nameNode.registerDataNode(node);
+    // Check fixture: a file-per-block store whose writes can be delayed or fail
+    static class FaultyWriteStore extends FileBlockStore {
+        private final long writeDelayMillis;
+        private final boolean failWrites;
+        
+        FaultyWriteStore(File blocksDir, long writeDelayMillis, boolean failWrites) {
+            super(blocksDir);
+            this.writeDelayMillis = writeDelayMillis;
+            this.failWrites = failWrites;
+        }
+        
+        @Override
+        public void write(String blockId, ByteBuffer data, int[] checksums) throws IOException {
+            if (failWrites) throw new IOException("injected write failure");
+            try {
+                Thread.sleep(writeDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted before writing " + blockId);
+            }
+            super.write(blockId, data, checksums);
+        }
+        
+        @Override
+        public void append(String blockId, long offset, ByteBuffer data, int[] checksums) throws IOException {
+            if (failWrites) throw new IOException("injected append failure");
+            super.append(blockId, offset, data, checksums);
         }
-
-        this.client = new UberHDFSClient(nameNode);
-
-        System.out.println("Uber HDFS initialized successfully! Data stored under: " + basePath.getAbsolutePath());
     }
     
-    public UberHDFSClient getClient() {
-        return client;
+    // Check fixture: a file-per-block store whose first delete waits to be released
+    static class HeldDeleteStore extends FileBlockStore {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        HeldDeleteStore(File blocksDir) {
+            super(blocksDir);
+        }
+        
+        @Override
+        public boolean delete(String blockId) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.delete(blockId);
+        }
     }
     
-    public NameNode getNameNode() {
-        return nameNode;
+    // While the copies of a shared block are being deleted, other deduplicated
+    // writes go ahead; a write of the same content waits and stores a fresh copy
+    static void checkSharedBlockDelete(File dir) throws Exception {
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        HeldDeleteStore held = new HeldDeleteStore(new File(dir, "dn1/blocks"));
+        nameNode.registerDataNode(new DataNode("dn1", "localhost", 9301, 1L << 30, new File(dir, "dn1"), 0, held));
+        nameNode.registerDataNode(new DataNode("dn2", "localhost", 9302, 1L << 30, new File(dir, "dn2")));
+        nameNode.setDeduplication("/uber/archive", true);
+        byte[] first = new byte[4096], second = new byte[4096];
+        new Random(10).nextBytes(first);
+        new Random(11).nextBytes(second);
+        check(nameNode.writeFile("/uber/archive/a.bin", first, "uber_system"), "write failed");
+        
+        ExecutorService writers = Executors.newCachedThreadPool();
+        try {
+            Future<Boolean> delete = writers.submit(() -> nameNode.deleteFile("/uber/archive/a.bin"));
+            check(held.entered.await(5, TimeUnit.SECONDS), "the delete never reached the store");
+            Future<Boolean> other = writers.submit(() -> nameNode.writeFile("/uber/archive/b.bin", second, "uber_system"));
+            try {
+                check(other.get(5, TimeUnit.SECONDS), "write of other content failed");
+            } catch (TimeoutException e) {
+                throw new IllegalStateException("write of other content waited for an unrelated delete");
+            }
+            Future<Boolean> same = writers.submit(() -> nameNode.writeFile("/uber/archive/c.bin", first, "uber_system"));
+            Thread.sleep(200);
+            check(!same.isDone(), "write of the same content did not wait for its delete");
+            
+            held.release.countDown();
+            check(delete.get(5, TimeUnit.SECONDS), "delete failed");
+            check(same.get(5, TimeUnit.SECONDS), "write of the same content failed");
+        } finally {
+            held.release.countDown();
+            writers.shutdownNow();
+        }
+        checkContents(nameNode, "/uber/archive/b.bin", second);
+        checkContents(nameNode, "/uber/archive/c.bin", first);
+        String blockId = nameNode.getFileInfo("/uber/archive/c.bin").getBlockIds().get(0);
+        for (String replica : nameNode.blockLocations.get(blockId).getReplicas()) {
+            check(nameNode.dataNodes.get(replica).getStore().read(blockId) != null, "fresh copy missing on " + replica);
+        }
+        nameNode.shutdown();
     }
     
-    public List<DataNode> getDataNodes() {
-        return new ArrayList<>(dataNodes);
+    // Check fixture: a file-per-block store that runs a hook after its next write
+    static class HookedWriteStore extends FileBlockStore {
+        volatile Runnable afterWrite;
+        
+        HookedWriteStore(File blocksDir) {
+            super(blocksDir);
+        }
+        
+        @Override
+        public void write(String blockId, ByteBuffer data, int[] checksums) throws IOException {
+            super.write(blockId, data, checksums);
+            Runnable hook = afterWrite;
+            afterWrite = null;
+            if (hook != null) hook.run();
+        }
     }
     
-    public void printClusterStatus() {
-        System.out.println("\n=== UBER HDFS CLUSTER STATUS ===");
-        Map<String, Object> status = nameNode.getClusterStatus();
+    // The balancer leaves the blocks of an open container alone, and drops a
+    // copy whose block was replaced (as an append does) while it was copied
+    static void checkBalancerChangingBlocks(File dir) throws Exception {
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 2, 4096);
+        for (int i = 1; i <= 2; i++) nameNode.registerDataNode(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 20, new File(dir, "dn" + i)));
+        byte[] data = new byte[4096];
+        new Random(14).nextBytes(data);
+        for (int i = 0; i < 20; i++) check(nameNode.writeFile("/uber/archive/f" + i + ".bin", data, "uber_system"), "write failed");
+        for (int i = 0; i < 5; i++) {
+            check(nameNode.writeSmallFile("/uber/rides/RIDE" + i + ".txt", bytes("RIDE_DATA|RIDE" + i + "\n"), "uber_system"), "small write failed");
+        }
+        HookedWriteStore hooked = new HookedWriteStore(new File(dir, "dn3/blocks"));
+        DataNode empty = new DataNode("dn3", "localhost", 9303, 1L << 20, new File(dir, "dn3"), 0, hooked);
+        nameNode.registerDataNode(empty);
         
-        System.out.println("Files: " + status.get("totalFiles"));
-        System.out.println("DataNodes: " + status.get("activeDataNodes") + "/" + status.get("totalDataNodes"));
-        System.out.println("Blocks: " + status.get("totalBlocks"));
-        System.out.println("Storage: " + status.get("usedSpaceMB") + "MB used / " + 
-                         status.get("totalCapacityMB") + "MB total");
+        Set<String> open = nameNode.openFileBlocks();
+        check(open.stream().anyMatch(nameNode.blockLocations::containsKey), "no open container block stored: " + open);
+        Balancer balancer = nameNode.getBalancer();
+        List<Balancer.Move> moves = balancer.plan(0.01);
+        check(!moves.isEmpty(), "nothing planned");
+        for (Balancer.Move move : moves) check(!open.contains(move.blockId), "planned to move open block " + move.blockId);
         
-        System.out.println("\nDataNode Details:");
-        for (DataNode node : dataNodes) {
-            Map<String, Integer> summary = node.getBlockSummary();
-            System.out.println("  " + node.getNodeId() + ": " + 
-                             summary.get("totalBlocks") + " blocks, " +
-                             summary.get("usedSpaceMB") + "MB used, " +
-                             summary.get("freeSpaceMB") + "MB free");
+        Balancer.Move move = moves.get(0);
+        hooked.afterWrite = () -> {
+            HDFSBlock old = nameNode.blockLocations.get(move.blockId);
+            HDFSBlock replaced = new HDFSBlock(move.blockId, old.getSize());
+            for (String replica : old.getReplicas()) replaced.addReplica(replica);
+            nameNode.blockLocations.put(move.blockId, replaced);
+        };
+        balancer.execute(move);
+        List<String> replicas = nameNode.blockLocations.get(move.blockId).getReplicas();
+        check(replicas.contains(move.source.getNodeId()) && !replicas.contains("dn3"), "replicas moved to " + replicas);
+        check(move.source.getStore().read(move.blockId) != null, "source copy deleted");
+        check(!empty.getStoredBlockIds().contains(move.blockId), "stale copy left on dn3");
+        nameNode.shutdown();
+    }
+    
+    // A QUORUM write that fails fast on two of three replicas while the third is
+    // slow: the replica that lands last must be cleaned up, not orphaned
+    static void checkQuorumWriteCleanup(File dir) throws Exception {
+        NameNode nameNode = new NameNode(new File(dir, "namenode"), 3, 4096);
+        nameNode.setWriteAckPolicy(WriteAckPolicy.QUORUM);
+        List<DataNode> nodes = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            File nodeDir = new File(dir, "dn" + i);
+            BlockStore store = new FaultyWriteStore(new File(nodeDir, "blocks"), i == 3 ? 300 : 0, i != 3);
+            nodes.add(new DataNode("dn" + i, "localhost", 9300 + i, 1L << 30, nodeDir, 0, store));
+            nameNode.registerDataNode(nodes.get(i - 1));
+        }
+        check(!nameNode.writeFile("/uber/archive/failed.bin", new byte[1000], "uber_system"), "write with one replica acknowledged");
+        Thread.sleep(500); // any write still running would land by now
+        for (DataNode node : nodes) {
+            check(node.getStoredBlockIds().isEmpty(), node.getNodeId() + " kept " + node.getStoredBlockIds());
+            check(node.getUsedSpace() == 0, node.getNodeId() + " still counts " + node.getUsedSpace() + " bytes");
+        }
+        nameNode.shutdown();
+    }
+    
+    // Readers racing rewrites of the same block must always see one whole
+    // version, never new data checked against the previous version's checksums
+    static void checkBlockRewriteRead(File dir) throws Exception {
+        for (boolean slotted : new boolean[] {false, true}) {
+            File nodeDir = new File(dir, slotted ? "slotted" : "file");
+            BlockStore store = slotted
+                ? new SlottedBlockStore(new File(nodeDir, "extents"), 16L << 20)
+                : new FileBlockStore(new File(nodeDir, "blocks"));
+            DataNode node = new DataNode("dn1", "localhost", 9301, 1L << 30, nodeDir, 0, store);
+            byte[][] versions = new byte[2][64 * 1024];
+            new Random(1).nextBytes(versions[0]);
+            new Random(2).nextBytes(versions[1]);
+            check(node.storeBlock(new HDFSBlock("blk_rewrite", versions[0])), "initial write failed");
+            
+            AtomicBoolean done = new AtomicBoolean();
+            List<String> errors = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < 4; r++) {
+                boolean mapped = r % 2 == 1;
+                Thread reader = new Thread(() -> {
+                    while (!done.get() && errors.isEmpty()) {
+                        try {
+                            ByteBuffer data = mapped ? node.mapBlock("blk_rewrite") : node.readBlock("blk_rewrite");
+                            if (data == null) {
+                                errors.add("block missing");
+                                continue;
+                            }
+                            byte[] copy = new byte[data.remaining()];
+                            data.duplicate().get(copy);
+                            if (!Arrays.equals(copy, versions[0]) && !Arrays.equals(copy, versions[1])) {
+                                errors.add((mapped ? "mapped" : "read") + " returned a mix of versions");
+                            }
+                        } catch (ChecksumException e) {
+                            errors.add((mapped ? "mapped" : "read") + ": " + e.getMessage());
+                        }
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+            for (int i = 1; i <= 300 && errors.isEmpty(); i++) {
+                check(node.storeBlock(new HDFSBlock("blk_rewrite", versions[i % 2])), "rewrite " + i + " failed");
+            }
+            done.set(true);
+            for (Thread reader : readers) reader.join();
+            node.close();
+            check(errors.isEmpty(), (slotted ? "slotted" : "file") + " store: " + (errors.isEmpty() ? "" : errors.get(0)));
         }
-        System.out.println("================================\n");
     }
     
     // Test method
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 1 && args[0].equals("check")) {
+            int failures = runChecks(args.length > 1 ? args[1] : null);
+            System.exit(failures);
+        }
+        if (args.length >= 2 && args[0].equals("bench")) {
+            switch (args[1]) {
+                case "gps":
+                    benchmarkGPSIngest(20, 500);
+                    break;
+                case "read":
+                    benchmarkStreamingRead(8192);
+                    break;
+                case "write":
+                    benchmarkPipelinedWrites(10, 1024);
+                    break;
+                case "scrub":
+                    benchmarkScrubber(4, 512);
+                    break;
+                case "rereplicate":
+                    benchmarkReReplication(8, 512);
+                    break;
+                case "ec":
+                    benchmarkErasureCoding(8, 512);
+                    break;
+                case "smallfiles":
+                    benchmarkSmallFiles(5000);
+                    break;
+                case "blockstore":
+                    benchmarkBlockStore(args.length > 2 ? Integer.parseInt(args[2]) : 50_000);
+                    break;
+                case "placement":
+                    benchmarkPlacement(args.length > 2 ? Integer.parseInt(args[2]) : 200_000);
+                    break;
+                case "hedged":
+                    benchmarkHedgedReads(200, args.length > 2 ? Integer.parseInt(args[2]) : 20_000);
+                    break;
+                case "balancer":
+                    benchmarkBalancer(100, 64);
+                    break;
+                case "compression":
+                    benchmarkCompression(args.length > 2 ? Integer.parseInt(args[2]) : 100_000);
+                    break;
+                case "dedup":
+                    benchmarkDedup(args.length > 2 ? Integer.parseInt(args[2]) : 60, 10);
+                    break;
+                case "async":
+                    benchmarkAsyncClient(args.length > 2 ? Integer.parseInt(args[2]) : 20_000);
+                    break;
+                case "durability":
+                    benchmarkDurability(args.length > 2 ? Integer.parseInt(args[2]) : 20_000);
+                    break;
+                case "concurrency":
+                    benchmarkConcurrentMutations(args.length > 2 ? Integer.parseInt(args[2]) : 400);
+                    break;
+                case "namespace":
+                    benchmarkNamespaceFootprint(args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000);
+                    break;
+                case "failover":
+                    benchmarkFailover(new int[]{1_000, 100_000, 500_000}, 3000);
+                    break;
+                case "federation":
+                    benchmarkFederation(args.length > 2 ? Integer.parseInt(args[2]) : 2000, 8);
+                    break;
+                case "append":
+                    benchmarkAppend(args.length > 2 ? Integer.parseInt(args[2]) : 50);
+                    break;
+                case "gpsquery":
+                    benchmarkGPSRangeQuery(args.length > 2 ? Integer.parseInt(args[2]) : 100, 200);
+                    break;
+                case "list":
+                    benchmarkListing(2000, 200_000);
+                    break;
+                case "restart":
+                    benchmarkNameNodeRestart(args.length > 2 ? Integer.parseInt(args[2]) : 500_000, 8);
+                    break;
+                default:
+                    System.out.println("Unknown benchmark: " + args[1]);
+            }
+            return;
+        }
+        
         UberHDFS hdfs = new UberHDFS();
         UberHDFSClient client = hdfs.getClient();
         
@@ -555,5 +10144,10 @@ public class UberHDFS {
         
         System.out.println("All rides: " + client.listAllRides());
         System.out.println("All drivers: " + client.listAllDrivers());
+        long now = System.currentTimeMillis();
+        System.out.println("DRIVER001 in the last 30 minutes: " + client.queryGPSRange("DRIVER001", now - 30 * 60 * 1000, now));
+        
+        hdfs.shutdown();
+        System.out.println("GPS segments for DRIVER001: " + client.listGPSSegments("DRIVER001"));
     }
 }
\ No newline at end of file
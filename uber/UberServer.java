@@ -16,6 +16,9 @@ class FaultToleranceManager {
     private final long HEARTBEAT_INTERVAL = 5000; // 5 seconds
     private final long FAILURE_THRESHOLD = 15000; // 15 seconds
     private final int MAX_FAILURES = 3;
+    private final long NAMENODE_PROBE_TIMEOUT = 2000; // 2 seconds
+    // Separate from the scheduler, so a hung probe cannot stall the monitors
+    private final ExecutorService nameNodeProbe = Executors.newSingleThreadExecutor();
     
     public FaultToleranceManager(UberServer server) {
         this.server = server;
@@ -143,11 +146,45 @@ class FaultToleranceManager {
                                      (node.getUsedSpace() + node.getFreeSpace()) + " bytes");
                 }
             }
+            
+            // Promote the standby if the active NameNode stopped answering or can no longer journal
+            UberHDFS hdfs = server.getHdfs();
+            UberHDFS.NameNode active = hdfs.getNameNode();
+            UberHDFS.NameNode standby = hdfs.getStandbyNameNode();
+            String problem = standby != null ? probeNameNode(active) : null;
+            if (problem != null) {
+                System.out.println("[FAULT-TOLERANCE] 🚨 NameNode " + problem + " - failing over to standby");
+                System.out.println("[FAULT-TOLERANCE] ✅ Standby NameNode active in " + hdfs.failoverNameNode() + " ms");
+            } else {
+                nodeHeartbeats.put("hdfs_namenode", System.currentTimeMillis());
+                System.out.println("[FAULT-TOLERANCE] 📒 NameNode: active at txId " + active.getLastTxId() + ", standby " + 
+                                 (standby != null ? (active.getLastTxId() - standby.getLastTxId()) + " edits behind" : "NONE"));
+            }
         } catch (Exception e) {
             System.err.println("[FAULT-TOLERANCE] ⚠️ HDFS monitoring error: " + e.getMessage());
         }
     }
     
+    // Null if the NameNode answers within the timeout and accepts writes,
+    // otherwise what is wrong with it
+    private String probeNameNode(UberHDFS.NameNode nameNode) {
+        Future<Boolean> probe = nameNodeProbe.submit(() -> {
+            nameNode.getLastTxId(); // blocks while the journal is stuck
+            return nameNode.canAcceptWrites();
+        });
+        try {
+            return probe.get(NAMENODE_PROBE_TIMEOUT, TimeUnit.MILLISECONDS) ? null : "cannot journal writes";
+        } catch (TimeoutException e) {
+            probe.cancel(true);
+            return "did not answer within " + NAMENODE_PROBE_TIMEOUT + " ms";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return "failed its probe: " + e.getCause().getMessage();
+        }
+    }
+    
     private void monitorRMIService() {
         try {
             // Test RMI service availability
@@ -183,6 +220,7 @@ class FaultToleranceManager {
     
     public void shutdown() {
         scheduler.shutdown();
+        nameNodeProbe.shutdownNow();
         System.out.println("[FAULT-TOLERANCE] Fault tolerance system shutdown");
     }
 }
@@ -424,17 +462,11 @@ class DataBackupManager {
             List<String> rides = hdfsClient.listAllRides();
             System.out.println("[BACKUP-MANAGER] 🚗 Backing up " + rides.size() + " ride records...");
             
-            for (String rideFile : rides) {
-                String backupFile = "/backup/rides/" + System.currentTimeMillis() + "_" + 
-                                  rideFile.substring(rideFile.lastIndexOf("/") + 1);
-                
-                // Create backup entry
-                String backupData = "BACKUP_RIDE|" + rideFile + "|" + System.currentTimeMillis() + "\n";
-                hdfsClient.getNameNode().writeFile(backupFile, backupData.getBytes(), "backup_system");
-            }
+            String backupFile = "/backup/rides/rides_" + System.currentTimeMillis() + ".bak";
+            writeBackup(backupFile, "BACKUP_RIDE", rides);
             
             lastBackupTimes.put("rides", System.currentTimeMillis());
-            System.out.println("[BACKUP-MANAGER] ✅ Ride data backup completed");
+            System.out.println("[BACKUP-MANAGER] ✅ Ride data backup completed: " + backupFile);
             
         } catch (Exception e) {
             System.err.println("[BACKUP-MANAGER] ❌ Ride backup failed: " + e.getMessage());
@@ -446,34 +478,47 @@ class DataBackupManager {
             List<String> drivers = hdfsClient.listAllDrivers();
             System.out.println("[BACKUP-MANAGER] 👨‍💼 Backing up " + drivers.size() + " driver records...");
             
-            for (String driverFile : drivers) {
-                String backupFile = "/backup/drivers/" + System.currentTimeMillis() + "_" + 
-                                  driverFile.substring(driverFile.lastIndexOf("/") + 1);
-                
-                String backupData = "BACKUP_DRIVER|" + driverFile + "|" + System.currentTimeMillis() + "\n";
-                hdfsClient.getNameNode().writeFile(backupFile, backupData.getBytes(), "backup_system");
-            }
+            String backupFile = "/backup/drivers/drivers_" + System.currentTimeMillis() + ".bak";
+            writeBackup(backupFile, "BACKUP_DRIVER", drivers);
             
             lastBackupTimes.put("drivers", System.currentTimeMillis());
-            System.out.println("[BACKUP-MANAGER] ✅ Driver data backup completed");
+            System.out.println("[BACKUP-MANAGER] ✅ Driver data backup completed: " + backupFile);
             
         } catch (Exception e) {
             System.err.println("[BACKUP-MANAGER] ❌ Driver backup failed: " + e.getMessage());
         }
     }
     
+    // One file per run holding every record's contents. The timestamp stays in the
+    // file name only, so runs that see the same records produce the same blocks and
+    // /backup deduplication stores them once.
+    private void writeBackup(String backupFile, String tag, List<String> files) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (String file : files) {
+            byte[] data = hdfsClient.readFile(file);
+            if (data == null) continue;
+            buffer.write((tag + "|" + file + "|" + data.length + "\n").getBytes());
+            buffer.write(data);
+            buffer.write('\n');
+        }
+        if (buffer.size() == 0) return; // nothing to back up yet
+        if (!hdfsClient.writeFile(backupFile, buffer.toByteArray(), "backup_system")) {
+            throw new IOException("could not write " + backupFile);
+        }
+    }
+    
     private void createSystemSnapshot() {
         try {
             String snapshotData = String.format(
                 "SYSTEM_SNAPSHOT|%d|rides=%d|drivers=%d|timestamp=%d\n",
                 System.currentTimeMillis(),
-                hdfsClient.listAllRides().size(),
-                hdfsClient.listAllDrivers().size(),
+                hdfsClient.countRides(),
+                hdfsClient.countDrivers(),
                 System.currentTimeMillis()
             );
             
             String snapshotFile = "/backup/snapshots/snapshot_" + System.currentTimeMillis() + ".txt";
-            hdfsClient.getNameNode().writeFile(snapshotFile, snapshotData.getBytes(), "backup_system");
+            hdfsClient.writeFile(snapshotFile, snapshotData.getBytes(), "backup_system");
             
             System.out.println("[BACKUP-MANAGER] 📸 System snapshot created: " + snapshotFile);
             
@@ -484,16 +529,21 @@ class DataBackupManager {
     
     private void checkDataConsistency() {
         try {
-            // Check if all replicas have consistent data
-            Map<String, Object> clusterStatus = hdfsClient.getNameNode().getClusterStatus();
+            // Verify every replica against its stored CRC32C checksums
+            UberHDFS.NameNode nameNode = hdfsClient.getNameNode();
+            Map<String, Object> clusterStatus = nameNode.getClusterStatus();
             int totalBlocks = (Integer) clusterStatus.get("totalBlocks");
             
             System.out.println("[DATA-INTEGRITY] 🔄 Checking consistency of " + totalBlocks + " blocks...");
             
-            // Simulate consistency check
-            boolean consistent = Math.random() > 0.1; // 90% consistency rate
+            // Reuse the background scrubber's result while it is fresh
+            UberHDFS.ScrubReport report = nameNode.getLastScrubReport();
+            if (report == null || System.currentTimeMillis() - report.getFinishedAt() > 120000) {
+                report = nameNode.scrubBlocks();
+            }
+            System.out.println("[DATA-INTEGRITY] 📊 Scrub: " + report);
             
-            if (consistent) {
+            if (report.getCorruptReplicas().isEmpty()) {
                 System.out.println("[DATA-INTEGRITY] ✅ Data consistency check PASSED");
             } else {
                 System.out.println("[DATA-INTEGRITY] ⚠️ Data inconsistency detected - triggering repair");
@@ -532,13 +582,12 @@ class DataBackupManager {
         System.out.println("[DATA-INTEGRITY] 🔧 Starting data repair process...");
         
         try {
-            // Simulate data repair
-            Thread.sleep(2000);
-            System.out.println("[DATA-INTEGRITY] ✅ Data repair completed successfully");
+            // Corrupt replicas were already dropped by the scrubber; report what is left short
+            UberHDFS.BlockReconciliation reconciliation = hdfsClient.getNameNode().reconcileBlocks();
+            System.out.println("[DATA-INTEGRITY] ✅ Corrupt replicas removed - " + reconciliation);
             
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            System.err.println("[DATA-INTEGRITY] ❌ Data repair interrupted");
+        } catch (Exception e) {
+            System.err.println("[DATA-INTEGRITY] ❌ Data repair failed: " + e.getMessage());
         }
     }
     
@@ -548,7 +597,7 @@ class DataBackupManager {
                                             nodeId, failureCount, System.currentTimeMillis());
             
             String logFile = "/logs/failures/failure_" + System.currentTimeMillis() + ".txt";
-            hdfsClient.getNameNode().writeFile(logFile, failureLog.getBytes(), "fault_system");
+            hdfsClient.writeFile(logFile, failureLog.getBytes(), "fault_system");
             
             System.out.println("[BACKUP-MANAGER] 📝 Failure event logged: " + nodeId);
             
@@ -575,16 +624,37 @@ class DataBackupManager {
         System.out.println("[BACKUP-MANAGER] 📦 Starting data migration from failed node: " + failedNodeId);
         
         try {
-            // Simulate data migration
-            Thread.sleep(3000);
-            System.out.println("[BACKUP-MANAGER] ✅ Data migration completed from " + failedNodeId);
+            // Only HDFS DataNodes hold blocks; dispatch nodes have nothing to migrate
+            long recoveryMillis = 0;
+            int queuedBlocks = 0;
+            if (failedNodeId.startsWith("hdfs_")) {
+                queuedBlocks = hdfsClient.markDataNodeDead(failedNodeId.substring(5));
+                // Every namespace re-replicates its own block pool
+                long started = System.currentTimeMillis();
+                for (UberHDFS.NameNode nameNode : hdfsClient.getNameNodes()) {
+                    long remaining = 5 * 60 * 1000 - (System.currentTimeMillis() - started);
+                    if (remaining <= 0 || nameNode.getReplicationMonitor().awaitFullReplication(remaining) < 0) {
+                        recoveryMillis = -1;
+                        break;
+                    }
+                }
+                if (recoveryMillis == 0) recoveryMillis = System.currentTimeMillis() - started;
+                if (recoveryMillis < 0) {
+                    System.out.println("[BACKUP-MANAGER] ⚠️ Re-replication still running after 5 minutes for " + failedNodeId);
+                }
+            }
+            System.out.println("[BACKUP-MANAGER] ✅ Data migration completed from " + failedNodeId + 
+                             " (" + queuedBlocks + " blocks re-replicated in " + recoveryMillis + " ms)");
             
             // Log migration event
-            String migrationLog = String.format("DATA_MIGRATION|from=%s|timestamp=%d\n",
-                                               failedNodeId, System.currentTimeMillis());
+            String migrationLog = String.format("DATA_MIGRATION|from=%s|blocks=%d|recoveryMs=%d|timestamp=%d\n",
+                                               failedNodeId, queuedBlocks, recoveryMillis, System.currentTimeMillis());
             String logFile = "/logs/migrations/migration_" + System.currentTimeMillis() + ".txt";
-            hdfsClient.getNameNode().writeFile(logFile, migrationLog.getBytes(), "fault_system");
+            hdfsClient.writeFile(logFile, migrationLog.getBytes(), "fault_system");
             
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("[BACKUP-MANAGER] ❌ Data migration interrupted for " + failedNodeId);
         } catch (Exception e) {
             System.err.println("[BACKUP-MANAGER] ❌ Data migration failed: " + e.getMessage());
         }
@@ -726,6 +796,7 @@ public class UberServer {
     private final ConcurrentHashMap<String, String> driverLocations = new ConcurrentHashMap<>();
     private FareServiceImpl fareService;
     private volatile boolean running = true;
+    private final UberHDFS hdfs;
     private UberHDFS.UberHDFSClient hdfsClient;
     
     // FAULT TOLERANCE COMPONENTS
@@ -739,7 +810,7 @@ public class UberServer {
         dispatchNodes.get(4).declareAsLeader();
         
         // Initialize HDFS
-        UberHDFS hdfs = new UberHDFS();
+        this.hdfs = new UberHDFS();
         this.hdfsClient = hdfs.getClient();
         System.out.println("HDFS integrated with Uber Server");
         
@@ -874,11 +945,21 @@ public class UberServer {
                 case "HDFS_STATUS":
                     return getHDFSStatus();
                 case "HDFS_LIST_RIDES":
-                    return listHDFSRides();
+                    return listHDFSRides(parts);
                 case "HDFS_LIST_DRIVERS":
-                    return listHDFSDrivers();
+                    return listHDFSDrivers(parts);
+                case "HDFS_BALANCE":
+                    return balanceHDFS(parts);
                 case "SIMULATE_FAILURE":
                     return simulateFailure(parts, currentTime);
+                case "SIMULATE_DATANODE_FAILURE":
+                    return simulateDataNodeFailure(parts, currentTime);
+                case "RECOVER_DATANODE":
+                    return recoverDataNode(parts, currentTime);
+                case "SIMULATE_NAMENODE_FAILURE":
+                    return simulateNameNodeFailure(currentTime);
+                case "RECOVER_NAMENODE":
+                    return recoverNameNode(currentTime);
                 case "SIMULATE_PARTITION":
                     return simulatePartition(currentTime);
                 case "RECOVER_PARTITION":
@@ -1044,6 +1125,7 @@ public class UberServer {
     public List<UberServer.ProcessNode> getDispatchNodes() { return dispatchNodes; }
     public FareServiceImpl getFareService() { return fareService; }
     public UberHDFS.UberHDFSClient getHdfsClient() { return hdfsClient; }
+    public UberHDFS getHdfs() { return hdfs; }
     public DataBackupManager getBackupManager() { return backupManager; }
     
     // Fault tolerance methods
@@ -1143,16 +1225,59 @@ public class UberServer {
         return "HDFS_STATUS: Active - 3 DataNodes, Replication Factor: 2";
     }
     
-    private String listHDFSRides() {
+    // HDFS_LIST_RIDES;timestamp lists everything; HDFS_LIST_RIDES;startAfter;limit;timestamp
+    // returns one page, with NEXT=<cursor> when more may follow
+    private String listHDFSRides(String[] parts) {
+        if (parts.length >= 4) {
+            int limit = parsePageLimit(parts[2]);
+            if (limit <= 0) return "ERROR: Invalid limit - use HDFS_LIST_RIDES;startAfter;limit;timestamp with limit > 0";
+            return "HDFS_RIDES: " + formatPage(hdfsClient.listRides(parts[1], limit), limit);
+        }
         List<String> rides = hdfsClient.listAllRides();
         return "HDFS_RIDES: " + String.join(",", rides);
     }
     
-    private String listHDFSDrivers() {
+    private String listHDFSDrivers(String[] parts) {
+        if (parts.length >= 4) {
+            int limit = parsePageLimit(parts[2]);
+            if (limit <= 0) return "ERROR: Invalid limit - use HDFS_LIST_DRIVERS;startAfter;limit;timestamp with limit > 0";
+            return "HDFS_DRIVERS: " + formatPage(hdfsClient.listDrivers(parts[1], limit), limit);
+        }
         List<String> drivers = hdfsClient.listAllDrivers();
         return "HDFS_DRIVERS: " + String.join(",", drivers);
     }
     
+    // HDFS_BALANCE;[thresholdPercent;]timestamp starts a balancer run (10% by default);
+    // while one is running it only reports that run's progress
+    private String balanceHDFS(String[] parts) {
+        double threshold = 10.0;
+        if (parts.length >= 3) {
+            try {
+                threshold = Double.parseDouble(parts[1]);
+            } catch (NumberFormatException e) {
+                threshold = Double.NaN;
+            }
+            if (Double.isNaN(threshold) || threshold < 0) return "ERROR: Invalid threshold - use HDFS_BALANCE;thresholdPercent;timestamp with thresholdPercent >= 0";
+        }
+        boolean started = hdfsClient.balanceCluster(threshold);
+        return "HDFS_BALANCE: " + (started ? "Started" : "Already running") + " " + hdfsClient.getBalancerStatus();
+    }
+    
+    // Returns 0 for a limit that is not a number, so callers reject it with the same usage message
+    private int parsePageLimit(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    private String formatPage(List<String> page, int limit) {
+        if (limit <= 0) throw new IllegalArgumentException("Page limit must be positive, got " + limit);
+        String listing = String.join(",", page);
+        return page.size() < limit ? listing : listing + " NEXT=" + page.get(page.size() - 1);
+    }
+    
     private String simulateFailure(String[] parts, int timestamp) {
         if (parts.length < 2) return "ERROR: Invalid format - use SIMULATE_FAILURE;nodeId";
         try {
@@ -1165,6 +1290,41 @@ public class UberServer {
         }
     }
     
+    private String simulateDataNodeFailure(String[] parts, int timestamp) {
+        if (parts.length < 3) return "ERROR: Invalid format - use SIMULATE_DATANODE_FAILURE;datanodeId;timestamp";
+        String dataNodeId = parts[1];
+        int queued = hdfsClient.markDataNodeDead(dataNodeId);
+        System.out.println("[" + timestamp + "] FAULT-TOLERANCE: Simulated failure of HDFS " + dataNodeId);
+        return "SUCCESS: " + dataNodeId + " failed, " + queued + " blocks queued for re-replication";
+    }
+    
+    private String recoverDataNode(String[] parts, int timestamp) {
+        if (parts.length < 3) return "ERROR: Invalid format - use RECOVER_DATANODE;datanodeId;timestamp";
+        hdfsClient.markDataNodeAlive(parts[1]);
+        System.out.println("[" + timestamp + "] FAULT-TOLERANCE: HDFS " + parts[1] + " back in service");
+        return "SUCCESS: " + parts[1] + " recovered";
+    }
+    
+    // SIMULATE_NAMENODE_FAILURE;timestamp fails the active NameNode; the standby takes over
+    private String simulateNameNodeFailure(int timestamp) {
+        if (hdfs.getStandbyNameNode() == null) return "ERROR: No standby NameNode - use RECOVER_NAMENODE;timestamp";
+        try {
+            long millis = hdfs.failoverNameNode();
+            long txId = hdfs.getNameNode().getLastTxId();
+            System.out.println("[" + timestamp + "] FAULT-TOLERANCE: NameNode failed over to standby in " + millis + " ms");
+            return "SUCCESS: NameNode failover in " + millis + " ms, standby active at txId " + txId;
+        } catch (IOException | IllegalStateException e) {
+            return "ERROR: NameNode failover failed - " + e.getMessage();
+        }
+    }
+    
+    // RECOVER_NAMENODE;timestamp starts a new standby NameNode on the shared metadata
+    private String recoverNameNode(int timestamp) {
+        UberHDFS.NameNode standby = hdfs.startStandbyNameNode();
+        System.out.println("[" + timestamp + "] FAULT-TOLERANCE: Standby NameNode running at txId " + standby.getLastTxId());
+        return "SUCCESS: Standby NameNode running at txId " + standby.getLastTxId();
+    }
+    
     private String simulatePartition(int timestamp) {
         simulateNetworkPartition();
         System.out.println("[" + timestamp + "] FAULT-TOLERANCE: Network partition simulated");
@@ -1194,6 +1354,7 @@ public class UberServer {
             Map<String, Object> hdfsStatus = hdfsClient.getNameNode().getClusterStatus();
             status.append(", HDFS=").append(hdfsStatus.get("activeDataNodes"))
                   .append("/").append(hdfsStatus.get("totalDataNodes")).append(" nodes");
+            status.append(", NameNodeStandby=").append(hdfs.getStandbyNameNode() != null ? "READY" : "NONE");
         } catch (Exception e) {
             status.append(", HDFS=ERROR");
         }
@@ -1203,8 +1364,8 @@ public class UberServer {
     
     private String getBackupStatus() {
         try {
-            int rideCount = hdfsClient.listAllRides().size();
-            int driverCount = hdfsClient.listAllDrivers().size();
+            long rideCount = hdfsClient.countRides();
+            long driverCount = hdfsClient.countDrivers();
             
             return "BACKUP_STATUS: Rides=" + rideCount + ", Drivers=" + driverCount + 
                    ", LastBackup=" + System.currentTimeMillis();
@@ -1223,6 +1384,13 @@ public class UberServer {
         if (healthMonitor != null) healthMonitor.shutdown();
         if (backupManager != null) backupManager.shutdown();
         
+        // Seal open GPS segments so buffered points reach the DataNodes
+        if (hdfsClient != null) {
+            // The root NameNode (first) goes last, it closes the shared DataNodes
+            List<UberHDFS.NameNode> nameNodes = hdfsClient.getNameNodes();
+            for (int i = nameNodes.size() - 1; i >= 0; i--) nameNodes.get(i).shutdown();
+        }
+        
         // Shutdown thread pool
         System.out.println("Stopping thread pool...");
         threadPool.shutdown();